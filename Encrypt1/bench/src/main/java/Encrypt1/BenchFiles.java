@@ -0,0 +1,95 @@
+//------------------------------------------------------------------------------
+// BenchFiles:
+//
+// Scratch files for the benchmarks.  The storage parameter picks where they
+// go:
+//     tmpfs   /dev/shm, memory backed, so only the CPU cost is measured
+//     disk    -Dbench.disk=folder if given, otherwise java.io.tmpdir
+// If there is no /dev/shm (Windows) tmpfs falls back to disk and says so.
+// Sizes are written 1K, 64K, 1M, 1G.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+class BenchFiles {
+
+    static long parse_size(String s) {
+        String t = s.trim().toUpperCase();
+        long mult = 1;
+        switch (t.charAt(t.length() - 1)) {
+            case 'K':
+                mult = 1024;
+                break;
+            case 'M':
+                mult = 1024 * 1024;
+                break;
+            case 'G':
+                mult = 1024 * 1024 * 1024;
+                break;
+            default:
+                return Long.parseLong(t);
+        }
+        return Long.parseLong(t.substring(0, t.length() - 1)) * mult;
+    }
+
+    // a new empty folder on the given storage
+    static Path make_dir(String storage) throws IOException {
+        Path base;
+        if ("tmpfs".equals(storage) && Files.isDirectory(Paths.get("/dev/shm"))) {
+            base = Paths.get("/dev/shm");
+        } else {
+            if ("tmpfs".equals(storage)) {
+                System.out.println("BenchFiles: no /dev/shm, tmpfs runs use disk");
+            }
+            base = Paths.get(System.getProperty("bench.disk", System.getProperty("java.io.tmpdir")));
+        }
+        return Files.createTempDirectory(base, "e1bench");
+    }
+
+    // size random bytes, the same ones every run
+    static void write_random(Path p, long size) throws IOException {
+        Random r = new Random(size);
+        byte[] b = new byte[1024 * 1024];
+        try (FileChannel out = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long left = size;
+            while (left > 0) {
+                r.nextBytes(b);
+                int n = (int) Math.min(b.length, left);
+                StreamEngine.write_fully(out, ByteBuffer.wrap(b, 0, n));
+                left -= n;
+            }
+            out.force(true);
+        }
+    }
+
+    static void delete_tree(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException exc) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
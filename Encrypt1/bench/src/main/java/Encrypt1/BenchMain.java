@@ -0,0 +1,31 @@
+//------------------------------------------------------------------------------
+// BenchMain:
+//
+// JMH takes one thread count per run, this runs the same benchmarks once for
+// each count in a list so the scaling is in one report:
+//     java -cp target/benchmarks.jar Encrypt1.BenchMain 1,2,4,8 FileBench.encrypt -p fileSize=64M
+// Arguments after the list are the usual JMH ones.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.util.Arrays;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class BenchMain {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: BenchMain threads,threads,... [jmh options]");
+            System.exit(-1);
+        }
+        CommandLineOptions cmd = new CommandLineOptions(Arrays.copyOfRange(args, 1, args.length));
+        for (String s : args[0].split(",")) {
+            int threads = Integer.parseInt(s.trim());
+            System.out.println("BenchMain: " + threads + " threads");
+            new Runner(new OptionsBuilder().parent(cmd).threads(threads).build()).run();
+        }
+    }
+}
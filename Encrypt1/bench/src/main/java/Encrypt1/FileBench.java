@@ -0,0 +1,114 @@
+//------------------------------------------------------------------------------
+// FileBench:
+//
+// The per file hot paths: EncryptLib.encryptAES(), EncryptLib.decryptAES()
+// and TreeWalker.hashFileSHA1(), each on one file of fileSize random bytes,
+// with StreamEngine buffers of bufSize, on tmpfs or disk (see BenchFiles).
+// Time per call, so MB/s is fileSize over the score.
+//
+// Every @Param can be narrowed from the command line, 1G in particular is
+// slow to set up and needs the room on /dev/shm:
+//     java -jar target/benchmarks.jar FileBench -p fileSize=1M -p storage=disk
+// Threads are JMH's -t N, each thread has its own output and blob, or see
+// BenchMain for a sweep over thread counts.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.SecretKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileBench {
+
+    @Param({"1K", "64K", "1M", "64M", "1G"})
+    public String fileSize;
+
+    @Param({"64K", "256K", "1M"})
+    public String bufSize;
+
+    @Param({"tmpfs", "disk"})
+    public String storage;
+
+    private Path m_dir;
+    private Path m_input;
+    private long m_size;
+    private SecretKey m_key;
+    private FileMeta m_meta;
+    private final AtomicInteger m_threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, NoSuchAlgorithmException {
+        OptionKeeper.set_bufsize(Long.toString(BenchFiles.parse_size(bufSize)));
+        m_size = BenchFiles.parse_size(fileSize);
+        m_dir = BenchFiles.make_dir(storage);
+        m_input = m_dir.resolve("input.dat");
+        BenchFiles.write_random(m_input, m_size);
+        m_key = EncryptLib.getKey();
+        m_meta = new FileMeta("input.dat", 1, m_size);
+
+        // decryptAES() writes destRoot + "\" + name, under dest on any OS
+        PathNameKeeper.set_destRoot(m_dir.resolve("dest").toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        BenchFiles.delete_tree(m_dir);
+    }
+
+    // what one benchmark thread writes to and decrypts from
+    @State(Scope.Thread)
+    public static class PerThread {
+        Path m_out;
+        Path m_blob;
+        byte[] m_key_b;
+
+        @Setup(Level.Trial)
+        public void setup(FileBench b) throws IOException, NoSuchAlgorithmException {
+            int id = b.m_threads.incrementAndGet();
+            m_out = b.m_dir.resolve("out_" + id);
+            m_blob = b.m_dir.resolve("blob_" + id);
+            SecretKey key = EncryptLib.getKey();
+            m_key_b = key.getEncoded();
+            // timestamp 1 never matches the restored file, so decrypt never skips
+            EncryptLib.encryptAES(b.m_input.toString(), new FileMeta("restored_" + id, 1, b.m_size), m_blob.toString(), key);
+        }
+    }
+
+    @Benchmark
+    public void encrypt(PerThread t) throws IOException {
+        EncryptLib.encryptAES(m_input.toString(), m_meta, t.m_out.toString(), m_key);
+    }
+
+    @Benchmark
+    public FileMeta decrypt(PerThread t) throws Exception {
+        return EncryptLib.decryptAES(t.m_blob.toString(), t.m_key_b);
+    }
+
+    @Benchmark
+    public String hash() {
+        return TreeWalker.hashFileSHA1(m_input.toString());
+    }
+}
@@ -0,0 +1,62 @@
+//------------------------------------------------------------------------------
+// KeyBench:
+//
+// The per file costs that do not depend on the file: a new AES key, wrapping
+// it with the master password (Password.doEncrypt(), PBEWithMD5AndDES with a
+// cipher cached per thread) and turning a SHA-1 into hex for a blob name.
+// Calls per millisecond, use -t N for more threads.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyBench {
+
+    private Password m_pw;
+    private byte[] m_key;
+    private byte[] m_sha1;
+
+    @Setup(Level.Trial)
+    public void setup() throws GeneralSecurityException {
+        m_pw = new Password();
+        m_pw.init("bench".toCharArray());
+        m_key = EncryptLib.getKey().getEncoded();
+        m_sha1 = new byte[20];
+        new Random(1).nextBytes(m_sha1);
+    }
+
+    @Benchmark
+    public Object keygen() throws GeneralSecurityException {
+        return EncryptLib.getKey();
+    }
+
+    @Benchmark
+    public byte[] wrap() throws GeneralSecurityException {
+        return m_pw.doEncrypt(m_key);
+    }
+
+    @Benchmark
+    public String byteToHex() {
+        return TreeWalker.byteToHex(m_sha1);
+    }
+}
@@ -20,6 +20,8 @@ if not exist %dbRoot% mklink /j %dbRoot% D:\CloudSync\DropBox\silverhp_user0_doc
 if not exist %dbRoot%\DAT md %dbRoot%\DAT
 if not exist %dbRoot%\KEY md %dbRoot%\KEY
 if not exist %dbRoot%\META md %dbRoot%\META
+if not exist %dbRoot%\PACK md %dbRoot%\PACK
+if not exist %dbRoot%\SNAP md %dbRoot%\SNAP
 
 if exist config.backup copy config.backup db\config >nul
 
@@ -3,7 +3,7 @@
 set srcRoot=C:\users\user0\Documents
 set dbRoot=C:\Encrypt1\c_users_user0_documents\DB
 set destRoot=C:\Encrypt1\c_users_user0_documents\Restore
-set restoreFile=%dbRoot%\META\TreeWalker.out
+set restoreFile=%dbRoot%\META\TreeWalker.man
 set bin=.
 
 @echo.
@@ -0,0 +1,695 @@
+//------------------------------------------------------------------------------
+// ArchiveStream:
+//
+// -archive:target and -unarchive:source.  The whole backup as one sequential
+// stream instead of files under dbRoot, for a tape, an object store upload
+// or another host.  target and source are
+//     -               stdout / stdin
+//     tcp:host:port   -archive connects to host:port
+//     tcp:port        -unarchive listens on port for one connection
+//     anything else   a file, written or read start to end
+// Nothing is ever seeked and no temp file is used on either side.  With
+// -archive:- everything the run prints goes to stderr instead.
+//
+// Each file is encrypted exactly as EncryptLib.encryptAES() does in the
+// legacy format, with its own new key wrapped with the master password like
+// the KEY\ files.  Since the blob length is not known until the file has gone
+// through the cipher, the blob is sent in length prefixed segments:
+//
+//   stream:  MAGIC "E1ARCH01", 8 bytes created, then frames
+//   'F'      file:  int wrapped key length, wrapped key,
+//                   segments: int n > 0 then n blob bytes, ...,
+//                   int 0 at the end, or int -1 if the file could not be
+//                   read part way and the entry is to be dropped
+//   'I'      index: int wrapped key length, wrapped key, int n, n bytes of
+//                   legacy blob whose contents are, for each 'F' since the
+//                   last index:  8 offset of its 'F', 8 size, 8 timestamp,
+//                   20 SHA-1 of the contents, int path length, UTF-8 path
+//   'E'      end:   8 files, 8 content bytes
+//
+// An index frame comes every INDEX_FILES files or INDEX_BYTES bytes and
+// before the end.  Paths are only ever in the stream encrypted.  The reader
+// hashes what it restores and checks it against the index, AES/CBC itself
+// has no tag, and checks the padding of each blob's final block.  An entry
+// that fails is counted bad and what was restored of it is deleted.  A
+// stream without its 'E' frame was cut short.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import static Encrypt1.PathNameKeeper.cat_path_s;
+import static Encrypt1.PathNameKeeper.get_destRoot;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+public class ArchiveStream {
+
+    private static final byte[] MAGIC = "E1ARCH01".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int FRAME_FILE = 'F';
+    private static final int FRAME_INDEX = 'I';
+    private static final int FRAME_END = 'E';
+
+    private static final int SEG_END = 0;
+    private static final int SEG_ABORT = -1;
+    private static final int SEGMAX = 64 * 1024 * 1024;    // sanity limit on a segment
+
+    // an index frame after this many files or bytes
+    private static final int INDEX_FILES = 1000;
+    private static final long INDEX_BYTES = 256L * 1024 * 1024;
+
+    // stdout as it was before -archive:- sent System.out to stderr
+    private static OutputStream s_stdout = null;
+
+    // call before anything is printed when the archive goes to stdout
+    public static void take_stdout() {
+        s_stdout = new FileOutputStream(FileDescriptor.out);
+        System.setOut(System.err);
+    }
+
+    //--------------------------------------------------------------------------
+    // Writer
+    //--------------------------------------------------------------------------
+
+    // encrypt the tree at root into target, see the top of file
+    public static void write(String target, Path root) throws IOException {
+        Socket socket = null;
+        OutputStream os;
+        if ("-".equals(target)) {
+            if (s_stdout == null) {
+                take_stdout();
+            }
+            os = s_stdout;
+        } else if (target.startsWith("tcp:")) {
+            String[] hp = target.substring(4).split(":");
+            if (hp.length != 2) {
+                throw new IOException("-archive:tcp:host:port " + target);
+            }
+            socket = new Socket(hp[0], Integer.parseInt(hp[1]));
+            os = socket.getOutputStream();
+        } else {
+            os = new FileOutputStream(target);
+        }
+        Writer w = new Writer(os, root);
+        try {
+            ParallelWalk.walk_tree(w.m_root, w);
+            w.finish();
+        } finally {
+            w.m_out.close();
+            if (socket != null) {
+                socket.close();
+            }
+        }
+        System.out.println(String.format("Archive: %d files, %d bytes of contents, %d bytes written, %d skipped",
+                w.m_files, w.m_bytes, w.m_count.m_count, w.m_skipped));
+    }
+
+    // counts what goes through it, above the buffer, for the offsets in the index
+    private static class CountingStream extends FilterOutputStream {
+        long m_count = 0;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            m_count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            m_count += len;
+        }
+    }
+
+    private static class Writer extends SimpleFileVisitor<Path> {
+        private final Path m_root;
+        private final CountingStream m_count;
+        private final DataOutputStream m_out;
+        private final ByteArrayOutputStream m_index = new ByteArrayOutputStream();
+        private final DataOutputStream m_indexOut = new DataOutputStream(m_index);
+        private int m_indexFiles = 0;
+        private long m_indexBytes = 0;
+        private long m_files = 0;
+        private long m_bytes = 0;
+        private long m_skipped = 0;
+
+        Writer(OutputStream os, Path root) throws IOException {
+            m_root = root.toAbsolutePath();
+            m_count = new CountingStream(new BufferedOutputStream(os, OptionKeeper.get_bufsize()));
+            m_out = new DataOutputStream(m_count);
+            m_out.write(MAGIC);
+            m_out.writeLong(System.currentTimeMillis());
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            if (!attrs.isRegularFile()) {
+                return FileVisitResult.CONTINUE;
+            }
+            String relative = m_root.relativize(file.toAbsolutePath()).toString();
+            FileMeta filemeta = new FileMeta(relative, attrs.lastModifiedTime().toMillis(), attrs.size());
+            Segments seg = null;
+            try {
+                long offset = m_count.m_count;
+                long t = Metrics.start();
+                SecretKey aesKey = EncryptLib.getKey();
+                Metrics.stop(Metrics.Phase.KEYGEN, t);
+                t = Metrics.start();
+                byte[] wrapped = TreeWalker.wrapKey(aesKey);
+                Metrics.stop(Metrics.Phase.KEYWRAP, t);
+
+                m_out.writeByte(FRAME_FILE);
+                m_out.writeInt(wrapped.length);
+                m_out.write(wrapped);
+                seg = new Segments(m_out);
+                ContentDigest digest = new ContentDigest();
+                t = Metrics.start();
+                try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                    StreamEngine.encrypt(in, filemeta, seg, aesKey, digest);
+                }
+                m_out.writeInt(SEG_END);
+                Metrics.stop(Metrics.Phase.ENCRYPT, t);
+
+                m_indexOut.writeLong(offset);
+                m_indexOut.writeLong(digest.count());
+                m_indexOut.writeLong(filemeta.GetTimeStamp());
+                m_indexOut.write(TreeWalker.hexStringToByteArray(digest.digest()));
+                byte[] path_b = relative.getBytes(StandardCharsets.UTF_8);
+                m_indexOut.writeInt(path_b.length);
+                m_indexOut.write(path_b);
+                m_indexFiles++;
+                m_indexBytes += digest.count();
+                m_files++;
+                m_bytes += digest.count();
+                Metrics.file_done(digest.count());
+                Metrics.debug("Archive " + file);
+                if (m_indexFiles >= INDEX_FILES || m_indexBytes >= INDEX_BYTES) {
+                    write_index();
+                }
+            } catch (IOException | GeneralSecurityException ex) {
+                if (seg == null || seg.m_failed) {
+                    // the stream itself is gone, nothing more can be written
+                    throw new RuntimeException(ex);
+                }
+                Logger.getLogger(ArchiveStream.class.getName()).log(Level.SEVERE, null, ex);
+                try {
+                    m_out.writeInt(SEG_ABORT);
+                } catch (IOException ex2) {
+                    throw new RuntimeException(ex2);
+                }
+                m_skipped++;
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException exc) {
+            System.err.println(exc);
+            m_skipped++;
+            return FileVisitResult.CONTINUE;
+        }
+
+        private void write_index() throws IOException {
+            if (m_indexFiles == 0) {
+                return;
+            }
+            m_indexOut.flush();
+            try {
+                SecretKey key = EncryptLib.getKey();
+                byte[] wrapped = TreeWalker.wrapKey(key);
+                byte[] blob = EncryptLib.encryptToBytes(m_index.toByteArray(), new FileMeta("INDEX", System.currentTimeMillis(), m_index.size()), key);
+                m_out.writeByte(FRAME_INDEX);
+                m_out.writeInt(wrapped.length);
+                m_out.write(wrapped);
+                m_out.writeInt(blob.length);
+                m_out.write(blob);
+            } catch (GeneralSecurityException ex) {
+                throw new IOException(ex);
+            }
+            m_index.reset();
+            m_indexFiles = 0;
+            m_indexBytes = 0;
+        }
+
+        void finish() throws IOException {
+            write_index();
+            m_out.writeByte(FRAME_END);
+            m_out.writeLong(m_files);
+            m_out.writeLong(m_bytes);
+            m_out.flush();
+        }
+    }
+
+    // what StreamEngine writes, one segment per write()
+    private static class Segments implements WritableByteChannel {
+        private final DataOutputStream m_out;
+        private byte[] m_buf = new byte[0];
+        boolean m_failed = false;       // the stream failed, not the file
+
+        Segments(DataOutputStream out) {
+            m_out = out;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            if (n == 0) {
+                return 0;
+            }
+            try {
+                m_out.writeInt(n);
+                if (src.hasArray()) {
+                    m_out.write(src.array(), src.arrayOffset() + src.position(), n);
+                    src.position(src.limit());
+                } else {
+                    if (m_buf.length < n) {
+                        m_buf = new byte[n];
+                    }
+                    src.get(m_buf, 0, n);
+                    m_out.write(m_buf, 0, n);
+                }
+            } catch (IOException ex) {
+                m_failed = true;
+                throw ex;
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Reader
+    //--------------------------------------------------------------------------
+
+    // restore everything in source to destRoot, returns the number of
+    // problems, files that did not match the index or a stream cut short
+    public static long read(String source) throws IOException {
+        Socket socket = null;
+        ServerSocket server = null;
+        InputStream is;
+        if ("-".equals(source)) {
+            is = System.in;
+        } else if (source.startsWith("tcp:")) {
+            server = new ServerSocket(Integer.parseInt(source.substring(4)));
+            System.out.println("Unarchive: waiting on port " + server.getLocalPort());
+            socket = server.accept();
+            is = socket.getInputStream();
+        } else {
+            is = new FileInputStream(source);
+        }
+        try {
+            Reader r = new Reader(is);
+            r.run();
+            System.out.println(String.format("Unarchive: %d files, %d checked against the index, %d bad, %d dropped by the writer",
+                    r.m_files, r.m_checked, r.m_bad, r.m_dropped));
+            return r.m_bad;
+        } finally {
+            is.close();
+            if (socket != null) {
+                socket.close();
+            }
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    private static class Reader {
+        // m_digests value of a file whose entry could not be decrypted, it
+        // is counted bad when it fails and its index entry is passed over
+        private static final String FAILED = "failed";
+
+        private final CountingInput m_count;
+        private final DataInputStream m_in;
+        private final Map<Long, String> m_digests = new HashMap<>();  // 'F' offset to SHA-1, null if already current, or FAILED
+        private long m_files = 0;
+        private long m_checked = 0;
+        private long m_bad = 0;
+        private long m_dropped = 0;
+
+        Reader(InputStream is) {
+            m_count = new CountingInput(new BufferedInputStream(is, OptionKeeper.get_bufsize()));
+            m_in = new DataInputStream(m_count);
+        }
+
+        void run() throws IOException {
+            byte[] magic = new byte[MAGIC.length];
+            m_in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("not an Encrypt1 archive");
+            }
+            m_in.readLong();
+            try {
+                frames();
+            } catch (EOFException ex) {
+                // a file being restored when it ended is left as far as it got
+                m_bad++;
+                System.out.println("UNARCHIVE TRUNCATED the stream ends without its end frame, at " + m_count.m_count);
+            }
+        }
+
+        private void frames() throws IOException {
+            while (true) {
+                long frame = m_count.m_count;
+                int type = m_in.readUnsignedByte();
+                if (type == FRAME_FILE) {
+                    read_file(frame);
+                } else if (type == FRAME_INDEX) {
+                    read_index();
+                } else if (type == FRAME_END) {
+                    long files = m_in.readLong();
+                    m_in.readLong();
+                    if (files != m_files) {
+                        m_bad++;
+                        System.out.println("UNARCHIVE COUNT the end frame says " + files + " files, " + m_files + " were read");
+                    }
+                    return;
+                } else {
+                    throw new IOException("archive frame type " + type + " at " + frame);
+                }
+            }
+        }
+
+        private byte[] read_bytes() throws IOException {
+            int n = m_in.readInt();
+            if (n < 0 || n > SEGMAX) {
+                throw new IOException("archive is not valid at " + m_count.m_count);
+            }
+            byte[] b = new byte[n];
+            m_in.readFully(b);
+            return b;
+        }
+
+        private void read_file(long frame) throws IOException {
+            byte[] wrapped = read_bytes();
+            Unsegments seg = new Unsegments();
+            long t = Metrics.start();
+            String digest = null;
+            String pathname = null;
+            HashingReader d = null;
+            try {
+                SecretKeySpec key = new SecretKeySpec(RestoreTree.unwrapKey(wrapped), "AES");
+                StreamEngine.Decryptor dec = new StreamEngine.Decryptor(seg, key);
+                d = new HashingReader(dec);
+                pathname = d.GetPathName();
+                FileMeta filemeta = EncryptLib.restore_blob(d);
+                if (d.copied()) {
+                    dec.finish();
+                } else {
+                    seg.skip_rest();
+                }
+                new File(cat_path_s(get_destRoot(), filemeta.GetPathName())).setLastModified(filemeta.GetTimeStamp());
+                digest = d.digest();
+                Metrics.stop(Metrics.Phase.RESTORE, t);
+                Metrics.file_done(filemeta.GetFileSize());
+                Metrics.debug("Unarchive " + filemeta.GetPathName());
+            } catch (Exception ex) {
+                if (seg.m_aborted) {
+                    // the writer could not read the file, it is not in the index
+                    m_dropped++;
+                    if (pathname != null) {
+                        new File(cat_path_s(get_destRoot(), pathname)).delete();
+                    }
+                    return;
+                }
+                if (ex instanceof IOException && seg.m_broken) {
+                    throw (IOException) ex;     // the stream itself
+                }
+                Logger.getLogger(ArchiveStream.class.getName()).log(Level.SEVERE, null, ex);
+                seg.skip_rest();
+                if (!seg.m_aborted) {
+                    // do not leave what was decrypted before the failure
+                    // where the file should be
+                    if (pathname != null && d.copied()) {
+                        new File(cat_path_s(get_destRoot(), pathname)).delete();
+                    }
+                    m_bad++;
+                    System.out.println("UNARCHIVE FAILED " + (pathname != null ? pathname : "the entry at " + frame) + " " + ex);
+                    digest = FAILED;
+                }
+            }
+            if (seg.m_aborted) {
+                m_dropped++;
+                return;
+            }
+            m_files++;
+            m_digests.put(frame, digest);
+        }
+
+        private void read_index() throws IOException {
+            byte[] wrapped = read_bytes();
+            byte[] blob = read_bytes();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try {
+                SecretKeySpec key = new SecretKeySpec(RestoreTree.unwrapKey(wrapped), "AES");
+                new StreamEngine.Decryptor(Channels.newChannel(new ByteArrayInputStream(blob)), key).copyTo(Channels.newChannel(bos));
+            } catch (Exception ex) {
+                m_bad++;
+                System.out.println("UNARCHIVE INDEX the index frame cannot be decrypted " + ex);
+                return;
+            }
+            DataInputStream idx = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+            while (idx.available() > 0) {
+                long offset = idx.readLong();
+                idx.readLong();
+                idx.readLong();
+                byte[] sha1 = new byte[20];
+                idx.readFully(sha1);
+                byte[] path_b = new byte[idx.readInt()];
+                idx.readFully(path_b);
+                String path = new String(path_b, StandardCharsets.UTF_8);
+                if (!m_digests.containsKey(offset)) {
+                    m_bad++;
+                    System.out.println("UNARCHIVE MISSING " + path);
+                    continue;
+                }
+                String got = m_digests.remove(offset);
+                if (got == null || FAILED.equals(got)) {
+                    continue;   // not restored, already there, or counted when it failed
+                }
+                m_checked++;
+                if (!got.equalsIgnoreCase(TreeWalker.byteToHex(sha1))) {
+                    m_bad++;
+                    System.out.println("UNARCHIVE CORRUPT " + path);
+                }
+            }
+        }
+
+        // one entry's segments as a channel, -1 at its end
+        private class Unsegments implements ReadableByteChannel {
+            private int m_left = 0;
+            private boolean m_end = false;
+            boolean m_aborted = false;
+            boolean m_broken = false;   // the stream failed, not the entry
+            private byte[] m_buf = new byte[0];
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                try {
+                    if (m_left == 0) {
+                        if (m_end) {
+                            return -1;
+                        }
+                        int n = m_in.readInt();
+                        if (n == SEG_END || n == SEG_ABORT) {
+                            m_end = true;
+                            m_aborted = n == SEG_ABORT;
+                            if (m_aborted) {
+                                throw new IOException("the archive writer dropped this file");
+                            }
+                            return -1;
+                        }
+                        if (n < 0 || n > SEGMAX) {
+                            throw new IOException("archive is not valid at " + m_count.m_count);
+                        }
+                        m_left = n;
+                    }
+                    int n = Math.min(m_left, dst.remaining());
+                    if (m_buf.length < n) {
+                        m_buf = new byte[n];
+                    }
+                    m_in.readFully(m_buf, 0, n);
+                    dst.put(m_buf, 0, n);
+                    m_left -= n;
+                    return n;
+                } catch (IOException ex) {
+                    m_broken = !m_aborted;
+                    throw ex;
+                }
+            }
+
+            // what is left of the entry after the contents, the cipher's tail
+            void skip_rest() throws IOException {
+                ByteBuffer b = ByteBuffer.allocate(64 * 1024);
+                try {
+                    while (read(b) >= 0) {
+                        b.clear();
+                    }
+                } catch (IOException ex) {
+                    if (!m_aborted) {
+                        throw ex;
+                    }
+                }
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        }
+    }
+
+    // counts what the reader takes, above the buffer, the offsets of the 'F' frames
+    private static class CountingInput extends FilterInputStream {
+        long m_count = 0;
+
+        CountingInput(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                m_count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                m_count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long k = in.skip(n);
+            m_count += k;
+            return k;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    // a BlobReader that hashes the contents on their way to the file
+    private static class HashingReader implements BlobReader {
+        private final BlobReader m_d;
+        private final ContentDigest m_digest;
+        private boolean m_copied = false;
+
+        HashingReader(BlobReader d) throws GeneralSecurityException {
+            m_d = d;
+            m_digest = new ContentDigest();
+        }
+
+        @Override
+        public String GetPathName() {
+            return m_d.GetPathName();
+        }
+
+        @Override
+        public long GetTimeStamp() {
+            return m_d.GetTimeStamp();
+        }
+
+        @Override
+        public long GetFileSize() {
+            return m_d.GetFileSize();
+        }
+
+        @Override
+        public long copyTo(final WritableByteChannel out) throws IOException, GeneralSecurityException {
+            m_copied = true;
+            return m_d.copyTo(new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    int start = src.position();
+                    int n = out.write(src);
+                    ByteBuffer done = src.duplicate();
+                    done.position(start);
+                    done.limit(start + n);
+                    m_digest.update(done);
+                    return n;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return out.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.close();
+                }
+            });
+        }
+
+        // true once restore_blob() started writing the file
+        boolean copied() {
+            return m_copied;
+        }
+
+        // hex SHA-1 of the contents, null if restore_blob() skipped the file
+        String digest() {
+            return m_copied ? m_digest.digest() : null;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+//------------------------------------------------------------------------------
+// AsyncChannels:
+//
+// -async[:N].  StreamEngine's loops are read, cipher, write, read, ... on one
+// thread, so the disk waits while AES runs and AES waits for the disk.  The
+// AES/CBC chain of one legacy blob cannot be split across threads, but its
+// I/O can run beside it.
+//
+// reader() and writer() are plain ReadableByteChannel/WritableByteChannel on
+// an AsynchronousFileChannel with N buffers each (3 by default):
+//
+//   reader   keeps N reads in flight ahead of the caller.  read() copies out
+//            of the oldest buffer, waiting only if its read is not done, and
+//            an emptied buffer is sent off for the next part of the file.
+//   writer   fills a buffer, sends it off and goes on filling the next one.
+//            write() only waits if all N are still being written.  close()
+//            waits for every write.
+//
+// Reads and writes are positional and finish in CompletionHandlers, on the
+// channel's I/O threads (IOCP on Windows).  So while StreamEngine encrypts
+// buffer k, buffer k+1 is being read and buffer k-1 written.  The bytes
+// written are the same as without -async.
+//
+// Used for the legacy format, encryptAES(), hashFileSHA1() and restore, for
+// files of at least MINBUFS buffers.  -chunked blobs already keep the disk
+// busy with a thread per chunk.  The buffers are -bufsize:N and -direct like
+// StreamEngine's, and kept per thread.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class AsyncChannels {
+
+    // smaller files are done the plain way, a few buffers are not worth it
+    private static final int MINBUFS = 4;
+
+    // [0, N) reader buffers, [N, 2N) writer buffers
+    private static final ThreadLocal<ByteBuffer[]> s_buffers = new ThreadLocal<>();
+
+    private static ByteBuffer[] get_buffers() {
+        int n = OptionKeeper.get_async();
+        int size = OptionKeeper.get_bufsize();
+        boolean direct = OptionKeeper.get_direct();
+        ByteBuffer[] b = s_buffers.get();
+        if (b == null || b.length != 2 * n || b[0].capacity() != size || b[0].isDirect() != direct) {
+            b = new ByteBuffer[2 * n];
+            for (int i = 0; i < b.length; i++) {
+                b[i] = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            }
+            s_buffers.set(b);
+        }
+        return b;
+    }
+
+    // true if a file of size bytes should go through here
+    public static boolean use_for(long size) {
+        return OptionKeeper.get_async() > 0 && size >= (long) MINBUFS * OptionKeeper.get_bufsize();
+    }
+
+    public static ReadableByteChannel reader(Path file) throws IOException {
+        ByteBuffer[] b = get_buffers();
+        int n = b.length / 2;
+        Slot[] slots = new Slot[n];
+        for (int i = 0; i < n; i++) {
+            slots[i] = new Slot(b[i]);
+        }
+        return new Reader(AsynchronousFileChannel.open(file, StandardOpenOption.READ), slots);
+    }
+
+    // file is created, or truncated if it is there
+    public static WritableByteChannel writer(Path file) throws IOException {
+        return writer(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    // file must be there already, its length is left as it is
+    public static WritableByteChannel writer_over(Path file) throws IOException {
+        return writer(file, StandardOpenOption.WRITE);
+    }
+
+    private static WritableByteChannel writer(Path file, StandardOpenOption... options) throws IOException {
+        ByteBuffer[] b = get_buffers();
+        int n = b.length / 2;
+        Slot[] slots = new Slot[n];
+        for (int i = 0; i < n; i++) {
+            slots[i] = new Slot(b[n + i]);
+        }
+        return new Writer(AsynchronousFileChannel.open(file, options), slots);
+    }
+
+    //--------------------------------------------------------------------------
+    // One buffer and the read or write it is in.  Owned by the I/O thread
+    // from start() until the handler calls done(), by the caller otherwise.
+    //--------------------------------------------------------------------------
+    private static class Slot {
+        final ByteBuffer m_buf;
+        long m_pos;                 // file position of m_buf's byte 0
+        private boolean m_busy = false;
+        private Throwable m_error = null;
+
+        Slot(ByteBuffer buf) {
+            m_buf = buf;
+        }
+
+        synchronized void start() {
+            m_busy = true;
+        }
+
+        synchronized void done(Throwable error) {
+            m_error = error;
+            m_busy = false;
+            notifyAll();
+        }
+
+        // wait for the I/O to finish, throws what it failed with
+        synchronized void await() throws IOException {
+            boolean interrupted = false;
+            while (m_busy) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;     // the I/O owns the buffer, keep waiting
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (m_error != null) {
+                Throwable t = m_error;
+                m_error = null;
+                throw t instanceof IOException ? (IOException) t : new IOException(t);
+            }
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Read ahead
+    //--------------------------------------------------------------------------
+    private static class Reader implements ReadableByteChannel, CompletionHandler<Integer, Slot> {
+        private final AsynchronousFileChannel m_ch;
+        private final Slot[] m_slots;
+        private final long m_size;      // read up to here, the size when opened
+        private long m_next = 0;        // file position of the next read sent off
+        private int m_head = 0;         // the slot read() takes from
+        private boolean m_open = true;
+
+        Reader(AsynchronousFileChannel ch, Slot[] slots) throws IOException {
+            m_ch = ch;
+            m_slots = slots;
+            try {
+                m_size = ch.size();
+            } catch (IOException ex) {
+                ch.close();
+                throw ex;
+            }
+            for (Slot s : slots) {
+                s.m_buf.clear();
+                s.m_buf.flip();         // empty until its read is done
+                send(s);
+            }
+        }
+
+        // read the next part of the file into s, if there is any
+        private void send(Slot s) {
+            if (m_next >= m_size) {
+                return;
+            }
+            s.m_buf.clear();
+            s.m_buf.limit((int) Math.min(s.m_buf.capacity(), m_size - m_next));
+            s.m_pos = m_next;
+            m_next += s.m_buf.limit();
+            s.start();
+            m_ch.read(s.m_buf, s.m_pos, s, this);
+        }
+
+        @Override
+        public void completed(Integer n, Slot s) {
+            if (n >= 0 && s.m_buf.hasRemaining()) {
+                m_ch.read(s.m_buf, s.m_pos + s.m_buf.position(), s, this);     // short read
+                return;
+            }
+            s.m_buf.flip();     // a file cut short while reading ends here
+            s.done(null);
+        }
+
+        @Override
+        public void failed(Throwable ex, Slot s) {
+            s.m_buf.clear();
+            s.m_buf.flip();
+            s.done(ex);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!m_open) {
+                throw new ClosedChannelException();
+            }
+            Slot s = m_slots[m_head];
+            s.await();
+            ByteBuffer src = s.m_buf;
+            if (!src.hasRemaining()) {
+                return -1;      // nothing was sent to it, the end of the file
+            }
+            int n = Math.min(src.remaining(), dst.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + n);
+            dst.put(src);
+            src.limit(limit);
+            if (!src.hasRemaining()) {
+                src.clear();
+                src.flip();
+                send(s);
+                m_head = (m_head + 1) % m_slots.length;
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return m_open;
+        }
+
+        // the buffers go back to the thread for its next file, so wait for
+        // any read still going into them
+        @Override
+        public void close() throws IOException {
+            if (!m_open) {
+                return;
+            }
+            m_open = false;
+            try {
+                for (Slot s : m_slots) {
+                    try {
+                        s.await();
+                    } catch (IOException ex) {
+                        // already seen by read(), or nobody cares any more
+                    }
+                }
+            } finally {
+                m_ch.close();
+            }
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Write behind
+    //--------------------------------------------------------------------------
+    private static class Writer implements WritableByteChannel, CompletionHandler<Integer, Slot> {
+        private final AsynchronousFileChannel m_ch;
+        private final Slot[] m_slots;
+        private long m_next = 0;        // file position of the next byte written
+        private int m_head = 0;         // the slot being filled
+        private boolean m_filling = false;
+        private boolean m_open = true;
+
+        Writer(AsynchronousFileChannel ch, Slot[] slots) {
+            m_ch = ch;
+            m_slots = slots;
+        }
+
+        @Override
+        public void completed(Integer n, Slot s) {
+            if (s.m_buf.hasRemaining()) {
+                m_ch.write(s.m_buf, s.m_pos + s.m_buf.position(), s, this);    // short write
+                return;
+            }
+            s.done(null);
+        }
+
+        @Override
+        public void failed(Throwable ex, Slot s) {
+            s.done(ex);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!m_open) {
+                throw new ClosedChannelException();
+            }
+            Slot s = m_slots[m_head];
+            if (!m_filling) {
+                s.await();      // its last write has to be done before it is reused
+                s.m_buf.clear();
+                s.m_pos = m_next;
+                m_filling = true;
+            }
+            int n = Math.min(src.remaining(), s.m_buf.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + n);
+            s.m_buf.put(src);
+            src.limit(limit);
+            m_next += n;
+            if (!s.m_buf.hasRemaining()) {
+                send();
+            }
+            return n;
+        }
+
+        // write the slot being filled and move on to the next one
+        private void send() {
+            Slot s = m_slots[m_head];
+            s.m_buf.flip();
+            s.start();
+            m_ch.write(s.m_buf, s.m_pos, s, this);
+            m_head = (m_head + 1) % m_slots.length;
+            m_filling = false;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return m_open;
+        }
+
+        // the last part buffer, then wait for every write, the first error is thrown
+        @Override
+        public void close() throws IOException {
+            if (!m_open) {
+                return;
+            }
+            m_open = false;
+            IOException error = null;
+            try {
+                if (m_filling) {
+                    send();
+                }
+                for (Slot s : m_slots) {
+                    try {
+                        s.await();
+                    } catch (IOException ex) {
+                        if (error == null) {
+                            error = ex;
+                        }
+                    }
+                }
+            } finally {
+                m_ch.close();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+//------------------------------------------------------------------------------
+// BackupIndex:
+//
+// Incremental encrypt.  Remembers, for every file the last run saw, which
+// blob it went into, so a file whose path, size and timestamp have not changed
+// is put in the manifest without reading it again.
+//
+// The lookup key is the second half of the blob name, sha1_extra, which is
+// the SHA-1 of "path_timestamp_size" and so comes from the walk's attributes
+// alone.  The value is the first half, the SHA-1 of the contents, plus a hash
+// of the file key (inode on unix) when the file system has one, 0 if not.
+//
+// Index file dbRoot\META\index.dat, written at the end of every run:
+//        8 bytes  : MAGIC "E1INDEX1"
+//        8 bytes  : record count
+//        count records sorted by key, each RECSIZE bytes:
+//            20 bytes : sha1_extra
+//            20 bytes : sha1 of contents
+//            8 bytes  : file key hash
+//
+// The file is read into memory in one bulk read and searched in place, there
+// is no parsing.  It is not memory mapped because Windows will not let the
+// next save replace a file that is still mapped.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+public class BackupIndex {
+
+    // "E1INDEX1" in ASCII
+    private static final long MAGIC = 0x4531494e44455831L;
+    private static final int HEADERSIZE = 16;
+    private static final int SHA1SIZE = 20;
+    private static final int RECSIZE = SHA1SIZE + SHA1SIZE + 8;
+
+    private final String m_filename;
+    private final ByteBuffer m_old;     // last run's records, empty if there was no index
+    private final int m_oldCount;
+    private final List<byte[]> m_new = new ArrayList<>();
+
+    private BackupIndex(String filename, ByteBuffer old, int count) {
+        m_filename = filename;
+        m_old = old;
+        m_oldCount = count;
+    }
+
+    // load the index left by the last run, an empty one if there is none
+    public static BackupIndex load(String filename) throws IOException {
+        Path p = Paths.get(filename);
+        if (!Files.exists(p)) {
+            return new BackupIndex(filename, ByteBuffer.allocate(0), 0);
+        }
+        try (FileChannel in = FileChannel.open(p, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size < HEADERSIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("index file is not valid " + filename);
+            }
+            ByteBuffer b = ByteBuffer.allocate((int) size);
+            StreamEngine.read_fully(in, b);
+            long count = b.getLong(8);
+            if (b.getLong(0) != MAGIC || count < 0 || HEADERSIZE + count * RECSIZE != size) {
+                throw new IOException("index file is not valid " + filename);
+            }
+            return new BackupIndex(filename, b, (int) count);
+        }
+    }
+
+    private static long file_key_hash(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        return key == null ? 0 : key.hashCode();
+    }
+
+    // compare the 20 byte key of record i with key
+    private int compare_key(int i, byte[] key) {
+        int base = HEADERSIZE + i * RECSIZE;
+        for (int k = 0; k < SHA1SIZE; k++) {
+            int a = m_old.get(base + k) & 0xFF;
+            int b = key[k] & 0xFF;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+
+    // The blob name recorded for this file by the last run if the file has
+    // not changed since, otherwise null.  Safe to call from many threads.
+    public String lookup(String sha1_extra, BasicFileAttributes attrs) {
+        byte[] key = TreeWalker.hexStringToByteArray(sha1_extra);
+        int lo = 0;
+        int hi = m_oldCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare_key(mid, key);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                int base = HEADERSIZE + mid * RECSIZE;
+                long fileKey = m_old.getLong(base + 2 * SHA1SIZE);
+                if (fileKey != 0 && fileKey != file_key_hash(attrs)) {
+                    return null;    // same name, size and time but a different file
+                }
+                byte[] sha1 = new byte[SHA1SIZE];
+                for (int k = 0; k < SHA1SIZE; k++) {
+                    sha1[k] = m_old.get(base + SHA1SIZE + k);
+                }
+                return String.format("%s_%s", TreeWalker.byteToHex(sha1), sha1_extra);
+            }
+        }
+        return null;
+    }
+
+    // GC: the next -incremental run can put any of these names in its
+    // manifest without looking at the blob, so they are all live
+    public void mark(BlobIdSet live) {
+        for (int i = 0; i < m_oldCount; i++) {
+            int base = HEADERSIZE + i * RECSIZE;
+            live.add(BlobIdSet.fingerprint(m_old, base + SHA1SIZE, base));
+        }
+    }
+
+    // remember final_name (sha1_sha1extra) for the next run
+    public void add(String final_name, BasicFileAttributes attrs) {
+        int idx = final_name.indexOf('_');
+        ByteBuffer b = ByteBuffer.allocate(RECSIZE);
+        b.put(TreeWalker.hexStringToByteArray(final_name.substring(idx + 1)));
+        b.put(TreeWalker.hexStringToByteArray(final_name.substring(0, idx)));
+        b.putLong(file_key_hash(attrs));
+        synchronized (m_new) {
+            m_new.add(b.array());
+        }
+    }
+
+    // Write everything added this run as the new index.  Files that were not
+    // seen this run drop out.  Written to a temp file then renamed so a crash
+    // never leaves half an index behind.
+    public void save() throws IOException {
+        synchronized (m_new) {
+            Collections.sort(m_new, new Comparator<byte[]>() {
+                @Override
+                public int compare(byte[] a, byte[] b) {
+                    for (int k = 0; k < SHA1SIZE; k++) {
+                        int c = (a[k] & 0xFF) - (b[k] & 0xFF);
+                        if (c != 0) {
+                            return c;
+                        }
+                    }
+                    return 0;
+                }
+            });
+            String tmpfile = m_filename + ".tmp";
+            try (FileChannel out = FileChannel.open(Paths.get(tmpfile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer b = ByteBuffer.allocate(64 * 1024);
+                b.putLong(MAGIC);
+                b.putLong(m_new.size());
+                for (byte[] rec : m_new) {
+                    if (b.remaining() < RECSIZE) {
+                        b.flip();
+                        StreamEngine.write_fully(out, b);
+                        b.clear();
+                    }
+                    b.put(rec);
+                }
+                b.flip();
+                StreamEngine.write_fully(out, b);
+            }
+            Files.move(Paths.get(tmpfile), Paths.get(m_filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+//------------------------------------------------------------------------------
+// BlobGC:
+//
+// -gc[:N].  Deletes the blobs and keys no manifest uses any more, mark and
+// sweep.  With :N only the last N snapshots are kept, the older ones are
+// deleted first so the blobs only they used can go too.
+//
+// Mark: the name of every record of every snapshot, of META\TreeWalker.man,
+// of the -watch changes not in a snapshot yet, META\TreeWalker.watch.man, of
+// an old text META\TreeWalker.out and of the -incremental index goes in a
+// BlobIdSet, for -cdc records every chunk their recipe lists, and for -delta
+// records every base down their chain, plus the signatures of the latest
+// snapshot's blobs that the next -delta run goes against, and the tree blob
+// of every -merkle record.  If any of them cannot be read GC stops before
+// anything is deleted.
+//
+// Sweep: DAT\ and KEY\ are read with a DirectoryStream, so a folder of
+// millions of names is never held in memory, and the names that are not live
+// are deleted in batches on a thread pool.  Then the keystore and the pack
+// index are rewritten without them, and packs that are mostly dead are copied
+// down, see PackStore.gc().
+//
+// Do not run it while an encrypt is running into the same dbRoot, a blob
+// stored after the mark is in no manifest yet and would be deleted.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import static Encrypt1.PathNameKeeper.cat_path_s;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BlobGC {
+
+    // names deleted by one task
+    private static final int BATCH = 1024;
+
+    private final BlobIdSet m_live = new BlobIdSet();
+    private final Set<String> m_recipes = new HashSet<>();
+    private final Set<String> m_deltas = new HashSet<>();
+    private long m_roots = 0;
+    private long m_records = 0;
+
+    //--------------------------------------------------------------------------
+    // Run GC on the current dbRoot, keep < 0 keeps every snapshot
+    //--------------------------------------------------------------------------
+    public static void run(int keep) throws Exception {
+        long start = System.currentTimeMillis();
+        if (keep >= 0) {
+            drop_snapshots(keep);
+        }
+        BlobGC gc = new BlobGC();
+        gc.mark();
+        long marked = System.currentTimeMillis();
+        System.out.println(String.format("GC: %d live names from %d records in %d manifests, %d ms",
+                gc.m_live.size(), gc.m_records, gc.m_roots, marked - start));
+        gc.sweep(start);
+    }
+
+    // delete all but the last keep snapshots, oldest first
+    private static void drop_snapshots(int keep) {
+        int[] nums = Snapshots.list();
+        for (int i = 0; i < nums.length - keep; i++) {
+            File f = new File(Snapshots.get_snap_file(nums[i]));
+            f.setWritable(true);
+            if (f.delete()) {
+                System.out.println("GC: deleted snapshot " + f);
+            } else {
+                System.out.println("GC: could not delete snapshot " + f);
+            }
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Mark, any error is thrown so nothing gets deleted
+    //--------------------------------------------------------------------------
+    private void mark() throws Exception {
+        int[] snaps = Snapshots.list();
+        for (int n : snaps) {
+            mark_manifest(Snapshots.get_snap_file(n));
+        }
+        if (snaps.length > 0) {
+            DeltaStore.mark_sigs(Manifest.open(Snapshots.get_snap_file(snaps[snaps.length - 1])), m_live);
+        }
+        String current = PathNameKeeper.get_meta_file_write();
+        if (PathNameKeeper.does_file_exist(current)) {
+            mark_manifest(current);
+        }
+        String watch = PathNameKeeper.get_watch_file();
+        if (PathNameKeeper.does_file_exist(watch)) {
+            mark_manifest(watch);   // -watch batches not in a snapshot yet
+        }
+        String text = cat_path_s(cat_path_s(PathNameKeeper.get_dbRoot(), "META"), "TreeWalker.out");
+        if (PathNameKeeper.does_file_exist(text)) {
+            mark_text(text);
+        }
+        String index = PathNameKeeper.get_index_file();
+        if (PathNameKeeper.does_file_exist(index)) {
+            BackupIndex.load(index).mark(m_live);
+            m_roots++;
+        }
+        for (String recipe : m_recipes) {
+            ChunkStore.mark_chunks(recipe, m_live);
+        }
+        Set<String> done = new HashSet<>();
+        for (String delta : m_deltas) {
+            DeltaStore.mark_bases(delta, m_live, done);
+        }
+        m_live.seal();
+    }
+
+    private void mark_manifest(String filename) throws IOException {
+        Manifest m = Manifest.open(filename);
+        for (int i = 0; i < m.GetCount(); i++) {
+            m_live.add(m.GetFingerprint(i));
+            if ((m.GetFlags(i) & Manifest.FLAG_CDC) != 0) {
+                m_recipes.add(m.GetName(i));
+            } else if ((m.GetFlags(i) & Manifest.FLAG_DELTA) != 0) {
+                m_deltas.add(m.GetName(i));
+            } else if ((m.GetFlags(i) & Manifest.FLAG_MERKLE) != 0) {
+                m_live.add(MerkleHash.tree_name(m.GetName(i)));
+            }
+        }
+        m_roots++;
+        m_records += m.GetCount();
+    }
+
+    private void mark_text(String filename) throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (ChunkStore.is_chunked(line)) {
+                    line = line.substring(ChunkStore.MANIFEST_PREFIX.length());
+                    m_recipes.add(line);
+                } else if (DeltaStore.is_delta(line)) {
+                    line = line.substring(DeltaStore.MANIFEST_PREFIX.length());
+                    m_deltas.add(line);
+                } else if (MerkleHash.is_merkle(line)) {
+                    line = line.substring(MerkleHash.MANIFEST_PREFIX.length());
+                    m_live.add(MerkleHash.tree_name(line));
+                }
+                m_live.add(line);
+                m_records++;
+            }
+        }
+        m_roots++;
+    }
+
+    //--------------------------------------------------------------------------
+    // Sweep
+    //--------------------------------------------------------------------------
+    private void sweep(long start) throws Exception {
+        int nThreads = OptionKeeper.get_threads() > 1 ? OptionKeeper.get_threads() : Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        long[] dat;
+        long[] key;
+        try {
+            dat = sweep_folder(pool, PathNameKeeper.get_dat_folder());
+            key = sweep_folder(pool, PathNameKeeper.get_key_folder());
+        } finally {
+            pool.shutdown();
+        }
+        System.out.println(String.format("GC: DAT %d of %d deleted, KEY %d of %d deleted", dat[1], dat[0], key[1], key[0]));
+
+        long keys = Keystore.gc(m_live);
+        System.out.println("GC: keystore " + keys + " keys dropped");
+
+        long reclaimed = dat[2] + key[2];
+        if (PackStore.exists()) {
+            PackStore packs = PackStore.open();
+            long[] r = packs.gc(m_live);
+            packs.close();
+            long freed = packs.delete_dropped();
+            System.out.println(String.format("GC: pack index %d entries dropped, %d entries (%d bytes) copied down, %d bytes of packs deleted",
+                    r[0], r[1], r[2], freed));
+            reclaimed += freed - r[2];
+        }
+
+        long ms = Math.max(1, System.currentTimeMillis() - start);
+        long files = dat[0] + key[0];
+        System.out.println(String.format("GC: %d bytes reclaimed in %.1f s, %.1f MB/s, %.0f files/s",
+                reclaimed, ms / 1000.0, reclaimed / 1048576.0 / (ms / 1000.0), files / (ms / 1000.0)));
+    }
+
+    // Returns { names seen, names deleted, bytes deleted }.  tmp_ files are
+    // what a crashed encrypt left behind and go too.
+    private long[] sweep_folder(ExecutorService pool, String folder) throws Exception {
+        long[] result = new long[3];
+        Path dir = Paths.get(folder);
+        if (!Files.isDirectory(dir)) {
+            return result;
+        }
+        List<Future<long[]>> done = new ArrayList<>();
+        List<Path> batch = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                result[0]++;
+                String name = p.getFileName().toString();
+                boolean dead = name.startsWith("tmp_")
+                        || (BlobIdSet.is_blob_name(name) && !m_live.contains(name));
+                if (dead) {
+                    batch.add(p);
+                    if (batch.size() == BATCH) {
+                        done.add(pool.submit(new Delete(batch)));
+                        batch = new ArrayList<>();
+                    }
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            done.add(pool.submit(new Delete(batch)));
+        }
+        for (Future<long[]> f : done) {
+            long[] r = f.get();
+            result[1] += r[0];
+            result[2] += r[1];
+        }
+        return result;
+    }
+
+    // delete a batch of files, returns { files deleted, bytes deleted }
+    private static class Delete implements Callable<long[]> {
+        private final List<Path> m_files;
+
+        Delete(List<Path> files) {
+            m_files = files;
+        }
+
+        @Override
+        public long[] call() throws IOException {
+            long[] r = new long[2];
+            for (Path p : m_files) {
+                long size = Files.size(p);
+                if (Files.deleteIfExists(p)) {
+                    r[0]++;
+                    r[1] += size;
+                }
+            }
+            return r;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+//------------------------------------------------------------------------------
+// BlobHeader:
+//
+// Reads the plaintext header at the start of an encrypted file in DAT for
+// either file format, without moving the channel position.
+//
+// LEGACY (version 1) is the 40 byte header described in EncryptLib.java:
+//      16 bytes IV, 8 bytes file size, 8 bytes pathname size, 8 bytes timestamp
+//
+// CHUNKED (version 2) is the ChunkedBlob header, it starts with MAGIC.  A
+// legacy file starts with a random IV so the chance of one looking like MAGIC
+// is 1 in 2^64.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class BlobHeader {
+
+    public static final int LEGACY = 1;
+    public static final int CHUNKED = 2;
+
+    // "E1CHUNKD" in ASCII
+    static final long MAGIC = 0x45314348554e4b44L;
+
+    static final int LEGACY_HEADERSIZE = 40;
+    static final int CHUNKED_HEADERSIZE = 80;
+
+    private int m_version;
+    private long m_filesize;
+    private long m_timestamp;
+    private long m_pathsize;     // legacy: padded pathname, chunked: path record with tag
+    private long m_flags;        // chunked only
+    private long m_chunksize;    // chunked only
+    private long m_chunkcount;   // chunked only
+    private byte[] m_iv;         // legacy: IV, chunked: nonce salt
+    private byte[] m_raw;        // the header bytes as they are in the file
+
+    private BlobHeader() {
+    }
+
+    public static BlobHeader read(FileChannel in) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(CHUNKED_HEADERSIZE);
+        while (b.hasRemaining()) {
+            if (in.read(b, b.position()) < 0) {
+                break;
+            }
+        }
+        b.flip();
+        if (b.remaining() < LEGACY_HEADERSIZE) {
+            throw new IOException("encrypted file header is truncated");
+        }
+
+        BlobHeader h = new BlobHeader();
+        if (b.remaining() == CHUNKED_HEADERSIZE && b.getLong(0) == MAGIC) {
+            h.m_version = (int) b.getLong(8);
+            if (h.m_version != CHUNKED) {
+                throw new IOException("unknown encrypted file version " + h.m_version);
+            }
+            b.position(16);
+            h.m_flags = b.getLong();
+            h.m_filesize = b.getLong();
+            h.m_timestamp = b.getLong();
+            h.m_chunksize = b.getLong();
+            h.m_chunkcount = b.getLong();
+            h.m_iv = new byte[8];
+            b.get(h.m_iv);
+            h.m_pathsize = b.getLong();
+            h.m_raw = new byte[CHUNKED_HEADERSIZE];
+        } else {
+            h.m_version = LEGACY;
+            h.m_iv = new byte[EncryptLib.KEYSIZE];
+            b.get(h.m_iv);
+            h.m_filesize = b.getLong();
+            h.m_pathsize = b.getLong();
+            h.m_timestamp = b.getLong();
+            h.m_raw = new byte[LEGACY_HEADERSIZE];
+        }
+        b.position(0);
+        b.get(h.m_raw);
+        return h;
+    }
+
+    public int GetVersion() {
+        return m_version;
+    }
+
+    public long GetFileSize() {
+        return m_filesize;
+    }
+
+    public long GetTimeStamp() {
+        return m_timestamp;
+    }
+
+    public long GetPathSize() {
+        return m_pathsize;
+    }
+
+    public long GetFlags() {
+        return m_flags;
+    }
+
+    public long GetChunkSize() {
+        return m_chunksize;
+    }
+
+    public long GetChunkCount() {
+        return m_chunkcount;
+    }
+
+    public byte[] GetIV() {
+        return m_iv;
+    }
+
+    public byte[] GetRaw() {
+        return m_raw;
+    }
+
+    public int GetHeaderSize() {
+        return m_raw.length;
+    }
+}
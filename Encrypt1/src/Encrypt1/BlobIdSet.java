@@ -0,0 +1,92 @@
+//------------------------------------------------------------------------------
+// BlobIdSet:
+//
+// The set of blob names GC must keep, 8 bytes a name.  A name is the two
+// SHA-1s of sha1_sha1extra, so 64 bits taken from both halves are as good as
+// random and stand in for the whole 40 bytes.  They are kept in a long[],
+// sorted once by seal() and binary searched after that.
+//
+// Two names with the same 64 bits can only make GC keep a blob it could have
+// deleted, never delete one that is still used.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class BlobIdSet {
+
+    private long[] m_fp = new long[1024];
+    private int m_count = 0;
+    private boolean m_sealed = false;
+
+    // the 40 byte name at b[off]
+    public static long fingerprint(ByteBuffer b, int off) {
+        return fingerprint(b, off, off + 20);
+    }
+
+    // a name kept as its two halves, the sha1 at b[sha1] and sha1extra at b[extra]
+    public static long fingerprint(ByteBuffer b, int sha1, int extra) {
+        return b.getLong(sha1) ^ Long.rotateLeft(b.getLong(extra), 17);
+    }
+
+    public static long fingerprint(String name) {
+        int idx = name.indexOf('_');
+        byte[] id = TreeWalker.hexStringToByteArray(name.substring(0, idx) + name.substring(idx + 1));
+        return fingerprint(ByteBuffer.wrap(id), 0);
+    }
+
+    // true if s looks like sha1_sha1extra
+    public static boolean is_blob_name(String s) {
+        if (s.length() != 81 || s.charAt(40) != '_') {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (i != 40 && Character.digit(s.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void add(long fp) {
+        if (m_count == m_fp.length) {
+            m_fp = Arrays.copyOf(m_fp, m_fp.length * 2);
+        }
+        m_fp[m_count++] = fp;
+        m_sealed = false;
+    }
+
+    public void add(String name) {
+        add(fingerprint(name));
+    }
+
+    // sort and drop duplicates, call after the last add()
+    public void seal() {
+        Arrays.sort(m_fp, 0, m_count);
+        int n = 0;
+        for (int i = 0; i < m_count; i++) {
+            if (n == 0 || m_fp[i] != m_fp[n - 1]) {
+                m_fp[n++] = m_fp[i];
+            }
+        }
+        m_count = n;
+        m_sealed = true;
+    }
+
+    public boolean contains(long fp) {
+        if (!m_sealed) {
+            throw new IllegalStateException("BlobIdSet used before seal()");
+        }
+        return Arrays.binarySearch(m_fp, 0, m_count, fp) >= 0;
+    }
+
+    public boolean contains(String name) {
+        return contains(fingerprint(name));
+    }
+
+    public int size() {
+        return m_count;
+    }
+}
@@ -0,0 +1,20 @@
+package Encrypt1;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+
+// An open encrypted file whose header and pathname have been read.
+// EncryptLib.openBlob() picks the right one for the file format.
+public interface BlobReader {
+
+    String GetPathName();
+
+    long GetTimeStamp();
+
+    long GetFileSize();
+
+    // write the decrypted file contents to out, returns the number of bytes
+    // written which is less than GetFileSize() only if the blob is short
+    long copyTo(WritableByteChannel out) throws IOException, GeneralSecurityException;
+}
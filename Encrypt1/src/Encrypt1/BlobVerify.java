@@ -0,0 +1,372 @@
+//------------------------------------------------------------------------------
+// BlobVerify:
+//
+// -verify[:manifest].  Scrubs the DB: every blob the manifest needs (the
+// current META\TreeWalker.man, or a snapshot number or manifest path) is read
+// and decrypted on a thread pool without writing anything, so bit rot shows
+// up in a nightly run instead of in a restored file.  Each blob is checked
+// the strongest way its format allows:
+//
+//   CHUNKED  the -chunked format is AES/GCM, every record's tag is checked
+//            and the header is authenticated with it
+//   LEGACY   AES/CBC has no tag, so the decrypted contents are hashed and
+//            compared with the SHA-1 that is the first half of the name
+//
+// A -merkle blob's contents are hashed into a MerkleHash tree instead and the
+// root compared with the name, whatever the format.  If it does not match
+// the report says which chunk differs from the blob's tree.
+//
+// -cdc recipes are decrypted and then each chunk they list is checked against
+// its SHA-1, a chunk shared by many files only once.  -delta deltas are
+// decrypted, their bases checked down to the full blob, and then the file is
+// rebuilt through the chain and hashed like a LEGACY blob.
+// Packed blobs are read out of their pack.
+//
+// Problems go to dbRoot\META\verify.txt, one tab separated line each:
+//     status  name  where  format  path  detail
+// status is MISSING (no blob), NOKEY (no key) or CORRUPT, where is DAT or
+// PACK:n.  The last line starts with # and has the totals.  With
+// -ratelimit:N the reads are held to about N MB/s so a scrub can run next to
+// other work.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import static Encrypt1.PathNameKeeper.cat_path_s;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.spec.SecretKeySpec;
+
+public class BlobVerify {
+
+    private final PackStore m_packs;            // null if the DB has no packs
+    private final PrintWriter m_report;
+    private final ExecutorService m_workers;
+    private final Semaphore m_slots;
+    private final int m_nSlots;
+    private final Set<String> m_seen = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong m_blobs = new AtomicLong();
+    private final AtomicLong m_read = new AtomicLong();       // encrypted bytes
+    private final AtomicLong m_plain = new AtomicLong();      // decrypted bytes
+    private final AtomicLong m_missing = new AtomicLong();
+    private final AtomicLong m_nokey = new AtomicLong();
+    private final AtomicLong m_corrupt = new AtomicLong();
+
+    // -ratelimit, bytes per second, 0 for none
+    private final long m_rate;
+    private long m_next = System.nanoTime();    // when the bytes given out so far are due
+
+    private BlobVerify(PackStore packs, PrintWriter report, int nThreads, long rate) {
+        m_packs = packs;
+        m_report = report;
+        m_workers = Executors.newFixedThreadPool(nThreads);
+        m_nSlots = 2 * nThreads;
+        m_slots = new Semaphore(m_nSlots);
+        m_rate = rate;
+    }
+
+    public static String get_report_file() {
+        return cat_path_s(cat_path_s(PathNameKeeper.get_dbRoot(), "META"), "verify.txt");
+    }
+
+    //--------------------------------------------------------------------------
+    // Verify every blob of manifest, returns the number of problems found
+    //--------------------------------------------------------------------------
+    public static long run(String manifest_s) throws Exception {
+        long start = System.nanoTime();
+        Manifest manifest = Manifest.open(manifest_s);
+        PackStore packs = PackStore.exists() ? PackStore.open() : null;
+        int nThreads = OptionKeeper.get_threads() > 1 ? OptionKeeper.get_threads() : Runtime.getRuntime().availableProcessors();
+        long rate = OptionKeeper.get_ratelimit() * 1024L * 1024L;
+
+        BlobVerify v;
+        try (PrintWriter report = new PrintWriter(Files.newBufferedWriter(Paths.get(get_report_file())))) {
+            report.println("# status\tname\twhere\tformat\tpath\tdetail");
+            v = new BlobVerify(packs, report, nThreads, rate);
+            for (int i = 0; i < manifest.GetCount(); i++) {
+                String name = manifest.GetName(i);
+                if (v.m_seen.add(name)) {
+                    v.submit(name, manifest.GetFlags(i), manifest.GetPath(i));
+                }
+            }
+            v.close();
+
+            double secs = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+            String totals = String.format("%d blobs, %d bytes read, %d bytes decrypted, %d missing, %d no key, %d corrupt, %.1f s, %.3f GB/s",
+                    v.m_blobs.get(), v.m_read.get(), v.m_plain.get(), v.m_missing.get(), v.m_nokey.get(), v.m_corrupt.get(),
+                    secs, v.m_read.get() / secs / (1024.0 * 1024 * 1024));
+            report.println("# " + totals);
+            System.out.println("Verify: " + totals);
+        }
+        System.out.println("Verify: report in " + get_report_file());
+        return v.m_missing.get() + v.m_nokey.get() + v.m_corrupt.get();
+    }
+
+    // manifest thread, blocks while the pool has enough to do
+    private void submit(final String name, final int flags, final String path) throws InterruptedException {
+        m_slots.acquire();
+        try {
+            m_workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if ((flags & Manifest.FLAG_CDC) != 0) {
+                            Sink sink = verify_one(name, Kind.RECIPE, path);
+                            if (sink != null) {
+                                verify_chunks(sink.contents(), path);
+                            }
+                        } else if ((flags & Manifest.FLAG_DELTA) != 0) {
+                            Sink sink = verify_one(name, Kind.DELTA, path);
+                            if (sink != null && verify_bases(name, sink.contents(), path)) {
+                                verify_rebuild(name, path);
+                            }
+                        } else if ((flags & Manifest.FLAG_MERKLE) != 0) {
+                            verify_one(name, Kind.MERKLE, path);
+                        } else {
+                            verify_one(name, Kind.FILE, path);
+                        }
+                    } finally {
+                        m_slots.release();
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            m_slots.release();
+            throw ex;
+        }
+    }
+
+    private void close() throws InterruptedException {
+        m_slots.acquire(m_nSlots);
+        m_workers.shutdown();
+        m_workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    private enum Kind {
+        FILE,       // name is the ContentDigest of the contents
+        CHUNK,      // name is the plain SHA-1 of the contents
+        RECIPE,     // name is the ContentDigest of the whole file, not of the recipe
+        DELTA,      // same, not of the delta
+        MERKLE      // name is the MerkleHash root of the contents
+    }
+
+    private synchronized void problem(String status, String name, String where, String format, String path, String detail) {
+        m_report.println(status + "\t" + name + "\t" + where + "\t" + format + "\t" + path + "\t" + (detail == null ? "" : detail.replace('\t', ' ')));
+        System.out.println("VERIFY " + status + " " + name + " " + path);
+    }
+
+    //--------------------------------------------------------------------------
+    // Check one blob, returns null if it is not good
+    //--------------------------------------------------------------------------
+    private Sink verify_one(String name, Kind kind, String path) {
+        m_blobs.incrementAndGet();
+        PackStore.Entry e = (m_packs != null && kind == Kind.FILE) ? m_packs.find(name) : null;
+        String where = e != null ? "PACK:" + e.GetPack() : "DAT";
+        String format = "LEGACY";
+        try {
+            Sink sink = new Sink(kind);
+            if (e != null) {
+                byte[][] key_blob;
+                try (FileChannel in = m_packs.open_pack(e.GetPack())) {
+                    key_blob = m_packs.read(in, e);
+                }
+                m_read.addAndGet(key_blob[1].length);
+                throttle(key_blob[1].length);
+                SecretKeySpec key = new SecretKeySpec(RestoreTree.unwrapKey(key_blob[0]), "AES");
+                new StreamEngine.Decryptor(Channels.newChannel(new ByteArrayInputStream(key_blob[1])), key).copyTo(sink);
+            } else {
+                Path p = Paths.get(cat_path_s(PathNameKeeper.get_dat_folder(), name));
+                if (!Files.exists(p)) {
+                    m_missing.incrementAndGet();
+                    problem("MISSING", name, where, "", path, null);
+                    return null;
+                }
+                if (!Keystore.hasKey(name)) {
+                    m_nokey.incrementAndGet();
+                    problem("NOKEY", name, where, "", path, null);
+                    return null;
+                }
+                byte[] key_b = Keystore.loadKey(name);
+                if (key_b == null) {
+                    throw new GeneralSecurityException("key cannot be read");
+                }
+                try (FileChannel in = FileChannel.open(p, StandardOpenOption.READ)) {
+                    BlobHeader header = BlobHeader.read(in);
+                    if (header.GetVersion() == BlobHeader.CHUNKED) {
+                        format = "CHUNKED";
+                    }
+                    m_read.addAndGet(in.size());
+                    throttle(in.size());
+                    BlobReader d = EncryptLib.openBlob(in, new SecretKeySpec(key_b, "AES"));
+                    long n = d.copyTo(sink);
+                    if (n != d.GetFileSize()) {
+                        throw new IOException("blob is short, " + n + " of " + d.GetFileSize() + " bytes");
+                    }
+                }
+            }
+            String want = name.substring(0, name.indexOf('_'));
+            String got = sink.digest();
+            if (got != null && !got.equalsIgnoreCase(want)) {
+                throw new GeneralSecurityException("contents do not match the name, " + (kind == Kind.MERKLE ? sink.mismatch(name) : "SHA-1 " + got));
+            }
+            return sink;
+        } catch (Exception ex) {
+            m_corrupt.incrementAndGet();
+            problem("CORRUPT", name, where, format, path, ex.toString());
+            return null;
+        }
+    }
+
+    // the chunks of a recipe that no other recipe has checked yet
+    private void verify_chunks(byte[] recipe, String path) {
+        for (String chunk : ChunkStore.chunk_names(recipe)) {
+            if (m_seen.add(chunk)) {
+                verify_one(chunk, Kind.CHUNK, path);
+            }
+        }
+    }
+
+    // the bases under a delta that no other delta has checked yet, false if
+    // one of them is not good
+    private boolean verify_bases(String name, byte[] delta, String path) {
+        while (delta != null) {
+            String base;
+            try {
+                base = DeltaStore.base_line(delta);
+            } catch (IOException ex) {
+                m_corrupt.incrementAndGet();
+                problem("CORRUPT", name, "DAT", "", path, ex.toString());
+                return false;
+            }
+            boolean isDelta = DeltaStore.is_delta(base);
+            name = isDelta ? base.substring(DeltaStore.MANIFEST_PREFIX.length()) : base;
+            if (!m_seen.add(name)) {
+                return true;
+            }
+            Sink sink = verify_one(name, isDelta ? Kind.DELTA : Kind.FILE, path);
+            if (sink == null) {
+                return false;
+            }
+            delta = isDelta ? sink.contents() : null;
+        }
+        return true;
+    }
+
+    // a delta's blobs are each good, check they still make the file
+    private void verify_rebuild(String name, String path) {
+        try {
+            String got = DeltaStore.digest(name);
+            if (!got.equalsIgnoreCase(name.substring(0, name.indexOf('_')))) {
+                throw new GeneralSecurityException("delta does not rebuild the file, SHA-1 " + got);
+            }
+        } catch (Exception ex) {
+            m_corrupt.incrementAndGet();
+            problem("CORRUPT", name, "DAT", "DELTA", path, ex.toString());
+        }
+    }
+
+    // hold the reads to m_rate bytes a second, any thread
+    private void throttle(long bytes) throws InterruptedException {
+        if (m_rate <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            m_next = Math.max(m_next, now) + bytes * 1000000000L / m_rate;
+            wait = m_next - now;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    // where decrypted contents go, hashed and counted and then dropped
+    // a recipe or delta is small and kept for its chunk list or base
+    private class Sink implements WritableByteChannel {
+        private final ContentDigest m_content;
+        private final MessageDigest m_sha1;
+        private final ByteArrayOutputStream m_keep;
+        private final MerkleHash.Stream m_merkle;
+        private byte[][] m_leaves = null;
+
+        Sink(Kind kind) throws NoSuchAlgorithmException {
+            m_content = kind == Kind.FILE ? new ContentDigest() : null;
+            m_sha1 = kind == Kind.CHUNK ? MessageDigest.getInstance("SHA-1") : null;
+            m_keep = (kind == Kind.RECIPE || kind == Kind.DELTA) ? new ByteArrayOutputStream() : null;
+            m_merkle = kind == Kind.MERKLE ? new MerkleHash.Stream() : null;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            if (m_content != null) {
+                m_content.update(src);
+            } else if (m_merkle != null) {
+                m_merkle.update(src);
+            } else if (m_sha1 != null) {
+                m_sha1.update(src);
+            } else {
+                byte[] b = new byte[n];
+                src.get(b);
+                m_keep.write(b, 0, n);
+            }
+            m_plain.addAndGet(n);
+            return n;
+        }
+
+        byte[] contents() {
+            return m_keep.toByteArray();
+        }
+
+        // hex SHA-1 of what was written, null if there is nothing to compare
+        String digest() throws NoSuchAlgorithmException {
+            if (m_content != null) {
+                return m_content.digest();
+            }
+            if (m_sha1 != null) {
+                return TreeWalker.byteToHex(m_sha1.digest());
+            }
+            if (m_merkle != null) {
+                m_leaves = m_merkle.finish();
+                return MerkleHash.name_hash(m_leaves);
+            }
+            return null;
+        }
+
+        // why a -merkle blob does not match its name, after digest()
+        String mismatch(String name) {
+            return MerkleHash.mismatch(name, m_leaves);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
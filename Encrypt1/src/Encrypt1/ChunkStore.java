@@ -0,0 +1,230 @@
+//------------------------------------------------------------------------------
+// ChunkStore:
+//
+// -cdc mode.  Instead of one blob per file, a file is cut into content
+// defined chunks (FastCDC) and each unique chunk is stored once in DAT, so a
+// small edit to a big file, or the same data under another name, only stores
+// the chunks that are new.
+//
+// Chunk blob : DAT\<sha1 of chunk>_<CHUNK_EXTRA>, its key saved by Keystore.
+//              Encrypted like any other file with an empty pathname.
+// Recipe blob: DAT\<sha1 of file>_<sha1 of "cdc_" + path_timestamp_size>
+//              Encrypted with the real pathname and timestamp in the header
+//              like any other file.  Its contents are the chunk list,
+//              RECSIZE bytes per chunk: 20 byte sha1, 4 byte length.
+// Manifest   : MANIFEST_PREFIX + recipe name, so restore knows to reassemble.
+//
+// On restore every chunk's SHA-1 is checked against its name.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import static Encrypt1.PathNameKeeper.cat_path_s;
+import static Encrypt1.PathNameKeeper.get_dat_folder;
+import static Encrypt1.PathNameKeeper.get_destRoot;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.SecretKey;
+
+public class ChunkStore {
+
+    public static final String MANIFEST_PREFIX = "CDC:";
+
+    // chunks have no path or timestamp, so the second half of the name is zero
+    public static final String CHUNK_EXTRA = "0000000000000000000000000000000000000000";
+
+    private static final int SHA1SIZE = 20;
+    private static final int RECSIZE = SHA1SIZE + 4;
+
+    // chunk names some thread in this process is storing right now, so two
+    // threads never write the same chunk (and pair a blob with the wrong key)
+    private static final Set<String> s_storing = ConcurrentHashMap.newKeySet();
+
+    public static boolean is_chunked(String manifest_line) {
+        return manifest_line.startsWith(MANIFEST_PREFIX);
+    }
+
+    public static String chunk_name(byte[] sha1) {
+        return String.format("%s_%s", TreeWalker.byteToHex(sha1), CHUNK_EXTRA);
+    }
+
+    // the second half of a recipe name, kept apart from the whole file blob name
+    public static String recipe_extra(String hashThis) {
+        return TreeWalker.hashStringSHA1("cdc_" + hashThis);
+    }
+
+    //--------------------------------------------------------------------------
+    // Chunk infile, store the chunks that are not in DAT yet, then the recipe.
+    // Returns the manifest line for the file.
+    //--------------------------------------------------------------------------
+    public static String storeFile(String infile, FileMeta filemeta, String recipe_extra) throws IOException, NoSuchAlgorithmException {
+        ContentDigest digest = new ContentDigest();
+        MessageDigest chunkDigest = MessageDigest.getInstance("SHA-1");
+        ByteArrayOutputStream recipe = new ByteArrayOutputStream();
+        ByteBuffer rec = ByteBuffer.allocate(RECSIZE);
+
+        byte[] buf = new byte[4 * FastCDC.MAX_SIZE];
+        int start = 0;      // next chunk starts here
+        int end = 0;        // valid bytes end here
+        boolean eof = false;
+
+        try (FileChannel in = FileChannel.open(Paths.get(infile), StandardOpenOption.READ)) {
+            while (true) {
+                // keep at least MAX_SIZE bytes ahead of start, or everything to EOF
+                if (!eof && end - start < FastCDC.MAX_SIZE) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    ByteBuffer b = ByteBuffer.wrap(buf, end, buf.length - end);
+                    eof = !StreamEngine.read_fully(in, b) || b.hasRemaining();
+                    end = b.position();
+                }
+                if (start == end) {
+                    break;
+                }
+                int len = FastCDC.cut(buf, start, end - start);
+
+                digest.update(buf, start, len);
+                chunkDigest.update(buf, start, len);
+                byte[] sha1 = chunkDigest.digest();
+                storeChunk(chunk_name(sha1), buf, start, len);
+
+                rec.clear();
+                rec.put(sha1);
+                rec.putInt(len);
+                recipe.write(rec.array(), 0, RECSIZE);
+                start += len;
+            }
+        }
+
+        String recipe_name = String.format("%s_%s", digest.digest(), recipe_extra);
+        String outfile = cat_path_s(get_dat_folder(), recipe_name);
+        if (Keystore.is_stored(recipe_name)) {
+            Metrics.debug("SKIP encryption - output file already exists\n     " + outfile);
+        } else {
+            // the header size is the recipe's, the file size is the sum of the chunks
+            byte[] r = recipe.toByteArray();
+            storeBlob(recipe_name, r, 0, r.length, new FileMeta(filemeta.GetPathName(), filemeta.GetTimeStamp(), r.length));
+        }
+        return MANIFEST_PREFIX + recipe_name;
+    }
+
+    private static void storeChunk(String name, byte[] buf, int off, int len) throws IOException, NoSuchAlgorithmException {
+        if (Keystore.is_stored(name) || !s_storing.add(name)) {
+            return;     // already stored, or being stored by another thread
+        }
+        try {
+            if (!Keystore.is_stored(name)) {
+                storeBlob(name, buf, off, len, new FileMeta("", 0, len));
+            }
+        } finally {
+            s_storing.remove(name);
+        }
+    }
+
+    // key first, then the blob under a temp name renamed into place, so a
+    // blob is never visible without its key
+    static void storeBlob(String name, byte[] buf, int off, int len, FileMeta filemeta) throws IOException, NoSuchAlgorithmException {
+        String outfile = cat_path_s(get_dat_folder(), name);
+        String tmpfile = cat_path_s(get_dat_folder(), "tmp_" + UUID.randomUUID().toString());
+
+        SecretKey aesKey = EncryptLib.getKey();
+        Keystore.saveKey(name, aesKey);
+        try {
+            EncryptLib.encryptBytes(buf, off, len, filemeta, tmpfile, aesKey);
+            Files.move(Paths.get(tmpfile), Paths.get(outfile), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            Files.deleteIfExists(Paths.get(tmpfile));
+            throw ex;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // GC: add the chunks recipe name lists to live.  Only the recipe is
+    // decrypted, not the chunks.
+    //--------------------------------------------------------------------------
+    public static void mark_chunks(String name, BlobIdSet live) throws Exception {
+        byte[] key = Keystore.loadKey(name);
+        byte[] recipe = EncryptLib.decryptBytes(cat_path_s(get_dat_folder(), name), key, null);
+        for (String chunk : chunk_names(recipe)) {
+            live.add(chunk);
+        }
+    }
+
+    // the chunk names a decrypted recipe lists, in file order
+    public static List<String> chunk_names(byte[] recipe) {
+        List<String> names = new ArrayList<>(recipe.length / RECSIZE);
+        ByteBuffer r = ByteBuffer.wrap(recipe);
+        while (r.remaining() >= RECSIZE) {
+            byte[] sha1 = new byte[SHA1SIZE];
+            r.get(sha1);
+            r.getInt();
+            names.add(chunk_name(sha1));
+        }
+        return names;
+    }
+
+    //--------------------------------------------------------------------------
+    // Restore one file from its recipe, name is the manifest line without
+    // MANIFEST_PREFIX.  Same skip rule and return value as decryptAES().
+    //--------------------------------------------------------------------------
+    public static FileMeta restoreFile(String name) throws Exception {
+        Metrics.debug("Decrypt recipe: " + name);
+
+        String recipefile = cat_path_s(get_dat_folder(), name);
+        byte[] key = Keystore.loadKey(name);
+        FileMeta[] filemeta = new FileMeta[1];
+        byte[] recipe = EncryptLib.decryptBytes(recipefile, key, filemeta);
+
+        // the file size is the sum of the chunk lengths
+        ByteBuffer r = ByteBuffer.wrap(recipe);
+        long fileSize = 0;
+        for (int i = SHA1SIZE; i + 4 <= recipe.length; i += RECSIZE) {
+            fileSize += r.getInt(i);
+        }
+        FileMeta result = new FileMeta(filemeta[0].GetPathName(), filemeta[0].GetTimeStamp(), fileSize);
+
+        String fullRestorePath = cat_path_s(get_destRoot(), result.GetPathName());
+        if (new File(fullRestorePath).lastModified() == result.GetTimeStamp()) {
+            Metrics.debug("SKIP - file to restore already exists");
+            return result;
+        }
+        Metrics.debug("        outfile: " + fullRestorePath);
+
+        MessageDigest chunkDigest = MessageDigest.getInstance("SHA-1");
+        try (RandomAccessFile raf = EncryptLib.CreateRestoreFile(fullRestorePath, fileSize)) {
+            FileChannel out = raf.getChannel();
+            while (r.remaining() >= RECSIZE) {
+                byte[] sha1 = new byte[SHA1SIZE];
+                r.get(sha1);
+                int len = r.getInt();
+
+                String chunk = chunk_name(sha1);
+                byte[] chunkKey = Keystore.loadKey(chunk);
+                byte[] data = EncryptLib.decryptBytes(cat_path_s(get_dat_folder(), chunk), chunkKey, null);
+                if (data.length != len || !Arrays.equals(chunkDigest.digest(data), sha1)) {
+                    throw new GeneralSecurityException("chunk " + chunk + " does not match its hash");
+                }
+                StreamEngine.write_fully(out, ByteBuffer.wrap(data));
+            }
+        }
+        return result;
+    }
+}
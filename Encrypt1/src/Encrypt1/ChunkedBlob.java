@@ -0,0 +1,405 @@
+//------------------------------------------------------------------------------
+// ChunkedBlob:
+//
+// Version 2 encrypted file format.  The legacy format is AES/CBC over the
+// whole file so it can only ever be encrypted or decrypted on one core.  This
+// one splits the contents into fixed size chunks that are each encrypted on
+// their own with AES/GCM, so the chunks of one big file go through a fork-join
+// pool in parallel, and any one chunk can be decrypted without the others.
+//
+// Encrypted file format is as follows (longs are 64-bit network byte order):
+//    -------------- START HEADER (plaintext values) --------------------
+//        8 bytes  : MAGIC "E1CHUNKD"
+//        8 bytes  : format version, 2
+//        8 bytes  : flags, low 8 bits are the Codec id, 0 = not compressed
+//        8 bytes  : original file size
+//        8 bytes  : last modify timestamp
+//        8 bytes  : chunk size
+//        8 bytes  : chunk count
+//        8 bytes  : nonce salt (random)
+//        8 bytes  : length of the path record
+//    -------------- END OF HEADER ---------------------------------------
+//    Path record   : encrypted pathname (UTF-8, no padding) + 16 byte tag
+//    Chunk table   : chunk count longs, the stored length of each chunk record,
+//                    the top bit (RAW) set if that chunk was not compressed
+//    Chunk records : encrypted chunk + 16 byte tag, one after the other
+//    -------------- EOF --------------------------------
+//
+// Every record uses the per file key with a 12 byte GCM nonce made of the
+// first 4 bytes of the salt and the 8 byte record number (0 = path record,
+// chunk i = i + 1), and the 80 byte header as additional authenticated data.
+// So a record cannot be moved, and a header that was changed will not decrypt.
+//
+// With -compress each chunk is compressed before it is encrypted, unless the
+// file looks already compressed (see Codecs) or the chunk does not shrink.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+public class ChunkedBlob {
+
+    // these constants cannot be changed
+    static final String GCMNAME = "AES/GCM/NoPadding";
+    static final int TAGSIZE = 16;
+    static final int NONCESIZE = 12;
+    static final long CODEC_MASK = 0xFF;
+    static final long RAW = 1L << 63;
+
+    private static final SecureRandom s_random = new SecureRandom();
+
+    // how many chunks are in memory at once, per file
+    private static int batch_size() {
+        return Math.max(2, 2 * ForkJoinPool.getCommonPoolParallelism());
+    }
+
+    static byte[] nonce(byte[] salt, long record) {
+        ByteBuffer b = ByteBuffer.allocate(NONCESIZE);
+        b.put(salt, 0, 4);
+        b.putLong(record);
+        return b.array();
+    }
+
+    static Cipher new_cipher(int mode, SecretKey aesKey, byte[] salt, long record, byte[] aad) throws GeneralSecurityException {
+        Cipher c = Cipher.getInstance(GCMNAME);
+        c.init(mode, aesKey, new GCMParameterSpec(TAGSIZE * 8, nonce(salt, record)));
+        c.updateAAD(aad);
+        return c;
+    }
+
+    // read exactly len bytes at pos, or throw
+    static byte[] read_at(FileChannel in, long pos, int len) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(len);
+        while (b.hasRemaining()) {
+            if (in.read(b, pos + b.position()) < 0) {
+                throw new IOException("unexpected end of file at " + (pos + b.position()));
+            }
+        }
+        return b.array();
+    }
+
+    static void write_at(FileChannel out, long pos, byte[] data) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(data);
+        while (b.hasRemaining()) {
+            out.write(b, pos + b.position());
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Encrypt filemeta.GetFileSize() bytes of in to out in the chunked format.
+    // digest may be null, otherwise it gets every content byte in order.
+    //--------------------------------------------------------------------------
+    public static void encrypt(FileChannel in, FileMeta filemeta, FileChannel out, SecretKey aesKey, ContentDigest digest) throws IOException, GeneralSecurityException {
+
+        long fileSize = filemeta.GetFileSize();
+        long chunkSize = OptionKeeper.get_chunksize();
+        long chunkCount = (fileSize + chunkSize - 1) / chunkSize;
+
+        byte[] salt = new byte[8];
+        s_random.nextBytes(salt);
+
+        byte[] path_b;
+        try {
+            path_b = filemeta.GetPathName().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IOException(ex);
+        }
+
+        Codec codec = pick_codec(in, filemeta);
+
+        ByteBuffer header = ByteBuffer.allocate(BlobHeader.CHUNKED_HEADERSIZE);
+        header.putLong(BlobHeader.MAGIC);
+        header.putLong(BlobHeader.CHUNKED);
+        header.putLong(codec == null ? Codec.NONE : codec.GetId());    // flags
+        header.putLong(fileSize);
+        header.putLong(filemeta.GetTimeStamp());
+        header.putLong(chunkSize);
+        header.putLong(chunkCount);
+        header.put(salt);
+        header.putLong(path_b.length + TAGSIZE);
+        byte[] aad = header.array();
+
+        byte[] pathRecord = new_cipher(Cipher.ENCRYPT_MODE, aesKey, salt, 0, aad).doFinal(path_b);
+
+        long tableOffset = aad.length + pathRecord.length;
+        long pos = tableOffset + chunkCount * 8;
+        write_at(out, 0, aad);
+        write_at(out, aad.length, pathRecord);
+
+        // encrypt a batch of chunks in parallel, then write them in order
+        long[] table = new long[(int) chunkCount];
+        int batch = batch_size();
+        try {
+            for (long first = 0; first < chunkCount; first += batch) {
+                List<EncryptChunk> tasks = new ArrayList<>();
+                for (long i = first; i < Math.min(chunkCount, first + batch); i++) {
+                    int len = (int) Math.min(chunkSize, fileSize - i * chunkSize);
+                    tasks.add(new EncryptChunk(in, i, i * chunkSize, len, aesKey, salt, aad, codec, digest != null));
+                }
+                ForkJoinTask.invokeAll(tasks);
+                for (EncryptChunk t : tasks) {
+                    byte[] record = t.join();
+                    if (digest != null) {
+                        digest.update(t.m_plain, 0, t.m_plain.length);
+                    }
+                    write_at(out, pos, record);
+                    table[(int) t.m_index] = t.m_raw ? (record.length | RAW) : record.length;
+                    pos += record.length;
+                }
+            }
+        } catch (ChunkException ex) {
+            rethrow(ex);
+        }
+
+        ByteBuffer tb = ByteBuffer.allocate(table.length * 8);
+        for (long l : table) {
+            tb.putLong(l);
+        }
+        write_at(out, tableOffset, tb.array());
+        out.truncate(pos);
+    }
+
+    // the -compress codec if this file is worth compressing, otherwise null
+    private static Codec pick_codec(FileChannel in, FileMeta filemeta) throws IOException {
+        Codec codec = OptionKeeper.get_codec();
+        if (codec == null || Codecs.is_compressed_type(filemeta.GetPathName())) {
+            return null;
+        }
+        int len = (int) Math.min(Codecs.SAMPLESIZE, filemeta.GetFileSize());
+        if (!Codecs.is_worth_it(codec, read_at(in, 0, len), len)) {
+            return null;
+        }
+        return codec;
+    }
+
+    private static class EncryptChunk extends RecursiveTask<byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel m_in;
+        private final long m_index;
+        private final long m_offset;
+        private final int m_len;
+        private final SecretKey m_key;
+        private final byte[] m_salt;
+        private final byte[] m_aad;
+        private final Codec m_codec;      // null = store raw
+        private final boolean m_keepPlain;
+        private byte[] m_plain;
+        private boolean m_raw = true;
+
+        EncryptChunk(FileChannel in, long index, long offset, int len, SecretKey key, byte[] salt, byte[] aad, Codec codec, boolean keepPlain) {
+            m_in = in;
+            m_index = index;
+            m_offset = offset;
+            m_len = len;
+            m_key = key;
+            m_salt = salt;
+            m_aad = aad;
+            m_codec = codec;
+            m_keepPlain = keepPlain;
+        }
+
+        @Override
+        protected byte[] compute() {
+            try {
+                byte[] plain = read_at(m_in, m_offset, m_len);
+                if (m_keepPlain) {
+                    m_plain = plain;
+                }
+                byte[] stored = plain;
+                if (m_codec != null) {
+                    byte[] packed = m_codec.compress(plain, 0, plain.length);
+                    if (packed != null) {
+                        stored = packed;
+                        m_raw = false;
+                    }
+                }
+                return new_cipher(Cipher.ENCRYPT_MODE, m_key, m_salt, m_index + 1, m_aad).doFinal(stored);
+            } catch (IOException | GeneralSecurityException ex) {
+                throw new ChunkException(ex);
+            }
+        }
+    }
+
+    // carries a checked exception out of a fork-join task
+    static class ChunkException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ChunkException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    // turn a ChunkException back into the checked exception it came from
+    static void rethrow(ChunkException ex) throws IOException, GeneralSecurityException {
+        Throwable t = ex.getCause();
+        while (t instanceof ChunkException) {
+            t = t.getCause();
+        }
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        if (t instanceof GeneralSecurityException) {
+            throw (GeneralSecurityException) t;
+        }
+        throw ex;
+    }
+
+    //--------------------------------------------------------------------------
+    // Reader:
+    // The constructor reads the header, path record and chunk table.  copyTo()
+    // decrypts the chunks in parallel, straight into place when out is a
+    // FileChannel, otherwise in batches written in order.
+    //--------------------------------------------------------------------------
+    public static class Reader implements BlobReader {
+
+        private final FileChannel m_in;
+        private final BlobHeader m_header;
+        private final SecretKey m_key;
+        private final String m_pathname;
+        private final long[] m_offsets;     // chunk record i is m_offsets[i] .. m_offsets[i+1]
+        private final Codec m_codec;        // null if not compressed
+        private final BitSet m_raw;         // chunks stored without compression
+
+        public Reader(FileChannel in, BlobHeader header, SecretKey aesKey) throws IOException, GeneralSecurityException {
+            m_in = in;
+            m_header = header;
+            m_key = aesKey;
+
+            long pathSize = header.GetPathSize();
+            long count = header.GetChunkCount();
+            if (pathSize < TAGSIZE || pathSize > 64 * 1024 || count < 0 || header.GetChunkSize() <= 0
+                    || count > Integer.MAX_VALUE || header.GetFileSize() > count * header.GetChunkSize()) {
+                throw new IOException("encrypted file header is not valid");
+            }
+            if ((header.GetFlags() & ~CODEC_MASK) != 0) {
+                throw new IOException("unknown encrypted file flags " + header.GetFlags());
+            }
+            int codecId = (int) (header.GetFlags() & CODEC_MASK);
+            m_codec = codecId == Codec.NONE ? null : Codecs.by_id(codecId);
+
+            byte[] aad = header.GetRaw();
+            byte[] pathRecord = read_at(in, aad.length, (int) pathSize);
+            byte[] path_b = new_cipher(Cipher.DECRYPT_MODE, aesKey, header.GetIV(), 0, aad).doFinal(pathRecord);
+            m_pathname = new String(path_b, "UTF-8");
+
+            long tableOffset = aad.length + pathSize;
+            ByteBuffer tb = ByteBuffer.wrap(read_at(in, tableOffset, (int) (count * 8)));
+            m_offsets = new long[(int) count + 1];
+            m_offsets[0] = tableOffset + count * 8;
+            m_raw = new BitSet((int) count);
+            for (int i = 0; i < count; i++) {
+                long l = tb.getLong();
+                if ((l & RAW) != 0) {
+                    m_raw.set(i);
+                }
+                m_offsets[i + 1] = m_offsets[i] + (l & ~RAW);
+            }
+        }
+
+        @Override
+        public String GetPathName() {
+            return m_pathname;
+        }
+
+        @Override
+        public long GetTimeStamp() {
+            return m_header.GetTimeStamp();
+        }
+
+        @Override
+        public long GetFileSize() {
+            return m_header.GetFileSize();
+        }
+
+        public long GetChunkCount() {
+            return m_offsets.length - 1;
+        }
+
+        // decrypt and authenticate chunk i
+        public byte[] readChunk(long i) throws IOException, GeneralSecurityException {
+            long start = m_offsets[(int) i];
+            int len = (int) (m_offsets[(int) i + 1] - start);
+            byte[] record = read_at(m_in, start, len);
+            byte[] plain = new_cipher(Cipher.DECRYPT_MODE, m_key, m_header.GetIV(), i + 1, m_header.GetRaw()).doFinal(record);
+            long expect = Math.min(m_header.GetChunkSize(), m_header.GetFileSize() - i * m_header.GetChunkSize());
+            if (m_codec != null && !m_raw.get((int) i)) {
+                plain = m_codec.decompress(plain, (int) expect);
+            }
+            if (plain.length != expect) {
+                throw new IOException("chunk " + i + " has the wrong size");
+            }
+            return plain;
+        }
+
+        @Override
+        public long copyTo(WritableByteChannel out) throws IOException, GeneralSecurityException {
+            FileChannel fout = (out instanceof FileChannel) ? (FileChannel) out : null;
+            long count = GetChunkCount();
+            long nWrote = 0;
+            int batch = batch_size();
+            try {
+                for (long first = 0; first < count; first += batch) {
+                    List<DecryptChunk> tasks = new ArrayList<>();
+                    for (long i = first; i < Math.min(count, first + batch); i++) {
+                        tasks.add(new DecryptChunk(this, i, fout));
+                    }
+                    ForkJoinTask.invokeAll(tasks);
+                    for (DecryptChunk t : tasks) {
+                        byte[] plain = t.join();
+                        if (fout == null) {
+                            StreamEngine.write_fully(out, ByteBuffer.wrap(plain));
+                        }
+                        nWrote += plain.length;
+                    }
+                }
+            } catch (ChunkException ex) {
+                rethrow(ex);
+            }
+            return nWrote;
+        }
+    }
+
+    private static class DecryptChunk extends RecursiveTask<byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final Reader m_reader;
+        private final long m_index;
+        private final FileChannel m_out;    // null = caller writes the result
+
+        DecryptChunk(Reader reader, long index, FileChannel out) {
+            m_reader = reader;
+            m_index = index;
+            m_out = out;
+        }
+
+        @Override
+        protected byte[] compute() {
+            try {
+                byte[] plain = m_reader.readChunk(m_index);
+                if (m_out != null) {
+                    write_at(m_out, m_index * m_reader.m_header.GetChunkSize(), plain);
+                }
+                return plain;
+            } catch (IOException | GeneralSecurityException ex) {
+                throw new ChunkException(ex);
+            }
+        }
+    }
+}
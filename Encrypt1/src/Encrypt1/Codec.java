@@ -0,0 +1,23 @@
+package Encrypt1;
+
+import java.io.IOException;
+
+// A compression codec for the chunks of a ChunkedBlob.  The id is written in
+// the blob header flags so restore can find the same codec again, so an id
+// must never be reused for a different format.  Another codec (lz4, zstd ...)
+// plugs in by implementing this and calling Codecs.register() before any work
+// starts.
+public interface Codec {
+
+    int NONE = 0;       // id 0 is reserved for "not compressed"
+
+    int GetId();
+
+    String GetName();
+
+    // compressed in[off, off+len), or null if that would not be smaller
+    byte[] compress(byte[] in, int off, int len) throws IOException;
+
+    // undo compress(), plainLen is the size of the original chunk
+    byte[] decompress(byte[] in, int plainLen) throws IOException;
+}
@@ -0,0 +1,83 @@
+//------------------------------------------------------------------------------
+// Codecs:
+//
+// The known compression codecs by id and name, and the rules for when a file
+// is not worth compressing at all:
+//
+//  - its extension says it is already compressed (jpg, zip, mp4 ...)
+//  - the first SAMPLESIZE bytes do not shrink by at least 1/8th
+//
+// Both only decide whether to try, every chunk of a file that is tried is
+// still stored raw if it does not get smaller.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class Codecs {
+
+    public static final int SAMPLESIZE = 64 * 1024;
+
+    private static final Map<Integer, Codec> s_byId = new ConcurrentHashMap<>();
+
+    private static final Set<String> s_compressed = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "m4a", "aac", "ogg", "flac",
+            "mp4", "m4v", "mov", "mkv", "avi", "wmv",
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4",
+            "jar", "docx", "xlsx", "pptx", "odt", "epub", "cab", "msi"));
+
+    static {
+        register(new DeflateCodec());
+    }
+
+    public static void register(Codec codec) {
+        if (codec.GetId() <= Codec.NONE || codec.GetId() > 0xFF) {
+            throw new IllegalArgumentException("codec id out of range " + codec.GetId());
+        }
+        s_byId.put(codec.GetId(), codec);
+    }
+
+    // the codec for an id from a blob header
+    public static Codec by_id(int id) throws IOException {
+        Codec c = s_byId.get(id);
+        if (c == null) {
+            throw new IOException("unknown compression codec " + id);
+        }
+        return c;
+    }
+
+    // the codec for a -compress:name option, null if there is none
+    public static Codec by_name(String name) {
+        for (Codec c : s_byId.values()) {
+            if (c.GetName().equalsIgnoreCase(name)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    public static boolean is_compressed_type(String pathname) {
+        int dot = pathname.lastIndexOf('.');
+        if (dot < 0 || dot < pathname.lastIndexOf('\\') || dot < pathname.lastIndexOf('/')) {
+            return false;
+        }
+        return s_compressed.contains(pathname.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // true if sample[0, len) shrinks enough to be worth compressing the file
+    public static boolean is_worth_it(Codec codec, byte[] sample, int len) throws IOException {
+        if (len == 0) {
+            return false;
+        }
+        byte[] c = codec.compress(sample, 0, len);
+        return c != null && c.length <= len - len / 8;
+    }
+}
@@ -0,0 +1,69 @@
+package Encrypt1;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// SHA-1 of a file's contents computed exactly the way TreeWalker.hashFileSHA1()
+// has always done it, but fed from buffers of any size as the file streams by.
+//
+// hashFileSHA1() reads 64 bytes at a time and digests the whole 64 byte buffer
+// even on the last short read.  So the final partial block is padded out with
+// whatever was left in the buffer from the block before it, or zeroes if the
+// file is shorter than 64 bytes.  Blob names in existing DBs depend on that so
+// it has to be reproduced here, otherwise every file would look new.
+public class ContentDigest {
+
+    private static final int LEGACY_BUFSIZE = 64;     // cannot change, see above
+
+    private final MessageDigest m_digest;
+    private final byte[] m_tail = new byte[LEGACY_BUFSIZE];  // ring of the last 64 content bytes
+    private long m_count = 0;
+
+    public ContentDigest() throws NoSuchAlgorithmException {
+        m_digest = MessageDigest.getInstance("SHA-1");
+    }
+
+    public void update(byte[] b, int off, int len) {
+        if (len <= 0) {
+            return;
+        }
+        m_digest.update(b, off, len);
+
+        // only the last LEGACY_BUFSIZE bytes can ever be needed by digest()
+        int skip = Math.max(0, len - LEGACY_BUFSIZE);
+        for (int i = skip; i < len; i++) {
+            m_tail[(int) ((m_count + i) % LEGACY_BUFSIZE)] = b[off + i];
+        }
+        m_count += len;
+    }
+
+    // consumes buf from position to limit without copying it out of the buffer
+    public void update(ByteBuffer buf) {
+        int start = buf.position();
+        int len = buf.remaining();
+        for (int i = Math.max(0, len - LEGACY_BUFSIZE); i < len; i++) {
+            m_tail[(int) ((m_count + i) % LEGACY_BUFSIZE)] = buf.get(start + i);
+        }
+        m_digest.update(buf);
+        m_count += len;
+    }
+
+    // number of content bytes seen so far
+    public long count() {
+        return m_count;
+    }
+
+    // Finish the hash and return it as hex, same format as hashFileSHA1()
+    public String digest() {
+        int r = (int) (m_count % LEGACY_BUFSIZE);
+        if (r != 0) {
+            // the stale part of the legacy buffer is content[count-64 .. count-r)
+            // which in the ring is at (count + k) % 64, never written => zeroes
+            for (int k = 0; k < LEGACY_BUFSIZE - r; k++) {
+                m_digest.update(m_tail[(int) ((m_count + k) % LEGACY_BUFSIZE)]);
+            }
+        }
+        return TreeWalker.byteToHex(m_digest.digest());
+    }
+}
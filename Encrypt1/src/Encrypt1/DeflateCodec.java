@@ -0,0 +1,81 @@
+package Encrypt1;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// java.util.zip deflate without the zlib wrapper, GCM already checks the
+// chunk.  Deflater and Inflater hold native memory and are slow to create, so
+// there is one of each per thread, reset between chunks.
+public class DeflateCodec implements Codec {
+
+    public static final int ID = 1;
+
+    private static final ThreadLocal<Deflater> s_deflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> s_inflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    @Override
+    public int GetId() {
+        return ID;
+    }
+
+    @Override
+    public String GetName() {
+        return "deflate";
+    }
+
+    @Override
+    public byte[] compress(byte[] in, int off, int len) {
+        Deflater d = s_deflater.get();
+        d.reset();
+        d.setInput(in, off, len);
+        d.finish();
+        // anything that does not fit in len - 1 bytes is not worth keeping
+        byte[] out = new byte[Math.max(0, len - 1)];
+        int n = 0;
+        while (!d.finished() && n < out.length) {
+            n += d.deflate(out, n, out.length - n);
+        }
+        if (!d.finished()) {
+            return null;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    @Override
+    public byte[] decompress(byte[] in, int plainLen) throws IOException {
+        Inflater inf = s_inflater.get();
+        inf.reset();
+        inf.setInput(in);
+        byte[] out = new byte[plainLen];
+        int n = 0;
+        try {
+            while (n < plainLen) {
+                int k = inf.inflate(out, n, plainLen - n);
+                if (k == 0 && (inf.finished() || inf.needsInput() || inf.needsDictionary())) {
+                    break;
+                }
+                n += k;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        }
+        if (n != plainLen) {
+            throw new IOException("compressed chunk is the wrong size");
+        }
+        return out;
+    }
+}
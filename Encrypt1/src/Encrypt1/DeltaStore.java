@@ -0,0 +1,867 @@
+//------------------------------------------------------------------------------
+// DeltaStore:
+//
+// -delta[:N].  A big file that changed a little, a database with a few pages
+// rewritten say, is stored rsync style as the blocks that changed against the
+// version of the same path in the last snapshot, instead of as a whole new
+// blob.  Only files of N bytes or more (1M by default), smaller ones are
+// stored the normal way.
+//
+// Signature  : DAT\<sha1 of file>_<sha1 of "sig_" + second half of its blob name>
+//              One for every full blob and delta stored here, its key saved
+//              by Keystore.  The file cut in blocks of block_size(), for each
+//              block rsync's rolling weak checksum and a SHA-1, and how many
+//              deltas deep the blob is.
+// Delta blob : DAT\<sha1 of file>_<sha1 of "delta_" + path_timestamp_size>
+//              Encrypted with the real pathname and timestamp in the header
+//              like any other file.  Its contents are the manifest line of its
+//              base, the version before, and the ops that rebuild the file
+//              from the base: COPY n blocks of it, or DATA bytes.
+// Full blob  : the normal sha1_sha1extra blob.  For a file with no signature
+//              to go against, a delta that would be more than half the file,
+//              or when the chain down to the last full blob would get longer
+//              than MAXCHAIN deltas.  That is the re-base, restore never goes
+//              through more than MAXCHAIN deltas to rebuild a file.
+// Manifest   : MANIFEST_PREFIX + delta name, a full blob is just its name.
+//
+// Encrypt finds the base by path in the latest snapshot, loads its signature
+// and reads the file once.  The weak checksum rolls over it a byte at a time
+// and a block is only taken as a match if its SHA-1 agrees too.  The same
+// read hashes the file for its name and makes its signature for next time.
+//
+// Restore decrypts the delta and reads its base at random through it, a
+// full base through RangeChannel so only the blocks copied are decrypted.
+// The file rebuilt is checked against the SHA-1 in the delta's name.
+// RestoreTree.openRange() reads part of a delta the same way, see openRange().
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import static Encrypt1.PathNameKeeper.cat_path_s;
+import static Encrypt1.PathNameKeeper.get_dat_folder;
+import static Encrypt1.PathNameKeeper.get_destRoot;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Set;
+import javax.crypto.SecretKey;
+
+public class DeltaStore {
+
+    public static final String MANIFEST_PREFIX = "DLT:";
+
+    // deltas on top of a full blob at most, the next version is stored whole
+    public static final int MAXCHAIN = 8;
+
+    // signature blocks are a power of two in between, at most MAXBLOCKS of them
+    private static final int MINBLOCK = 8 * 1024;
+    private static final int MAXBLOCK = 1024 * 1024;
+    private static final int MAXBLOCKS = 256 * 1024;
+
+    // more DATA than this and the file is stored whole, also at most half the file
+    private static final long MAXDATA = 32 * 1024 * 1024;
+
+    // "E1DSIG01" and "E1DELTA1" in ASCII
+    private static final long SIG_MAGIC = 0x4531445349473031L;
+    private static final long DELTA_MAGIC = 0x453144454c544131L;
+
+    private static final int SHA1SIZE = 20;
+    private static final int SIGHEADER = 8 + 4 + 8 + 4 + 4;
+    private static final int SIGRECSIZE = 4 + SHA1SIZE;
+    private static final int HEADERMAX = 512;       // a delta's header fits, see read_base()
+    private static final int IOSIZE = 4 * 1024 * 1024;
+
+    private static final byte OP_COPY = 'C';
+    private static final byte OP_DATA = 'D';
+
+    public static boolean is_delta(String manifest_line) {
+        return manifest_line.startsWith(MANIFEST_PREFIX);
+    }
+
+    // the second half of a delta name, kept apart from the whole file blob name
+    public static String delta_extra(String hashThis) {
+        return TreeWalker.hashStringSHA1("delta_" + hashThis);
+    }
+
+    // the signature of blob name, a full blob or a delta
+    static String sig_name(String name) {
+        int idx = name.indexOf('_');
+        return name.substring(0, idx) + "_" + TreeWalker.hashStringSHA1("sig_" + name.substring(idx + 1));
+    }
+
+    static int block_size(long size) {
+        int b = MINBLOCK;
+        while (b < MAXBLOCK && (long) b * MAXBLOCKS < size) {
+            b *= 2;
+        }
+        return b;
+    }
+
+    // rsync's weak checksum from its two running sums, b in the high 16 bits
+    private static int weak(int a, int b) {
+        return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+    }
+
+    //--------------------------------------------------------------------------
+    // Store infile, base is the manifest line of the last version of the same
+    // path or null.  Returns the manifest line for the file.
+    //--------------------------------------------------------------------------
+    public static String storeFile(String infile, FileMeta filemeta, String hashThis, String base) throws IOException, NoSuchAlgorithmException {
+        Signature sig = base == null ? null : load_sig(base);
+        if (sig != null && sig.m_depth >= MAXCHAIN) {
+            Metrics.debug("Delta: chain of " + sig.m_depth + ", stored whole\n     " + infile);
+            sig = null;
+        }
+        Scan s = scan(infile, filemeta.GetFileSize(), sig);
+
+        String full_name = String.format("%s_%s", s.m_sha1, TreeWalker.hashStringSHA1(hashThis));
+        String delta_name = String.format("%s_%s", s.m_sha1, delta_extra(hashThis));
+        String name;
+        String line;
+        int depth;
+        if (Keystore.is_stored(full_name)) {
+            Metrics.debug("SKIP encryption - output file already exists\n     " + full_name);
+            name = line = full_name;
+            depth = 0;
+        } else if (Keystore.is_stored(delta_name)) {
+            Metrics.debug("SKIP encryption - output file already exists\n     " + delta_name);
+            name = delta_name;
+            line = MANIFEST_PREFIX + delta_name;
+            depth = -1;     // its signature is there already, or it will not be a base
+        } else if (s.m_delta != null) {
+            depth = sig.m_depth + 1;
+            byte[] d = s.m_delta.finish(base, depth, sig, s.m_size);
+            Metrics.debug("Delta: " + d.length + " bytes against " + base + "\n     " + infile);
+            ChunkStore.storeBlob(delta_name, d, 0, d.length, new FileMeta(filemeta.GetPathName(), filemeta.GetTimeStamp(), d.length));
+            name = delta_name;
+            line = MANIFEST_PREFIX + delta_name;
+        } else {
+            // key first, a blob must never be visible without its key
+            SecretKey aesKey = EncryptLib.getKey();
+            Keystore.saveKey(full_name, aesKey);
+            EncryptLib.encryptAES(infile, filemeta, cat_path_s(get_dat_folder(), full_name), aesKey);
+            name = line = full_name;
+            depth = 0;
+        }
+
+        String sig_name = sig_name(name);
+        if (depth >= 0 && !Keystore.is_stored(sig_name)) {
+            byte[] b = s.m_sig.finish(depth);
+            ChunkStore.storeBlob(sig_name, b, 0, b.length, new FileMeta("", 0, b.length));
+        }
+        return line;
+    }
+
+    // the signature of the blob behind manifest line, null if there is none
+    // or it cannot be read, then the file is simply stored whole
+    private static Signature load_sig(String line) {
+        if (ChunkStore.is_chunked(line)) {
+            return null;
+        }
+        String name = is_delta(line) ? line.substring(MANIFEST_PREFIX.length()) : line;
+        String sig_name = sig_name(name);
+        try {
+            if (!Keystore.is_stored(sig_name)) {
+                return null;
+            }
+            byte[] key = Keystore.loadKey(sig_name);
+            return Signature.parse(EncryptLib.decryptBytes(cat_path_s(get_dat_folder(), sig_name), key, null));
+        } catch (Exception ex) {
+            Metrics.debug("Delta: signature " + sig_name + " not used, " + ex);
+            return null;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Signatures
+    //--------------------------------------------------------------------------
+    private static final class Signature {
+        final int m_block;
+        final long m_size;
+        final int m_depth;
+        final int m_count;
+        private final int[] m_weak;
+        private final byte[] m_strong;
+        private final int[] m_head;     // m_weak hash table, chained through m_next
+        private final int[] m_next;
+        private final int m_shift;
+
+        private Signature(int block, long size, int depth, int[] weak, byte[] strong) {
+            m_block = block;
+            m_size = size;
+            m_depth = depth;
+            m_count = weak.length;
+            m_weak = weak;
+            m_strong = strong;
+            int bits = 4;
+            while ((1 << bits) < 2 * m_count) {
+                bits++;
+            }
+            m_shift = 32 - bits;
+            m_head = new int[1 << bits];
+            m_next = new int[m_count];
+            Arrays.fill(m_head, -1);
+            // backwards so a chain lists the earlier block first
+            for (int k = m_count - 1; k >= 0; k--) {
+                int slot = slot(m_weak[k]);
+                m_next[k] = m_head[slot];
+                m_head[slot] = k;
+            }
+        }
+
+        static Signature parse(byte[] b) throws IOException {
+            ByteBuffer r = ByteBuffer.wrap(b);
+            if (b.length < SIGHEADER || r.getLong() != SIG_MAGIC) {
+                throw new IOException("not a delta signature");
+            }
+            int block = r.getInt();
+            long size = r.getLong();
+            int depth = r.getInt();
+            int count = r.getInt();
+            if (block <= 0 || size < 0 || count != (size + block - 1) / block || r.remaining() != (long) count * SIGRECSIZE) {
+                throw new IOException("delta signature is not valid");
+            }
+            int[] weak = new int[count];
+            byte[] strong = new byte[count * SHA1SIZE];
+            for (int k = 0; k < count; k++) {
+                weak[k] = r.getInt();
+                r.get(strong, k * SHA1SIZE, SHA1SIZE);
+            }
+            return new Signature(block, size, depth, weak, strong);
+        }
+
+        private int slot(int w) {
+            return (w * 0x9E3779B9) >>> m_shift;
+        }
+
+        int block_len(int k) {
+            return (int) Math.min(m_block, m_size - (long) k * m_block);
+        }
+
+        // the block that is the len bytes at buf[off], weak checksum w, -1 if none
+        int find(int w, byte[] buf, int off, int len, MessageDigest md) {
+            byte[] sha1 = null;
+            for (int k = m_head[slot(w)]; k >= 0; k = m_next[k]) {
+                if (m_weak[k] != w || block_len(k) != len) {
+                    continue;
+                }
+                if (sha1 == null) {
+                    md.update(buf, off, len);
+                    sha1 = md.digest();
+                }
+                int s = k * SHA1SIZE;
+                int i = 0;
+                while (i < SHA1SIZE && m_strong[s + i] == sha1[i]) {
+                    i++;
+                }
+                if (i == SHA1SIZE) {
+                    return k;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // the signature of a file as it streams by, any size pieces
+    private static final class SigWriter {
+        private final int m_block;
+        private final MessageDigest m_md;
+        private final ByteArrayOutputStream m_recs = new ByteArrayOutputStream();
+        private final ByteBuffer m_rec = ByteBuffer.allocate(SIGRECSIZE);
+        private long m_size = 0;
+        private int m_fill = 0;         // bytes in the block so far
+        private int m_a = 0;
+        private int m_b = 0;
+
+        SigWriter(int block) throws NoSuchAlgorithmException {
+            m_block = block;
+            m_md = MessageDigest.getInstance("SHA-1");
+        }
+
+        void update(byte[] buf, int off, int len) {
+            m_size += len;
+            while (len > 0) {
+                int n = Math.min(len, m_block - m_fill);
+                int a = m_a;
+                int b = m_b;
+                for (int i = off; i < off + n; i++) {
+                    a += buf[i] & 0xFF;
+                    b += a;
+                }
+                m_a = a;
+                m_b = b;
+                m_md.update(buf, off, n);
+                m_fill += n;
+                off += n;
+                len -= n;
+                if (m_fill == m_block) {
+                    end_block();
+                }
+            }
+        }
+
+        private void end_block() {
+            m_rec.clear();
+            m_rec.putInt(weak(m_a, m_b));
+            m_rec.put(m_md.digest());
+            m_recs.write(m_rec.array(), 0, SIGRECSIZE);
+            m_fill = 0;
+            m_a = 0;
+            m_b = 0;
+        }
+
+        byte[] finish(int depth) {
+            if (m_fill > 0) {
+                end_block();
+            }
+            ByteBuffer b = ByteBuffer.allocate(SIGHEADER + m_recs.size());
+            b.putLong(SIG_MAGIC);
+            b.putInt(m_block);
+            b.putLong(m_size);
+            b.putInt(depth);
+            b.putInt(m_recs.size() / SIGRECSIZE);
+            b.put(m_recs.toByteArray());
+            return b.array();
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Deltas
+    //--------------------------------------------------------------------------
+    private static final class DeltaWriter {
+        private final ByteArrayOutputStream m_bytes = new ByteArrayOutputStream();
+        private final DataOutputStream m_ops = new DataOutputStream(m_bytes);
+        private final long m_max;
+        private long m_data = 0;
+        private int m_copyStart = 0;    // COPY not written yet, consecutive blocks are one op
+        private int m_copyCount = 0;
+
+        DeltaWriter(long max) {
+            m_max = max;
+        }
+
+        // false once the delta has got too big to be worth it
+        boolean data(byte[] buf, int off, int len) throws IOException {
+            if (len == 0) {
+                return true;
+            }
+            m_data += len;
+            if (m_data > m_max) {
+                return false;
+            }
+            flush_copy();
+            m_ops.writeByte(OP_DATA);
+            m_ops.writeInt(len);
+            m_ops.write(buf, off, len);
+            return true;
+        }
+
+        void copy(int k) throws IOException {
+            if (m_copyCount > 0 && k == m_copyStart + m_copyCount) {
+                m_copyCount++;
+                return;
+            }
+            flush_copy();
+            m_copyStart = k;
+            m_copyCount = 1;
+        }
+
+        private void flush_copy() throws IOException {
+            if (m_copyCount > 0) {
+                m_ops.writeByte(OP_COPY);
+                m_ops.writeInt(m_copyStart);
+                m_ops.writeInt(m_copyCount);
+                m_copyCount = 0;
+            }
+        }
+
+        byte[] finish(String base, int depth, Signature sig, long size) throws IOException {
+            flush_copy();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(HEADERMAX + m_bytes.size());
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeLong(DELTA_MAGIC);
+            out.writeInt(depth);
+            out.writeUTF(base);
+            out.writeInt(sig.m_block);
+            out.writeLong(sig.m_size);
+            out.writeLong(size);
+            m_bytes.writeTo(out);
+            return bos.toByteArray();
+        }
+    }
+
+    private static final class Scan {
+        String m_sha1;              // for the blob name
+        long m_size;
+        SigWriter m_sig;
+        DeltaWriter m_delta;        // null if there was no base or it did not pay
+    }
+
+    //--------------------------------------------------------------------------
+    // One read of infile: its name hash, its signature and, if there is a
+    // base, the delta against it.  Matching needs the window of L bytes and
+    // the byte after it in buf, lit is where the DATA not written yet starts.
+    //--------------------------------------------------------------------------
+    private static Scan scan(String infile, long size, Signature base) throws IOException, NoSuchAlgorithmException {
+        ContentDigest digest = new ContentDigest();
+        SigWriter sig = new SigWriter(block_size(size));
+        DeltaWriter delta = base == null ? null : new DeltaWriter(Math.min(MAXDATA, size / 2));
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+
+        final int L = base == null ? 0 : base.m_block;
+        byte[] buf = new byte[IOSIZE + L];
+        int pos = 0;        // window start
+        int lit = 0;
+        int end = 0;        // valid bytes end here
+        boolean eof = false;
+        boolean rolling = false;
+        int a = 0;
+        int b = 0;
+
+        try (FileChannel in = FileChannel.open(Paths.get(infile), StandardOpenOption.READ)) {
+            while (true) {
+                if (!eof && (delta == null || end - pos <= L)) {
+                    if (delta != null && !delta.data(buf, lit, pos - lit)) {
+                        delta = null;
+                    }
+                    if (delta == null) {
+                        pos = end;      // nothing to match against, just hash
+                    }
+                    System.arraycopy(buf, pos, buf, 0, end - pos);
+                    end -= pos;
+                    pos = 0;
+                    lit = 0;
+                    ByteBuffer bb = ByteBuffer.wrap(buf, end, buf.length - end);
+                    eof = !StreamEngine.read_fully(in, bb) || bb.hasRemaining();
+                    digest.update(buf, end, bb.position() - end);
+                    sig.update(buf, end, bb.position() - end);
+                    end = bb.position();
+                    continue;
+                }
+                if (delta == null || end - pos < L) {
+                    break;
+                }
+                if (!rolling) {
+                    a = 0;
+                    b = 0;
+                    for (int i = pos; i < pos + L; i++) {
+                        a += buf[i] & 0xFF;
+                        b += a;
+                    }
+                    rolling = true;
+                }
+                int k = base.find(weak(a, b), buf, pos, L, md);
+                if (k >= 0) {
+                    if (!delta.data(buf, lit, pos - lit)) {
+                        delta = null;
+                        continue;
+                    }
+                    delta.copy(k);
+                    pos += L;
+                    lit = pos;
+                    rolling = false;
+                } else if (end - pos == L) {
+                    pos++;          // EOF, what is left is shorter than a block
+                    rolling = false;
+                } else {
+                    int out = buf[pos] & 0xFF;
+                    a += (buf[pos + L] & 0xFF) - out;
+                    b += a - L * out;
+                    pos++;
+                }
+            }
+
+            // the tail can still be the base's last, short, block
+            if (delta != null) {
+                int n = end - pos;
+                int k = -1;
+                if (n > 0) {
+                    a = 0;
+                    b = 0;
+                    for (int i = pos; i < end; i++) {
+                        a += buf[i] & 0xFF;
+                        b += a;
+                    }
+                    k = base.find(weak(a, b), buf, pos, n, md);
+                }
+                if (k >= 0) {
+                    if (delta.data(buf, lit, pos - lit)) {
+                        delta.copy(k);
+                    } else {
+                        delta = null;
+                    }
+                } else if (!delta.data(buf, lit, end - lit)) {
+                    delta = null;
+                }
+            }
+        }
+
+        Scan s = new Scan();
+        s.m_sha1 = digest.digest();
+        s.m_size = digest.count();
+        s.m_sig = sig;
+        s.m_delta = delta;
+        return s;
+    }
+
+    //--------------------------------------------------------------------------
+    // Restore, the file a manifest line stands for read at random.  A delta
+    // is parsed into its ops, which cover the file front to back.
+    //--------------------------------------------------------------------------
+    private interface Source extends Closeable {
+
+        // fill dst from pos in the file
+        void read(long pos, ByteBuffer dst) throws IOException;
+    }
+
+    private static final class FullSource implements Source {
+        private final SeekableByteChannel m_ch;
+
+        FullSource(SeekableByteChannel ch) {
+            m_ch = ch;
+        }
+
+        @Override
+        public void read(long pos, ByteBuffer dst) throws IOException {
+            m_ch.position(pos);
+            while (dst.hasRemaining()) {
+                if (m_ch.read(dst) < 0) {
+                    throw new EOFException("delta base is short");
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            m_ch.close();
+        }
+    }
+
+    private static final class Delta implements Source {
+        final String m_base;
+        final long m_size;
+        private final byte[] m_data;    // the decrypted delta, DATA is read out of it
+        private long[] m_start = new long[16];  // where op i starts in the file
+        private long[] m_from = new long[16];   // COPY: offset in the base, DATA: in m_data
+        private long[] m_len = new long[16];
+        private boolean[] m_copy = new boolean[16];
+        private int m_count = 0;
+        Source m_src;                   // the base, once it is open
+
+        private Delta(byte[] data) throws IOException {
+            m_data = data;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readLong() != DELTA_MAGIC) {
+                throw new IOException("not a delta");
+            }
+            in.readInt();
+            m_base = in.readUTF();
+            int block = in.readInt();
+            long baseSize = in.readLong();
+            m_size = in.readLong();
+
+            long pos = 0;
+            while (in.available() > 0) {
+                byte op = in.readByte();
+                if (op == OP_COPY) {
+                    long from = (long) in.readInt() * block;
+                    long len = Math.min((long) in.readInt() * block, baseSize - from);
+                    if (from < 0 || len <= 0) {
+                        throw new IOException("delta copies past the end of its base");
+                    }
+                    add(pos, from, len, true);
+                    pos += len;
+                } else if (op == OP_DATA) {
+                    int len = in.readInt();
+                    long from = data.length - in.available();
+                    if (len <= 0 || in.skipBytes(len) != len) {
+                        throw new IOException("delta is short");
+                    }
+                    add(pos, from, len, false);
+                    pos += len;
+                } else {
+                    throw new IOException("unknown delta op " + op);
+                }
+            }
+            if (pos != m_size) {
+                throw new IOException("delta is " + pos + " bytes, not " + m_size);
+            }
+        }
+
+        private void add(long start, long from, long len, boolean copy) {
+            if (m_count == m_start.length) {
+                int n = 2 * m_count;
+                m_start = Arrays.copyOf(m_start, n);
+                m_from = Arrays.copyOf(m_from, n);
+                m_len = Arrays.copyOf(m_len, n);
+                m_copy = Arrays.copyOf(m_copy, n);
+            }
+            m_start[m_count] = start;
+            m_from[m_count] = from;
+            m_len[m_count] = len;
+            m_copy[m_count] = copy;
+            m_count++;
+        }
+
+        @Override
+        public void read(long pos, ByteBuffer dst) throws IOException {
+            while (dst.hasRemaining()) {
+                if (pos < 0 || pos >= m_size) {
+                    throw new EOFException("read past the end of a delta");
+                }
+                // the last op starting at or before pos
+                int lo = 0;
+                int hi = m_count - 1;
+                while (lo < hi) {
+                    int mid = (lo + hi + 1) >>> 1;
+                    if (m_start[mid] <= pos) {
+                        lo = mid;
+                    } else {
+                        hi = mid - 1;
+                    }
+                }
+                long off = pos - m_start[lo];
+                int n = (int) Math.min(dst.remaining(), m_len[lo] - off);
+                if (m_copy[lo]) {
+                    int limit = dst.limit();
+                    dst.limit(dst.position() + n);
+                    m_src.read(m_from[lo] + off, dst);
+                    dst.limit(limit);
+                } else {
+                    dst.put(m_data, (int) (m_from[lo] + off), n);
+                }
+                pos += n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (m_src != null) {
+                m_src.close();
+            }
+        }
+    }
+
+    // open line, the n-th delta of a chain if it is one, down to its full blob
+    private static Source open(String line, int n) throws Exception {
+        if (!is_delta(line)) {
+            byte[] key = Keystore.loadKey(line);
+            return new FullSource(EncryptLib.openRange(cat_path_s(get_dat_folder(), line), key, 0, Long.MAX_VALUE));
+        }
+        if (n > MAXCHAIN) {
+            throw new IOException("delta chain longer than " + MAXCHAIN + " at " + line);
+        }
+        String name = line.substring(MANIFEST_PREFIX.length());
+        Delta d = new Delta(EncryptLib.decryptBytes(cat_path_s(get_dat_folder(), name), Keystore.loadKey(name), null));
+        d.m_src = open(d.m_base, n + 1);
+        return d;
+    }
+
+    //--------------------------------------------------------------------------
+    // Random access to length bytes from offset of the file delta name
+    // rebuilds, for RestoreTree.openRange().  Only the ops under a read are
+    // gone through, and only the base blocks they copy are decrypted.  The
+    // SHA-1 in the name is not checked, that takes the whole file.
+    //--------------------------------------------------------------------------
+    public static SeekableByteChannel openRange(String name, long offset, long length) throws Exception {
+        Delta d = new Delta(EncryptLib.decryptBytes(cat_path_s(get_dat_folder(), name), Keystore.loadKey(name), null));
+        d.m_src = open(d.m_base, 2);
+        return new DeltaChannel(d, offset, length);
+    }
+
+    // read only channel over part of a Delta, like RangeChannel for a blob
+    private static final class DeltaChannel implements SeekableByteChannel {
+        private final Delta m_delta;
+        private final long m_offset;
+        private final long m_size;
+        private long m_position = 0;
+        private boolean m_open = true;
+
+        DeltaChannel(Delta d, long offset, long length) {
+            m_delta = d;
+            m_offset = Math.max(0, Math.min(offset, d.m_size));
+            m_size = Math.max(0, Math.min(length, d.m_size - m_offset));
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!m_open) {
+                throw new ClosedChannelException();
+            }
+            if (m_position >= m_size) {
+                return -1;
+            }
+            int n = (int) Math.min(dst.remaining(), m_size - m_position);
+            int limit = dst.limit();
+            dst.limit(dst.position() + n);
+            try {
+                m_delta.read(m_offset + m_position, dst);
+            } finally {
+                dst.limit(limit);
+            }
+            m_position += n;
+            return n;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            return m_position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("negative position");
+            }
+            m_position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return m_size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) throws IOException {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return m_open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            m_open = false;
+            m_delta.close();
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Restore one file from its delta chain, name is the manifest line without
+    // MANIFEST_PREFIX.  Same skip rule and return value as decryptAES().
+    //--------------------------------------------------------------------------
+    public static FileMeta restoreFile(String name) throws Exception {
+        Metrics.debug("Decrypt delta: " + name);
+
+        FileMeta[] filemeta = new FileMeta[1];
+        Delta d = new Delta(EncryptLib.decryptBytes(cat_path_s(get_dat_folder(), name), Keystore.loadKey(name), filemeta));
+        FileMeta result = new FileMeta(filemeta[0].GetPathName(), filemeta[0].GetTimeStamp(), d.m_size);
+
+        String fullRestorePath = cat_path_s(get_destRoot(), result.GetPathName());
+        if (new File(fullRestorePath).lastModified() == result.GetTimeStamp()) {
+            Metrics.debug("SKIP - file to restore already exists");
+            return result;
+        }
+        Metrics.debug("        outfile: " + fullRestorePath);
+
+        String sha1;
+        try {
+            d.m_src = open(d.m_base, 2);
+            try (RandomAccessFile raf = EncryptLib.CreateRestoreFile(fullRestorePath, d.m_size)) {
+                sha1 = rebuild(d, raf.getChannel());
+            }
+        } finally {
+            d.close();
+        }
+        if (!sha1.equalsIgnoreCase(name.substring(0, name.indexOf('_')))) {
+            throw new GeneralSecurityException("delta " + name + " does not rebuild the file it was made from");
+        }
+        return result;
+    }
+
+    // -verify: the ContentDigest of the file delta name rebuilds, nothing written
+    public static String digest(String name) throws Exception {
+        Delta d = new Delta(EncryptLib.decryptBytes(cat_path_s(get_dat_folder(), name), Keystore.loadKey(name), null));
+        try {
+            d.m_src = open(d.m_base, 2);
+            return rebuild(d, null);
+        } finally {
+            d.close();
+        }
+    }
+
+    // read all of d front to back into out, or nowhere, returns its ContentDigest
+    private static String rebuild(Delta d, FileChannel out) throws IOException, NoSuchAlgorithmException {
+        ContentDigest digest = new ContentDigest();
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.max(1, Math.min(IOSIZE, d.m_size)));
+        long pos = 0;
+        while (pos < d.m_size) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), d.m_size - pos));
+            d.read(pos, buf);
+            buf.flip();
+            digest.update(buf.array(), 0, buf.limit());
+            pos += buf.limit();
+            if (out != null) {
+                StreamEngine.write_fully(out, buf);
+            }
+        }
+        return digest.digest();
+    }
+
+    //--------------------------------------------------------------------------
+    // GC: add the bases under delta name to live, down to its full blob.  Only
+    // each delta's header is decrypted.  done has the deltas already followed,
+    // so a chain under many snapshots is read once.
+    //--------------------------------------------------------------------------
+    public static void mark_bases(String name, BlobIdSet live, Set<String> done) throws Exception {
+        String line = MANIFEST_PREFIX + name;
+        while (is_delta(line) && done.add(line)) {
+            line = read_base(line.substring(MANIFEST_PREFIX.length()));
+            live.add(is_delta(line) ? line.substring(MANIFEST_PREFIX.length()) : line);
+        }
+    }
+
+    // the base line out of the header of delta name
+    private static String read_base(String name) throws Exception {
+        ByteBuffer head = ByteBuffer.allocate(HEADERMAX);
+        try (SeekableByteChannel ch = EncryptLib.openRange(cat_path_s(get_dat_folder(), name), Keystore.loadKey(name), 0, HEADERMAX)) {
+            StreamEngine.read_fully(ch, head);
+        }
+        return base_line(Arrays.copyOf(head.array(), head.position()));
+    }
+
+    // the base line of a decrypted delta, or of the start of one
+    public static String base_line(byte[] delta) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+        if (in.readLong() != DELTA_MAGIC) {
+            throw new IOException("not a delta");
+        }
+        in.readInt();
+        return in.readUTF();
+    }
+
+    // GC: the signatures of manifest's blobs, the next -delta run goes against them
+    public static void mark_sigs(Manifest manifest, BlobIdSet live) {
+        for (int i = 0; i < manifest.GetCount(); i++) {
+            if ((manifest.GetFlags(i) & Manifest.FLAG_CDC) == 0) {
+                live.add(sig_name(manifest.GetName(i)));
+            }
+        }
+    }
+}
@@ -4,7 +4,6 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.logging.Level;
@@ -13,7 +12,7 @@ import java.util.logging.Logger;
 public class Encrypt1 {
 
     private static void usage(String msg) {
-        System.err.println("usage: encrypt1 -db:dbRoot -src:srcRoot -restore:manifest -dest:destRoot\n" + msg);
+        System.err.println("usage: encrypt1 -db:dbRoot -src:srcRoot -restore:manifest -dest:destRoot [-threads:N] [-queue:N] [-walk:N] [-singlepass] [-merkle] [-bufsize:N] [-direct] [-async[:N]] [-chunked] [-chunksize:N] [-incremental] [-cdc] [-delta[:N]] [-compress[:codec]] [-pack[:N]] [-keystore] [-include:pattern] [-exclude:pattern] [-diff:snapA,snapB] [-gc[:N]] [-verify[:manifest]] [-ratelimit:N] [-watch[:N[,S]]] [-archive:target] [-unarchive:source] [-progress:N] [-debug]\n" + msg);
         System.exit(-1);
     }
 
@@ -34,6 +33,33 @@ public class Encrypt1 {
     private static final String OPTION_RSTOR = "-restore:";
     private static final String OPTION_DEST = "-dest:";
     private static final String OPTION_INIT = "-init:";
+    private static final String OPTION_THREADS = "-threads:";
+    private static final String OPTION_QUEUE = "-queue:";
+    private static final String OPTION_WALK = "-walk:";
+    private static final String OPTION_SINGLEPASS = "-singlepass";
+    private static final String OPTION_BUFSIZE = "-bufsize:";
+    private static final String OPTION_DIRECT = "-direct";
+    private static final String OPTION_ASYNC = "-async";
+    private static final String OPTION_CHUNKED = "-chunked";
+    private static final String OPTION_CHUNKSIZE = "-chunksize:";
+    private static final String OPTION_INCREMENTAL = "-incremental";
+    private static final String OPTION_MERKLE = "-merkle";
+    private static final String OPTION_CDC = "-cdc";
+    private static final String OPTION_DELTA = "-delta";
+    private static final String OPTION_COMPRESS = "-compress";
+    private static final String OPTION_PACK = "-pack";
+    private static final String OPTION_KEYSTORE = "-keystore";
+    private static final String OPTION_INCLUDE = "-include:";
+    private static final String OPTION_EXCLUDE = "-exclude:";
+    private static final String OPTION_DIFF = "-diff:";
+    private static final String OPTION_GC = "-gc";
+    private static final String OPTION_VERIFY = "-verify";
+    private static final String OPTION_RATELIMIT = "-ratelimit:";
+    private static final String OPTION_PROGRESS = "-progress:";
+    private static final String OPTION_WATCH = "-watch";
+    private static final String OPTION_ARCHIVE = "-archive:";
+    private static final String OPTION_UNARCHIVE = "-unarchive:";
+    private static final String OPTION_DEBUG = "-debug";
 
     // return a new string that is the prefix of s up to max chars long without
     // throwing bounds check exception in cases s.length < max
@@ -49,6 +75,13 @@ public class Encrypt1 {
             boolean doRestore = false;
             boolean doEncrypt = false;
             boolean doInit = false;
+            boolean doWatch = false;
+            String archive_s = null;
+            String unarchive_s = null;
+            String diff_s = null;
+            int gc_keep = -2;   // -2 no -gc, -1 -gc keeping every snapshot
+            String verify_s = null;
+            long problems = 0;
             
             for (String arg : args) {
                 
@@ -79,11 +112,151 @@ public class Encrypt1 {
                     String s = arg.substring(OPTION_INIT.length());
                     PathNameKeeper.set_srcRoot(s);
                     
+                } else if (OPTION_THREADS.equals(get_prefix_str(arg, OPTION_THREADS.length()))) {  // -threads:N
+                    
+                    String s = arg.substring(OPTION_THREADS.length());
+                    OptionKeeper.set_threads(s);
+                    
+                } else if (OPTION_QUEUE.equals(get_prefix_str(arg, OPTION_QUEUE.length()))) {  // -queue:N
+                    
+                    String s = arg.substring(OPTION_QUEUE.length());
+                    OptionKeeper.set_queue(s);
+                    
+                } else if (OPTION_WALK.equals(get_prefix_str(arg, OPTION_WALK.length()))) {  // -walk:N
+                    
+                    String s = arg.substring(OPTION_WALK.length());
+                    OptionKeeper.set_walk(s);
+                    
+                } else if (OPTION_SINGLEPASS.equals(arg)) {  // -singlepass
+                    
+                    OptionKeeper.set_single_pass(true);
+                    
+                } else if (OPTION_BUFSIZE.equals(get_prefix_str(arg, OPTION_BUFSIZE.length()))) {  // -bufsize:N
+                    
+                    String s = arg.substring(OPTION_BUFSIZE.length());
+                    OptionKeeper.set_bufsize(s);
+                    
+                } else if (OPTION_DIRECT.equals(arg)) {  // -direct
+                    
+                    OptionKeeper.set_direct(true);
+                    
+                } else if (OPTION_ASYNC.equals(arg) || arg.startsWith(OPTION_ASYNC + ":")) {  // -async[:N]
+                    
+                    OptionKeeper.set_async(arg.length() > OPTION_ASYNC.length() ? arg.substring(OPTION_ASYNC.length() + 1) : "3");
+                    
+                } else if (OPTION_CHUNKED.equals(arg)) {  // -chunked
+                    
+                    OptionKeeper.set_chunked(true);
+                    
+                } else if (OPTION_CHUNKSIZE.equals(get_prefix_str(arg, OPTION_CHUNKSIZE.length()))) {  // -chunksize:N
+                    
+                    String s = arg.substring(OPTION_CHUNKSIZE.length());
+                    OptionKeeper.set_chunksize(s);
+                    
+                } else if (OPTION_INCREMENTAL.equals(arg)) {  // -incremental
+                    
+                    OptionKeeper.set_incremental(true);
+                    
+                } else if (OPTION_MERKLE.equals(arg)) {  // -merkle
+                    
+                    OptionKeeper.set_merkle(true);
+                    
+                } else if (OPTION_CDC.equals(arg)) {  // -cdc
+                    
+                    OptionKeeper.set_cdc(true);
+                    
+                } else if (OPTION_DELTA.equals(arg) || arg.startsWith(OPTION_DELTA + ":")) {  // -delta[:N]
+                    
+                    OptionKeeper.set_delta(true);
+                    if (arg.length() > OPTION_DELTA.length()) {
+                        OptionKeeper.set_deltamin(arg.substring(OPTION_DELTA.length() + 1));
+                    }
+                    
+                } else if (OPTION_COMPRESS.equals(arg) || arg.startsWith(OPTION_COMPRESS + ":")) {  // -compress[:codec]
+                    
+                    // the codec id lives in the ChunkedBlob header, so -compress implies -chunked
+                    String s = "deflate";
+                    if (arg.startsWith(OPTION_COMPRESS + ":")) {
+                        s = arg.substring(OPTION_COMPRESS.length() + 1);
+                    }
+                    if (!OptionKeeper.set_codec(s)) {
+                        usage("unknown compression codec " + s);
+                    }
+                    OptionKeeper.set_chunked(true);
+                    
+                } else if (OPTION_PACK.equals(arg) || arg.startsWith(OPTION_PACK + ":")) {  // -pack[:N]
+                    
+                    OptionKeeper.set_pack(true);
+                    if (arg.length() > OPTION_PACK.length()) {
+                        OptionKeeper.set_packmax(arg.substring(OPTION_PACK.length() + 1));
+                    }
+                    
+                } else if (OPTION_KEYSTORE.equals(arg)) {  // -keystore
+                    
+                    OptionKeeper.set_keystore(true);
+                    
+                } else if (OPTION_INCLUDE.equals(get_prefix_str(arg, OPTION_INCLUDE.length()))) {  // -include:pattern
+                    
+                    OptionKeeper.add_include(arg.substring(OPTION_INCLUDE.length()));
+                    
+                } else if (OPTION_EXCLUDE.equals(get_prefix_str(arg, OPTION_EXCLUDE.length()))) {  // -exclude:pattern
+                    
+                    OptionKeeper.add_exclude(arg.substring(OPTION_EXCLUDE.length()));
+                    
+                } else if (OPTION_DIFF.equals(get_prefix_str(arg, OPTION_DIFF.length()))) {  // -diff:snapA,snapB
+                    
+                    diff_s = arg.substring(OPTION_DIFF.length());
+                    
+                } else if (OPTION_GC.equals(arg) || arg.startsWith(OPTION_GC + ":")) {  // -gc[:N]
+                    
+                    gc_keep = -1;
+                    if (arg.length() > OPTION_GC.length()) {
+                        gc_keep = Integer.parseInt(arg.substring(OPTION_GC.length() + 1));
+                        if (gc_keep < 1) {
+                            usage("-gc:N must keep at least one snapshot");
+                        }
+                    }
+                    
+                } else if (OPTION_VERIFY.equals(arg) || arg.startsWith(OPTION_VERIFY + ":")) {  // -verify[:manifest]
+                    
+                    verify_s = arg.length() > OPTION_VERIFY.length() ? arg.substring(OPTION_VERIFY.length() + 1) : "";
+                    
+                } else if (OPTION_RATELIMIT.equals(get_prefix_str(arg, OPTION_RATELIMIT.length()))) {  // -ratelimit:N
+                    
+                    OptionKeeper.set_ratelimit(arg.substring(OPTION_RATELIMIT.length()));
+                    
+                } else if (OPTION_PROGRESS.equals(get_prefix_str(arg, OPTION_PROGRESS.length()))) {  // -progress:N
+                    
+                    OptionKeeper.set_progress(arg.substring(OPTION_PROGRESS.length()));
+                    
+                } else if (OPTION_WATCH.equals(arg) || arg.startsWith(OPTION_WATCH + ":")) {  // -watch[:N[,S]]
+                    
+                    doWatch = true;
+                    if (arg.length() > OPTION_WATCH.length()) {
+                        OptionKeeper.set_watch(arg.substring(OPTION_WATCH.length() + 1));
+                    }
+                    
+                } else if (OPTION_ARCHIVE.equals(get_prefix_str(arg, OPTION_ARCHIVE.length()))) {  // -archive:target
+                    
+                    archive_s = arg.substring(OPTION_ARCHIVE.length());
+                    if ("-".equals(archive_s)) {
+                        ArchiveStream.take_stdout();    // before anything is printed
+                    }
+                    
+                } else if (OPTION_UNARCHIVE.equals(get_prefix_str(arg, OPTION_UNARCHIVE.length()))) {  // -unarchive:source
+                    
+                    unarchive_s = arg.substring(OPTION_UNARCHIVE.length());
+                    
+                } else if (OPTION_DEBUG.equals(arg)) {  // -debug
+                    
+                    OptionKeeper.set_debug(true);
+                    
                 } else {
                     usage("unrecognized command line argument");
                 }
             }
-            if (!doRestore && !doInit) {
+            if (!doRestore && !doInit && !doWatch && diff_s == null && gc_keep == -2 && verify_s == null
+                    && archive_s == null && unarchive_s == null) {
                 doEncrypt = true;
             }
             read_config(PathNameKeeper.get_config_file());
@@ -96,19 +269,52 @@ public class Encrypt1 {
             }
             try {
                 if (doRestore) {
+                    Metrics.start_reporting("Restore");
                     doRestore();
+                    Metrics.stop_reporting();
                 }
                 if (doEncrypt) {
+                    Metrics.start_reporting("Encrypt");
                     doEncrypt();
+                    Metrics.stop_reporting();
+                }
+                if (doWatch) {
+                    doWatch();
+                }
+                if (archive_s != null) {
+                    Metrics.start_reporting("Archive");
+                    doArchive(archive_s);
+                    Metrics.stop_reporting();
+                }
+                if (unarchive_s != null) {
+                    Metrics.start_reporting("Unarchive");
+                    problems += doUnarchive(unarchive_s);
+                    Metrics.stop_reporting();
                 }
                 if (doInit) {
                     doInit();
                 }
+                if (diff_s != null) {
+                    doDiff(diff_s);
+                }
+                if (gc_keep != -2) {
+                    BlobGC.run(gc_keep);
+                }
+                if (verify_s != null) {
+                    problems += doVerify(verify_s);
+                }
             } catch (Exception ex) {
                 Logger.getLogger(Encrypt1.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                Keystore.close_session();   // last batch of keys
+            }
+            if (problems > 0) {
+                System.exit(2);     // so a scheduled -verify or -unarchive can tell
             }
         } catch (IOException ex) {
             Logger.getLogger(Encrypt1.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (NumberFormatException ex) {
+            usage("bad number in command line argument " + ex.getMessage());
         }
     }
 
@@ -143,8 +349,11 @@ public class Encrypt1 {
             // 2 - create a manifest of encrypted files that should be restored when user runs restore
             Path startingDir = Paths.get(PathNameKeeper.get_srcRoot());
             TreeWalker walker = new TreeWalker(startingDir);
-            Files.walkFileTree(startingDir, walker);
-            walker.close();
+            try {
+                ParallelWalk.walk_tree(startingDir, walker);    // walkFileTree unless -walk:N
+            } finally {
+                walker.close();     // waits for the pipeline to drain when -threads:N
+            }
 
         } catch (IOException ex) {
             Logger.getLogger(Encrypt1.class.getName()).log(Level.SEVERE, null, ex);
@@ -153,6 +362,30 @@ public class Encrypt1 {
         }
     }
 
+    // -watch, encrypt srcRoot and then every change to it, see WatchDaemon
+    private static void doWatch() throws Exception {
+        if (!PathNameKeeper.check_srcRoot()) {
+            usage("srcRoot not found");
+        }
+        WatchDaemon.run(Paths.get(PathNameKeeper.get_srcRoot()));
+    }
+
+    // -archive:target, encrypt srcRoot into one stream, see ArchiveStream
+    private static void doArchive(String archive_s) throws IOException {
+        if (!PathNameKeeper.check_srcRoot()) {
+            usage("srcRoot not found");
+        }
+        ArchiveStream.write(archive_s, Paths.get(PathNameKeeper.get_srcRoot()));
+    }
+
+    // -unarchive:source, restore a stream from -archive to destRoot
+    private static long doUnarchive(String unarchive_s) throws IOException {
+        if (!PathNameKeeper.check_destRoot()) {
+            usage("destRoot is not found");
+        }
+        return ArchiveStream.read(unarchive_s);
+    }
+
     private static void doRestore() {
 
         if (!PathNameKeeper.check_meta_file_read()) {
@@ -170,6 +403,28 @@ public class Encrypt1 {
         }
     }
 
+    private static void doDiff(String diff_s) throws IOException {
+        String[] snaps = diff_s.split(",");
+        if (snaps.length != 2) {
+            usage("-diff:snapA,snapB needs two snapshots");
+        }
+        String a = Snapshots.resolve(snaps[0]);
+        String b = Snapshots.resolve(snaps[1]);
+        if (!PathNameKeeper.does_file_exist(a) || !PathNameKeeper.does_file_exist(b)) {
+            usage("snapshot to diff not found " + diff_s);
+        }
+        Snapshots.diff(a, b);
+    }
+
+    // -verify checks the current manifest, -verify:X a snapshot number or path
+    private static long doVerify(String verify_s) throws Exception {
+        String manifest = verify_s.isEmpty() ? PathNameKeeper.get_meta_file_write() : Snapshots.resolve(verify_s);
+        if (!PathNameKeeper.does_file_exist(manifest)) {
+            usage("manifest to verify not found " + manifest);
+        }
+        return BlobVerify.run(manifest);
+    }
+
     private static void doInit() {
     }
 }
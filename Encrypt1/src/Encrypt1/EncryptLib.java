@@ -26,39 +26,49 @@ Lengths are written as 64-bit longs to maintain 64-bit alignment in the header
 and throughout the entire file.
 
 When data is sent through the cipher it is always done in BLOCKSIZE bytes at a
-time.  BLOCKSIZE is fixed and is 128-bits (16 bytes).
+time.  BLOCKSIZE is fixed and is 128-bits (16 bytes).  StreamEngine does the
+actual I/O in large buffers but writes the same bytes as a BLOCKSIZE loop.
+
+With -chunked, encryptAES() writes the version 2 format in ChunkedBlob.java
+instead.  decryptAES() reads both, see BlobHeader.java.
 ------------------------------------------------------------------------------*/
 package Encrypt1;
 
 import static Encrypt1.PathNameKeeper.cat_path_s;
 import static Encrypt1.PathNameKeeper.get_destRoot;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public class EncryptLib {
 
     // these constants cannot be changed
-    private static final String AESNAME = "AES/CBC/PKCS5Padding";
-    private static final int KEYSIZE = 16;
-    private static final int LONGSIZE = 8;
-    private static final int BLOCKSIZE = 16;
+    static final String AESNAME = "AES/CBC/PKCS5Padding";
+    static final int KEYSIZE = 16;
+    static final int LONGSIZE = 8;
+    static final int BLOCKSIZE = 16;
 
     private static int CountBlocks(int len) {
         int nBlocks = len / BLOCKSIZE;
@@ -68,54 +78,11 @@ public class EncryptLib {
         return nBlocks;
     }
     
-    // The IV is written plaintext as the first KEYSIZE bytes of the encrypted file
-    private static byte[] readIV(FileInputStream fis) throws IOException, Exception {
-        byte[] key = new byte[KEYSIZE];
-        int nRead = fis.read(key, 0, KEYSIZE);
-        if (nRead != KEYSIZE) {
-            throw new Exception(); // TODO: invalid file, throw specific exception
-        }
-        return key;
-    }
-    
-    // 64-bit size of the file before encryption, next field of the header
-    private static long readFileSize(FileInputStream fis) throws IOException, Exception {
-        byte[] l = new byte[LONGSIZE];
-        int nRead = fis.read(l, 0, LONGSIZE);
-        if ( nRead != LONGSIZE ) {
-            throw new Exception(); // TODO: invalid file, throw specific exception
-        }
-        long filesize = readLongFromBuffer(l);
-        return filesize;
-    }
-
-    // 64-bit length for length of pathname size, next field of the header
-    private static long readPathSize(FileInputStream fis) throws IOException, Exception {
-        byte[] l = new byte[LONGSIZE];
-        int nRead = fis.read(l, 0, LONGSIZE);
-        if ( nRead != LONGSIZE ) {
-            throw new Exception(); // TODO: invalid file, throw specific exception
-        }
-        long pathsize = readLongFromBuffer(l);
-        return pathsize;
-    }
-
-    // 64-bit timestamp of lastModifiedTime, next field of the header
-    private static long readTimeStamp(FileInputStream fis) throws IOException, Exception {
-        byte[] l = new byte[LONGSIZE];
-        int nRead = fis.read(l, 0, LONGSIZE);
-        if ( nRead != LONGSIZE ) {
-            throw new Exception(); // TODO: invalid file, throw specific exception
-        }
-        long timestamp = readLongFromBuffer(l);
-        return timestamp;
-    }
-
     // TODO: timestamp and restore last modify
     
     // encode the String UTF-8 as bytes and pad to BLOCKSIZE alignment with zeroes
     // this is used at encrypt time to write pathname into encrypted output file
-    private static byte[] GetPathBytes(String pathname) {
+    static byte[] GetPathBytes(String pathname) {
         try {
             byte[] pathnameBytes = pathname.getBytes("UTF-8");
             int nBytes = pathnameBytes.length;
@@ -131,7 +98,7 @@ public class EncryptLib {
 
     // remove the trailing zeroes and give back the String with original length
     // this is used at decrypt time
-    private static String GetPathString(byte[] pathname_b) {
+    static String GetPathString(byte[] pathname_b) {
         
         // scan the byte array until find a zero byte (if any) and that
         // is the real end of the string
@@ -159,30 +126,6 @@ public class EncryptLib {
         return pathname;
     }
 
-    private static Cipher GetNewCipher(int mode, SecretKey aesKey) {
-        try {
-            Cipher aesCipher;
-            aesCipher = Cipher.getInstance(AESNAME);
-            aesCipher.init(mode, aesKey);
-            return aesCipher;
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException ex) {
-            Logger.getLogger(EncryptLib.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        return null;
-    }
-    
-    private static Cipher GetNewCipher(int mode, SecretKey aesKey, byte[] ivBytes) {
-        try {
-            Cipher aesCipher;
-            aesCipher = Cipher.getInstance(AESNAME);
-            aesCipher.init(mode, aesKey, new IvParameterSpec(ivBytes));
-            return aesCipher;
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException ex) {
-            Logger.getLogger(EncryptLib.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        return null;
-    }
-
     // TODO: review this and there is a place in TreeWalker doing similar function
     public static SecretKey getKey() throws NoSuchAlgorithmException {
         KeyGenerator keygen = KeyGenerator.getInstance("AES");
@@ -196,67 +139,92 @@ public class EncryptLib {
     // outfile - full path to encrypted file, will overwite if existing
     // aesKey - new key (TODO: should this be moved inside)
     public static void encryptAES(String infile, FileMeta filemeta, String outfile, SecretKey aesKey) throws FileNotFoundException, IOException {
+        encryptAES(infile, filemeta, outfile, aesKey, null);
+    }
+
+    // Same as above but also feeds every byte read from infile to digest, so
+    // the content hash comes out of the same single read as the encryption.
+    // digest may be null.  Any failure is an IOException and leaves no
+    // outfile behind.
+    public static void encryptAES(String infile, FileMeta filemeta, String outfile, SecretKey aesKey, ContentDigest digest) throws FileNotFoundException, IOException {
   
-        System.out.println("Encrypt infile " + infile);
-        System.out.println("        outfile " + outfile);
-                
-        // create output file
-        FileOutputStream fos = new FileOutputStream(outfile);
-        
-        try (FileInputStream fis = new FileInputStream(infile)) {
-           
-            Cipher aesCipher = GetNewCipher(Cipher.ENCRYPT_MODE, aesKey);
-            
-            // convert the pathname to byte[] and pad it out to BLOCKSIZE
-            byte[] pathname_b = GetPathBytes(filemeta.GetPathName());
-            
-            long fileSize = filemeta.GetFileSize();
-            long pathSize = (long) pathname_b.length;
-            long timestamp = filemeta.GetTimeStamp();
-            
-            // write header to output
-            // 16 bytes IV
-            // 8 bytes file size
-            // 8 bytes pathname size
-            // 8 bytes timestamp (lastModifiedTime)
-            byte[] aesIV_b =  aesCipher.getIV();
-            byte[] fileSize_b = writeLongToBuffer(fileSize);
-            byte[] pathSize_b = writeLongToBuffer(pathSize);
-            byte[] timestamp_b = writeLongToBuffer(timestamp);
-            
-            fos.write(aesIV_b);
-            fos.write(fileSize_b);
-            fos.write(pathSize_b);
-            fos.write(timestamp_b);
- 
-            // write pathname to file encrypted
-            byte[] block = new byte[BLOCKSIZE];
-            int nBlocks = CountBlocks(pathname_b.length);
-            for ( int i=0; i < nBlocks; i++ ) {
-                System.arraycopy(pathname_b, i*BLOCKSIZE, block, 0, BLOCKSIZE);
-                fos.write(aesCipher.update(block));
+        Metrics.debug("Encrypt infile " + infile);
+        Metrics.debug("        outfile " + outfile);
+
+        try {
+            if (!OptionKeeper.get_chunked() && AsyncChannels.use_for(filemeta.GetFileSize())) {
+                // -async, the reads and writes overlap the cipher, see AsyncChannels
+                try (ReadableByteChannel in = AsyncChannels.reader(Paths.get(infile));
+                     WritableByteChannel out = AsyncChannels.writer(Paths.get(outfile))) {
+                    StreamEngine.encrypt(in, filemeta, out, aesKey, digest);
+                }
+                return;
             }
 
-            // read the input file in chunks
-            // encrypt each trunk and write to the encrypted file
-            byte[] ctext;
-            int nRead = fis.read(block);
-            while(nRead > 0) {
-                ctext = aesCipher.update(block);
-                fos.write(ctext);
-                nRead = fis.read(block);
+            try (FileChannel in = FileChannel.open(Paths.get(infile), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(Paths.get(outfile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+                if (OptionKeeper.get_chunked()) {
+                    ChunkedBlob.encrypt(in, filemeta, out, aesKey, digest);
+                } else {
+                    StreamEngine.encrypt(in, filemeta, out, aesKey, digest);
+                }
+
             }
-            ctext = aesCipher.doFinal(block);
-            fos.write(ctext);
-            
-        } catch (IllegalBlockSizeException | BadPaddingException ex) {
-            Logger.getLogger(EncryptLib.class.getName()).log(Level.SEVERE, null, ex);
-        } 
-        finally {
-            fos.close();
+        } catch (GeneralSecurityException ex) {
+            Files.deleteIfExists(Paths.get(outfile));
+            throw new IOException(ex);
+        } catch (IOException ex) {
+            // half a blob next to its key would look stored to the next run,
+            // see Keystore.is_stored()
+            Files.deleteIfExists(Paths.get(outfile));
+            throw ex;
         }
     }
     
+    // Encrypt len bytes of data starting at off to outfile in the legacy
+    // format, for small things that are already in memory
+    public static void encryptBytes(byte[] data, int off, int len, FileMeta filemeta, String outfile, SecretKey aesKey) throws IOException {
+        try (FileChannel out = FileChannel.open(Paths.get(outfile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(data, off, len));
+            StreamEngine.encrypt(in, filemeta, out, aesKey, null);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    // Encrypt data to a new byte array in the legacy format, for a small
+    // file that is going into a PackStore pack
+    public static byte[] encryptToBytes(byte[] data, FileMeta filemeta, SecretKey aesKey) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length + 2 * BLOCKSIZE + 64);
+        try {
+            StreamEngine.encrypt(Channels.newChannel(new ByteArrayInputStream(data)), filemeta, Channels.newChannel(bos), aesKey, null);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+        return bos.toByteArray();
+    }
+
+    // Decrypt all of infile into memory, for small things like a ChunkStore
+    // recipe or chunk.  Returns the contents, filemeta[0] gets the header.
+    public static byte[] decryptBytes(String infile, byte[] key_b, FileMeta[] filemeta) throws IOException, GeneralSecurityException {
+        try (FileChannel in = FileChannel.open(Paths.get(infile), StandardOpenOption.READ)) {
+            BlobReader d = openBlob(in, new SecretKeySpec(key_b, "AES"));
+            if (d.GetFileSize() > Integer.MAX_VALUE) {
+                throw new IOException("too big to decrypt into memory " + infile);
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream((int) d.GetFileSize());
+            if (d.copyTo(Channels.newChannel(bos)) != d.GetFileSize()) {
+                // a legacy blob has no tag, a short one only shows here
+                throw new IOException("encrypted file is truncated " + infile);
+            }
+            if (filemeta != null) {
+                filemeta[0] = new FileMeta(d.GetPathName(), d.GetTimeStamp(), d.GetFileSize());
+            }
+            return bos.toByteArray();
+        }
+    }
+
     // TODO: Do I need 2 of these?
     public static FileMeta decryptAES(String infile, byte[] key_b) throws FileNotFoundException, IOException, Exception {
         SecretKeySpec aesKey = new SecretKeySpec(key_b, "AES");
@@ -265,102 +233,146 @@ public class EncryptLib {
 
     public static FileMeta decryptAES(String infile, SecretKeySpec aesKey) throws FileNotFoundException, IOException, Exception {
 
-        System.out.println("Decrypt infile: " + infile);
-        
-        FileOutputStream fos = null;
+        Metrics.debug("Decrypt infile: " + infile);
         
-        try (FileInputStream fis = new FileInputStream(infile)) {
+        try (FileChannel in = FileChannel.open(Paths.get(infile), StandardOpenOption.READ)) {
  
-            // Read the plaintext header of the encrypted file
-            byte[] aesIV = readIV(fis);          // reads 16 bytes
-            long file_size = readFileSize(fis);  // reads 8 bytes
-            long path_size = readPathSize(fis);  // reads 8 bytes
-            long timestamp = readTimeStamp(fis); // reads 8 bytes
-
-            Cipher dCipher = GetNewCipher(Cipher.DECRYPT_MODE, aesKey, aesIV);
-            
-            // read pathname, Note calls to Cipher.update() don't always
-            // return data.  So only stop this loop after we get path_size bytes
-            // out of the Cipher, as opposed to how many we have read from the file.
-            byte[] block = new byte[BLOCKSIZE];
-            byte[] pathname_b = new byte[(int) path_size];  // TODO: need to put a practical limit on path_size
-            int nCopied = 0;
-            int nRead = fis.read(block);
-            byte[] text = dCipher.update(block);
-            while (nRead > 0 && nCopied < path_size) {
-                if ( text.length > 0 ) {
-                    System.arraycopy(text, 0, pathname_b, nCopied, text.length);
-                    nCopied += text.length;
+            // -async, a big legacy blob is read ahead while it is decrypted
+            if (AsyncChannels.use_for(in.size()) && BlobHeader.read(in).GetVersion() != BlobHeader.CHUNKED) {
+                try (ReadableByteChannel ain = AsyncChannels.reader(Paths.get(infile))) {
+                    return restore_blob(new StreamEngine.Decryptor(ain, aesKey));
                 }
-                nRead = fis.read(block);
-                text = dCipher.update(block);
             }
 
-            // return byte[] pathname_b back into a String of the original length
-            String pathname = GetPathString(pathname_b);
-            if ( "".equals(pathname) ) {
-                throw new Exception();  // TODO make more specific
-            }
-            
-            String fullRestorePath = cat_path_s(get_destRoot(), pathname);
-            File f = new File(fullRestorePath);
-            
-            if (f.lastModified() == timestamp) {
-                System.out.println("SKIP - file to restore already exists");
-            } else {
-                System.out.println("        outfile: " + fullRestorePath);
-
-                // now read the file contents and write them as they are decrypted
-                fos = CreateRestoreFile(fullRestorePath);
-                long nWrote = 0;
-
-                while (nWrote < file_size) {
-                    if (nWrote + text.length < file_size) {
-                        fos.write(text);
-                        nWrote += text.length;
-                    } else {
-                        int n = (int) (file_size - nWrote);
-                        fos.write(text, 0, n);
-                        nWrote += n;
-                        break;      // correct place for this loop to end, when we have all the file data
-                    }
-                    if (nRead == 0) {
-                        break;      // something is wrong with the input file if this happens
+            // Read the plaintext header and the encrypted pathname
+            return restore_blob(openBlob(in, aesKey));
+
+        } catch (GeneralSecurityException ex) {
+            Logger.getLogger(EncryptLib.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
+    // Same as above for a legacy format blob that is already in memory, one
+    // that was read out of a PackStore pack
+    public static FileMeta decryptAES(byte[] blob, byte[] key_b) throws IOException, Exception {
+        try {
+            ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(blob));
+            return restore_blob(new StreamEngine.Decryptor(in, new SecretKeySpec(key_b, "AES")));
+        } catch (GeneralSecurityException ex) {
+            Logger.getLogger(EncryptLib.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
+    // write the contents of d to destRoot\pathname unless it is already there
+    static FileMeta restore_blob(BlobReader d) throws IOException, GeneralSecurityException, Exception {
+        String pathname = d.GetPathName();
+        long file_size = d.GetFileSize();
+        long timestamp = d.GetTimeStamp();
+        if ( "".equals(pathname) ) {
+            throw new Exception();  // TODO make more specific
+        }
+
+        String fullRestorePath = cat_path_s(get_destRoot(), pathname);
+        File f = new File(fullRestorePath);
+
+        if (f.lastModified() == timestamp) {
+            Metrics.debug("SKIP - file to restore already exists");
+        } else {
+            Metrics.debug("        outfile: " + fullRestorePath);
+
+            // now read the file contents and write them as they are decrypted
+            try (RandomAccessFile raf = CreateRestoreFile(fullRestorePath, file_size)) {
+                long nWrote;
+                if (d instanceof StreamEngine.Decryptor && AsyncChannels.use_for(file_size)) {
+                    // -async, written behind the decrypt, see AsyncChannels
+                    try (WritableByteChannel out = AsyncChannels.writer_over(Paths.get(fullRestorePath))) {
+                        nWrote = d.copyTo(out);
                     }
-                    nRead = fis.read(block);
-                    text = dCipher.update(block);
+                } else {
+                    nWrote = d.copyTo(raf.getChannel());
+                }
+                if (nWrote != file_size) {
+                    raf.setLength(nWrote);      // short blob, do not leave a tail of zeroes
                 }
             }
-            // done
-            FileMeta filemeta = new FileMeta(pathname, timestamp, file_size);
-            return filemeta;
+        }
+        // done
+        FileMeta filemeta = new FileMeta(pathname, timestamp, file_size);
+        return filemeta;
+    }
 
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException ex) {
-            Logger.getLogger(EncryptLib.class.getName()).log(Level.SEVERE, null, ex);
+    // Read the header and pathname of an encrypted file in either format,
+    // see BlobHeader.  in must be at position 0.
+    public static BlobReader openBlob(FileChannel in, SecretKey aesKey) throws IOException, GeneralSecurityException {
+        BlobHeader header = BlobHeader.read(in);
+        if (header.GetVersion() == BlobHeader.CHUNKED) {
+            return new ChunkedBlob.Reader(in, header, aesKey);
         }
-        finally {
-            if (fos != null) {
-                fos.close();
-            }
+        return new StreamEngine.Decryptor(in, aesKey);
+    }
+
+    // Random access to part of an encrypted file without decrypting it from
+    // the start, see RangeChannel.  The channel reads length bytes of the
+    // original file starting at offset (cut short at the end of the file).
+    public static SeekableByteChannel openRange(String infile, SecretKey aesKey, long offset, long length) throws IOException, GeneralSecurityException {
+        FileChannel in = FileChannel.open(Paths.get(infile), StandardOpenOption.READ);
+        try {
+            return new RangeChannel(in, aesKey, offset, length);
+        } catch (IOException | GeneralSecurityException ex) {
+            in.close();
+            throw ex;
         }
-        return null;
     }
-            
+
+    public static SeekableByteChannel openRange(String infile, byte[] key_b, long offset, long length) throws IOException, GeneralSecurityException {
+        return openRange(infile, new SecretKeySpec(key_b, "AES"), offset, length);
+    }
+
     // pathname is relative name that was read out of the encrypted data
     // concat destRoot with pathname for the fully qualified name
-    public static FileOutputStream CreateRestoreFile(String pathname) throws FileNotFoundException {
+    public static FileOutputStream CreateRestoreFile(String pathname) throws FileNotFoundException, IOException {
 
         String destRoot = PathNameKeeper.get_destRoot();
         String outfile = pathname;
 
-        File f;
-        f = new File(outfile).getParentFile();
-        boolean mkdirs = f.mkdirs();
+        make_parent_dirs(outfile);
         
         FileOutputStream fos = new FileOutputStream(outfile);
         return fos;
     }
 
+    // Same but with the file set to filesize before anything is written, so
+    // the file system can give it one extent up front instead of growing it
+    // a buffer at a time.  Writes go through getChannel().
+    public static RandomAccessFile CreateRestoreFile(String pathname, long filesize) throws IOException {
+        make_parent_dirs(pathname);
+        RandomAccessFile raf = new RandomAccessFile(pathname, "rw");
+        try {
+            raf.setLength(filesize);
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+        return raf;
+    }
+
+    // Folders this run has already made.  A restore of many files into few
+    // folders makes each folder once, not one mkdirs() per file.  The parent
+    // is only added after it exists, so a thread that finds it here can
+    // create files in it.
+    private static final Set<String> s_dirs = ConcurrentHashMap.newKeySet();
+
+    private static void make_parent_dirs(String pathname) throws IOException {
+        File parent = new File(pathname).getParentFile();
+        if (parent == null || s_dirs.contains(parent.getPath())) {
+            return;
+        }
+        Files.createDirectories(parent.toPath());
+        s_dirs.add(parent.getPath());
+    }
+
     // to network byte order
     public static byte[] writeLongToBuffer(long l) {
         byte[] b = new byte[8];
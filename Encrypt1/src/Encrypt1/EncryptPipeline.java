@@ -0,0 +1,125 @@
+//------------------------------------------------------------------------------
+// EncryptPipeline:
+//
+// Multi-core version of the TreeWalker encrypt loop.
+//
+//   walk thread  --> worker pool (hash, new key, wrap key, encrypt)
+//                --> single manifest writer thread
+//
+// Files.walkFileTree() calls submit() for each file.  The work goes to a
+// fixed pool of worker threads and the Future for it is put on a bounded
+// queue in walk order, with the file and attributes for its manifest record.
+// The writer thread takes them off that queue in the same order and appends
+// each name to the manifest, so the manifest comes out in exactly the order a
+// serial run would write it.
+//
+// Backpressure: when the queue is full submit() blocks the walk thread until
+// the writer catches up, so no more than get_queue() files are ever in flight
+// no matter how big the tree is.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class EncryptPipeline {
+
+    private final TreeWalker m_walker;
+    private final ExecutorService m_workers;
+    private final BlockingQueue<Pending> m_pending;
+    private final Thread m_writer;
+
+    // one submitted file, in walk order
+    private static class Pending {
+        final Future<String> m_name;
+        final Path m_file;
+        final BasicFileAttributes m_attrs;
+
+        Pending(Future<String> name, Path file, BasicFileAttributes attrs) {
+            m_name = name;
+            m_file = file;
+            m_attrs = attrs;
+        }
+    }
+
+    // put on the queue by close() to tell the writer there is no more work
+    private static final Pending END = new Pending(CompletableFuture.<String>completedFuture(null), null, null);
+
+    public EncryptPipeline(TreeWalker walker, int nThreads, int nQueue) {
+        m_walker = walker;
+        m_workers = Executors.newFixedThreadPool(nThreads);
+        m_pending = new ArrayBlockingQueue<>(nQueue);
+        m_writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write_loop();
+            }
+        }, "EncryptPipeline-writer");
+        m_writer.start();
+    }
+
+    // called on the walk thread, blocks while the pipeline is full
+    public void submit(final Path file, final BasicFileAttributes attrs) {
+        Future<String> f = m_workers.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return m_walker.encrypt_one(file, attrs);
+            }
+        });
+        put(new Pending(f, file, attrs));
+    }
+
+    // drain everything that was submitted and stop the threads
+    public void close() {
+        put(END);
+        try {
+            m_writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        m_workers.shutdown();
+    }
+
+    private void put(Pending p) {
+        try {
+            m_pending.put(p);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            Logger.getLogger(EncryptPipeline.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private void write_loop() {
+        while (true) {
+            Pending p;
+            try {
+                p = m_pending.take();
+            } catch (InterruptedException ex) {
+                Logger.getLogger(EncryptPipeline.class.getName()).log(Level.SEVERE, null, ex);
+                return;
+            }
+            if (p == END) {
+                return;
+            }
+            try {
+                String final_name = p.m_name.get();
+                if (final_name != null) {
+                    m_walker.write_manifest(final_name, p.m_file, p.m_attrs);
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                Logger.getLogger(EncryptPipeline.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+//------------------------------------------------------------------------------
+// FastCDC:
+//
+// Content defined chunking with a gear rolling hash, the FastCDC way
+// (normalized chunking: a harder mask before the average size, an easier one
+// after it).  Cut points depend only on the bytes around them, so an insert or
+// delete in the middle of a file only changes the chunks next to it and the
+// rest of the file still dedups against what is already in the ChunkStore.
+//
+// NOTE: GEAR and the masks must never change, every chunk already in a DB
+// was cut with them.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.util.Random;
+
+public class FastCDC {
+
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int AVG_SIZE = 64 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+
+    // bit k of the gear hash depends on the last k+1 bytes only, so the masks
+    // use high bits.  18 bits before AVG_SIZE, 14 bits after it.
+    private static final long MASK_S = ((1L << 18) - 1) << 40;
+    private static final long MASK_L = ((1L << 14) - 1) << 44;
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // java.util.Random with a fixed seed is the same sequence on every JVM
+        Random r = new Random(0x4531434443L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = r.nextLong();
+        }
+    }
+
+    // Length of the next chunk starting at buf[off], given len bytes are
+    // available there.  Pass all bytes to EOF or at least MAX_SIZE of them.
+    public static int cut(byte[] buf, int off, int len) {
+        if (len <= MIN_SIZE) {
+            return len;
+        }
+        int n = Math.min(len, MAX_SIZE);
+        int normal = Math.min(n, AVG_SIZE);
+        long fp = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            fp = (fp << 1) + GEAR[buf[off + i] & 0xFF];
+            if ((fp & MASK_S) == 0) {
+                return i;
+            }
+        }
+        for (; i < n; i++) {
+            fp = (fp << 1) + GEAR[buf[off + i] & 0xFF];
+            if ((fp & MASK_L) == 0) {
+                return i;
+            }
+        }
+        return n;
+    }
+}
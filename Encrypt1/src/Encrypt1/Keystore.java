@@ -0,0 +1,503 @@
+//------------------------------------------------------------------------------
+// Keystore:
+//
+// Where file keys are saved and found again.  The original way is one file per
+// key in KEY\, holding the key encrypted with PBEWithMD5AndDES as hex, which
+// costs a file create and (before the Password cipher cache) a 50000 round PBE
+// init for every file.  With -keystore, new keys go in one file instead:
+//
+//  - a master key is derived from the password once per run (PBKDF2, salt
+//    and iteration count in the file header)
+//  - each file key is wrapped with it using AES key wrap (RFC 3394)
+//  - the wrapped keys are appended to dbRoot\keystore.dat BATCH at a time
+//
+// Once a DB has a keystore.dat every later run uses it.  Keys are looked up in
+// the keystore first and in KEY\ after that, so old DBs and DBs that have
+// both still restore.
+//
+// keystore.dat:
+//        8 bytes  : MAGIC "E1KEYST1"
+//        8 bytes  : PBKDF2 iterations
+//        16 bytes : PBKDF2 salt
+//        24 bytes : a random key wrapped with the master key, to check the
+//                   password before anything is wrapped with a wrong one
+//        8 bytes  : sorted count
+//        records, RECSIZE bytes each:
+//            40 bytes : blob name, the two SHA-1s of sha1_sha1extra
+//            24 bytes : the file key wrapped with the master key
+//
+// The first sorted count records are sorted by name and binary searched in
+// place.  The ones after that were appended by later runs and are kept in a
+// hash map.  When those get to be more than 1/8th of the file, close()
+// rewrites it all sorted.
+//
+// A blob must never be skipped because it exists when its key was lost in a
+// crash, so "is this blob stored" checks go through is_stored(), which wants
+// the key as well.  Keys wait in the batch until it is full or sync() is
+// called, so a run calls sync() before it commits anything that names their
+// blobs: the manifest, a snapshot or the -incremental index.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import static Encrypt1.PathNameKeeper.cat_path_s;
+import static Encrypt1.PathNameKeeper.does_file_exist;
+import static Encrypt1.PathNameKeeper.get_dat_folder;
+import static Encrypt1.PathNameKeeper.get_key_folder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+public class Keystore {
+
+    // "E1KEYST1" in ASCII
+    private static final long MAGIC = 0x45314b4559535431L;
+    private static final int ITERATIONS = 100000;
+    private static final int SALTSIZE = 16;
+    private static final int WRAPSIZE = 24;     // AES key wrap of a 16 byte key
+    private static final int HEADERSIZE = 8 + 8 + SALTSIZE + WRAPSIZE + 8;
+    private static final int NAMESIZE = 40;
+    private static final int RECSIZE = NAMESIZE + WRAPSIZE;
+    private static final int BATCH = 512;       // records per append
+
+    private static final SecureRandom s_random = new SecureRandom();
+
+    private static final ThreadLocal<Cipher> s_wrap = new ThreadLocal<>();
+
+    private static Keystore s_store;            // null if this DB has no keystore
+    private static boolean s_opened = false;
+
+    private final String m_filename;
+    private final SecretKey m_master;
+    private final byte[] m_header;
+    private final ByteBuffer m_sorted;          // the whole file as it was opened
+    private final int m_sortedCount;
+    private final Map<String, byte[]> m_tail = new HashMap<>();
+    private final ByteBuffer m_batch = ByteBuffer.allocate(BATCH * RECSIZE);
+    private FileChannel m_out;
+    private long m_end;
+
+    private Keystore(String filename, SecretKey master, byte[] header, ByteBuffer sorted, int sortedCount, long end) {
+        m_filename = filename;
+        m_master = master;
+        m_header = header;
+        m_sorted = sorted;
+        m_sortedCount = sortedCount;
+        m_end = end;
+    }
+
+    //--------------------------------------------------------------------------
+    // The keys of all blobs go through these.
+    //--------------------------------------------------------------------------
+
+    // the keystore of this DB, opened (or with -keystore created) on first use
+    private static synchronized Keystore get_store() throws IOException {
+        if (!s_opened) {
+            s_opened = true;
+            String filename = PathNameKeeper.get_keystore_file();
+            if (OptionKeeper.get_keystore() || does_file_exist(filename)) {
+                s_store = open(filename);
+            }
+        }
+        return s_store;
+    }
+
+    // Save the key of blob name, before the blob itself goes in DAT.  With a
+    // keystore the key is only in the batch until sync().
+    public static void saveKey(String name, SecretKey aesKey) throws IOException {
+        Keystore ks = get_store();
+        if (ks != null) {
+            ks.put(name, aesKey);
+        } else {
+            TreeWalker.saveKeyToFile(TreeWalker.byteToHex(aesKey.getEncoded()), cat_path_s(get_key_folder(), name));
+        }
+    }
+
+    // the key of blob name from the keystore or KEY\, null if there is none
+    public static byte[] loadKey(String name) throws Exception {
+        Keystore ks = get_store();
+        if (ks != null) {
+            byte[] key = ks.get(name);
+            if (key != null) {
+                return key;
+            }
+        }
+        return RestoreTree.readKeyFromFile(cat_path_s(get_key_folder(), name));
+    }
+
+    public static boolean hasKey(String name) throws IOException {
+        Keystore ks = get_store();
+        if (ks != null && ks.contains(name)) {
+            return true;
+        }
+        return does_file_exist(cat_path_s(get_key_folder(), name));
+    }
+
+    // true if DAT\name and its key are both there, so it need not be stored again
+    public static boolean is_stored(String name) throws IOException {
+        return does_file_exist(cat_path_s(get_dat_folder(), name)) && hasKey(name);
+    }
+
+    // Write out the keys saved so far and force them to disk
+    public static synchronized void sync() throws IOException {
+        if (s_store != null) {
+            s_store.force();
+        }
+    }
+
+    // GC: rewrite the keystore without the keys of blobs that are not in
+    // live, returns how many were dropped
+    public static synchronized long gc(BlobIdSet live) throws IOException {
+        Keystore ks = get_store();
+        if (ks == null) {
+            return 0;
+        }
+        long dropped;
+        synchronized (ks.m_tail) {
+            ks.force();
+            if (ks.m_out != null) {
+                ks.m_out.close();
+                ks.m_out = null;
+            }
+            dropped = ks.compact(live);
+        }
+        // the file changed under this object, the next use opens it again
+        s_store = null;
+        s_opened = false;
+        return dropped;
+    }
+
+    // write out the last batch, call once at the end of the run
+    public static synchronized void close_session() {
+        if (s_store != null) {
+            try {
+                s_store.close();
+            } catch (IOException ex) {
+                Logger.getLogger(Keystore.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            s_store = null;
+        }
+        s_opened = false;
+    }
+
+    //--------------------------------------------------------------------------
+    // The keystore file.
+    //--------------------------------------------------------------------------
+
+    private static Cipher get_cipher(int mode, Key key) throws GeneralSecurityException {
+        Cipher c = s_wrap.get();
+        if (c == null) {
+            c = Cipher.getInstance("AESWrap");
+            s_wrap.set(c);
+        }
+        c.init(mode, key);
+        return c;
+    }
+
+    private byte[] wrap(SecretKey aesKey) throws GeneralSecurityException {
+        return get_cipher(Cipher.WRAP_MODE, m_master).wrap(aesKey);
+    }
+
+    private byte[] unwrap(byte[] wrapped) throws GeneralSecurityException {
+        return get_cipher(Cipher.UNWRAP_MODE, m_master).unwrap(wrapped, "AES", Cipher.SECRET_KEY).getEncoded();
+    }
+
+    private static byte[] name_b(String name) {
+        int idx = name.indexOf('_');
+        ByteBuffer b = ByteBuffer.allocate(NAMESIZE);
+        b.put(TreeWalker.hexStringToByteArray(name.substring(0, idx)));
+        b.put(TreeWalker.hexStringToByteArray(name.substring(idx + 1)));
+        return b.array();
+    }
+
+    private static String name_s(byte[] b, int off) {
+        String s = TreeWalker.byteToHex(Arrays.copyOfRange(b, off, off + NAMESIZE));
+        return s.substring(0, NAMESIZE) + "_" + s.substring(NAMESIZE);
+    }
+
+    private static Keystore open(String filename) throws IOException {
+        Path p = Paths.get(filename);
+        try {
+            if (!Files.exists(p)) {
+                return create(filename);
+            }
+            ByteBuffer b;
+            try (FileChannel in = FileChannel.open(p, StandardOpenOption.READ)) {
+                long size = in.size();
+                if (size < HEADERSIZE || size > Integer.MAX_VALUE) {
+                    throw new IOException("keystore is not valid " + filename);
+                }
+                b = ByteBuffer.allocate((int) size);
+                StreamEngine.read_fully(in, b);
+            }
+            byte[] header = new byte[HEADERSIZE];
+            b.position(0);
+            b.get(header);
+            ByteBuffer h = ByteBuffer.wrap(header);
+            byte[] salt = new byte[SALTSIZE];
+            byte[] check = new byte[WRAPSIZE];
+            long magic = h.getLong();
+            int iterations = (int) h.getLong();
+            h.get(salt);
+            h.get(check);
+            long sortedCount = h.getLong();
+            long records = (b.capacity() - HEADERSIZE) / RECSIZE;
+            if (magic != MAGIC || iterations <= 0 || sortedCount < 0 || sortedCount > records) {
+                throw new IOException("keystore is not valid " + filename);
+            }
+
+            SecretKey master = Encrypt1.GetMasterPw().deriveKey(salt, iterations);
+            Keystore ks = new Keystore(filename, master, header, b, (int) sortedCount, HEADERSIZE + records * RECSIZE);
+            try {
+                ks.unwrap(check);
+            } catch (GeneralSecurityException ex) {
+                throw new IOException("keystore does not open with this password " + filename, ex);
+            }
+
+            // records appended after the last sort, a partial record at the
+            // end from a crash is dropped
+            for (long i = sortedCount; i < records; i++) {
+                int base = (int) (HEADERSIZE + i * RECSIZE);
+                byte[] wrapped = new byte[WRAPSIZE];
+                b.position(base + NAMESIZE);
+                b.get(wrapped);
+                ks.m_tail.put(name_s(b.array(), base), wrapped);
+            }
+            return ks;
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static Keystore create(String filename) throws IOException, GeneralSecurityException {
+        byte[] salt = new byte[SALTSIZE];
+        s_random.nextBytes(salt);
+        SecretKey master = Encrypt1.GetMasterPw().deriveKey(salt, ITERATIONS);
+
+        ByteBuffer h = ByteBuffer.allocate(HEADERSIZE);
+        h.putLong(MAGIC);
+        h.putLong(ITERATIONS);
+        h.put(salt);
+        h.put(get_cipher(Cipher.WRAP_MODE, master).wrap(EncryptLib.getKey()));
+        h.putLong(0);
+        byte[] header = h.array();
+
+        String tmpfile = filename + ".tmp";
+        try (FileChannel out = FileChannel.open(Paths.get(tmpfile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ChunkedBlob.write_at(out, 0, header);
+            out.force(true);
+        }
+        Files.move(Paths.get(tmpfile), Paths.get(filename), StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Keystore: created " + filename);
+        return new Keystore(filename, master, header, ByteBuffer.wrap(header), 0, HEADERSIZE);
+    }
+
+    // compare the name of sorted record i with name
+    private int compare_name(int i, byte[] name) {
+        int base = HEADERSIZE + i * RECSIZE;
+        for (int k = 0; k < NAMESIZE; k++) {
+            int a = m_sorted.get(base + k) & 0xFF;
+            int b = name[k] & 0xFF;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+
+    // the wrapped key of name, null if it is not here
+    private byte[] find(String name) {
+        synchronized (m_tail) {
+            byte[] w = m_tail.get(name);
+            if (w != null) {
+                return w;
+            }
+        }
+        byte[] key = name_b(name);
+        int lo = 0;
+        int hi = m_sortedCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare_name(mid, key);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                byte[] w = new byte[WRAPSIZE];
+                int base = HEADERSIZE + mid * RECSIZE + NAMESIZE;
+                for (int k = 0; k < WRAPSIZE; k++) {
+                    w[k] = m_sorted.get(base + k);
+                }
+                return w;
+            }
+        }
+        return null;
+    }
+
+    public boolean contains(String name) {
+        return find(name) != null;
+    }
+
+    public byte[] get(String name) throws IOException {
+        byte[] w = find(name);
+        if (w == null) {
+            return null;
+        }
+        try {
+            return unwrap(w);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("key of " + name + " does not unwrap", ex);
+        }
+    }
+
+    public void put(String name, SecretKey aesKey) throws IOException {
+        byte[] wrapped;
+        try {
+            wrapped = wrap(aesKey);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+        synchronized (m_tail) {
+            m_tail.put(name, wrapped);
+            m_batch.put(name_b(name));
+            m_batch.put(wrapped);
+            if (!m_batch.hasRemaining()) {
+                flush();
+            }
+        }
+    }
+
+    // append the batch to the file, caller holds m_tail
+    private void flush() throws IOException {
+        if (m_batch.position() == 0) {
+            return;
+        }
+        if (m_out == null) {
+            m_out = FileChannel.open(Paths.get(m_filename), StandardOpenOption.WRITE);
+        }
+        m_batch.flip();
+        while (m_batch.hasRemaining()) {
+            m_end += m_out.write(m_batch, m_end);
+        }
+        m_batch.clear();
+    }
+
+    private void force() throws IOException {
+        synchronized (m_tail) {
+            flush();
+            if (m_out != null) {
+                m_out.force(true);
+            }
+        }
+    }
+
+    private void close() throws IOException {
+        synchronized (m_tail) {
+            force();
+            if (m_out != null) {
+                m_out.close();
+                m_out = null;
+            }
+            if (m_tail.size() > m_sortedCount / 8) {
+                compact(null);
+            }
+        }
+    }
+
+    // Rewrite the file with every record sorted by name, caller holds m_tail.
+    // With keep, records for names not in it are left out.  Returns how many
+    // records were left out.
+    private long compact(BlobIdSet keep) throws IOException {
+        List<byte[]> added = new ArrayList<>(m_tail.size());
+        for (Map.Entry<String, byte[]> e : m_tail.entrySet()) {
+            ByteBuffer r = ByteBuffer.allocate(RECSIZE);
+            r.put(name_b(e.getKey()));
+            r.put(e.getValue());
+            added.add(r.array());
+        }
+        Collections.sort(added, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                for (int k = 0; k < NAMESIZE; k++) {
+                    int c = (a[k] & 0xFF) - (b[k] & 0xFF);
+                    if (c != 0) {
+                        return c;
+                    }
+                }
+                return 0;
+            }
+        });
+
+        String tmpfile = m_filename + ".tmp";
+        long dropped = 0;
+        try (FileChannel out = FileChannel.open(Paths.get(tmpfile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer b = ByteBuffer.allocate(64 * 1024);
+            b.put(m_header);
+
+            // merge, if a name is in both the newer key in added wins
+            long count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < m_sortedCount || j < added.size()) {
+                if (b.remaining() < RECSIZE) {
+                    b.flip();
+                    StreamEngine.write_fully(out, b);
+                    b.clear();
+                }
+                int c = (j == added.size()) ? -1 : (i == m_sortedCount) ? 1 : compare_name(i, added.get(j));
+                if (c < 0) {
+                    int base = HEADERSIZE + i * RECSIZE;
+                    if (keep == null || keep.contains(BlobIdSet.fingerprint(m_sorted, base))) {
+                        for (int k = 0; k < RECSIZE; k++) {
+                            b.put(m_sorted.get(base + k));
+                        }
+                        count++;
+                    } else {
+                        dropped++;
+                    }
+                    i++;
+                } else {
+                    if (keep == null || keep.contains(BlobIdSet.fingerprint(ByteBuffer.wrap(added.get(j)), 0))) {
+                        b.put(added.get(j));
+                        count++;
+                    } else {
+                        dropped++;
+                    }
+                    j++;
+                    if (c == 0) {
+                        i++;
+                    }
+                }
+            }
+            b.flip();
+            StreamEngine.write_fully(out, b);
+
+            ByteBuffer h = ByteBuffer.allocate(8);
+            h.putLong(count);
+            ChunkedBlob.write_at(out, HEADERSIZE - 8, h.array());
+            out.force(true);
+        }
+        Files.move(Paths.get(tmpfile), Paths.get(m_filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return dropped;
+    }
+}
@@ -0,0 +1,778 @@
+//------------------------------------------------------------------------------
+// Manifest:
+//
+// The binary manifest, META\TreeWalker.man, that encrypt writes in place of
+// the old newline list of names in TreeWalker.out.  One fixed size record per
+// file in the order the walk found them, so the whole file can be memory
+// mapped and walked by index with nothing to parse.  Two tables list the
+// records again, in blob name order and in path order, so a name is found by
+// binary search, and so are the files under a path, see PathFilter.
+//
+//   HEADERSIZE bytes header:
+//        0  8 bytes  : MAGIC "E1MANIF1"
+//        8  4 bytes  : header size
+//       12  4 bytes  : record size
+//       16  8 bytes  : record count
+//       24  8 bytes  : string table offset
+//       32  8 bytes  : string table length
+//       40  8 bytes  : time written, millis
+//       48  4 bytes  : wrapped key length
+//       52 32 bytes  : string table key, wrapped with the master_pw
+//       84 16 bytes  : string table IV
+//      100  8 bytes  : id order offset
+//      108  8 bytes  : path order offset
+//   count records, RECSIZE bytes each, in walk order:
+//        0 40 bytes  : blob name as raw bytes, sha1 of contents + sha1_extra
+//       40  4 bytes  : flags, FLAG_CDC for a ChunkStore recipe, FLAG_DELTA
+//                      for a DeltaStore delta, FLAG_MERKLE for a blob named
+//                      by its MerkleHash root
+//       44  4 bytes  : path length in the string table
+//       48  8 bytes  : path offset in the string table
+//       56  8 bytes  : file size
+//       64  8 bytes  : file mtime, millis
+//   id order: count ints, the record indexes sorted by the 40 byte id
+//   path order: count ints, the record indexes sorted by path_key(path)
+//   string table: the relative paths, UTF-8, AES/CTR so any one path can be
+//   decrypted on its own.  No path is ever in the file in plaintext.
+//
+// A manifest is mapped SEGMENT bytes at a time, so it can be larger than
+// one ByteBuffer can hold.  Each segment maps RECSIZE bytes past its end as
+// well, so any record, and any int or long, can be read from one segment.
+//
+// Readers should not keep a DB's own manifest mapped while encrypt runs,
+// Windows will not let the new one be renamed over a mapped file.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class Manifest {
+
+    // "E1MANIF1" in ASCII, the last byte is the version
+    private static final long MAGIC = 0x45314d414e494631L;
+    public static final int HEADERSIZE = 128;
+    public static final int IDSIZE = 40;
+    public static final int RECSIZE = 72;
+    static final long SEGMENT = 1L << 30;
+
+    public static final int FLAG_CDC = 1;
+    public static final int FLAG_DELTA = 2;
+    public static final int FLAG_MERKLE = 4;
+
+    private static final int H_HEADERSIZE = 8;
+    private static final int H_RECSIZE = 12;
+    private static final int H_COUNT = 16;
+    private static final int H_STROFF = 24;
+    private static final int H_STRLEN = 32;
+    private static final int H_CREATED = 40;
+    private static final int H_KEYLEN = 48;
+    private static final int H_KEY = 52;
+    private static final int KEYMAX = 32;
+    private static final int H_IV = 84;
+    private static final int IVSIZE = 16;
+    private static final int H_IDIDX = 100;
+    private static final int H_PATHIDX = 108;
+
+    private static final int R_FLAGS = 40;
+    private static final int R_PATHLEN = 44;
+    private static final int R_PATHOFF = 48;
+    private static final int R_SIZE = 56;
+    private static final int R_MTIME = 64;
+
+    private final String m_filename;
+    private final ByteBuffer[] m_maps;
+    private final long m_segment;
+    private final int m_count;
+    private final long m_strOff;
+    private final long m_idIdx;
+    private final long m_pathIdx;
+    private final long m_created;
+    private final byte[] m_key;
+    private final byte[] m_iv;
+    private Cipher m_cipher;
+
+    private Manifest(String filename, ByteBuffer[] maps, long segment, byte[] key) {
+        ByteBuffer map = maps[0];
+        m_filename = filename;
+        m_maps = maps;
+        m_segment = segment;
+        m_count = (int) map.getLong(H_COUNT);
+        m_strOff = map.getLong(H_STROFF);
+        m_idIdx = map.getLong(H_IDIDX);
+        m_pathIdx = map.getLong(H_PATHIDX);
+        m_created = map.getLong(H_CREATED);
+        m_key = key;
+        m_iv = new byte[IVSIZE];
+        for (int k = 0; k < IVSIZE; k++) {
+            m_iv[k] = map.get(H_IV + k);
+        }
+    }
+
+    // true if filename starts with MAGIC, any version, false for a text
+    // manifest.  open() says if the version is not this one.
+    public static boolean is_manifest(String filename) {
+        try (FileChannel in = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer b = ByteBuffer.allocate(8);
+            return StreamEngine.read_fully(in, b) && !b.hasRemaining() && (b.getLong(0) >>> 8) == (MAGIC >>> 8);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Map a manifest read only.  The string table key is unwrapped here, so
+    // this needs the master_pw like a restore does.
+    //--------------------------------------------------------------------------
+    public static Manifest open(String filename) throws IOException {
+        return open(filename, true, SEGMENT);
+    }
+
+    // open() with smaller segments, so the tests cross segment ends
+    static Manifest open(String filename, long segment) throws IOException {
+        return open(filename, true, segment);
+    }
+
+    // Read a small manifest onto the heap instead, the file is not held open
+    // or mapped after this and can be replaced or deleted, see WatchDaemon
+    public static Manifest load(String filename) throws IOException {
+        return open(filename, false, SEGMENT);
+    }
+
+    private static Manifest open(String filename, boolean mapped, long segment) throws IOException {
+        try (FileChannel in = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size < HEADERSIZE) {
+                throw new IOException("manifest is not valid " + filename);
+            }
+            ByteBuffer[] maps = new ByteBuffer[(int) ((size - 1) / segment + 1)];
+            for (int k = 0; k < maps.length; k++) {
+                long start = k * segment;
+                long len = Math.min(size - start, segment + RECSIZE);
+                if (mapped) {
+                    maps[k] = in.map(FileChannel.MapMode.READ_ONLY, start, len);
+                } else {
+                    maps[k] = ByteBuffer.allocate((int) len);
+                    in.position(start);
+                    if (!StreamEngine.read_fully(in, maps[k]) || maps[k].hasRemaining()) {
+                        throw new IOException("manifest is short " + filename);
+                    }
+                }
+            }
+            ByteBuffer map = maps[0];
+            long count = map.getLong(H_COUNT);
+            long strOff = map.getLong(H_STROFF);
+            int keyLen = map.getInt(H_KEYLEN);
+            if ((map.getLong(0) >>> 8) == (MAGIC >>> 8) && map.getLong(0) != MAGIC) {
+                throw new IOException("manifest version " + (char) map.get(7) + " is not supported " + filename);
+            }
+            if (map.getLong(0) != MAGIC || map.getInt(H_HEADERSIZE) != HEADERSIZE || map.getInt(H_RECSIZE) != RECSIZE
+                    || count < 0 || count > Integer.MAX_VALUE || map.getLong(H_IDIDX) != HEADERSIZE + count * RECSIZE
+                    || map.getLong(H_PATHIDX) != HEADERSIZE + count * (RECSIZE + 4)
+                    || strOff != HEADERSIZE + count * (RECSIZE + 8) || strOff + map.getLong(H_STRLEN) != size
+                    || keyLen <= 0 || keyLen > KEYMAX) {
+                throw new IOException("manifest is not valid " + filename);
+            }
+            byte[] wrapped = new byte[keyLen];
+            for (int k = 0; k < keyLen; k++) {
+                wrapped[k] = map.get(H_KEY + k);
+            }
+            try {
+                return new Manifest(filename, maps, segment, RestoreTree.unwrapKey(wrapped));
+            } catch (GeneralSecurityException ex) {
+                throw new IOException(ex);
+            }
+        }
+    }
+
+    public String GetFileName() {
+        return m_filename;
+    }
+
+    public int GetCount() {
+        return m_count;
+    }
+
+    // when encrypt wrote this manifest
+    public long GetCreated() {
+        return m_created;
+    }
+
+    private static long rec(int i) {
+        return HEADERSIZE + (long) i * RECSIZE;
+    }
+
+    // the segment that pos is in, and pos in it
+    private ByteBuffer seg(long pos) {
+        return m_maps[(int) (pos / m_segment)];
+    }
+
+    private int off(long pos) {
+        return (int) (pos % m_segment);
+    }
+
+    private byte get(long pos) {
+        return seg(pos).get(off(pos));
+    }
+
+    private int getInt(long pos) {
+        return seg(pos).getInt(off(pos));
+    }
+
+    private long getLong(long pos) {
+        return seg(pos).getLong(off(pos));
+    }
+
+    public int GetFlags(int i) {
+        return getInt(rec(i) + R_FLAGS);
+    }
+
+    public long GetFileSize(int i) {
+        return getLong(rec(i) + R_SIZE);
+    }
+
+    public long GetTimeStamp(int i) {
+        return getLong(rec(i) + R_MTIME);
+    }
+
+    // blob name of record i, sha1_sha1extra
+    public String GetName(int i) {
+        byte[] id = new byte[IDSIZE];
+        for (int k = 0; k < IDSIZE; k++) {
+            id[k] = get(rec(i) + k);
+        }
+        String hex = TreeWalker.byteToHex(id);
+        return hex.substring(0, IDSIZE) + "_" + hex.substring(IDSIZE);
+    }
+
+    // the BlobIdSet fingerprint of record i's name, without making the string
+    public long GetFingerprint(int i) {
+        return BlobIdSet.fingerprint(seg(rec(i)), off(rec(i)));
+    }
+
+    // record i as the text manifest had it, what RestoreTree takes
+    public String GetLine(int i) {
+        String name = GetName(i);
+        if ((GetFlags(i) & FLAG_CDC) != 0) {
+            return ChunkStore.MANIFEST_PREFIX + name;
+        }
+        if ((GetFlags(i) & FLAG_DELTA) != 0) {
+            return DeltaStore.MANIFEST_PREFIX + name;
+        }
+        return (GetFlags(i) & FLAG_MERKLE) != 0 ? MerkleHash.MANIFEST_PREFIX + name : name;
+    }
+
+    // decrypt the relative path of record i out of the string table
+    public synchronized String GetPath(int i) throws IOException {
+        int len = getInt(rec(i) + R_PATHLEN);
+        long off = getLong(rec(i) + R_PATHOFF);
+        byte[] path = new byte[len];
+        for (int k = 0; k < len; k++) {
+            path[k] = get(m_strOff + off + k);
+        }
+        try {
+            if (m_cipher == null) {
+                m_cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            }
+            // CTR: start at the block holding off, drop the bytes before it
+            int skip = (int) (off % IVSIZE);
+            m_cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(m_key, "AES"), new IvParameterSpec(counter(m_iv, off / IVSIZE)));
+            m_cipher.update(new byte[skip]);
+            return new String(m_cipher.doFinal(path), StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    // index of the record with the k-th blob name in id order
+    public int GetIdOrder(int k) {
+        return getInt(m_idIdx + k * 4L);
+    }
+
+    // index of the record with the k-th path in path order
+    public int GetPathOrder(int k) {
+        return getInt(m_pathIdx + k * 4L);
+    }
+
+    // Paths are sorted and searched with / for \ and in lower case, so a
+    // pattern matches whichever separator the tree was encrypted with, and
+    // any case, as Windows would.
+    public static String path_key(String path) {
+        return path.replace('\\', '/').toLowerCase(Locale.ROOT);
+    }
+
+    // The first k in path order whose path_key() is >= key, GetCount() if
+    // there is none.  Decrypts one path per step, log2(count) in all.
+    public int lower_bound(String key) throws IOException {
+        int lo = 0;
+        int hi = m_count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (path_key(GetPath(GetPathOrder(mid))).compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // the record whose path is path, -1 if there is none
+    public int find_path(String path) throws IOException {
+        String key = path_key(path);
+        int k = lower_bound(key);
+        if (k < m_count) {
+            int i = GetPathOrder(k);
+            if (path_key(GetPath(i)).equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public FileMeta GetMeta(int i) throws IOException {
+        return new FileMeta(GetPath(i), GetTimeStamp(i), GetFileSize(i));
+    }
+
+    // compare the id of record i with a 40 byte id
+    private int compare_id(int i, byte[] id) {
+        ByteBuffer map = seg(rec(i));
+        int base = off(rec(i));
+        for (int k = 0; k < IDSIZE; k++) {
+            int c = (map.get(base + k) & 0xFF) - (id[k] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    // True if record i here and record j in other are the same contents,
+    // size and mtime.  Only the content half of the id is compared, so the
+    // same file stored another way (-cdc or not) is still the same.
+    public boolean same_file(int i, Manifest other, int j) {
+        ByteBuffer ma = seg(rec(i));
+        ByteBuffer mb = other.seg(rec(j));
+        int a = off(rec(i));
+        int b = other.off(rec(j));
+        for (int k = 0; k < IDSIZE / 2; k++) {
+            if (ma.get(a + k) != mb.get(b + k)) {
+                return false;
+            }
+        }
+        return GetFileSize(i) == other.GetFileSize(j) && GetTimeStamp(i) == other.GetTimeStamp(j);
+    }
+
+    // index of the record for blob name sha1_sha1extra, -1 if it is not here
+    public int find(String name) {
+        byte[] id = name_to_id(name);
+        int lo = 0;
+        int hi = m_count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int i = GetIdOrder(mid);
+            int c = compare_id(i, id);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] name_to_id(String name) {
+        int idx = name.indexOf('_');
+        return TreeWalker.hexStringToByteArray(name.substring(0, idx) + name.substring(idx + 1));
+    }
+
+    // the CTR counter block for block number n of the string table
+    private static byte[] counter(byte[] iv, long n) {
+        byte[] c = iv.clone();
+        long carry = n;
+        for (int k = IVSIZE - 1; k >= 0 && carry != 0; k--) {
+            long sum = (c[k] & 0xFF) + (carry & 0xFF);
+            c[k] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
+        return c;
+    }
+
+    //--------------------------------------------------------------------------
+    // Writer, used by TreeWalker from one thread at a time.  Records go to a
+    // temp file and paths, encrypted, to a temp string table as they come.
+    // Each record's id and path_key are also kept for the two order tables,
+    // RUNSIZE at a time: a run is sorted and spilled to a run file, the path
+    // runs encrypted like the string table, and close() merges the runs into
+    // the tables.  So memory stays the same however many files there are.
+    // close() puts the manifest together in the temp file and renames it
+    // into place.
+    //--------------------------------------------------------------------------
+    public static class Writer {
+
+        // records sorted in memory at most, and path_key chars, per run
+        private static final int RUNSIZE = 128 * 1024;
+        private static final long RUNCHARS = 8L * 1024 * 1024;
+
+        private final String m_filename;
+        private final String m_tmpfile;
+        private final String m_strfile;
+        private final FileChannel m_out;
+        private final ByteBuffer m_recs = ByteBuffer.allocate(64 * 1024);
+        private final OutputStream m_strings;
+        private final SecretKey m_key;
+        private final byte[] m_wrapped;
+        private final byte[] m_iv = new byte[IVSIZE];
+        private final SecureRandom m_random = new SecureRandom();
+        private int m_count = 0;
+        private long m_strLen = 0;
+
+        // the run being filled
+        private final IdRec[] m_ids = new IdRec[RUNSIZE];
+        private final PathRec[] m_paths = new PathRec[RUNSIZE];
+        private int m_run = 0;
+        private long m_runChars = 0;
+
+        // runs spilled so far, and the CTR IV of each path run
+        private final List<String> m_runfiles = new ArrayList<>();
+        private final List<Integer> m_runsizes = new ArrayList<>();
+        private final List<byte[]> m_runivs = new ArrayList<>();
+
+        public Writer(String filename) throws IOException {
+            m_filename = filename;
+            m_tmpfile = filename + ".tmp";
+            m_strfile = filename + ".str";
+            try {
+                m_key = EncryptLib.getKey();
+                m_wrapped = TreeWalker.wrapKey(m_key);
+                m_random.nextBytes(m_iv);
+            } catch (GeneralSecurityException ex) {
+                throw new IOException(ex);
+            }
+            if (m_wrapped.length > KEYMAX) {
+                throw new IOException("wrapped key too long " + m_wrapped.length);
+            }
+            m_strings = new BufferedOutputStream(encrypt_to(m_strfile, m_iv));
+            m_out = FileChannel.open(Paths.get(m_tmpfile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            m_out.position(HEADERSIZE);
+        }
+
+        // a temp file that everything written to is AES/CTR encrypted on the way
+        private OutputStream encrypt_to(String filename, byte[] iv) throws IOException {
+            try {
+                Cipher c = Cipher.getInstance("AES/CTR/NoPadding");
+                c.init(Cipher.ENCRYPT_MODE, m_key, new IvParameterSpec(iv));
+                return new CipherOutputStream(new FileOutputStream(filename), c);
+            } catch (GeneralSecurityException ex) {
+                throw new IOException(ex);
+            }
+        }
+
+        // line is the manifest name, with ChunkStore.MANIFEST_PREFIX for -cdc
+        // or DeltaStore.MANIFEST_PREFIX for -delta, MerkleHash.MANIFEST_PREFIX
+        // for -merkle
+        public void add(String line, FileMeta filemeta) throws IOException {
+            int flags = 0;
+            String name = line;
+            if (ChunkStore.is_chunked(line)) {
+                flags |= FLAG_CDC;
+                name = line.substring(ChunkStore.MANIFEST_PREFIX.length());
+            } else if (DeltaStore.is_delta(line)) {
+                flags |= FLAG_DELTA;
+                name = line.substring(DeltaStore.MANIFEST_PREFIX.length());
+            } else if (MerkleHash.is_merkle(line)) {
+                flags |= FLAG_MERKLE;
+                name = line.substring(MerkleHash.MANIFEST_PREFIX.length());
+            }
+            if (m_count == Integer.MAX_VALUE) {
+                throw new IOException("manifest is full " + m_filename);
+            }
+            byte[] id = name_to_id(name);
+            byte[] path = filemeta.GetPathName().getBytes(StandardCharsets.UTF_8);
+            m_strings.write(path);
+
+            if (m_recs.remaining() < RECSIZE) {
+                m_recs.flip();
+                StreamEngine.write_fully(m_out, m_recs);
+                m_recs.clear();
+            }
+            m_recs.put(id);
+            m_recs.putInt(flags);
+            m_recs.putInt(path.length);
+            m_recs.putLong(m_strLen);
+            m_recs.putLong(filemeta.GetFileSize());
+            m_recs.putLong(filemeta.GetTimeStamp());
+            m_strLen += path.length;
+
+            String key = path_key(filemeta.GetPathName());
+            m_ids[m_run] = new IdRec(id, m_count);
+            m_paths[m_run] = new PathRec(key, m_count);
+            m_run++;
+            m_runChars += key.length();
+            m_count++;
+            if (m_run == RUNSIZE || m_runChars >= RUNCHARS) {
+                spill();
+            }
+        }
+
+        // sort the run and write it out, ids as they are, then the paths
+        // encrypted, each followed by its record index
+        private void spill() throws IOException {
+            IdRec[] ids = Arrays.copyOf(m_ids, m_run);
+            PathRec[] paths = Arrays.copyOf(m_paths, m_run);
+            Arrays.sort(ids, ID_ORDER);
+            Arrays.sort(paths, PATH_ORDER);
+
+            String runfile = m_filename + ".run" + m_runfiles.size();
+            byte[] iv = new byte[IVSIZE];
+            m_random.nextBytes(iv);
+            m_runfiles.add(runfile);
+            m_runsizes.add(m_run);
+            m_runivs.add(iv);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runfile + ".id")))) {
+                for (IdRec r : ids) {
+                    out.write(r.m_id);
+                    out.writeInt(r.m_index);
+                }
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(encrypt_to(runfile + ".path", iv)))) {
+                for (PathRec r : paths) {
+                    byte[] b = r.m_key.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(b.length);
+                    out.write(b);
+                    out.writeInt(r.m_index);
+                }
+            }
+            Arrays.fill(m_ids, 0, m_run, null);
+            Arrays.fill(m_paths, 0, m_run, null);
+            m_run = 0;
+            m_runChars = 0;
+        }
+
+        // records added so far
+        public int GetCount() {
+            return m_count;
+        }
+
+        public void close() throws IOException {
+            try {
+                m_strings.close();
+                m_recs.flip();
+                StreamEngine.write_fully(m_out, m_recs);
+                if (m_run > 0) {
+                    spill();
+                }
+
+                long idIdx = HEADERSIZE + (long) m_count * RECSIZE;
+                long pathIdx = idIdx + (long) m_count * 4;
+                long strOff = pathIdx + (long) m_count * 4;
+                merge(false);
+                merge(true);
+
+                try (FileChannel strings = FileChannel.open(Paths.get(m_strfile), StandardOpenOption.READ)) {
+                    long pos = 0;
+                    while (pos < m_strLen) {
+                        long n = strings.transferTo(pos, m_strLen - pos, m_out);
+                        if (n <= 0) {
+                            throw new IOException("string table is short " + m_strfile);
+                        }
+                        pos += n;
+                    }
+                }
+                if (m_out.position() != strOff + m_strLen) {
+                    throw new IOException("manifest is short " + m_tmpfile);
+                }
+
+                ByteBuffer b = ByteBuffer.allocate(HEADERSIZE);
+                b.putLong(MAGIC);
+                b.putInt(HEADERSIZE);
+                b.putInt(RECSIZE);
+                b.putLong(m_count);
+                b.putLong(strOff);
+                b.putLong(m_strLen);
+                b.putLong(System.currentTimeMillis());
+                b.putInt(m_wrapped.length);
+                b.put(m_wrapped);
+                b.position(H_IV);
+                b.put(m_iv);
+                b.putLong(idIdx);
+                b.putLong(pathIdx);
+                b.clear();
+                ChunkedBlob.write_at(m_out, 0, b.array());
+                m_out.close();
+                Files.move(Paths.get(m_tmpfile), Paths.get(m_filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                abort();
+            }
+        }
+
+        // throw away what was written, the manifest at filename stays as it was
+        public void abort() throws IOException {
+            m_strings.close();
+            m_out.close();
+            Files.deleteIfExists(Paths.get(m_strfile));
+            Files.deleteIfExists(Paths.get(m_tmpfile));
+            for (String runfile : m_runfiles) {
+                Files.deleteIfExists(Paths.get(runfile + ".id"));
+                Files.deleteIfExists(Paths.get(runfile + ".path"));
+            }
+        }
+
+        // merge the id runs, or the path runs, and append the record indexes
+        // in that order to the manifest, one table
+        private void merge(final boolean byPath) throws IOException {
+            PriorityQueue<Run> queue = new PriorityQueue<>(Math.max(1, m_runfiles.size()), new Comparator<Run>() {
+                @Override
+                public int compare(Run x, Run y) {
+                    return byPath ? PATH_ORDER.compare(x.m_path, y.m_path) : ID_ORDER.compare(x.m_id, y.m_id);
+                }
+            });
+            List<Run> runs = new ArrayList<>();
+            try {
+                for (int k = 0; k < m_runfiles.size(); k++) {
+                    String runfile = m_runfiles.get(k);
+                    InputStream in = byPath ? decrypt_from(runfile + ".path", m_runivs.get(k)) : new FileInputStream(runfile + ".id");
+                    Run r = new Run(new DataInputStream(new BufferedInputStream(in)), m_runsizes.get(k), byPath);
+                    runs.add(r);
+                    if (r.next()) {
+                        queue.add(r);
+                    }
+                }
+                ByteBuffer b = ByteBuffer.allocate(64 * 1024);
+                while (!queue.isEmpty()) {
+                    Run r = queue.poll();
+                    if (b.remaining() < 4) {
+                        b.flip();
+                        StreamEngine.write_fully(m_out, b);
+                        b.clear();
+                    }
+                    b.putInt(byPath ? r.m_path.m_index : r.m_id.m_index);
+                    if (r.next()) {
+                        queue.add(r);
+                    }
+                }
+                b.flip();
+                StreamEngine.write_fully(m_out, b);
+            } finally {
+                for (Run r : runs) {
+                    r.m_in.close();
+                }
+            }
+        }
+
+        private InputStream decrypt_from(String filename, byte[] iv) throws IOException {
+            try {
+                Cipher c = Cipher.getInstance("AES/CTR/NoPadding");
+                c.init(Cipher.DECRYPT_MODE, m_key, new IvParameterSpec(iv));
+                return new CipherInputStream(new FileInputStream(filename), c);
+            } catch (GeneralSecurityException ex) {
+                throw new IOException(ex);
+            }
+        }
+    }
+
+    // a record's id or path_key, and its index, while the writer sorts them
+    private static final class IdRec {
+        final byte[] m_id;
+        final int m_index;
+
+        IdRec(byte[] id, int index) {
+            m_id = id;
+            m_index = index;
+        }
+    }
+
+    private static final class PathRec {
+        final String m_key;
+        final int m_index;
+
+        PathRec(String key, int index) {
+            m_key = key;
+            m_index = index;
+        }
+    }
+
+    private static final Comparator<IdRec> ID_ORDER = new Comparator<IdRec>() {
+        @Override
+        public int compare(IdRec x, IdRec y) {
+            for (int k = 0; k < IDSIZE; k++) {
+                int c = (x.m_id[k] & 0xFF) - (y.m_id[k] & 0xFF);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        }
+    };
+
+    private static final Comparator<PathRec> PATH_ORDER = new Comparator<PathRec>() {
+        @Override
+        public int compare(PathRec x, PathRec y) {
+            return x.m_key.compareTo(y.m_key);
+        }
+    };
+
+    // one spilled run read back a record at a time by Writer.merge()
+    private static final class Run {
+        final DataInputStream m_in;
+        private int m_left;
+        private final boolean m_byPath;
+        IdRec m_id;
+        PathRec m_path;
+
+        Run(DataInputStream in, int count, boolean byPath) {
+            m_in = in;
+            m_left = count;
+            m_byPath = byPath;
+        }
+
+        // the next record, false at the end of the run
+        boolean next() throws IOException {
+            if (m_left == 0) {
+                return false;
+            }
+            m_left--;
+            if (m_byPath) {
+                byte[] b = new byte[m_in.readInt()];
+                m_in.readFully(b);
+                m_path = new PathRec(new String(b, StandardCharsets.UTF_8), m_in.readInt());
+            } else {
+                byte[] id = new byte[IDSIZE];
+                m_in.readFully(id);
+                m_id = new IdRec(id, m_in.readInt());
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+//------------------------------------------------------------------------------
+// MerkleHash:
+//
+// -merkle.  The first half of a blob name is normally the SHA-1 of the whole
+// file, one stream on one core, so a huge file hashes at the speed of one
+// core whatever the machine has.  With -merkle it is the root of a Merkle
+// tree of SHA-256 hashes instead:
+//
+//   leaf   SHA-256(0x00 + CHUNK bytes of the file), the last one shorter
+//   node   SHA-256(0x01 + left + right), an odd node at the end of a level
+//          goes up a level as it is
+//   root   the top node, its first 20 bytes in hex are the name's first half
+//          so the name, the manifest and the index keep their sizes
+//
+// No leaf depends on another, so the file is cut in windows of whole chunks
+// and the windows are hashed on a pool of one thread per core, each reading
+// its chunks with positional reads into its own direct buffer.  Nothing is
+// memory mapped, Windows would keep a mapped file locked until the mapping
+// is garbage collected.  With -threads:N the pipeline's files share the
+// same pool.
+//
+// Tree blob: DAT\<root>_<sha1 of "tree_" + second half of the blob name>
+//            The leaves, for a file of more than one chunk, stored next to
+//            the blob, its key saved by Keystore.  -verify hashes a blob's
+//            chunks as it decrypts them and, if the root does not match the
+//            name, says which chunk is damaged from the tree.
+//
+// The second half of the name is the SHA-1 of "merkle_" + path_timestamp_size
+// so a Merkle name never collides with the SHA-1 name of the same file, and
+// the manifest line starts with MANIFEST_PREFIX.  Only for the normal hash
+// then encrypt, -singlepass, -cdc, -delta and -pack files keep SHA-1 names.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import static Encrypt1.PathNameKeeper.cat_path_s;
+import static Encrypt1.PathNameKeeper.get_dat_folder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+public class MerkleHash {
+
+    public static final String MANIFEST_PREFIX = "MRK:";
+
+    public static final int CHUNK = 1024 * 1024;
+
+    // one task at most
+    private static final int WINDOW = 16 * CHUNK;
+
+    // "E1MTREE1" in ASCII
+    private static final long TREE_MAGIC = 0x45314d5452454531L;
+    private static final int TREEHEADER = 8 + 4 + 8 + 4;
+    private static final int HASHSIZE = 32;
+    private static final int NAMESIZE = 20;
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    private static ExecutorService s_pool = null;
+
+    private static final ThreadLocal<MessageDigest> s_sha256 = new ThreadLocal<>();
+    private static final ThreadLocal<ByteBuffer> s_buffer = new ThreadLocal<>();
+
+    public static boolean is_merkle(String manifest_line) {
+        return manifest_line.startsWith(MANIFEST_PREFIX);
+    }
+
+    // the second half of a Merkle name, kept apart from the SHA-1 name
+    public static String merkle_extra(String hashThis) {
+        return TreeWalker.hashStringSHA1("merkle_" + hashThis);
+    }
+
+    // the tree blob of blob name
+    static String tree_name(String name) {
+        int idx = name.indexOf('_');
+        return name.substring(0, idx) + "_" + TreeWalker.hashStringSHA1("tree_" + name.substring(idx + 1));
+    }
+
+    private static synchronized ExecutorService pool() {
+        if (s_pool == null) {
+            s_pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "MerkleHash");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return s_pool;
+    }
+
+    private static MessageDigest sha256() throws NoSuchAlgorithmException {
+        MessageDigest md = s_sha256.get();
+        if (md == null) {
+            md = MessageDigest.getInstance("SHA-256");
+            s_sha256.set(md);
+        }
+        return md;
+    }
+
+    //--------------------------------------------------------------------------
+    // The leaves of file, hashed in parallel
+    //--------------------------------------------------------------------------
+    public static byte[][] leaves(Path file) throws IOException, NoSuchAlgorithmException {
+        try (final FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            final byte[][] leaves = new byte[(int) Math.max(1, (size + CHUNK - 1) / CHUNK)][];
+            if (size <= CHUNK) {
+                hash_window(in, 0, size, leaves);
+                return leaves;
+            }
+
+            // enough windows for every core, whole chunks each
+            int nThreads = Runtime.getRuntime().availableProcessors();
+            long window = (size / nThreads + CHUNK - 1) / CHUNK * CHUNK;
+            window = Math.max(CHUNK, Math.min(WINDOW, window));
+            List<Future<Void>> tasks = new ArrayList<>();
+            for (long off = 0; off < size; off += window) {
+                final long o = off;
+                final long len = Math.min(window, size - off);
+                tasks.add(pool().submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        hash_window(in, o, len, leaves);
+                        return null;
+                    }
+                }));
+            }
+            // every task is waited for, the channel is closed after this
+            Exception error = null;
+            for (Future<Void> f : tasks) {
+                try {
+                    f.get();
+                } catch (ExecutionException ex) {
+                    error = error != null ? error : (Exception) ex.getCause();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    error = error != null ? error : ex;
+                }
+            }
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            if (error != null) {
+                throw new IOException(error);
+            }
+            return leaves;
+        }
+    }
+
+    private static void hash_window(FileChannel in, long off, long len, byte[][] leaves) throws IOException, NoSuchAlgorithmException {
+        MessageDigest md = sha256();
+        if (len == 0) {
+            leaves[0] = leaf(md, ByteBuffer.allocate(0));
+            return;
+        }
+        ByteBuffer buf = s_buffer.get();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(CHUNK);
+            s_buffer.set(buf);
+        }
+        for (long p = 0; p < len; p += CHUNK) {
+            buf.clear();
+            buf.limit((int) Math.min(CHUNK, len - p));
+            while (buf.hasRemaining()) {
+                if (in.read(buf, off + p + buf.position()) < 0) {
+                    throw new IOException("file got shorter while it was hashed");
+                }
+            }
+            buf.flip();
+            leaves[(int) ((off + p) / CHUNK)] = leaf(md, buf);
+        }
+    }
+
+    private static byte[] leaf(MessageDigest md, ByteBuffer chunk) {
+        md.reset();
+        md.update(LEAF);
+        md.update(chunk);
+        return md.digest();
+    }
+
+    public static byte[] root(byte[][] leaves) throws NoSuchAlgorithmException {
+        MessageDigest md = sha256();
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            byte[][] up = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < level.length; i += 2) {
+                if (i + 1 < level.length) {
+                    md.reset();
+                    md.update(NODE);
+                    md.update(level[i]);
+                    md.update(level[i + 1]);
+                    up[i / 2] = md.digest();
+                } else {
+                    up[i / 2] = level[i];
+                }
+            }
+            level = up;
+        }
+        return level[0];
+    }
+
+    // the first half of the blob name for a file with these leaves
+    public static String name_hash(byte[][] leaves) throws NoSuchAlgorithmException {
+        return TreeWalker.byteToHex(Arrays.copyOf(root(leaves), NAMESIZE));
+    }
+
+    //--------------------------------------------------------------------------
+    // Tree blobs
+    //--------------------------------------------------------------------------
+
+    // store the leaves of blob name unless they are there, or there is only one
+    public static void store_tree(String name, byte[][] leaves, long size) throws IOException, NoSuchAlgorithmException {
+        String tree = tree_name(name);
+        if (leaves.length < 2 || Keystore.is_stored(tree)) {
+            return;
+        }
+        ByteBuffer b = ByteBuffer.allocate(TREEHEADER + leaves.length * HASHSIZE);
+        b.putLong(TREE_MAGIC);
+        b.putInt(CHUNK);
+        b.putLong(size);
+        b.putInt(leaves.length);
+        for (byte[] leaf : leaves) {
+            b.put(leaf);
+        }
+        ChunkStore.storeBlob(tree, b.array(), 0, b.capacity(), new FileMeta("", 0, b.capacity()));
+    }
+
+    // the leaves stored for blob name, null if it has no tree blob
+    public static byte[][] load_tree(String name) throws Exception {
+        String tree = tree_name(name);
+        if (!Keystore.is_stored(tree)) {
+            return null;
+        }
+        byte[] t = EncryptLib.decryptBytes(cat_path_s(get_dat_folder(), tree), Keystore.loadKey(tree), null);
+        ByteBuffer b = ByteBuffer.wrap(t);
+        if (t.length < TREEHEADER || b.getLong() != TREE_MAGIC || b.getInt() != CHUNK) {
+            throw new IOException("tree blob is not valid " + tree);
+        }
+        b.getLong();
+        int count = b.getInt();
+        if (count < 0 || b.remaining() != (long) count * HASHSIZE) {
+            throw new IOException("tree blob is not valid " + tree);
+        }
+        byte[][] leaves = new byte[count][HASHSIZE];
+        for (byte[] leaf : leaves) {
+            b.get(leaf);
+        }
+        return leaves;
+    }
+
+    // -verify: why leaves do not make blob name, the first chunk that differs
+    // from its tree blob if it has one
+    public static String mismatch(String name, byte[][] leaves) {
+        String s = "Merkle root " + name_hash_s(leaves);
+        try {
+            byte[][] tree = load_tree(name);
+            if (tree == null) {
+                return s;
+            }
+            for (int k = 0; k < Math.min(tree.length, leaves.length); k++) {
+                if (!Arrays.equals(tree[k], leaves[k])) {
+                    return s + ", chunk " + k + " at offset " + (long) k * CHUNK + " differs from its tree";
+                }
+            }
+            if (tree.length != leaves.length) {
+                return s + ", " + leaves.length + " chunks, its tree has " + tree.length;
+            }
+            return s + ", the chunks match the tree, the tree does not match the name";
+        } catch (Exception ex) {
+            return s + ", tree not read " + ex;
+        }
+    }
+
+    private static String name_hash_s(byte[][] leaves) {
+        try {
+            return name_hash(leaves);
+        } catch (NoSuchAlgorithmException ex) {
+            return ex.toString();
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // The leaves of contents that stream by in buffers of any size, for
+    // -verify, where a blob can only be decrypted front to back
+    //--------------------------------------------------------------------------
+    public static final class Stream {
+        private final MessageDigest m_md;
+        private final List<byte[]> m_leaves = new ArrayList<>();
+        private int m_fill = -1;        // bytes in the open chunk, -1 if none is open
+
+        public Stream() throws NoSuchAlgorithmException {
+            m_md = MessageDigest.getInstance("SHA-256");
+        }
+
+        public void update(ByteBuffer buf) {
+            while (buf.hasRemaining()) {
+                if (m_fill < 0) {
+                    m_md.reset();
+                    m_md.update(LEAF);
+                    m_fill = 0;
+                }
+                int n = Math.min(buf.remaining(), CHUNK - m_fill);
+                int limit = buf.limit();
+                buf.limit(buf.position() + n);
+                m_md.update(buf);
+                buf.limit(limit);
+                m_fill += n;
+                if (m_fill == CHUNK) {
+                    m_leaves.add(m_md.digest());
+                    m_fill = -1;
+                }
+            }
+        }
+
+        public byte[][] finish() {
+            if (m_fill > 0 || m_leaves.isEmpty()) {
+                if (m_fill < 0) {
+                    m_md.reset();
+                    m_md.update(LEAF);
+                }
+                m_leaves.add(m_md.digest());
+                m_fill = -1;
+            }
+            return m_leaves.toArray(new byte[m_leaves.size()][]);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+//------------------------------------------------------------------------------
+// Metrics:
+//
+// Where an encrypt or restore run spends its time.  Each Phase counts how
+// often it ran, the total time in it, and a histogram of single call times
+// in power of two microsecond buckets, so a few slow files show up next to
+// the average.  Files and bytes done give the files/s and MB/s.
+//
+//   WALK      in Files.walkFileTree between visits, listing and stat
+//   HASH      SHA-1 of the contents before encrypt
+//   KEYGEN    new AES file keys
+//   KEYWRAP   wrapping a file key with the master key and saving it
+//   ENCRYPT   encrypting one file, and with -cdc chunking it
+//   WRITE     manifest records, pack appends and renames into DAT
+//   SKIP      files found already stored, or unchanged with -incremental
+//   RESTORE   decrypting one file back to destRoot
+//
+// Everything is counted with LongAdders, so the worker threads never wait on
+// each other.  The numbers are read three ways: a one line summary every
+// -progress:N seconds (5 by default, 0 for none), the totals at the end of the
+// run, and JMX as Encrypt1:type=Metrics (jconsole, or any JMX client).
+//
+// The per file lines that used to be printed are only printed with -debug,
+// through debug().  On a big tree they cost more than they told.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
+
+public class Metrics {
+
+    public enum Phase {
+        WALK, HASH, KEYGEN, KEYWRAP, ENCRYPT, WRITE, SKIP, RESTORE
+    }
+
+    // bucket b holds calls that took [2^(b-1), 2^b) microseconds, 0 is < 1us
+    private static final int BUCKETS = 40;
+
+    private static final LongAdder[] s_count = new LongAdder[Phase.values().length];
+    private static final LongAdder[] s_nanos = new LongAdder[Phase.values().length];
+    private static final AtomicLongArray[] s_hist = new AtomicLongArray[Phase.values().length];
+    private static final LongAdder s_files = new LongAdder();
+    private static final LongAdder s_bytes = new LongAdder();
+
+    static {
+        for (int i = 0; i < s_count.length; i++) {
+            s_count[i] = new LongAdder();
+            s_nanos[i] = new LongAdder();
+            s_hist[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    private static long s_start = System.nanoTime();
+    private static String s_what = "";
+    private static ScheduledExecutorService s_timer = null;
+
+    // last progress line, to print the rate since then
+    private static long s_lastTime;
+    private static long s_lastFiles;
+    private static long s_lastBytes;
+
+    //--------------------------------------------------------------------------
+    // Counting, any thread
+    //--------------------------------------------------------------------------
+
+    // long t = Metrics.start(); ... Metrics.stop(Phase.X, t);
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    public static void stop(Phase p, long start) {
+        long nanos = System.nanoTime() - start;
+        int i = p.ordinal();
+        s_count[i].increment();
+        s_nanos[i].add(nanos);
+        long us = nanos / 1000;
+        int b = us <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(us));
+        s_hist[i].incrementAndGet(b);
+    }
+
+    // one file finished, encrypted, skipped or restored
+    public static void file_done(long bytes) {
+        s_files.increment();
+        s_bytes.add(bytes);
+    }
+
+    // a per file line, only printed with -debug
+    public static void debug(String s) {
+        if (OptionKeeper.get_debug()) {
+            System.out.println(s);
+        }
+    }
+
+    public static long GetFiles() {
+        return s_files.sum();
+    }
+
+    public static long GetBytes() {
+        return s_bytes.sum();
+    }
+
+    public static long GetCount(Phase p) {
+        return s_count[p.ordinal()].sum();
+    }
+
+    public static long GetNanos(Phase p) {
+        return s_nanos[p.ordinal()].sum();
+    }
+
+    public static double GetSeconds() {
+        return Math.max(1e-9, (System.nanoTime() - s_start) / 1e9);
+    }
+
+    // the call time in ms that fraction q of the calls of p came in under,
+    // to the top of its bucket
+    public static double GetPercentile(Phase p, double q) {
+        AtomicLongArray h = s_hist[p.ordinal()];
+        long total = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            total += h.get(b);
+        }
+        long want = (long) Math.ceil(total * q);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += h.get(b);
+            if (seen >= want && seen > 0) {
+                return (1L << b) / 1000.0;
+            }
+        }
+        return 0;
+    }
+
+    //--------------------------------------------------------------------------
+    // Reporting
+    //--------------------------------------------------------------------------
+
+    // Start the run's clock, register with JMX and start the progress line.
+    // what is "Encrypt" or "Restore".
+    public static synchronized void start_reporting(String what) {
+        s_what = what;
+        s_start = System.nanoTime();
+        s_lastTime = s_start;
+        try {
+            ObjectName name = new ObjectName("Encrypt1:type=Metrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), name);
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(Metrics.class.getName()).log(Level.WARNING, null, ex);
+        }
+        int seconds = OptionKeeper.get_progress();
+        if (seconds > 0) {
+            s_timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Metrics");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            s_timer.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    System.out.println(progress_line());
+                }
+            }, seconds, seconds, TimeUnit.SECONDS);
+        }
+    }
+
+    // stop the progress line and print the totals
+    public static synchronized void stop_reporting() {
+        if (s_timer != null) {
+            s_timer.shutdownNow();
+            s_timer = null;
+        }
+        double secs = GetSeconds();
+        System.out.println(String.format("%s: %d files, %.1f MB, %.1f s, %.0f files/s, %.1f MB/s",
+                s_what, GetFiles(), GetBytes() / 1048576.0, secs, GetFiles() / secs, GetBytes() / 1048576.0 / secs));
+        for (Phase p : Phase.values()) {
+            long n = GetCount(p);
+            if (n > 0) {
+                System.out.println(String.format("    %-8s %9d calls %9.1f s  avg %8.3f ms  p50 %8.3f ms  p99 %8.3f ms",
+                        p.name().toLowerCase(), n, GetNanos(p) / 1e9, GetNanos(p) / 1e6 / n,
+                        GetPercentile(p, 0.50), GetPercentile(p, 0.99)));
+            }
+        }
+    }
+
+    // files and MB so far, the rate since the last line, and seconds in each
+    // phase summed over all threads
+    static synchronized String progress_line() {
+        long now = System.nanoTime();
+        long files = GetFiles();
+        long bytes = GetBytes();
+        double secs = Math.max(1e-9, (now - s_lastTime) / 1e9);
+        StringBuilder sb = new StringBuilder(String.format("%s: %d files, %.1f MB, %.0f files/s, %.1f MB/s |",
+                s_what, files, bytes / 1048576.0, (files - s_lastFiles) / secs, (bytes - s_lastBytes) / 1048576.0 / secs));
+        for (Phase p : Phase.values()) {
+            long nanos = GetNanos(p);
+            if (nanos > 0) {
+                sb.append(String.format(" %s %.1fs", p.name().toLowerCase(), nanos / 1e9));
+            }
+        }
+        s_lastTime = now;
+        s_lastFiles = files;
+        s_lastBytes = bytes;
+        return sb.toString();
+    }
+
+    //--------------------------------------------------------------------------
+    // JMX
+    //--------------------------------------------------------------------------
+
+    public interface MetricsMXBean {
+        String getRun();
+        long getFiles();
+        long getBytes();
+        double getElapsedSeconds();
+        double getFilesPerSecond();
+        double getMBPerSecond();
+        Map<String, Long> getPhaseCalls();
+        Map<String, Double> getPhaseSeconds();
+        Map<String, Double> getPhaseP99Millis();
+    }
+
+    static class Bean implements MetricsMXBean {
+        @Override
+        public String getRun() {
+            return s_what;
+        }
+
+        @Override
+        public long getFiles() {
+            return GetFiles();
+        }
+
+        @Override
+        public long getBytes() {
+            return GetBytes();
+        }
+
+        @Override
+        public double getElapsedSeconds() {
+            return GetSeconds();
+        }
+
+        @Override
+        public double getFilesPerSecond() {
+            return GetFiles() / GetSeconds();
+        }
+
+        @Override
+        public double getMBPerSecond() {
+            return GetBytes() / 1048576.0 / GetSeconds();
+        }
+
+        @Override
+        public Map<String, Long> getPhaseCalls() {
+            Map<String, Long> m = new LinkedHashMap<>();
+            for (Phase p : Phase.values()) {
+                m.put(p.name().toLowerCase(), GetCount(p));
+            }
+            return m;
+        }
+
+        @Override
+        public Map<String, Double> getPhaseSeconds() {
+            Map<String, Double> m = new LinkedHashMap<>();
+            for (Phase p : Phase.values()) {
+                m.put(p.name().toLowerCase(), GetNanos(p) / 1e9);
+            }
+            return m;
+        }
+
+        @Override
+        public Map<String, Double> getPhaseP99Millis() {
+            Map<String, Double> m = new LinkedHashMap<>();
+            for (Phase p : Phase.values()) {
+                m.put(p.name().toLowerCase(), GetPercentile(p, 0.99));
+            }
+            return m;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package Encrypt1;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Run time options from the command line that are not pathnames.  Like
+// PathNameKeeper, the values are set once by Encrypt1.main() before any work
+// starts and are only read after that.
+public class OptionKeeper {
+
+    private static int threads_n = 1;   // -threads:N, number of encrypt workers (1 = original serial walk)
+    private static int walk_n = 0;                // -walk:N, ParallelWalk lists N folders at a time (0 = walkFileTree)
+    private static int queue_n = 0;     // -queue:N, max files in flight in the pipeline (0 = pick from threads)
+    private static boolean single_pass = false;    // -singlepass, hash and encrypt from one read
+    private static boolean merkle = false;        // -merkle, name blobs by a MerkleHash root
+    private static int bufsize_n = 256 * 1024;    // -bufsize:N, StreamEngine buffer size in bytes
+    private static boolean direct = false;        // -direct, StreamEngine buffers outside the heap
+    private static int async_n = 0;               // -async[:N], N buffers each way in AsyncChannels (0 = off)
+    private static boolean chunked = false;       // -chunked, write the ChunkedBlob format
+    private static int chunksize_n = 1024 * 1024; // -chunksize:N, ChunkedBlob chunk size in bytes
+    private static boolean incremental = false;   // -incremental, skip files unchanged in BackupIndex
+    private static boolean cdc = false;           // -cdc, store files as chunks in the ChunkStore
+    private static boolean delta = false;         // -delta[:N], big files stored as deltas, see DeltaStore
+    private static long deltamin_n = 1024 * 1024; // -delta:N, smallest file stored as a delta, in bytes
+    private static Codec codec = null;            // -compress[:name], compress chunks (null = off)
+    private static boolean pack = false;          // -pack[:N], small files go in PackStore packs
+    private static int packmax_n = 64 * 1024;     // -pack:N, largest file that is packed, in bytes
+    private static boolean keystore = false;      // -keystore, new keys go in the Keystore file
+    private static final List<String> includes = new ArrayList<>();  // -include:pattern, restore only these
+    private static final List<String> excludes = new ArrayList<>();  // -exclude:pattern, restore all but these
+    private static int ratelimit_n = 0;           // -ratelimit:N, -verify reads at most N MB/s (0 = no limit)
+    private static boolean debug = false;         // -debug, print a line for every file
+    private static int progress_n = 5;            // -progress:N, Metrics summary every N seconds (0 = none)
+    private static int watch_n = 2000;            // -watch:N, WatchDaemon waits N ms of quiet before a batch
+    private static int watchsnap_n = 60;          // -watch:N,S, and saves a snapshot at most every S seconds (0 = every batch)
+
+    public static int get_walk() {
+        return walk_n;
+    }
+
+    public static void set_walk(String s) {
+        walk_n = Math.max(0, Integer.parseInt(s));
+    }
+
+    public static int get_threads() {
+        return threads_n;
+    }
+
+    public static void set_threads(String s) {
+        threads_n = Math.max(1, Integer.parseInt(s));
+    }
+
+    // The pipeline holds at most this many files between the walk and the
+    // manifest writer, that is what keeps memory bounded on huge trees
+    public static int get_queue() {
+        if (queue_n > 0) {
+            return queue_n;
+        }
+        return threads_n * 4;
+    }
+
+    public static void set_queue(String s) {
+        queue_n = Math.max(1, Integer.parseInt(s));
+    }
+
+    public static boolean get_single_pass() {
+        return single_pass;
+    }
+
+    public static void set_single_pass(boolean b) {
+        single_pass = b;
+    }
+
+    public static int get_bufsize() {
+        return bufsize_n;
+    }
+
+    // rounded down to a whole number of cipher blocks, at least 4K
+    public static void set_bufsize(String s) {
+        int n = Math.max(4096, Integer.parseInt(s));
+        bufsize_n = n - (n % EncryptLib.BLOCKSIZE);
+    }
+
+    public static int get_async() {
+        return async_n;
+    }
+
+    public static void set_async(String s) {
+        async_n = Math.max(2, Integer.parseInt(s));
+    }
+
+    public static boolean get_direct() {
+        return direct;
+    }
+
+    public static void set_direct(boolean b) {
+        direct = b;
+    }
+
+    public static boolean get_chunked() {
+        return chunked;
+    }
+
+    public static void set_chunked(boolean b) {
+        chunked = b;
+    }
+
+    public static int get_chunksize() {
+        return chunksize_n;
+    }
+
+    public static void set_chunksize(String s) {
+        chunksize_n = Math.max(4096, Integer.parseInt(s));
+    }
+
+    public static boolean get_incremental() {
+        return incremental;
+    }
+
+    public static void set_incremental(boolean b) {
+        incremental = b;
+    }
+
+    public static boolean get_merkle() {
+        return merkle;
+    }
+
+    public static void set_merkle(boolean b) {
+        merkle = b;
+    }
+
+    public static boolean get_cdc() {
+        return cdc;
+    }
+
+    public static void set_cdc(boolean b) {
+        cdc = b;
+    }
+
+    public static boolean get_delta() {
+        return delta;
+    }
+
+    public static void set_delta(boolean b) {
+        delta = b;
+    }
+
+    public static long get_deltamin() {
+        return deltamin_n;
+    }
+
+    public static void set_deltamin(String s) {
+        deltamin_n = Math.max(1, Long.parseLong(s));
+    }
+
+    public static Codec get_codec() {
+        return codec;
+    }
+
+    public static boolean get_pack() {
+        return pack;
+    }
+
+    public static void set_pack(boolean b) {
+        pack = b;
+    }
+
+    public static int get_packmax() {
+        return packmax_n;
+    }
+
+    public static void set_packmax(String s) {
+        packmax_n = Math.max(0, Integer.parseInt(s));
+    }
+
+    public static boolean get_keystore() {
+        return keystore;
+    }
+
+    public static void set_keystore(boolean b) {
+        keystore = b;
+    }
+
+    public static List<String> get_includes() {
+        return includes;
+    }
+
+    public static void add_include(String s) {
+        includes.add(s);
+    }
+
+    public static List<String> get_excludes() {
+        return excludes;
+    }
+
+    public static boolean get_debug() {
+        return debug;
+    }
+
+    public static void set_debug(boolean b) {
+        debug = b;
+    }
+
+    public static int get_progress() {
+        return progress_n;
+    }
+
+    public static void set_progress(String s) {
+        progress_n = Math.max(0, Integer.parseInt(s));
+    }
+
+    public static int get_watch() {
+        return watch_n;
+    }
+
+    public static int get_watchsnap() {
+        return watchsnap_n;
+    }
+
+    // N or N,S
+    public static void set_watch(String s) {
+        int idx = s.indexOf(',');
+        if (idx >= 0) {
+            watchsnap_n = Math.max(0, Integer.parseInt(s.substring(idx + 1)));
+            s = s.substring(0, idx);
+        }
+        watch_n = Math.max(0, Integer.parseInt(s));
+    }
+
+    public static int get_ratelimit() {
+        return ratelimit_n;
+    }
+
+    public static void set_ratelimit(String s) {
+        ratelimit_n = Math.max(0, Integer.parseInt(s));
+    }
+
+    public static void add_exclude(String s) {
+        excludes.add(s);
+    }
+
+    // name of a codec in Codecs, returns false if there is no such codec
+    public static boolean set_codec(String name) {
+        codec = Codecs.by_name(name);
+        return codec != null;
+    }
+}
@@ -0,0 +1,536 @@
+//------------------------------------------------------------------------------
+// PackStore:
+//
+// -pack mode.  A small file costs two inodes (DAT\name and KEY\name) and two
+// directory lookups in huge flat folders, which is most of the run time on a
+// tree of millions of small files.  Instead small blobs are appended, with
+// their wrapped key, to big rolling pack files, and found again through one
+// sorted index.  Manifest lines do not change, a name is looked up in the
+// pack index first and in DAT\ if it is not there.
+//
+// Pack file dbRoot\PACK\pack_NNNNNN.dat, a new one after PACKSIZE bytes:
+//    entries one after the other, each:
+//        40 bytes : blob name, the two SHA-1s of sha1_sha1extra
+//        4 bytes  : wrapped key length
+//        4 bytes  : blob length
+//        wrapped key (what would have gone in KEY\name)
+//        blob (exactly what would have gone in DAT\name)
+//
+// Index dbRoot\PACK\pack.idx, rewritten by close():
+//        8 bytes  : MAGIC "E1PACKIX"
+//        8 bytes  : record count
+//        8 bytes  : number of the last pack
+//        8 bytes  : length of the last pack that is in the index
+//        count records sorted by name, each RECSIZE bytes:
+//            40 bytes : blob name
+//            4 bytes  : pack number
+//            4 bytes  : wrapped key length
+//            8 bytes  : offset of the entry in the pack
+//            8 bytes  : blob length
+//
+// If a run dies before close() the entries it appended are still in the last
+// pack past the indexed length, and in any pack after it, and the next open()
+// scans them back in.  A run that keeps the store open, -watch, calls sync()
+// to force what it appended and checkpoint() to bring the index up to date.
+//
+// GC drops entries no manifest uses from the index, see gc().  Their bytes
+// stay in the pack until the pack is deleted or copied down.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import static Encrypt1.PathNameKeeper.cat_path_s;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class PackStore {
+
+    // "E1PACKIX" in ASCII
+    private static final long MAGIC = 0x45315041434b4958L;
+    private static final int HEADERSIZE = 32;
+    private static final int NAMESIZE = 40;
+    private static final int RECSIZE = NAMESIZE + 4 + 4 + 8 + 8;
+    private static final int ENTRYHEADER = NAMESIZE + 4 + 4;
+    private static final int MAXKEYSIZE = 1024;
+
+    public static final long PACKSIZE = 256L * 1024 * 1024;
+
+    // Where one blob is.  Sorts by pack then offset, the order restore reads.
+    public static class Entry implements Comparable<Entry> {
+        final byte[] m_name;
+        final int m_pack;
+        final int m_keyLen;
+        final long m_offset;
+        final long m_blobLen;
+
+        Entry(byte[] name, int pack, int keyLen, long offset, long blobLen) {
+            m_name = name;
+            m_pack = pack;
+            m_keyLen = keyLen;
+            m_offset = offset;
+            m_blobLen = blobLen;
+        }
+
+        public String GetName() {
+            return name_s(m_name);
+        }
+
+        public int GetPack() {
+            return m_pack;
+        }
+
+        public long GetOffset() {
+            return m_offset;
+        }
+
+        public long GetBlobLength() {
+            return m_blobLen;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            if (m_pack != o.m_pack) {
+                return Integer.compare(m_pack, o.m_pack);
+            }
+            return Long.compare(m_offset, o.m_offset);
+        }
+    }
+
+    private final String m_folder;
+    private ByteBuffer m_old;                   // records in the index when opened
+    private int m_oldCount;
+    private final Map<String, Entry> m_new = new HashMap<>();
+    private int m_pack;                         // pack being appended to
+    private long m_packEnd;                     // its length
+    private FileChannel m_out;                  // open on m_pack, null until the first put()
+    private final List<Integer> m_dropped = new ArrayList<>();     // packs gc() emptied
+
+    private PackStore(String folder, ByteBuffer old, int count, int pack, long packEnd) {
+        m_folder = folder;
+        m_old = old;
+        m_oldCount = count;
+        m_pack = pack;
+        m_packEnd = packEnd;
+    }
+
+    public static String get_pack_folder() {
+        return cat_path_s(PathNameKeeper.get_dbRoot(), "PACK");
+    }
+
+    private static String get_index_file(String folder) {
+        return cat_path_s(folder, "pack.idx");
+    }
+
+    private String get_pack_file(int pack) {
+        return cat_path_s(m_folder, String.format("pack_%06d.dat", pack));
+    }
+
+    public static boolean exists() {
+        return PathNameKeeper.does_file_exist(get_index_file(get_pack_folder()));
+    }
+
+    private static byte[] name_b(String name) {
+        int idx = name.indexOf('_');
+        ByteBuffer b = ByteBuffer.allocate(NAMESIZE);
+        b.put(TreeWalker.hexStringToByteArray(name.substring(0, idx)));
+        b.put(TreeWalker.hexStringToByteArray(name.substring(idx + 1)));
+        return b.array();
+    }
+
+    private static String name_s(byte[] name) {
+        String s = TreeWalker.byteToHex(name);
+        return s.substring(0, NAMESIZE) + "_" + s.substring(NAMESIZE);
+    }
+
+    //--------------------------------------------------------------------------
+    // Open the pack store of the current dbRoot, creating the folder if there
+    // is none yet.  Entries a crashed run left past the end of the index are
+    // picked up again here.
+    //--------------------------------------------------------------------------
+    public static PackStore open() throws IOException {
+        String folder = get_pack_folder();
+        Files.createDirectories(Paths.get(folder));
+        Path p = Paths.get(get_index_file(folder));
+
+        PackStore ps;
+        if (!Files.exists(p)) {
+            ps = new PackStore(folder, ByteBuffer.allocate(0), 0, 1, 0);
+        } else {
+            try (FileChannel in = FileChannel.open(p, StandardOpenOption.READ)) {
+                long size = in.size();
+                if (size < HEADERSIZE || size > Integer.MAX_VALUE) {
+                    throw new IOException("pack index is not valid " + p);
+                }
+                ByteBuffer b = ByteBuffer.allocate((int) size);
+                StreamEngine.read_fully(in, b);
+                long count = b.getLong(8);
+                if (b.getLong(0) != MAGIC || count < 0 || HEADERSIZE + count * RECSIZE != size) {
+                    throw new IOException("pack index is not valid " + p);
+                }
+                ps = new PackStore(folder, b, (int) count, (int) b.getLong(16), b.getLong(24));
+            }
+        }
+        ps.recover();
+        return ps;
+    }
+
+    // scan entries past the indexed end of the last pack, and in the packs a
+    // run went on to after it, back into m_new
+    private void recover() throws IOException {
+        recover_pack();
+        while (Files.exists(Paths.get(get_pack_file(m_pack + 1)))) {
+            m_pack++;
+            m_packEnd = 0;
+            recover_pack();
+        }
+        if (!m_new.isEmpty()) {
+            System.out.println("pack: recovered " + m_new.size() + " entries not in the index");
+        }
+    }
+
+    // scan pack m_pack from m_packEnd, and cut off a half written entry at
+    // the end if there is one
+    private void recover_pack() throws IOException {
+        Path p = Paths.get(get_pack_file(m_pack));
+        if (!Files.exists(p) || Files.size(p) <= m_packEnd) {
+            return;
+        }
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+            long pos = m_packEnd;
+            while (pos + ENTRYHEADER <= size) {
+                ByteBuffer h = ByteBuffer.wrap(ChunkedBlob.read_at(ch, pos, ENTRYHEADER));
+                byte[] name = new byte[NAMESIZE];
+                h.get(name);
+                int keyLen = h.getInt();
+                int blobLen = h.getInt();
+                long end = pos + ENTRYHEADER + keyLen + blobLen;
+                if (keyLen <= 0 || keyLen > MAXKEYSIZE || blobLen < 0 || end > size) {
+                    break;
+                }
+                m_new.put(name_s(name), new Entry(name, m_pack, keyLen, pos, blobLen));
+                pos = end;
+            }
+            if (pos != size) {
+                System.out.println("pack: dropping a partial entry at the end of " + p);
+                ch.truncate(pos);
+            }
+            m_packEnd = pos;
+        }
+    }
+
+    // compare the name of old record i with name
+    private int compare_name(int i, byte[] name) {
+        int base = HEADERSIZE + i * RECSIZE;
+        for (int k = 0; k < NAMESIZE; k++) {
+            int a = m_old.get(base + k) & 0xFF;
+            int b = name[k] & 0xFF;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+
+    private Entry old_entry(int i) {
+        int base = HEADERSIZE + i * RECSIZE;
+        byte[] name = new byte[NAMESIZE];
+        for (int k = 0; k < NAMESIZE; k++) {
+            name[k] = m_old.get(base + k);
+        }
+        return new Entry(name, m_old.getInt(base + NAMESIZE), m_old.getInt(base + NAMESIZE + 4),
+                m_old.getLong(base + NAMESIZE + 8), m_old.getLong(base + NAMESIZE + 16));
+    }
+
+    // where blob name is, null if it is not in a pack
+    public Entry find(String name) {
+        synchronized (m_new) {
+            Entry e = m_new.get(name);
+            if (e != null) {
+                return e;
+            }
+        }
+        byte[] key = name_b(name);
+        int lo = 0;
+        int hi = m_oldCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare_name(mid, key);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return old_entry(mid);
+            }
+        }
+        return null;
+    }
+
+    public boolean contains(String name) {
+        return find(name) != null;
+    }
+
+    //--------------------------------------------------------------------------
+    // Append one blob and its wrapped key.  Does nothing if name is already
+    // in a pack, so two threads packing the same content is harmless.
+    //--------------------------------------------------------------------------
+    public void put(String name, byte[] wrappedKey, byte[] blob) throws IOException {
+        synchronized (m_new) {
+            if (contains(name)) {
+                return;
+            }
+            Entry e = append(name_b(name), wrappedKey, blob);
+            m_new.put(name, e);
+        }
+    }
+
+    // append an entry to the current pack, caller holds m_new
+    private Entry append(byte[] name_b, byte[] wrappedKey, byte[] blob) throws IOException {
+        {
+            long len = ENTRYHEADER + wrappedKey.length + blob.length;
+            if (m_packEnd > 0 && m_packEnd + len > PACKSIZE) {
+                if (m_out != null) {
+                    m_out.force(true);      // sync() only forces the pack it is on
+                    m_out.close();
+                    m_out = null;
+                }
+                m_pack++;
+                m_packEnd = 0;
+            }
+            if (m_out == null) {
+                m_out = FileChannel.open(Paths.get(get_pack_file(m_pack)), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            ByteBuffer b = ByteBuffer.allocate((int) len);
+            b.put(name_b);
+            b.putInt(wrappedKey.length);
+            b.putInt(blob.length);
+            b.put(wrappedKey);
+            b.put(blob);
+            ChunkedBlob.write_at(m_out, m_packEnd, b.array());
+            Entry e = new Entry(name_b, m_pack, wrappedKey.length, m_packEnd, blob.length);
+            m_packEnd += len;
+            return e;
+        }
+    }
+
+    // The wrapped key of e, then its blob.  in must be open on pack e.GetPack().
+    public byte[][] read(FileChannel in, Entry e) throws IOException {
+        byte[] b = ChunkedBlob.read_at(in, e.m_offset, (int) (ENTRYHEADER + e.m_keyLen + e.m_blobLen));
+        ByteBuffer h = ByteBuffer.wrap(b);
+        byte[] name = new byte[NAMESIZE];
+        h.get(name);
+        if (!Arrays.equals(name, e.m_name) || h.getInt() != e.m_keyLen || h.getInt() != e.m_blobLen) {
+            throw new IOException("pack entry does not match the index " + e.GetName());
+        }
+        byte[] key = new byte[e.m_keyLen];
+        byte[] blob = new byte[(int) e.m_blobLen];
+        h.get(key);
+        h.get(blob);
+        return new byte[][] { key, blob };
+    }
+
+    //--------------------------------------------------------------------------
+    // GC: keep only the entries whose names are in live.  A pack with nothing
+    // live left is dropped.  A pack less than half live has its live entries
+    // copied to the end of the current pack and is dropped too.  Dropped
+    // packs are only deleted by delete_dropped(), after close() has written
+    // an index that no longer points into them.
+    // Returns { entries dropped, entries copied, bytes copied }.
+    //--------------------------------------------------------------------------
+    public long[] gc(BlobIdSet live) throws IOException {
+        synchronized (m_new) {
+            List<Entry> all = new ArrayList<>(m_oldCount + m_new.size());
+            for (int i = 0; i < m_oldCount; i++) {
+                all.add(old_entry(i));
+            }
+            all.addAll(m_new.values());
+            Collections.sort(all);
+
+            Map<Integer, Long> liveBytes = new HashMap<>();
+            for (Entry e : all) {
+                long n = liveBytes.containsKey(e.m_pack) ? liveBytes.get(e.m_pack) : 0;
+                if (live.contains(BlobIdSet.fingerprint(ByteBuffer.wrap(e.m_name), 0))) {
+                    n += ENTRYHEADER + e.m_keyLen + e.m_blobLen;
+                }
+                liveBytes.put(e.m_pack, n);
+            }
+            int current = m_pack;
+            for (Map.Entry<Integer, Long> p : liveBytes.entrySet()) {
+                Path f = Paths.get(get_pack_file(p.getKey()));
+                if (p.getKey() != current && Files.exists(f) && p.getValue() * 2 < Files.size(f)) {
+                    m_dropped.add(p.getKey());
+                }
+            }
+
+            Map<String, Entry> kept = new HashMap<>();
+            long dropped = 0;
+            long copied = 0;
+            long copiedBytes = 0;
+            FileChannel in = null;
+            int inPack = -1;
+            try {
+                for (Entry e : all) {
+                    if (!live.contains(BlobIdSet.fingerprint(ByteBuffer.wrap(e.m_name), 0))) {
+                        dropped++;
+                    } else if (!m_dropped.contains(e.m_pack)) {
+                        kept.put(e.GetName(), e);
+                    } else {
+                        if (e.m_pack != inPack) {
+                            if (in != null) {
+                                in.close();
+                            }
+                            in = open_pack(e.m_pack);
+                            inPack = e.m_pack;
+                        }
+                        byte[][] key_blob = read(in, e);
+                        kept.put(e.GetName(), append(e.m_name, key_blob[0], key_blob[1]));
+                        copied++;
+                        copiedBytes += ENTRYHEADER + e.m_keyLen + e.m_blobLen;
+                    }
+                }
+            } finally {
+                if (in != null) {
+                    in.close();
+                }
+            }
+            m_old = ByteBuffer.allocate(0);
+            m_oldCount = 0;
+            m_new.clear();
+            m_new.putAll(kept);
+            return new long[] { dropped, copied, copiedBytes };
+        }
+    }
+
+    // delete the packs gc() dropped, call after close().  Returns the bytes freed.
+    public long delete_dropped() throws IOException {
+        long freed = 0;
+        for (int pack : m_dropped) {
+            Path p = Paths.get(get_pack_file(pack));
+            freed += Files.size(p);
+            Files.delete(p);
+            System.out.println("pack: deleted " + p);
+        }
+        m_dropped.clear();
+        return freed;
+    }
+
+    public FileChannel open_pack(int pack) throws IOException {
+        return FileChannel.open(Paths.get(get_pack_file(pack)), StandardOpenOption.READ);
+    }
+
+    //--------------------------------------------------------------------------
+    // Flush the open pack and write the index: the old records merged with
+    // this run's, to a temp file renamed into place.  The pack is forced to
+    // disk first so the index never points past what is really there.
+    //--------------------------------------------------------------------------
+    // force what was appended so far to disk
+    public void sync() throws IOException {
+        synchronized (m_new) {
+            if (m_out != null) {
+                m_out.force(true);
+            }
+        }
+    }
+
+    // sync() and write the index, the store stays open
+    public void checkpoint() throws IOException {
+        synchronized (m_new) {
+            sync();
+            write_index();
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (m_new) {
+            if (m_out != null) {
+                m_out.force(true);
+                m_out.close();
+                m_out = null;
+            }
+            write_index();
+        }
+    }
+
+    // rewrite the index with every entry, caller holds m_new
+    private void write_index() throws IOException {
+        List<Entry> added = new ArrayList<>(m_new.values());
+        Collections.sort(added, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                for (int k = 0; k < NAMESIZE; k++) {
+                    int c = (a.m_name[k] & 0xFF) - (b.m_name[k] & 0xFF);
+                    if (c != 0) {
+                        return c;
+                    }
+                }
+                return 0;
+            }
+        });
+
+        String filename = get_index_file(m_folder);
+        String tmpfile = filename + ".tmp";
+        try (FileChannel out = FileChannel.open(Paths.get(tmpfile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer b = ByteBuffer.allocate(64 * 1024);
+            b.putLong(MAGIC);
+            b.putLong(m_oldCount + added.size());
+            b.putLong(m_pack);
+            b.putLong(m_packEnd);
+
+            // merge, both lists are sorted by name.  They only share a
+            // name if gc() copied an entry and then died before close(),
+            // the copy is the one kept.
+            int i = 0;
+            int j = 0;
+            long count = 0;
+            while (i < m_oldCount || j < added.size()) {
+                if (b.remaining() < RECSIZE) {
+                    b.flip();
+                    StreamEngine.write_fully(out, b);
+                    b.clear();
+                }
+                if (j < added.size() && i < m_oldCount && compare_name(i, added.get(j).m_name) == 0) {
+                    i++;
+                    continue;
+                }
+                count++;
+                if (j == added.size() || (i < m_oldCount && compare_name(i, added.get(j).m_name) < 0)) {
+                    int base = HEADERSIZE + i * RECSIZE;
+                    for (int k = 0; k < RECSIZE; k++) {
+                        b.put(m_old.get(base + k));
+                    }
+                    i++;
+                } else {
+                    Entry e = added.get(j);
+                    b.put(e.m_name);
+                    b.putInt(e.m_pack);
+                    b.putInt(e.m_keyLen);
+                    b.putLong(e.m_offset);
+                    b.putLong(e.m_blobLen);
+                    j++;
+                }
+            }
+            b.flip();
+            StreamEngine.write_fully(out, b);
+
+            ByteBuffer h = ByteBuffer.allocate(8);
+            h.putLong(count);
+            ChunkedBlob.write_at(out, 8, h.array());
+            out.force(true);
+        }
+        Files.move(Paths.get(tmpfile), Paths.get(filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,331 @@
+//------------------------------------------------------------------------------
+// ParallelWalk:
+//
+// -walk:N.  Files.walkFileTree() lists one folder at a time, so on a network
+// drive or a deep tree the walk is a long string of round trips before
+// anything is hashed.  This lists up to N folders at once on a ForkJoinPool
+// and still hands the files to the visitor in the order walkFileTree would.
+//
+// Listing: a folder is read by walkFileTree with maxDepth 1, which gives each
+// entry with its attributes from the same directory read where the OS can
+// (FindNextFile on Windows), the same bulk read the serial walk gets.  Each
+// subfolder found becomes a task forked onto the lister's own deque, idle
+// threads steal them, so a wide folder spreads out over the pool by itself.
+//
+// Emission: the calling thread goes through the folders depth first, in the
+// order their entries were listed, calling preVisitDirectory, visitFile,
+// visitFileFailed and postVisitDirectory.  When it gets to a folder that is
+// still being listed it waits for it, and one nobody has started yet it lists
+// itself.  So the visitor, TreeWalker and the EncryptPipeline after it, see
+// exactly the serial walk's sequence and the manifest comes out the same,
+// while the listing runs ahead.
+//
+// The listing stays at most AHEAD entries ahead of the emission.  A folder
+// found past that is kept back and given to the pool as the emission catches
+// up, so a tree of millions of files is never all in memory.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ParallelWalk {
+
+    // entries listed and not yet handed to the visitor
+    private static final long AHEAD = 100000;
+
+    private static final int NEW = 0;
+    private static final int LISTING = 1;
+    private static final int DONE = 2;
+
+    private final ForkJoinPool m_pool;
+    private final AtomicLong m_ahead = new AtomicLong();
+    private final ConcurrentLinkedQueue<Dir> m_held = new ConcurrentLinkedQueue<>();
+
+    private ParallelWalk(int nThreads) {
+        m_pool = new ForkJoinPool(nThreads);
+    }
+
+    //--------------------------------------------------------------------------
+    // Walk start with visitor, -walk:N lists N folders at a time, without it
+    // this is Files.walkFileTree()
+    //--------------------------------------------------------------------------
+    public static void walk_tree(Path start, FileVisitor<Path> visitor) throws IOException {
+        if (OptionKeeper.get_walk() <= 1) {
+            Files.walkFileTree(start, visitor);
+            return;
+        }
+        ParallelWalk w = new ParallelWalk(OptionKeeper.get_walk());
+        try {
+            w.emit(start, visitor);
+        } finally {
+            w.m_pool.shutdownNow();
+        }
+    }
+
+    // a file, or anything else that is not a folder, as walkFileTree sees it
+    private static final class Entry {
+        final Path m_file;
+        final BasicFileAttributes m_attrs;
+        final IOException m_error;      // its attributes could not be read
+
+        Entry(Path file, BasicFileAttributes attrs, IOException error) {
+            m_file = file;
+            m_attrs = attrs;
+            m_error = error;
+        }
+    }
+
+    // a folder and, once it is listed, what is in it in directory order
+    private static final class Dir {
+        final Path m_path;
+        final BasicFileAttributes m_attrs;
+        final AtomicInteger m_state = new AtomicInteger(NEW);
+        List<Object> m_entries;         // Entry or Dir
+        IOException m_error;            // the folder could not be read
+        boolean m_counted;              // its entries are in m_ahead, under its lock
+        volatile boolean m_dropped;     // skipped by the visitor, never emitted
+
+        Dir(Path path, BasicFileAttributes attrs) {
+            m_path = path;
+            m_attrs = attrs;
+        }
+
+        synchronized void done() {
+            m_state.set(DONE);
+            notifyAll();
+        }
+
+        synchronized void await() throws IOException {
+            while (m_state.get() != DONE) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(ex);
+                }
+            }
+        }
+    }
+
+    private class ListTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Dir m_dir;
+
+        ListTask(Dir dir) {
+            m_dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            if (!m_dir.m_dropped && m_dir.m_state.compareAndSet(NEW, LISTING)) {
+                list(m_dir);
+            }
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Listing, pool threads and the emitting thread
+    //--------------------------------------------------------------------------
+
+    // read dir, the caller has set it LISTING
+    private void list(final Dir dir) {
+        final List<Object> entries = new ArrayList<>();
+        try {
+            Files.walkFileTree(dir.m_path, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isDirectory()) {
+                        entries.add(new Dir(file, attrs));
+                    } else {
+                        entries.add(new Entry(file, attrs, null));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                    if (file.equals(dir.m_path)) {
+                        throw exc;      // the folder itself
+                    }
+                    entries.add(new Entry(file, null, exc));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            dir.m_error = ex;
+        } catch (RuntimeException ex) {
+            dir.m_error = new IOException(ex);  // never leave the emission waiting
+        }
+        boolean counted;
+        synchronized (dir) {
+            dir.m_entries = dir.m_error == null ? entries : new ArrayList<>();
+            if (!dir.m_dropped) {
+                m_ahead.addAndGet(dir.m_entries.size());
+                dir.m_counted = true;
+            }
+            counted = dir.m_counted;
+        }
+        dir.done();
+        if (!counted) {
+            return;     // skipped while it was being listed, nothing under it is
+        }
+
+        for (Object o : dir.m_entries) {
+            if (o instanceof Dir) {
+                Dir d = (Dir) o;
+                if (m_ahead.get() > AHEAD) {
+                    m_held.add(d);
+                } else if (ForkJoinTask.inForkJoinPool()) {
+                    new ListTask(d).fork();
+                } else {
+                    m_pool.execute(new ListTask(d));
+                }
+            }
+        }
+    }
+
+    // dir was skipped by the visitor, take what has been listed under it out
+    // of m_ahead, a folder still being listed will not count itself
+    private void drop(Dir dir) {
+        List<Object> entries;
+        synchronized (dir) {
+            dir.m_dropped = true;
+            if (!dir.m_counted) {
+                return;
+            }
+            dir.m_counted = false;
+            entries = dir.m_entries;
+        }
+        m_ahead.addAndGet(-entries.size());
+        for (Object o : entries) {
+            if (o instanceof Dir) {
+                drop((Dir) o);
+            }
+        }
+    }
+
+    // the emitting thread needs dir now
+    private void need(Dir dir) throws IOException {
+        if (dir.m_state.compareAndSet(NEW, LISTING)) {
+            list(dir);
+        } else {
+            dir.await();
+        }
+    }
+
+    // give folders held back to the pool once the emission has caught up
+    private void release() {
+        Iterator<Dir> it = m_held.iterator();
+        while (m_ahead.get() < AHEAD / 2 && it.hasNext()) {
+            Dir d = it.next();
+            it.remove();
+            if (d.m_state.get() == NEW && !d.m_dropped) {
+                m_pool.execute(new ListTask(d));
+            }
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Emission, the calling thread, see the top of file
+    //--------------------------------------------------------------------------
+    private void emit(Path start, FileVisitor<Path> visitor) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(start, BasicFileAttributes.class);
+        } catch (IOException ex) {
+            visitor.visitFileFailed(start, ex);
+            return;
+        }
+        if (!attrs.isDirectory()) {
+            visitor.visitFile(start, attrs);
+            return;
+        }
+
+        // a folder and how far through its entries the emission is
+        Deque<Object[]> stack = new ArrayDeque<>();
+        Dir root = new Dir(start, attrs);
+        if (!enter(root, visitor, stack)) {
+            return;
+        }
+        while (!stack.isEmpty()) {
+            Object[] top = stack.peek();
+            Dir dir = (Dir) top[0];
+            @SuppressWarnings("unchecked")
+            Iterator<Object> it = (Iterator<Object>) top[1];
+            if (!it.hasNext()) {
+                stack.pop();
+                if (visitor.postVisitDirectory(dir.m_path, null) == FileVisitResult.TERMINATE) {
+                    return;
+                }
+                continue;
+            }
+            Object o = it.next();
+            m_ahead.decrementAndGet();
+            if (o instanceof Dir) {
+                if (!enter((Dir) o, visitor, stack)) {
+                    return;
+                }
+                continue;
+            }
+            Entry e = (Entry) o;
+            FileVisitResult r;
+            if (e.m_error != null) {
+                r = visitor.visitFileFailed(e.m_file, e.m_error);
+            } else {
+                r = visitor.visitFile(e.m_file, e.m_attrs);
+            }
+            if (r == FileVisitResult.TERMINATE) {
+                return;
+            }
+            if (r == FileVisitResult.SKIP_SIBLINGS) {
+                while (it.hasNext()) {
+                    Object skipped = it.next();
+                    m_ahead.decrementAndGet();
+                    if (skipped instanceof Dir) {
+                        drop((Dir) skipped);
+                    }
+                }
+            }
+        }
+    }
+
+    // start on a folder, false if the visitor said TERMINATE
+    private boolean enter(Dir dir, FileVisitor<Path> visitor, Deque<Object[]> stack) throws IOException {
+        need(dir);
+        release();
+        if (dir.m_error != null) {
+            return visitor.visitFileFailed(dir.m_path, dir.m_error) != FileVisitResult.TERMINATE;
+        }
+        FileVisitResult r = visitor.preVisitDirectory(dir.m_path, dir.m_attrs);
+        if (r == FileVisitResult.SKIP_SUBTREE || r == FileVisitResult.SKIP_SIBLINGS) {
+            drop(dir);
+            return true;
+        }
+        if (r == FileVisitResult.TERMINATE) {
+            return false;
+        }
+        stack.push(new Object[] { dir, dir.m_entries.iterator() });
+        return true;
+    }
+}
@@ -1,9 +1,9 @@
 package Encrypt1;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.math.BigInteger;
+import java.nio.charset.Charset;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -18,6 +18,7 @@ import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.PBEParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 public class Password {
 
@@ -51,14 +52,24 @@ public class Password {
     // I suspect it has to do with differences with compile time or run time
     // switches
     //
-    // For now, I call readLine() and it not too bad - it echoes password
+    // For now, I read a line and it not too bad - it echoes password
     // but works in IDE and on command line
+    //
+    // The line is read a byte at a time, a BufferedReader would also take
+    // whatever comes after it and -unarchive:- reads the archive from stdin.
     private char[] PromptUser() {
         try {
             System.out.print("Enter encryption password:  ");
             System.out.flush();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
-            String pw_s = reader.readLine();
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = System.in.read()) >= 0 && c != '\n') {
+                line.write(c);
+            }
+            String pw_s = new String(line.toByteArray(), Charset.defaultCharset());
+            if (pw_s.endsWith("\r")) {
+                pw_s = pw_s.substring(0, pw_s.length() - 1);
+            }
             return pw_s.toCharArray();
         } catch (IOException ex) {
             Logger.getLogger(Password.class.getName()).log(Level.SEVERE, null, ex);
@@ -72,14 +83,8 @@ public class Password {
     public boolean Verify() {
 
         try {
-            pbeParamSpec = new PBEParameterSpec(salt, count);
-
             char[] pw = PromptUser();
-            pbeKeySpec = new PBEKeySpec(pw);
-
-            SecretKeyFactory keyFac;
-            keyFac = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
-            pbeKey = keyFac.generateSecret(pbeKeySpec);
+            init(pw);
             
             String newHash = generatePasswordHash(pw);
             System.out.println("Password.Verify: " + newHash);
@@ -96,20 +101,61 @@ public class Password {
         return true;
     }
     
+    // set up the PBE key from pw without checking it against the config,
+    // Verify() does this after the prompt, the tests and the benchmarks call
+    // it directly
+    void init(char[] pw) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        pbeParamSpec = new PBEParameterSpec(salt, count);
+        pbeKeySpec = new PBEKeySpec(pw);
+
+        SecretKeyFactory keyFac;
+        keyFac = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
+        pbeKey = keyFac.generateSecret(pbeKeySpec);
+    }
+
+    // Cipher.init() is where PBE runs its 50000 iterations, so each thread inits
+    // one cipher per mode once and reuses it.  doFinal() puts a cipher back
+    // to its just initialized state, so every call gets the same result as a
+    // fresh Cipher would.
+    private final ThreadLocal<Cipher> encryptCipher = new ThreadLocal<>();
+    private final ThreadLocal<Cipher> decryptCipher = new ThreadLocal<>();
+
+    private Cipher getCipher(ThreadLocal<Cipher> cache, int mode) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+        Cipher c = cache.get();
+        if (c == null) {
+            c = Cipher.getInstance("PBEWithMD5AndDES");
+            c.init(mode, pbeKey, pbeParamSpec);
+            cache.set(c);
+        }
+        return c;
+    }
+
     public byte[] doEncrypt(byte[] cleartext) throws IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
-        Cipher c;
-        c = Cipher.getInstance("PBEWithMD5AndDES");
-        c.init(Cipher.ENCRYPT_MODE, pbeKey, pbeParamSpec);
+        Cipher c = getCipher(encryptCipher, Cipher.ENCRYPT_MODE);
         byte[] ciphertext = c.doFinal(cleartext);
         return ciphertext;
     }
 
     public byte[] doDecrypt(byte[] ciphertext) throws IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException, NoSuchPaddingException {
-        Cipher c;
-        c = Cipher.getInstance("PBEWithMD5AndDES");
-        c.init(Cipher.DECRYPT_MODE, pbeKey, pbeParamSpec);
-        byte[] plaintext = c.doFinal(ciphertext);
-        return plaintext;
+        Cipher c = getCipher(decryptCipher, Cipher.DECRYPT_MODE);
+        try {
+            return c.doFinal(ciphertext);
+        } catch (IllegalBlockSizeException | BadPaddingException ex) {
+            decryptCipher.remove();     // a failed doFinal may not reset the cipher
+            throw ex;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // A 128-bit AES key from the password with PBKDF2, for Keystore to wrap
+    // file keys with.  Slow on purpose, called once per run.
+    //--------------------------------------------------------------------------
+    public SecretKey deriveKey(byte[] keySalt, int iterations) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        PBEKeySpec spec = new PBEKeySpec(pbeKeySpec.getPassword(), keySalt, iterations, 128);
+        SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        byte[] key = skf.generateSecret(spec).getEncoded();
+        spec.clearPassword();
+        return new SecretKeySpec(key, "AES");
     }
 
     //--------------------------------------------------------------------------
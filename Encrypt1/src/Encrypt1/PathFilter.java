@@ -0,0 +1,160 @@
+//------------------------------------------------------------------------------
+// PathFilter:
+//
+// -include:pattern and -exclude:pattern for restore.  A pattern is a path
+// relative to srcRoot, / or \ either way, with * for any part of one name,
+// ** for any number of folders, none included, and ? for one character.  A
+// pattern matches a file, or a folder and everything under it, in any case.
+//
+// An include is looked up in the Manifest's path order: everything before
+// its first wildcard is a literal prefix, lower_bound() finds where that
+// prefix starts and the files are read off in order until it stops matching.
+// So the cost is the size of the selection, not of the backup, and no blob
+// outside it is opened.  Excludes are checked on each file that is selected.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class PathFilter {
+
+    private final List<String> m_prefixes = new ArrayList<>();
+    private final List<Pattern> m_includes = new ArrayList<>();
+    private final List<Pattern> m_excludes = new ArrayList<>();
+
+    public PathFilter(List<String> includes, List<String> excludes) {
+        for (String s : includes) {
+            String p = normalize(s);
+            m_prefixes.add(literal_prefix(p));
+            m_includes.add(to_regex(p));
+        }
+        for (String s : excludes) {
+            m_excludes.add(to_regex(normalize(s)));
+        }
+    }
+
+    public boolean is_empty() {
+        return m_includes.isEmpty() && m_excludes.isEmpty();
+    }
+
+    private static String normalize(String pattern) {
+        String p = Manifest.path_key(pattern);
+        while (p.startsWith("/")) {
+            p = p.substring(1);
+        }
+        while (p.endsWith("/")) {
+            p = p.substring(0, p.length() - 1);
+        }
+        return p;
+    }
+
+    private static String literal_prefix(String pattern) {
+        int i = 0;
+        while (i < pattern.length() && "*?".indexOf(pattern.charAt(i)) < 0) {
+            i++;
+        }
+        return pattern.substring(0, i);
+    }
+
+    // the glob, then optionally / and anything, so a folder takes its contents
+    private static Pattern to_regex(String pattern) {
+        StringBuilder re = new StringBuilder();
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == '*' && i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                if (i + 2 < pattern.length() && pattern.charAt(i + 2) == '/') {
+                    re.append("(?:.*/)?");      // a/**/b takes a/b too
+                    i += 3;
+                } else {
+                    re.append(".*");
+                    i += 2;
+                }
+                continue;
+            }
+            if (c == '*') {
+                re.append("[^/]*");
+            } else if (c == '?') {
+                re.append("[^/]");
+            } else {
+                re.append(Pattern.quote(String.valueOf(c)));
+            }
+            i++;
+        }
+        re.append("(/.*)?");
+        return Pattern.compile(re.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+
+    private boolean excluded(String key) {
+        for (Pattern p : m_excludes) {
+            if (p.matcher(key).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Selection select(Manifest manifest) {
+        return new Selection(manifest);
+    }
+
+    //--------------------------------------------------------------------------
+    // The records of one manifest that pass the filter, in path order, each
+    // once even when includes overlap.
+    //--------------------------------------------------------------------------
+    public class Selection {
+        private final Manifest m_manifest;
+        private final BitSet m_seen;    // only needed when includes can overlap
+        private int m_include = 0;      // which include is being read off
+        private int m_k = -1;           // position in path order, -1 before a lower_bound()
+
+        Selection(Manifest manifest) {
+            m_manifest = manifest;
+            m_seen = m_includes.size() > 1 ? new BitSet(manifest.GetCount()) : null;
+        }
+
+        // the next record index, -1 at the end
+        public int next() throws IOException {
+            if (m_includes.isEmpty()) {
+                // no include, everything but the excludes
+                while (++m_k < m_manifest.GetCount()) {
+                    int i = m_manifest.GetPathOrder(m_k);
+                    if (!excluded(Manifest.path_key(m_manifest.GetPath(i)))) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+            while (m_include < m_includes.size()) {
+                String prefix = m_prefixes.get(m_include);
+                if (m_k < 0) {
+                    m_k = m_manifest.lower_bound(prefix);
+                } else {
+                    m_k++;
+                }
+                if (m_k < m_manifest.GetCount()) {
+                    int i = m_manifest.GetPathOrder(m_k);
+                    String key = Manifest.path_key(m_manifest.GetPath(i));
+                    if (key.startsWith(prefix)) {
+                        if (m_includes.get(m_include).matcher(key).matches() && !excluded(key)
+                                && (m_seen == null || !m_seen.get(i))) {
+                            if (m_seen != null) {
+                                m_seen.set(i);
+                            }
+                            return i;
+                        }
+                        continue;
+                    }
+                }
+                m_include++;    // past the end of this prefix
+                m_k = -1;
+            }
+            return -1;
+        }
+    }
+}
@@ -49,13 +49,35 @@ public class PathNameKeeper {
         return cat_path_s(dbRoot_s, "config");
     }
 
-    public static String get_meta_file_write() {    // TreeWalker writes to meta file
+    public static String get_meta_file_write() {    // TreeWalker writes to meta file, see Manifest
         String s;
         s = cat_path_s(dbRoot_s, "META");
-        s = cat_path_s(s, "TreeWalker.out");
+        s = cat_path_s(s, "TreeWalker.man");
         return s;
     }
 
+    public static String get_index_file() {        // BackupIndex for -incremental
+        String s;
+        s = cat_path_s(dbRoot_s, "META");
+        s = cat_path_s(s, "index.dat");
+        return s;
+    }
+
+    public static String get_watch_file() {        // WatchDaemon's changes since its last snapshot
+        String s;
+        s = cat_path_s(dbRoot_s, "META");
+        s = cat_path_s(s, "TreeWalker.watch.man");
+        return s;
+    }
+
+    public static String get_snap_folder() {        // Snapshots, one manifest per encrypt run
+        return cat_path_s(dbRoot_s, "SNAP");
+    }
+
+    public static String get_keystore_file() {     // Keystore, all wrapped file keys
+        return cat_path_s(dbRoot_s, "keystore.dat");
+    }
+
     public static String get_meta_file_read() {     // -restore:metafile reads from meta file
         return restoreMeta_s;
     }
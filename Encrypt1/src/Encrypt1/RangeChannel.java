@@ -0,0 +1,164 @@
+//------------------------------------------------------------------------------
+// RangeChannel:
+//
+// Read only SeekableByteChannel over a byte range of the original contents of
+// one encrypted file, see EncryptLib.openRange().  Position 0 of the channel is
+// offset in the original file and size() is the length of the range.
+//
+// Only the cipher blocks under the range are read and decrypted:
+//
+// LEGACY - CBC decrypt of block j only needs ciphertext block j-1 as its IV,
+//          so a read starts one block early and runs AES/CBC/NoPadding from
+//          there.  The block before the first content block is the last
+//          pathname block, or the IV in the header if the pathname is empty.
+//
+// CHUNKED - each chunk is its own GCM record, so a read decrypts (and
+//          authenticates) only the chunks under it.  The last one is cached
+//          for the next read.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+public class RangeChannel implements SeekableByteChannel {
+
+    private static final int BLOCKSIZE = EncryptLib.BLOCKSIZE;
+    private static final int MAXREAD = 1024 * 1024;  // legacy blocks decrypted per read() at most
+
+    private final FileChannel m_in;
+    private final BlobHeader m_header;
+    private final SecretKey m_key;
+    private final ChunkedBlob.Reader m_chunked;  // null for legacy files
+    private final long m_offset;
+    private final long m_size;
+    private long m_position = 0;
+    private boolean m_open = true;
+
+    private long m_chunkIndex = -1;     // chunk held in m_chunk
+    private byte[] m_chunk;
+
+    public RangeChannel(FileChannel in, SecretKey aesKey, long offset, long length) throws IOException, GeneralSecurityException {
+        m_in = in;
+        m_key = aesKey;
+        m_header = BlobHeader.read(in);
+        if (m_header.GetVersion() == BlobHeader.CHUNKED) {
+            m_chunked = new ChunkedBlob.Reader(in, m_header, aesKey);
+        } else {
+            m_chunked = null;
+        }
+        long fileSize = m_header.GetFileSize();
+        m_offset = Math.max(0, Math.min(offset, fileSize));
+        m_size = Math.max(0, Math.min(length, fileSize - m_offset));
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!m_open) {
+            throw new ClosedChannelException();
+        }
+        if (m_position >= m_size) {
+            return -1;
+        }
+        int n = (int) Math.min(dst.remaining(), Math.min(m_size - m_position, MAXREAD));
+        if (n == 0) {
+            return 0;
+        }
+        try {
+            if (m_chunked != null) {
+                n = read_chunked(dst, m_offset + m_position, n);
+            } else {
+                read_legacy(dst, m_offset + m_position, n);
+            }
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+        m_position += n;
+        return n;
+    }
+
+    // decrypt content bytes [pos, pos+n) of a legacy CBC file into dst
+    private void read_legacy(ByteBuffer dst, long pos, int n) throws IOException, GeneralSecurityException {
+        long contentStart = BlobHeader.LEGACY_HEADERSIZE + m_header.GetPathSize();
+        long firstBlock = pos / BLOCKSIZE;
+        long lastBlock = (pos + n - 1) / BLOCKSIZE;
+        long ctextPos = contentStart + firstBlock * BLOCKSIZE;
+
+        byte[] iv;
+        if (ctextPos - BLOCKSIZE < BlobHeader.LEGACY_HEADERSIZE) {
+            iv = m_header.GetIV();
+        } else {
+            iv = ChunkedBlob.read_at(m_in, ctextPos - BLOCKSIZE, BLOCKSIZE);
+        }
+        byte[] ctext = ChunkedBlob.read_at(m_in, ctextPos, (int) ((lastBlock - firstBlock + 1) * BLOCKSIZE));
+
+        Cipher c = Cipher.getInstance("AES/CBC/NoPadding");
+        c.init(Cipher.DECRYPT_MODE, m_key, new IvParameterSpec(iv));
+        byte[] plain = c.doFinal(ctext);
+        dst.put(plain, (int) (pos - firstBlock * BLOCKSIZE), n);
+    }
+
+    // copy from the chunk under pos, returns how many bytes that was
+    private int read_chunked(ByteBuffer dst, long pos, int n) throws IOException, GeneralSecurityException {
+        long chunkSize = m_header.GetChunkSize();
+        long i = pos / chunkSize;
+        if (i != m_chunkIndex) {
+            m_chunk = m_chunked.readChunk(i);
+            m_chunkIndex = i;
+        }
+        int off = (int) (pos - i * chunkSize);
+        int len = Math.min(n, m_chunk.length - off);
+        dst.put(m_chunk, off, len);
+        return len;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        return m_position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        m_position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return m_size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return m_open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_open = false;
+        m_chunk = null;
+        m_in.close();
+    }
+}
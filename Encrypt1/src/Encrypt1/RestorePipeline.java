@@ -0,0 +1,96 @@
+//------------------------------------------------------------------------------
+// RestorePipeline:
+//
+// Multi-core version of the RestoreTree loop, used with -threads:N.
+//
+//   manifest reader thread --> worker pool (key, decrypt, write, set mtime)
+//
+// RestoreTree.Start() reads the manifest and calls submit() for each line.
+// At most get_queue() lines are waiting or being restored at any time, submit()
+// blocks the reader until a worker finishes one, so memory stays the same
+// however long the manifest is.  Each worker prints its file as soon as it is
+// done, so the report is in finishing order, not manifest order.
+//
+// Unlike the serial loop a file that fails is reported and counted and the
+// rest of the tree is still restored.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class RestorePipeline {
+
+    private final RestoreTree m_tree;
+    private final ExecutorService m_workers;
+    private final Semaphore m_slots;
+    private final int m_nSlots;
+
+    private final AtomicLong m_files = new AtomicLong();
+    private final AtomicLong m_bytes = new AtomicLong();
+    private final AtomicLong m_failed = new AtomicLong();
+    private final long m_start = System.nanoTime();
+
+    public RestorePipeline(RestoreTree tree, int nThreads, int nQueue) {
+        m_tree = tree;
+        m_workers = Executors.newFixedThreadPool(nThreads);
+        m_nSlots = Math.max(nThreads, nQueue);
+        m_slots = new Semaphore(m_nSlots);
+    }
+
+    // called on the manifest reader thread, blocks while the pipeline is full
+    public void submit(final String name_s) throws InterruptedException {
+        m_slots.acquire();
+        try {
+            m_workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        FileMeta filemeta = m_tree.decrypt_one(name_s);
+                        if (filemeta != null) {
+                            report(filemeta);
+                        }
+                    } catch (Exception ex) {
+                        m_failed.incrementAndGet();
+                        System.out.println("FAILED " + name_s);
+                        Logger.getLogger(RestorePipeline.class.getName()).log(Level.SEVERE, null, ex);
+                    } finally {
+                        m_slots.release();
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            m_slots.release();
+            throw ex;
+        }
+    }
+
+    // count and print one finished file, any thread
+    public void report(FileMeta filemeta) {
+        m_files.incrementAndGet();
+        m_bytes.addAndGet(filemeta.GetFileSize());
+        Metrics.debug("RESTORED " + filemeta.GetPathName() + " (" + filemeta.GetFileSize() + " bytes)");
+    }
+
+    // wait for everything that was submitted, stop the threads and print
+    // the totals
+    public void close() {
+        try {
+            m_slots.acquire(m_nSlots);
+            m_workers.shutdown();
+            m_workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            m_workers.shutdownNow();
+        }
+        double secs = Math.max(1e-9, (System.nanoTime() - m_start) / 1e9);
+        System.out.println(String.format("Restore: %d files, %d bytes, %d failed, %.1f s, %.1f MB/s",
+                m_files.get(), m_bytes.get(), m_failed.get(), secs, m_bytes.get() / secs / (1024 * 1024)));
+    }
+}
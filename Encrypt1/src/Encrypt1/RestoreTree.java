@@ -4,7 +4,14 @@
 // Read each line of the manifest and decrypt each file listed.  Restore it to
 // srcRoot\pathname.
 //
-// pathname is extracted from the header of the encrypted file.
+// pathname is extracted from the header of the encrypted file.  The binary
+// Manifest also has each file's path, size and mtime, so the destinations of
+// a batch are stat'ed in parallel and files that are already restored are
+// skipped without opening their blobs.  An old text manifest only has blob
+// names, so every blob in it is opened.  -include/-exclude restore part of a binary
+// manifest, see PathFilter.
+//
+// With -threads:N the files are restored on N threads, see RestorePipeline.
 //------------------------------------------------------------------------------
 
 package Encrypt1;
@@ -17,10 +24,16 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.BadPaddingException;
@@ -30,6 +43,16 @@ import javax.crypto.NoSuchPaddingException;
 public class RestoreTree  {
     
     private final String m_input;
+
+    // packed files held back at most, after that they are restored and the
+    // list starts over, so memory does not grow with the tree
+    private static final int PACKBATCH = 1024 * 1024;
+
+    // manifest lines whose destinations are stat'ed together
+    private static final int STATBATCH = 4096;
+
+    // stats done by one fork join task before it stops splitting
+    private static final int STATGRAIN = 64;
     
     public RestoreTree(String metaFile) {
         m_input = metaFile;
@@ -38,40 +61,281 @@ public class RestoreTree  {
     public void Start() throws Exception {
         int lineNum = 0;
         String line; 
-        BufferedReader br = new BufferedReader(new FileReader(m_input));
-        while ((line = br.readLine()) != null) {
+
+        // the binary manifest has each file's path, size and mtime itself
+        Manifest manifest = null;
+        BufferedReader br = null;
+        PathFilter.Selection selection = null;
+        PathFilter filter = new PathFilter(OptionKeeper.get_includes(), OptionKeeper.get_excludes());
+        if (Manifest.is_manifest(m_input)) {
+            manifest = Manifest.open(m_input);
+            if (!filter.is_empty()) {
+                selection = filter.select(manifest);
+            }
+        } else if (!filter.is_empty()) {
+            throw new IOException("-include and -exclude need a binary manifest, not " + m_input);
+        } else {
+            br = new BufferedReader(new FileReader(m_input));
+        }
+
+        // -pack, files that are in a pack are put aside and restored at the
+        // end in pack order
+        PackStore packs = PackStore.exists() ? PackStore.open() : null;
+        List<PackStore.Entry> packed = new ArrayList<>();
+
+        // files the manifest shows are already restored are skipped without
+        // opening their blobs
+        String[] lines = new String[STATBATCH];
+        Entry[] entries = new Entry[STATBATCH];
+        long skipped = 0;
+
+        RestorePipeline pipeline = null;
+        if (OptionKeeper.get_threads() > 1) {
+            pipeline = new RestorePipeline(this, OptionKeeper.get_threads(), OptionKeeper.get_queue());
+        }
+        try {
+            while (true) {
+                int n = 0;
+                while (manifest != null && n < STATBATCH) {
+                    // every record, or only what -include/-exclude select
+                    int i = selection == null ? lineNum : selection.next();
+                    if (i < 0 || i >= manifest.GetCount()) {
+                        break;
+                    }
+                    lines[n] = manifest.GetLine(i);
+                    entries[n] = new Entry(manifest.GetMeta(i));
+                    n++;
+                    lineNum++;
+                }
+                while (br != null && n < STATBATCH && (line = br.readLine()) != null) {
+                    lines[n] = line;
+                    entries[n] = null;
+                    n++;
+                    lineNum++;
+                }
+                if (n == 0) {
+                    break;
+                }
+                long t = Metrics.start();
+                check_current(entries, n);
+                Metrics.stop(Metrics.Phase.SKIP, t);
+                for (int i = 0; i < n; i++) {
+                    if (entries[i] != null && entries[i].IsCurrent()) {
+                        Metrics.debug("SKIP - file to restore already exists\n     " + entries[i].GetMeta().GetPathName());
+                        Metrics.file_done(entries[i].GetMeta().GetFileSize());
+                        skipped++;
+                    } else {
+                        restore_line(lines[i], packs, packed, pipeline);
+                    }
+                    lines[i] = null;
+                    entries[i] = null;
+                }
+            }
+            if (!packed.isEmpty()) {
+                restore_packed(packs, packed, pipeline);
+            }
+        } finally {
+            if (br != null) {
+                br.close();
+            }
+            if (pipeline != null) {
+                pipeline.close();
+            }
+        }
+        if (skipped > 0) {
+            System.out.println("Restore: " + skipped + " files already restored, blobs not opened");
+        }
+    }
+
+    private void restore_line(String line, PackStore packs, List<PackStore.Entry> packed, RestorePipeline pipeline) throws Exception {
+        PackStore.Entry e = null;
+        if (packs != null && !ChunkStore.is_chunked(line) && !DeltaStore.is_delta(line) && !MerkleHash.is_merkle(line)) {
+            e = packs.find(line);
+        }
+        if (e != null) {
+            packed.add(e);
+            if (packed.size() >= PACKBATCH) {
+                restore_packed(packs, packed, pipeline);
+                packed.clear();
+            }
+        } else if (pipeline != null) {
+            pipeline.submit(line);
+        } else {
             decrypt_one(line);
         }
     }
 
-    private void decrypt_one(String name_s ) throws Exception {
+    // a manifest record whose destination check_current() stats
+    private static class Entry {
+        private final FileMeta m_meta;
+        private boolean m_current;
+
+        Entry(FileMeta meta) {
+            m_meta = meta;
+        }
+
+        FileMeta GetMeta() {
+            return m_meta;
+        }
+
+        // true once check_current() found the destination already restored
+        boolean IsCurrent() {
+            return m_current;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Stat the destination of entries[0..n) on the fork join pool and mark
+    // the ones that already have the size and mtime the manifest says.  A
+    // null entry, a text manifest line, is always restored.
+    //--------------------------------------------------------------------------
+    private static void check_current(Entry[] entries, int n) {
+        new StatRange(entries, 0, n).invoke();
+    }
+
+    private static class StatRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Entry[] m_entries;
+        private final int m_from;
+        private final int m_to;
+
+        StatRange(Entry[] entries, int from, int to) {
+            m_entries = entries;
+            m_from = from;
+            m_to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (m_to - m_from > STATGRAIN) {
+                int mid = (m_from + m_to) >>> 1;
+                invokeAll(new StatRange(m_entries, m_from, mid), new StatRange(m_entries, mid, m_to));
+                return;
+            }
+            for (int i = m_from; i < m_to; i++) {
+                Entry e = m_entries[i];
+                if (e == null) {
+                    continue;
+                }
+                File f = new File(cat_path_s(get_destRoot(), e.m_meta.GetPathName()));
+                // lastModified() is 0 for a missing file
+                long t = f.lastModified();
+                e.m_current = t != 0 && t == e.m_meta.GetTimeStamp() && f.length() == e.m_meta.GetFileSize();
+            }
+        }
+    }
+
+    // Restore every packed file, one pack at a time front to back, so each
+    // pack is one sequential read however the manifest is ordered.  This is
+    // on the manifest thread while the pipeline, if any, does the rest.
+    private void restore_packed(PackStore packs, List<PackStore.Entry> packed, RestorePipeline pipeline) throws Exception {
+        Collections.sort(packed);
+        FileChannel in = null;
+        int pack = -1;
+        try {
+            for (PackStore.Entry e : packed) {
+                if (e.GetPack() != pack) {
+                    if (in != null) {
+                        in.close();
+                    }
+                    in = packs.open_pack(e.GetPack());
+                    pack = e.GetPack();
+                }
+                Metrics.debug("Decrypt packed: " + e.GetName());
+                long t = Metrics.start();
+                byte[][] key_blob = packs.read(in, e);
+                FileMeta filemeta = EncryptLib.decryptAES(key_blob[1], unwrapKey(key_blob[0]));
+                if (filemeta != null) {
+                    set_timestamp(filemeta);
+                    Metrics.stop(Metrics.Phase.RESTORE, t);
+                    Metrics.file_done(filemeta.GetFileSize());
+                    if (pipeline != null) {
+                        pipeline.report(filemeta);
+                    }
+                }
+            }
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    // restore one manifest line, returns its FileMeta or null if it was not
+    // restored.  Called on RestorePipeline workers, so no member state.
+    FileMeta decrypt_one(String name_s ) throws Exception {
         
-        // Build fully qualified pathnames
-        String encryptedFile;
-        String keyfile;
-
-        // TODO: Reversed infile and outfile confusing names
-        //infile  = PathNameKeeper.cat_path_s(PathNameKeeper.get_destRoot(), name_s);
-        encryptedFile = PathNameKeeper.cat_path_s(PathNameKeeper.get_dat_folder(), name_s);
-        keyfile = PathNameKeeper.cat_path_s(PathNameKeeper.get_key_folder(), name_s);
-
-        // decrypt
-        byte[] aesKey = readKeyFromFile(keyfile);
-        FileMeta filemeta = EncryptLib.decryptAES(encryptedFile, aesKey);
+        long t = Metrics.start();
+        FileMeta filemeta;
+        if (MerkleHash.is_merkle(name_s)) {
+            // -merkle only changes how the name was made, it is a normal blob
+            name_s = name_s.substring(MerkleHash.MANIFEST_PREFIX.length());
+        }
+        if (ChunkStore.is_chunked(name_s)) {
+            // -cdc, the file is put back together from its recipe
+            filemeta = ChunkStore.restoreFile(name_s.substring(ChunkStore.MANIFEST_PREFIX.length()));
+        } else if (DeltaStore.is_delta(name_s)) {
+            // -delta, the file is rebuilt through its chain of deltas
+            filemeta = DeltaStore.restoreFile(name_s.substring(DeltaStore.MANIFEST_PREFIX.length()));
+        } else {
+            // Build fully qualified pathnames
+            String encryptedFile;
+
+            // TODO: Reversed infile and outfile confusing names
+            //infile  = PathNameKeeper.cat_path_s(PathNameKeeper.get_destRoot(), name_s);
+            encryptedFile = PathNameKeeper.cat_path_s(PathNameKeeper.get_dat_folder(), name_s);
+
+            // decrypt, the key is in the keystore or KEY\
+            byte[] aesKey = Keystore.loadKey(name_s);
+            filemeta = EncryptLib.decryptAES(encryptedFile, aesKey);
+        }
+        if (filemeta == null) {
+            return null;    // already logged, e.g. a chunked file that failed its GCM check
+        }
         
+        set_timestamp(filemeta);
+        Metrics.stop(Metrics.Phase.RESTORE, t);
+        Metrics.file_done(filemeta.GetFileSize());
+        return filemeta;
+    }
+
+    private void set_timestamp(FileMeta filemeta) {
         String fullPath = cat_path_s(get_destRoot(), filemeta.GetPathName());
         File f = new File(fullPath);
         boolean setLastModified = f.setLastModified(filemeta.GetTimeStamp());
     }
     
-    private byte[] readKeyFromFile(String keyfile_s) throws FileNotFoundException, IOException, Exception {
+    // Open a byte range of one file in the manifest by its manifest line,
+    // for example to pull a few pages out of a large backed up file.  Goes
+    // by the same prefixes as decrypt_one().  A -cdc file or a blob in a
+    // pack cannot be read at random, that is an IOException, restore it.
+    public static SeekableByteChannel openRange(String name_s, long offset, long length) throws Exception {
+        if (MerkleHash.is_merkle(name_s)) {
+            name_s = name_s.substring(MerkleHash.MANIFEST_PREFIX.length());
+        }
+        if (ChunkStore.is_chunked(name_s)) {
+            throw new IOException("a -cdc file cannot be opened at random " + name_s);
+        }
+        if (DeltaStore.is_delta(name_s)) {
+            return DeltaStore.openRange(name_s.substring(DeltaStore.MANIFEST_PREFIX.length()), offset, length);
+        }
+        String encryptedFile = PathNameKeeper.cat_path_s(PathNameKeeper.get_dat_folder(), name_s);
+        if (!PathNameKeeper.does_file_exist(encryptedFile) && PackStore.exists() && PackStore.open().contains(name_s)) {
+            throw new IOException("a packed file cannot be opened at random " + name_s);
+        }
+        return EncryptLib.openRange(encryptedFile, Keystore.loadKey(name_s), offset, length);
+    }
+    
+    static byte[] readKeyFromFile(String keyfile_s) throws FileNotFoundException, IOException, Exception {
         byte[] key_plain = null;
         try {
             String line;
-            BufferedReader br = new BufferedReader(new FileReader(keyfile_s));
             String key_s = "";
-            if ((line = br.readLine()) != null) {
-                key_s = line;
+            try (BufferedReader br = new BufferedReader(new FileReader(keyfile_s))) {
+                if ((line = br.readLine()) != null) {
+                    key_s = line;
+                }
             }
             
             if ( "".equals(key_s) ) {
@@ -81,13 +345,18 @@ public class RestoreTree  {
             // Because of padding on encrypt, the size will be infalted to even blocksize
             // So we must truncate key_plain to its correct plaintext size
             // WARNING: This code assumes 128-bit keysize ( 16 bytes )
-            Password master_pw = Encrypt1.GetMasterPw();
-            key_plain = master_pw.doDecrypt(hexStringToByteArray(key_s));
-            key_plain = Arrays.copyOf(key_plain, 16);
+            key_plain = unwrapKey(hexStringToByteArray(key_s));
             
         } catch (IllegalBlockSizeException | BadPaddingException | NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException ex) {
             Logger.getLogger(RestoreTree.class.getName()).log(Level.SEVERE, null, ex);
         }
         return key_plain;
     }
+
+    // undo TreeWalker.wrapKey()
+    static byte[] unwrapKey(byte[] wrapped) throws IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException, NoSuchPaddingException {
+        Password master_pw = Encrypt1.GetMasterPw();
+        byte[] key_plain = master_pw.doDecrypt(wrapped);
+        return Arrays.copyOf(key_plain, 16);
+    }
 }
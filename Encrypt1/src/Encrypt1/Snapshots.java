@@ -0,0 +1,130 @@
+//------------------------------------------------------------------------------
+// Snapshots:
+//
+// Every encrypt run keeps its manifest as a numbered snapshot,
+// dbRoot\SNAP\snap_NNNNNN.man, a copy of META\TreeWalker.man made read only
+// once it is written.  Numbers only go up, so the DB keeps the whole history
+// of the tree and any snapshot can be given to -restore:.
+//
+// -diff:A,B compares two snapshots (numbers, or paths to manifests).  Both
+// manifests are walked in their path order side by side, a merge join, so it
+// is one pass over each and the memory used is the same for ten files or
+// ten million.  Prints one line per difference:
+//     A path   added in B
+//     D path   deleted in B
+//     M path   in both but the contents, size or time changed
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import static Encrypt1.PathNameKeeper.cat_path_s;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+public class Snapshots {
+
+    private static final String PREFIX = "snap_";
+    private static final String SUFFIX = ".man";
+
+    public static String get_snap_file(int n) {
+        return cat_path_s(PathNameKeeper.get_snap_folder(), String.format("%s%06d%s", PREFIX, n, SUFFIX));
+    }
+
+    // the snapshot numbers in SNAP, in order, empty if there are none
+    public static int[] list() {
+        String[] names = new File(PathNameKeeper.get_snap_folder()).list();
+        if (names == null) {
+            return new int[0];
+        }
+        int[] nums = new int[names.length];
+        int count = 0;
+        for (String s : names) {
+            if (s.startsWith(PREFIX) && s.endsWith(SUFFIX)) {
+                try {
+                    nums[count++] = Integer.parseInt(s.substring(PREFIX.length(), s.length() - SUFFIX.length()));
+                } catch (NumberFormatException ex) {
+                    // not one of ours
+                }
+            }
+        }
+        int[] result = Arrays.copyOf(nums, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    //--------------------------------------------------------------------------
+    // Keep a just written manifest as the next snapshot, returns its number.
+    // Copied to a temp name then renamed, so a snapshot is either complete
+    // or not there.
+    //--------------------------------------------------------------------------
+    public static int save(String manifest) throws IOException {
+        Files.createDirectories(Paths.get(PathNameKeeper.get_snap_folder()));
+        int[] nums = list();
+        int n = nums.length == 0 ? 1 : nums[nums.length - 1] + 1;
+        String snapfile = get_snap_file(n);
+        String tmpfile = snapfile + ".tmp";
+        Files.copy(Paths.get(manifest), Paths.get(tmpfile), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(Paths.get(tmpfile), Paths.get(snapfile), StandardCopyOption.ATOMIC_MOVE);
+        new File(snapfile).setReadOnly();
+        return n;
+    }
+
+    // -diff: takes a snapshot number or the pathname of a manifest
+    public static String resolve(String s) {
+        try {
+            return get_snap_file(Integer.parseInt(s.trim()));
+        } catch (NumberFormatException ex) {
+            return s;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Print what changed from manifest a to manifest b, see the top of file
+    //--------------------------------------------------------------------------
+    public static void diff(String a_s, String b_s) throws IOException {
+        Manifest a = Manifest.open(a_s);
+        Manifest b = Manifest.open(b_s);
+        long added = 0;
+        long deleted = 0;
+        long modified = 0;
+
+        int ka = 0;
+        int kb = 0;
+        String pa = ka < a.GetCount() ? a.GetPath(a.GetPathOrder(ka)) : null;
+        String pb = kb < b.GetCount() ? b.GetPath(b.GetPathOrder(kb)) : null;
+        while (pa != null || pb != null) {
+            int c;
+            if (pa == null) {
+                c = 1;
+            } else if (pb == null) {
+                c = -1;
+            } else {
+                c = Manifest.path_key(pa).compareTo(Manifest.path_key(pb));
+            }
+            if (c < 0) {
+                System.out.println("D " + pa);
+                deleted++;
+            } else if (c > 0) {
+                System.out.println("A " + pb);
+                added++;
+            } else if (!a.same_file(a.GetPathOrder(ka), b, b.GetPathOrder(kb))) {
+                System.out.println("M " + pb);
+                modified++;
+            }
+            if (c <= 0) {
+                ka++;
+                pa = ka < a.GetCount() ? a.GetPath(a.GetPathOrder(ka)) : null;
+            }
+            if (c >= 0) {
+                kb++;
+                pb = kb < b.GetCount() ? b.GetPath(b.GetPathOrder(kb)) : null;
+            }
+        }
+        System.out.println(String.format("Diff: %d added, %d deleted, %d modified, %d files in %s, %d in %s",
+                added, deleted, modified, a.GetCount(), a_s, b.GetCount(), b_s));
+    }
+}
@@ -0,0 +1,343 @@
+//------------------------------------------------------------------------------
+// StreamEngine:
+//
+// Bulk buffer version of the EncryptLib encrypt/decrypt loops.
+//
+// The original loops move 16 bytes at a time through FileInputStream.read(),
+// Cipher.update(byte[]) and an unbuffered FileOutputStream.write().  This does
+// the same job on channels with two large ByteBuffers per thread that are
+// reused for every file, and Cipher.update(ByteBuffer, ByteBuffer), so there
+// is no allocation per block.  Buffer size is -bufsize:N, -direct puts the
+// buffers outside the java heap.
+//
+// The file format is the one described at the top of EncryptLib.java, and
+// encrypt() writes exactly the bytes the 16-byte loop would for the same key
+// and IV, see the note in encrypt() about the tail of the file.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+public class StreamEngine {
+
+    private static final int BLOCKSIZE = EncryptLib.BLOCKSIZE;
+    private static final int HEADERSIZE = 40;          // IV + 3 longs
+    private static final int MAXPATHSIZE = 64 * 1024;  // sanity limit on the header's path size
+
+    // [0] = plaintext side, [1] = ciphertext side (one block bigger for padding)
+    // Shared by everything in here, so a thread can only have one encrypt(),
+    // hash() or Decryptor going at a time.
+    private static final ThreadLocal<ByteBuffer[]> s_buffers = new ThreadLocal<>();
+
+    private static ByteBuffer[] get_buffers() {
+        int size = OptionKeeper.get_bufsize();
+        boolean direct = OptionKeeper.get_direct();
+        ByteBuffer[] b = s_buffers.get();
+        if (b == null || b[0].capacity() != size || b[0].isDirect() != direct) {
+            b = new ByteBuffer[2];
+            b[0] = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            b[1] = direct ? ByteBuffer.allocateDirect(size + BLOCKSIZE) : ByteBuffer.allocate(size + BLOCKSIZE);
+            s_buffers.set(b);
+        }
+        b[0].clear();
+        b[1].clear();
+        return b;
+    }
+
+    // keep reading until buf is full or EOF, returns false if nothing was read at EOF
+    static boolean read_fully(ReadableByteChannel in, ByteBuffer buf) throws IOException {
+        boolean any = false;
+        while (buf.hasRemaining()) {
+            int n = in.read(buf);
+            if (n < 0) {
+                break;
+            }
+            any = any || n > 0;
+        }
+        return any;
+    }
+
+    static void write_fully(WritableByteChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    // hash everything readable from in, same result as TreeWalker.hashFileSHA1()
+    public static void hash(ReadableByteChannel in, ContentDigest digest) throws IOException {
+        ByteBuffer buf = get_buffers()[0];
+        while (read_fully(in, buf)) {
+            buf.flip();
+            digest.update(buf);
+            buf.clear();
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Encrypt everything readable from in and write a complete encrypted file
+    // (header, pathname, contents) to out.  digest may be null, otherwise every
+    // content byte is also fed to it.
+    //
+    // The tail of the file:
+    // encryptAES() has always read the input into the same 16 byte block it
+    // used for the pathname and it encrypts the whole block even on the last
+    // short read.  So the last partial block is filled out with the stale bytes
+    // of the block before it, and doFinal() then encrypts the final block a
+    // second time followed by the padding block.  The decrypt side only keeps
+    // file size bytes, so none of it matters for restore, but it is reproduced
+    // here so the output really is the same.  m_ring keeps the last 16
+    // plaintext bytes sent to the cipher to make that possible.
+    //--------------------------------------------------------------------------
+    public static void encrypt(ReadableByteChannel in, FileMeta filemeta, WritableByteChannel out, SecretKey aesKey, ContentDigest digest) throws IOException, GeneralSecurityException {
+
+        Cipher aesCipher = Cipher.getInstance(EncryptLib.AESNAME);
+        aesCipher.init(Cipher.ENCRYPT_MODE, aesKey);
+
+        ByteBuffer[] bufs = get_buffers();
+        Encryptor e = new Encryptor(aesCipher, bufs[0], bufs[1], out);
+
+        // header, plaintext
+        byte[] pathname_b = EncryptLib.GetPathBytes(filemeta.GetPathName());
+        ByteBuffer header = bufs[1];
+        header.put(aesCipher.getIV());
+        header.putLong(filemeta.GetFileSize());
+        header.putLong((long) pathname_b.length);
+        header.putLong(filemeta.GetTimeStamp());
+        header.flip();
+        write_fully(out, header);
+        header.clear();
+
+        // pathname, already padded to BLOCKSIZE
+        e.put(pathname_b);
+
+        // contents
+        ByteBuffer plain = bufs[0];
+        while (true) {
+            int start = plain.position();
+            int n = in.read(plain);
+            if (n < 0) {
+                break;
+            }
+            if (digest != null && n > 0) {
+                plain.flip();
+                plain.position(start);
+                digest.update(plain);
+                plain.limit(plain.capacity());
+            }
+            if (!plain.hasRemaining()) {
+                e.drain();
+            }
+        }
+        e.finish();
+    }
+
+    // Keeps track of the plaintext stream going into the cipher, see encrypt()
+    private static class Encryptor {
+        private final Cipher m_cipher;
+        private final ByteBuffer m_plain;
+        private final ByteBuffer m_ctext;
+        private final WritableByteChannel m_out;
+        private final byte[] m_ring = new byte[BLOCKSIZE];
+        private long m_drained = 0;     // plaintext bytes already sent to the cipher
+
+        Encryptor(Cipher cipher, ByteBuffer plain, ByteBuffer ctext, WritableByteChannel out) {
+            m_cipher = cipher;
+            m_plain = plain;
+            m_ctext = ctext;
+            m_out = out;
+        }
+
+        void put(byte[] b) throws IOException, GeneralSecurityException {
+            int off = 0;
+            while (off < b.length) {
+                int n = Math.min(m_plain.remaining(), b.length - off);
+                m_plain.put(b, off, n);
+                off += n;
+                if (!m_plain.hasRemaining()) {
+                    drain();
+                }
+            }
+        }
+
+        // plaintext byte at stream position p, p must be in the ring or the buffer
+        private byte byte_at(long p) {
+            if (p < 0) {
+                return 0;   // the legacy block started out zero filled
+            }
+            if (p >= m_drained) {
+                return m_plain.get((int) (p - m_drained));
+            }
+            return m_ring[(int) (p % BLOCKSIZE)];
+        }
+
+        void drain() throws IOException, GeneralSecurityException {
+            m_plain.flip();
+            int n = m_plain.remaining();
+            for (int i = Math.max(0, n - BLOCKSIZE); i < n; i++) {
+                m_ring[(int) ((m_drained + i) % BLOCKSIZE)] = m_plain.get(i);
+            }
+            m_cipher.update(m_plain, m_ctext);
+            m_drained += n;
+            flush();
+            m_plain.clear();
+        }
+
+        void finish() throws IOException, GeneralSecurityException {
+            // fill out the last short block with the stale bytes of the block before
+            long total = m_drained + m_plain.position();
+            int r = (int) (total % BLOCKSIZE);
+            if (r != 0) {
+                for (long p = total - BLOCKSIZE; p < total - r; p++) {
+                    m_plain.put(byte_at(p));
+                }
+                total += BLOCKSIZE - r;
+            }
+            if (!m_plain.hasRemaining()) {
+                drain();
+            }
+            // then the final block goes through a second time with doFinal()
+            for (long p = total - BLOCKSIZE; p < total; p++) {
+                m_plain.put(byte_at(p));
+            }
+            m_plain.flip();
+            m_cipher.doFinal(m_plain, m_ctext);
+            flush();
+            m_plain.clear();
+        }
+
+        private void flush() throws IOException {
+            m_ctext.flip();
+            write_fully(m_out, m_ctext);
+            m_ctext.clear();
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Decryptor:
+    // The constructor reads the plaintext header and decrypts the pathname, so
+    // the caller can decide whether to restore before any content is read.
+    // Then copyTo() streams the file contents out.
+    //--------------------------------------------------------------------------
+    public static class Decryptor implements BlobReader {
+
+        private final ReadableByteChannel m_in;
+        private final Cipher m_cipher;
+        private final ByteBuffer m_ctext;
+        private final ByteBuffer m_plain;   // decrypted bytes not yet consumed, kept in read mode
+        private final long m_filesize;
+        private final long m_timestamp;
+        private final String m_pathname;
+        private boolean m_eof = false;
+
+        public Decryptor(ReadableByteChannel in, SecretKey aesKey) throws IOException, GeneralSecurityException {
+            m_in = in;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADERSIZE);
+            read_fully(in, header);
+            if (header.hasRemaining()) {
+                throw new IOException("encrypted file header is truncated");
+            }
+            header.flip();
+            byte[] aesIV = new byte[BLOCKSIZE];
+            header.get(aesIV);
+            m_filesize = header.getLong();
+            long path_size = header.getLong();
+            m_timestamp = header.getLong();
+            if (path_size < 0 || path_size > MAXPATHSIZE || path_size % BLOCKSIZE != 0 || m_filesize < 0) {
+                throw new IOException("encrypted file header is not valid");
+            }
+
+            m_cipher = Cipher.getInstance(EncryptLib.AESNAME);
+            m_cipher.init(Cipher.DECRYPT_MODE, aesKey, new IvParameterSpec(aesIV));
+
+            ByteBuffer[] bufs = get_buffers();
+            m_ctext = bufs[0];
+            m_plain = bufs[1];
+            m_plain.flip();     // empty, read mode
+
+            // Note calls to Cipher.update() don't always return data, so keep
+            // going until path_size bytes come out of the cipher
+            byte[] pathname_b = new byte[(int) path_size];
+            int nCopied = 0;
+            while (nCopied < path_size) {
+                if (!m_plain.hasRemaining() && !fill()) {
+                    throw new IOException("encrypted file is truncated in the pathname");
+                }
+                int n = Math.min(m_plain.remaining(), (int) path_size - nCopied);
+                m_plain.get(pathname_b, nCopied, n);
+                nCopied += n;
+            }
+            m_pathname = EncryptLib.GetPathString(pathname_b);
+        }
+
+        @Override
+        public String GetPathName() {
+            return m_pathname;
+        }
+
+        @Override
+        public long GetTimeStamp() {
+            return m_timestamp;
+        }
+
+        @Override
+        public long GetFileSize() {
+            return m_filesize;
+        }
+
+        // decrypt the next buffer of ciphertext into m_plain, false at EOF
+        private boolean fill() throws IOException, GeneralSecurityException {
+            if (m_eof) {
+                return false;
+            }
+            m_ctext.clear();
+            if (!read_fully(m_in, m_ctext)) {
+                m_eof = true;
+                return false;
+            }
+            m_ctext.flip();
+            m_plain.clear();
+            m_cipher.update(m_ctext, m_plain);
+            m_plain.flip();
+            return true;
+        }
+
+        // write the file contents to out, returns the number of bytes written
+        // which is less than GetFileSize() only if the encrypted file is short
+        @Override
+        public long copyTo(WritableByteChannel out) throws IOException, GeneralSecurityException {
+            long nWrote = 0;
+            while (nWrote < m_filesize) {
+                if (!m_plain.hasRemaining() && !fill()) {
+                    break;      // something is wrong with the input file if this happens
+                }
+                int n = (int) Math.min(m_plain.remaining(), m_filesize - nWrote);
+                int limit = m_plain.limit();
+                m_plain.limit(m_plain.position() + n);
+                write_fully(out, m_plain);
+                m_plain.limit(limit);
+                nWrote += n;
+            }
+            return nWrote;
+        }
+
+        // Read the rest of the input, past the contents, and check the padding
+        // of the final block.  copyTo() never gets that far, so this is the
+        // only thing that notices the end of the file was changed.
+        public void finish() throws IOException, GeneralSecurityException {
+            while (fill()) {
+                // the tail is not kept
+            }
+            m_plain.clear();
+            m_cipher.doFinal(ByteBuffer.allocate(0), m_plain);
+        }
+    }
+}
@@ -1,9 +1,9 @@
 package Encrypt1;
 import static Encrypt1.PathNameKeeper.cat_path_s;
-import static Encrypt1.PathNameKeeper.does_file_exist;
 import static Encrypt1.PathNameKeeper.get_dat_folder;
-import static Encrypt1.PathNameKeeper.get_key_folder;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
 import static java.nio.file.FileVisitResult.*;
@@ -11,6 +11,7 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.BadPaddingException;
@@ -23,17 +24,124 @@ public class TreeWalker extends SimpleFileVisitor<Path> {
 
     private final Path m_root;
 
-    private final PrintWriter m_writer;
+    private final Manifest.Writer m_manifest;
 
-    public TreeWalker(Path root) throws FileNotFoundException, UnsupportedEncodingException {
+    private final String m_manifest_s;
+
+    private final EncryptPipeline m_pipeline;   // null for the original serial walk
+
+    private final BackupIndex m_index;          // null unless -incremental
+
+    private final PackStore m_packs;            // null unless -pack
+
+    private final boolean m_ownPacks;           // close() closes m_packs, else only syncs it
+
+    private final Manifest m_last;              // null unless -delta, the latest snapshot
+
+    private long m_walkStart = Metrics.start(); // when the walk last left visitFile()
+
+    private final boolean m_snap;               // close() saves a snapshot of the manifest
+
+    private String m_snapshot = null;           // the snapshot close() saved
+
+    public TreeWalker(Path root) throws FileNotFoundException, UnsupportedEncodingException, IOException {
+        this(root, PathNameKeeper.get_meta_file_write(), true, null);
+    }
+
+    // write the manifest to manifest_s instead, saved as a snapshot or not,
+    // and with -pack append to packs, which stays open, see WatchDaemon
+    TreeWalker(Path root, String manifest_s, boolean snap, PackStore packs) throws FileNotFoundException, UnsupportedEncodingException, IOException {
         m_root = get_full_path(root);
-        m_writer = new PrintWriter(PathNameKeeper.get_meta_file_write(), "UTF-8");
+        m_snap = snap;
+        m_manifest_s = manifest_s;
+        m_manifest = new Manifest.Writer(manifest_s);
+        if (OptionKeeper.get_incremental()) {
+            m_index = BackupIndex.load(PathNameKeeper.get_index_file());
+        } else {
+            m_index = null;
+        }
+        m_ownPacks = packs == null;
+        if (!OptionKeeper.get_pack()) {
+            m_packs = null;
+        } else if (packs != null) {
+            m_packs = packs;
+        } else {
+            m_packs = PackStore.open();
+        }
+        int[] snaps = OptionKeeper.get_delta() ? Snapshots.list() : new int[0];
+        if (snaps.length > 0) {
+            m_last = Manifest.open(Snapshots.get_snap_file(snaps[snaps.length - 1]));
+        } else {
+            m_last = null;
+        }
+        if (OptionKeeper.get_threads() > 1) {
+            m_pipeline = new EncryptPipeline(this, OptionKeeper.get_threads(), OptionKeeper.get_queue());
+        } else {
+            m_pipeline = null;
+        }
     }
     
     public void close() {
-        m_writer.close();
+        if (m_pipeline != null) {
+            m_pipeline.close();
+        }
+        // the keys, and the packs that hold keys too, go to disk before the
+        // manifest, the snapshot and the index that name their blobs;
+        // without them none of those are written
+        boolean keys = true;
+        try {
+            Keystore.sync();
+            if (m_packs != null) {
+                if (m_ownPacks) {
+                    m_packs.close();
+                } else {
+                    m_packs.sync();
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(TreeWalker.class.getName()).log(Level.SEVERE, "keys not saved, the last manifest stays", ex);
+            keys = false;
+        }
+        try {
+            if (!keys) {
+                m_manifest.abort();
+            } else {
+                m_manifest.close();
+                if (m_snap) {
+                    int n = Snapshots.save(m_manifest_s);
+                    m_snapshot = Snapshots.get_snap_file(n);
+                    System.out.println("Snapshot " + n + ": " + m_snapshot);
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(TreeWalker.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        if (m_index != null && keys) {
+            try {
+                m_index.save();
+            } catch (IOException ex) {
+                Logger.getLogger(TreeWalker.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
     }
     
+    // the snapshot of this run's manifest, null until close() saved it
+    public String GetSnapshot() {
+        return m_snapshot;
+    }
+
+    // records in the manifest so far, all of them after close()
+    public int GetRecords() {
+        return m_manifest.GetCount();
+    }
+
+    // Put a record of an earlier manifest in this one as it is, for a file
+    // that has not changed, see WatchDaemon.  Call before the first
+    // visitFile(), the EncryptPipeline writer thread adds records after that.
+    void copy_record(String line, FileMeta filemeta) throws IOException {
+        m_manifest.add(line, filemeta);
+    }
+
     private Path get_full_path(Path p) {
         return p.toAbsolutePath();
     }
@@ -67,18 +175,124 @@ public class TreeWalker extends SimpleFileVisitor<Path> {
     
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        Metrics.stop(Metrics.Phase.WALK, m_walkStart);
+        if (m_pipeline != null) {
+            m_pipeline.submit(file, attrs);     // blocks while the pipeline is full
+        } else {
+            String final_name = encrypt_one(file, attrs);
+            if (final_name != null) {
+                write_manifest(final_name, file, attrs);
+            }
+        }
+        m_walkStart = Metrics.start();
+        return CONTINUE;
+    }
+
+    // only ever called from one thread at a time, either the walk thread or
+    // the EncryptPipeline writer thread.  The manifest keeps the file's path,
+    // size and mtime with its name, see Manifest.
+    void write_manifest(String final_name, Path file, BasicFileAttributes attrs) {
+        long t = Metrics.start();
+        FileMeta filemeta = new FileMeta(get_sub_path(file.toString()), attrs.lastModifiedTime().toMillis(), attrs.size());
+        try {
+            m_manifest.add(final_name, filemeta);
+            Metrics.stop(Metrics.Phase.WRITE, t);
+            Metrics.file_done(attrs.size());
+        } catch (IOException ex) {
+            Logger.getLogger(TreeWalker.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    // Hash, encrypt and save the key for one file.  Returns the name that goes
+    // in the manifest, or null if the file could not be read or stored.
+    // This is called on EncryptPipeline worker threads so it must not touch
+    // any member state except the read only m_root and the thread safe m_index
+    // and m_packs.
+    String encrypt_one(Path file, BasicFileAttributes attrs) {
+        if (m_index == null) {
+            return encrypt_one_read(file, attrs);
+        }
+
+        // -incremental, an unchanged file costs nothing more than the walk's stat
+        String hashThis = String.format("%s_%d_%d", get_sub_path(file), attrs.lastModifiedTime().toMillis(), attrs.size());
+        boolean cdc = OptionKeeper.get_cdc();
+        String sha1_extra = cdc ? ChunkStore.recipe_extra(hashThis) : hashStringSHA1(hashThis);
+        long t = Metrics.start();
+        String final_name = m_index.lookup(sha1_extra, attrs);
+        String prefix = cdc ? ChunkStore.MANIFEST_PREFIX : "";
+        if (final_name == null && !cdc && OptionKeeper.get_delta()) {
+            // -delta, the last run may have stored it as a delta
+            final_name = m_index.lookup(DeltaStore.delta_extra(hashThis), attrs);
+            prefix = DeltaStore.MANIFEST_PREFIX;
+        }
+        if (final_name == null && !cdc && OptionKeeper.get_merkle()) {
+            // -merkle, the last run may have named it by its Merkle root
+            final_name = m_index.lookup(MerkleHash.merkle_extra(hashThis), attrs);
+            prefix = MerkleHash.MANIFEST_PREFIX;
+        }
+        if (final_name != null && !key_is_saved(final_name)) {
+            // the index outlived the key, a crash before Keystore.sync()
+            Metrics.debug("index entry without a key, stored again\n     " + file);
+            final_name = null;
+        }
+        if (final_name != null) {
+            Metrics.stop(Metrics.Phase.SKIP, t);
+            Metrics.debug("SKIP encryption - unchanged since last run\n     " + file);
+            final_name = prefix + final_name;
+        } else {
+            final_name = encrypt_one_read(file, attrs);
+        }
+        if (final_name != null) {
+            m_index.add(final_name.substring(final_name.indexOf(':') + 1), attrs);
+        }
+        return final_name;
+    }
+
+    // true if the blob an -incremental hit names still has its key
+    private boolean key_is_saved(String name) {
+        try {
+            return Keystore.hasKey(name) || (m_packs != null && m_packs.contains(name));
+        } catch (IOException ex) {
+            Logger.getLogger(TreeWalker.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+
+    private String encrypt_one_read(Path file, BasicFileAttributes attrs) {
+        if (OptionKeeper.get_cdc()) {
+            return encrypt_one_cdc(file, attrs);
+        }
+        if (OptionKeeper.get_delta() && attrs.size() >= OptionKeeper.get_deltamin()) {
+            return encrypt_one_delta(file, attrs);
+        }
+        if (m_packs != null && attrs.size() <= OptionKeeper.get_packmax()) {
+            return encrypt_one_pack(file, attrs);
+        }
+        if (OptionKeeper.get_single_pass()) {
+            return encrypt_one_pass(file, attrs);
+        }
         Path filePath = get_sub_path(file);
         Path fullPath = get_full_path(file);
 
         long len = attrs.size();
         long timestamp = attrs.lastModifiedTime().toMillis();
 
-        // compute hash of this file's contents
-        String sha1 = hashFileSHA1(fullPath.toString());
+        // compute hash of this file's contents, -merkle on every core
+        boolean merkle = OptionKeeper.get_merkle();
+        byte[][] leaves = null;
+        String sha1;
+        long t = Metrics.start();
+        if (merkle) {
+            leaves = hashFileMerkle(fullPath);
+            sha1 = leaves == null ? null : hashMerkleRoot(leaves);
+        } else {
+            sha1 = hashFileSHA1(fullPath.toString());
+        }
+        Metrics.stop(Metrics.Phase.HASH, t);
 
         // compute hash of the additional key values, (filepath, timestamp, len)
         String hashThis = String.format("%s_%d_%d", filePath, timestamp, len);
-        String sha1_extra = hashStringSHA1(hashThis);
+        String sha1_extra = merkle ? MerkleHash.merkle_extra(hashThis) : hashStringSHA1(hashThis);
 
         // now make the final unique identifier to name the encrypted file
         // sha1File_sha1_Path
@@ -86,44 +300,223 @@ public class TreeWalker extends SimpleFileVisitor<Path> {
 
         // If we computed the sha1 of the file's contents, then we can read it
         // Only put this file in the manifest if we opened it ok
-        if (!"".equals(sha1)) {
+        if (sha1 == null || "".equals(sha1)) {
+            return null;
+        }
+        try {
+            // Build fully qualified pathnames
+            String infile = fullPath.toString();
+            String outfile = cat_path_s(get_dat_folder(), final_name);
+
+            t = Metrics.start();
+            if (Keystore.is_stored(final_name)) {
+                Metrics.stop(Metrics.Phase.SKIP, t);
+                Metrics.debug("SKIP encryption - output file already exists\n     " + outfile);
+            } else {
+                // Get a new encryption key and save it, see Keystore
+                SecretKey aesKey;
+
+                t = Metrics.start();
+                aesKey = EncryptLib.getKey();
+                Metrics.stop(Metrics.Phase.KEYGEN, t);
+                t = Metrics.start();
+                Keystore.saveKey(final_name, aesKey);
+                Metrics.stop(Metrics.Phase.KEYWRAP, t);
+
+                // infile in filemeta needs to be relative to the srcRoot
+                // because this string is written into the encrypted file's header
+                String relativeName = get_sub_path(infile);
+                FileMeta filemeta = new FileMeta(relativeName, timestamp, len);
+
+                // encrypt
+                t = Metrics.start();
+                EncryptLib.encryptAES(infile, filemeta, outfile, aesKey);
+                Metrics.stop(Metrics.Phase.ENCRYPT, t);
+            }
+            if (merkle) {
+                // the leaves go with the blob, see MerkleHash
+                t = Metrics.start();
+                MerkleHash.store_tree(final_name, leaves, len);
+                Metrics.stop(Metrics.Phase.WRITE, t);
+            }
+        } catch (NoSuchAlgorithmException | IOException ex) {
+            // not in the manifest or the index, so the next run tries it again
+            Logger.getLogger(TreeWalker.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+        return merkle ? MerkleHash.MANIFEST_PREFIX + final_name : final_name;
+    }
+
+    // -singlepass version of encrypt_one(), reads the file only once.
+    //
+    // The blob name depends on the SHA-1 of the contents, which is not known
+    // until the whole file has gone through the cipher.  So encrypt to a temp
+    // blob in DAT while hashing the same buffers, then either rename the temp
+    // blob to sha1_sha1extra or throw it away if that blob is already there.
+    // The trade off is an unchanged file now costs an encrypt instead of a
+    // hash before it is skipped, but only one read either way.
+    private String encrypt_one_pass(Path file, BasicFileAttributes attrs) {
+        Path filePath = get_sub_path(file);
+        Path fullPath = get_full_path(file);
+
+        long len = attrs.size();
+        long timestamp = attrs.lastModifiedTime().toMillis();
+
+        String hashThis = String.format("%s_%d_%d", filePath, timestamp, len);
+        String sha1_extra = hashStringSHA1(hashThis);
+
+        String infile = fullPath.toString();
+        String tmpfile = cat_path_s(get_dat_folder(), "tmp_" + UUID.randomUUID().toString());
+        try {
+            long t = Metrics.start();
+            SecretKey aesKey = EncryptLib.getKey();
+            Metrics.stop(Metrics.Phase.KEYGEN, t);
+            FileMeta filemeta = new FileMeta(get_sub_path(infile), timestamp, len);
+            ContentDigest digest = new ContentDigest();
+
+            t = Metrics.start();
+            EncryptLib.encryptAES(infile, filemeta, tmpfile, aesKey, digest);
+            Metrics.stop(Metrics.Phase.ENCRYPT, t);
+
+            String final_name = String.format("%s_%s", digest.digest(), sha1_extra);
+            String outfile = cat_path_s(get_dat_folder(), final_name);
+
+            t = Metrics.start();
+            if (Keystore.is_stored(final_name)) {
+                Metrics.debug("SKIP encryption - output file already exists\n     " + outfile);
+                Files.delete(Paths.get(tmpfile));
+                Metrics.stop(Metrics.Phase.SKIP, t);
+            } else {
+                // key goes first, a blob must never be visible without its key
+                t = Metrics.start();
+                Keystore.saveKey(final_name, aesKey);
+                Metrics.stop(Metrics.Phase.KEYWRAP, t);
+                t = Metrics.start();
+                Files.move(Paths.get(tmpfile), Paths.get(outfile), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                Metrics.stop(Metrics.Phase.WRITE, t);
+            }
+            return final_name;
+        } catch (NoSuchAlgorithmException | IOException ex) {
+            Logger.getLogger(TreeWalker.class.getName()).log(Level.SEVERE, null, ex);
             try {
-                m_writer.println(final_name);
+                Files.deleteIfExists(Paths.get(tmpfile));
+            } catch (IOException ex2) {
+                Logger.getLogger(TreeWalker.class.getName()).log(Level.SEVERE, null, ex2);
+            }
+        }
+        return null;
+    }
 
-                // Build fully qualified pathnames
-                String infile = fullPath.toString();
-                String outfile = cat_path_s(get_dat_folder(), final_name);
-                String keyfile = cat_path_s(get_key_folder(), final_name);
+    // -cdc version of encrypt_one(), see ChunkStore
+    private String encrypt_one_cdc(Path file, BasicFileAttributes attrs) {
+        Path filePath = get_sub_path(file);
+        Path fullPath = get_full_path(file);
 
-                if (does_file_exist(outfile)) {
-                    System.out.println("SKIP encryption - output file already exists\n     " + outfile);
-                } else {
-                    // Get a new encryption key and save it to file
-                    // TODO: should be a getKey() function in EncryptLib
-                    SecretKey aesKey;
-                    String key_s;
-
-                    aesKey = EncryptLib.getKey();
-                    key_s = byteToHex(aesKey.getEncoded());
-                    saveKeyToFile(key_s, keyfile);
-
-                    // infile in filemeta needs to be relative to the srcRoot
-                    // because this string is written into the encrypted file's header
-                    String relativeName = get_sub_path(infile);
-                    FileMeta filemeta = new FileMeta(relativeName, timestamp, len);
-
-                    // encrypt
-                    EncryptLib.encryptAES(infile, filemeta, outfile, aesKey);
+        long len = attrs.size();
+        long timestamp = attrs.lastModifiedTime().toMillis();
+
+        String hashThis = String.format("%s_%d_%d", filePath, timestamp, len);
+        String infile = fullPath.toString();
+        try {
+            FileMeta filemeta = new FileMeta(get_sub_path(infile), timestamp, len);
+            long t = Metrics.start();
+            String final_name = ChunkStore.storeFile(infile, filemeta, ChunkStore.recipe_extra(hashThis));
+            Metrics.stop(Metrics.Phase.ENCRYPT, t);
+            return final_name;
+        } catch (NoSuchAlgorithmException | IOException ex) {
+            Logger.getLogger(TreeWalker.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
+    // -delta version of encrypt_one() for big files, see DeltaStore.  The
+    // file's last version is the one in the latest snapshot under its path.
+    private String encrypt_one_delta(Path file, BasicFileAttributes attrs) {
+        Path filePath = get_sub_path(file);
+        Path fullPath = get_full_path(file);
+
+        long len = attrs.size();
+        long timestamp = attrs.lastModifiedTime().toMillis();
+
+        String hashThis = String.format("%s_%d_%d", filePath, timestamp, len);
+        String infile = fullPath.toString();
+        try {
+            FileMeta filemeta = new FileMeta(get_sub_path(infile), timestamp, len);
+            String base = null;
+            if (m_last != null) {
+                int i = m_last.find_path(filemeta.GetPathName());
+                if (i >= 0) {
+                    base = m_last.GetLine(i);
                 }
-            } catch (NoSuchAlgorithmException | IOException ex) {
-                Logger.getLogger(TreeWalker.class.getName()).log(Level.SEVERE, null, ex);
             }
+            long t = Metrics.start();
+            String final_name = DeltaStore.storeFile(infile, filemeta, hashThis, base);
+            Metrics.stop(Metrics.Phase.ENCRYPT, t);
+            return final_name;
+        } catch (NoSuchAlgorithmException | IOException ex) {
+            Logger.getLogger(TreeWalker.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
+    // -pack version of encrypt_one() for small files, see PackStore.  The file
+    // is small so it is read into memory once, hashed and encrypted from there,
+    // and the blob and its wrapped key are appended to a pack.
+    private String encrypt_one_pack(Path file, BasicFileAttributes attrs) {
+        Path filePath = get_sub_path(file);
+        Path fullPath = get_full_path(file);
+
+        long timestamp = attrs.lastModifiedTime().toMillis();
+
+        String hashThis = String.format("%s_%d_%d", filePath, timestamp, attrs.size());
+        String sha1_extra = hashStringSHA1(hashThis);
+        try {
+            long t = Metrics.start();
+            byte[] data = Files.readAllBytes(fullPath);
+            ContentDigest digest = new ContentDigest();
+            digest.update(data, 0, data.length);
+            Metrics.stop(Metrics.Phase.HASH, t);
+
+            String final_name = String.format("%s_%s", digest.digest(), sha1_extra);
+            t = Metrics.start();
+            if (m_packs.contains(final_name) || Keystore.is_stored(final_name)) {
+                Metrics.stop(Metrics.Phase.SKIP, t);
+                Metrics.debug("SKIP encryption - output file already exists\n     " + final_name);
+            } else {
+                Metrics.debug("Encrypt infile " + fullPath + " (packed)");
+                t = Metrics.start();
+                SecretKey aesKey = EncryptLib.getKey();
+                Metrics.stop(Metrics.Phase.KEYGEN, t);
+                FileMeta filemeta = new FileMeta(filePath.toString(), timestamp, data.length);
+                t = Metrics.start();
+                byte[] blob = EncryptLib.encryptToBytes(data, filemeta, aesKey);
+                Metrics.stop(Metrics.Phase.ENCRYPT, t);
+                t = Metrics.start();
+                byte[] wrapped = wrapKey(aesKey);
+                Metrics.stop(Metrics.Phase.KEYWRAP, t);
+                t = Metrics.start();
+                m_packs.put(final_name, wrapped, blob);
+                Metrics.stop(Metrics.Phase.WRITE, t);
+            }
+            return final_name;
+        } catch (NoSuchAlgorithmException | IOException ex) {
+            Logger.getLogger(TreeWalker.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
+    // The encryption key encrypted with the master_pw, the same bytes that
+    // saveKeyToFile() writes as hex
+    static byte[] wrapKey(SecretKey aesKey) throws IOException {
+        try {
+            return Encrypt1.GetMasterPw().doEncrypt(aesKey.getEncoded());
+        } catch (IllegalBlockSizeException | BadPaddingException | NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException ex) {
+            throw new IOException(ex);
         }
-        return CONTINUE;
     }
 
     // Save the encryption key to a file but encrypt it using the master_pw
-    private void saveKeyToFile(String key_s, String outfile) throws FileNotFoundException {
+    static void saveKeyToFile(String key_s, String outfile) throws FileNotFoundException {
         try (PrintWriter pw = new PrintWriter(outfile)) {
             Password master_pw = Encrypt1.GetMasterPw();
             byte[] ciphertext = master_pw.doEncrypt(TreeWalker.hexStringToByteArray(key_s));
@@ -145,19 +538,20 @@ public class TreeWalker extends SimpleFileVisitor<Path> {
     }
 
     // compute a SHA1 of the given file's contents
-    private static String hashFileSHA1(String filename) {
-        try (FileInputStream fis = new FileInputStream(filename)) {
-            MessageDigest digest = MessageDigest.getInstance("SHA-1");
-            digest.reset();
-            byte[] buf = new byte[64];
-            int nRead = fis.read(buf);
-            while (nRead > 0) {
-                digest.update(buf);
-                nRead = fis.read(buf);
+    // ContentDigest keeps the result the same as the original 64 byte loop
+    static String hashFileSHA1(String filename) {
+        try (FileChannel in = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ContentDigest digest = new ContentDigest();
+            if (AsyncChannels.use_for(in.size())) {
+                try (ReadableByteChannel ain = AsyncChannels.reader(Paths.get(filename))) {
+                    StreamEngine.hash(ain, digest);     // -async, read ahead of the hash
+                }
+            } else {
+                StreamEngine.hash(in, digest);
             }
-            String sha1 = byteToHex(digest.digest());
+            String sha1 = digest.digest();
             return sha1;
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException | FileNotFoundException ex) {
+        } catch (NoSuchAlgorithmException ex) {
             Logger.getLogger(TreeWalker.class.getName()).log(Level.SEVERE, null, ex);
         } catch (IOException ex) {
             Logger.getLogger(TreeWalker.class.getName()).log(Level.SEVERE, null, ex);
@@ -165,8 +559,27 @@ public class TreeWalker extends SimpleFileVisitor<Path> {
         return null;
     }
 
+    // -merkle, the leaves of the file's Merkle tree, see MerkleHash
+    static byte[][] hashFileMerkle(Path file) {
+        try {
+            return MerkleHash.leaves(file);
+        } catch (NoSuchAlgorithmException | IOException ex) {
+            Logger.getLogger(TreeWalker.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
+    static String hashMerkleRoot(byte[][] leaves) {
+        try {
+            return MerkleHash.name_hash(leaves);
+        } catch (NoSuchAlgorithmException ex) {
+            Logger.getLogger(TreeWalker.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
     // compute a SHA1 of the given String
-    private static String hashStringSHA1(String s) {
+    static String hashStringSHA1(String s) {
         try {
             MessageDigest digest = MessageDigest.getInstance("SHA-1");
             digest.reset();
@@ -0,0 +1,422 @@
+//------------------------------------------------------------------------------
+// WatchDaemon:
+//
+// -watch[:N[,S]].  Continuous backup.  One normal encrypt of srcRoot first,
+// then every folder under srcRoot is registered with a WatchService and only
+// the files that change are encrypted, in small batches.
+//
+// Events are coalesced: the changed paths go in a set, so a file written a
+// hundred times is one entry, and a batch starts once no event has come for
+// N ms (2000 by default).  A tree that never goes quiet is still backed up,
+// at most every MAXWAIT quiet periods or every MAXBATCH paths.
+//
+// A batch only touches what changed.  The changed paths go in m_roots, and
+// the pending manifest, META\TreeWalker.watch.man, is written again with its
+// records that are not under this batch's paths plus a visit of each path:
+//     a file that is there     encrypted as in a normal run
+//     a folder                 walked, a new or moved in folder, or a rescan
+//     a path that is gone      nothing, its records are not copied
+// The pending manifest only holds what changed since the last snapshot, so
+// a batch costs the size of the changes, not of the tree.
+//
+// Snapshots are coalesced.  At most every S seconds (60 by default, 0 for a
+// snapshot after every batch), once the pending manifest gets to MAXPENDING
+// records or paths, and when the daemon is stopped, the last snapshot and
+// the pending manifest are merged in path order, a merge join like -diff:
+// the last snapshot's records under m_roots are dropped and the pending ones
+// go in their place.  So a deleted file or folder drops out of the manifest
+// and a new one is picked up.  That is written as META\TreeWalker.man and
+// saved as the next snapshot like any other encrypt run.
+//
+// OVERFLOW means the OS dropped events for a folder.  That folder alone goes
+// in the set as a changed path and is walked again, not the whole tree, and
+// every folder under it is registered again, so one made while the events
+// were lost is watched from then on.
+// Blobs that are already stored cost a hash, see Keystore.is_stored().
+//
+// -incremental is used by the first encrypt only, BackupIndex.save() writes
+// just the files a run saw, so a batch must not save it.
+//
+// The keystore and the -pack store are opened once and kept for the life of
+// the daemon, so a batch does not read them and derive the master key again.
+// A batch forces the keys and pack entries it wrote before its manifest, a
+// snapshot also writes the pack index, and the shutdown hook saves the last
+// snapshot and closes both.  Runs until it is killed.  If it dies without the
+// last snapshot, -gc still keeps the pending manifest's blobs, the next open
+// of the packs scans in what the index missed, and the next -watch starts
+// with a full encrypt.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class WatchDaemon {
+
+    // a batch starts after this many quiet periods even if events keep coming
+    private static final int MAXWAIT = 10;
+
+    // or once this many paths have changed
+    private static final int MAXBATCH = 10000;
+
+    // a snapshot is saved once the pending manifest has this many records,
+    // or m_roots this many paths, however soon
+    private static final int MAXPENDING = 100000;
+
+    private final Path m_root;
+    private final Path m_dbRoot;                // never watched if it is under srcRoot
+    private final long m_quiet;                 // -watch:N in nanoseconds
+    private final WatchService m_watcher;
+    private final PackStore m_packs;            // null unless -pack, open until stop()
+    private final Map<WatchKey, Path> m_keys = new HashMap<>();
+    private final Set<Path> m_dirty = new LinkedHashSet<>();
+    private final long m_snapEvery;             // -watch:N,S in nanoseconds
+    private final String m_pending;             // changes since m_base, see the top of file
+    private final Set<String> m_roots = new HashSet<>();   // path_keys changed since m_base
+    private int m_pendingCount = 0;             // records in m_pending
+    private String m_base;                      // the last snapshot
+    private long m_snapTime;                    // when it was saved
+
+    private long m_batches = 0;
+    private long m_overflows = 0;
+
+    private WatchDaemon(Path root) throws IOException {
+        m_root = root.toAbsolutePath();
+        m_dbRoot = Paths.get(PathNameKeeper.get_dbRoot()).toAbsolutePath();
+        m_quiet = TimeUnit.MILLISECONDS.toNanos(OptionKeeper.get_watch());
+        m_snapEvery = TimeUnit.SECONDS.toNanos(OptionKeeper.get_watchsnap());
+        m_pending = PathNameKeeper.get_watch_file();
+        m_watcher = m_root.getFileSystem().newWatchService();
+        m_packs = OptionKeeper.get_pack() ? PackStore.open() : null;
+    }
+
+    //--------------------------------------------------------------------------
+    // Encrypt srcRoot once and then keep up with it, never returns
+    //--------------------------------------------------------------------------
+    public static void run(Path root) throws Exception {
+        WatchDaemon d = new WatchDaemon(root);
+
+        // left by a daemon that died, the first walk covers it
+        Files.deleteIfExists(Paths.get(d.m_pending));
+
+        // register before the first walk, a change made during it is then
+        // either in the walk or in the first batch
+        d.register_tree(d.m_root);
+        System.out.println("Watch: " + d.m_keys.size() + " folders under " + d.m_root);
+
+        Metrics.start_reporting("Encrypt");
+        TreeWalker walker = new TreeWalker(d.m_root, PathNameKeeper.get_meta_file_write(), true, d.m_packs);
+        try {
+            ParallelWalk.walk_tree(d.m_root, walker);
+        } finally {
+            walker.close();
+        }
+        if (d.m_packs != null) {
+            d.m_packs.checkpoint();
+        }
+        Metrics.stop_reporting();
+        d.m_base = walker.GetSnapshot();
+        d.m_snapTime = System.nanoTime();
+        if (d.m_base == null) {
+            throw new IOException("first encrypt did not save a snapshot");
+        }
+        OptionKeeper.set_incremental(false);
+
+        final WatchDaemon daemon = d;
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                daemon.stop();      // after a batch that is running, it holds the lock
+            }
+        }, "WatchDaemon"));
+        d.loop();
+    }
+
+    private void loop() throws InterruptedException {
+        long first = 0;     // when the first event of the pending batch came
+        long last = 0;      // when the latest one came
+        while (true) {
+            WatchKey key;
+            if (!m_dirty.isEmpty()) {
+                long wait = Math.min(last + m_quiet, first + MAXWAIT * m_quiet) - System.nanoTime();
+                key = wait > 0 ? m_watcher.poll(wait, TimeUnit.NANOSECONDS) : m_watcher.poll();
+            } else if (has_pending()) {
+                long wait = m_snapTime + m_snapEvery - System.nanoTime();
+                key = wait > 0 ? m_watcher.poll(wait, TimeUnit.NANOSECONDS) : m_watcher.poll();
+            } else {
+                key = m_watcher.take();
+            }
+            // take everything that is queued, one wake up for a burst
+            while (key != null) {
+                boolean had = !m_dirty.isEmpty();
+                handle(key);
+                if (!m_dirty.isEmpty()) {
+                    last = System.nanoTime();
+                    if (!had) {
+                        first = last;
+                    }
+                }
+                key = m_watcher.poll();
+            }
+            long now = System.nanoTime();
+            if (!m_dirty.isEmpty()
+                    && (now - last >= m_quiet || now - first >= MAXWAIT * m_quiet || m_dirty.size() >= MAXBATCH)) {
+                batch(first);
+            }
+            if (m_dirty.isEmpty() && has_pending() && System.nanoTime() - m_snapTime >= m_snapEvery) {
+                snapshot();
+            }
+        }
+    }
+
+    private synchronized boolean has_pending() {
+        return !m_roots.isEmpty();
+    }
+
+    //--------------------------------------------------------------------------
+    // Events
+    //--------------------------------------------------------------------------
+
+    // register dir and every folder under it
+    private void register_tree(Path dir) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                    if (d.startsWith(m_dbRoot)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    WatchKey key = d.register(m_watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    m_keys.put(key, d);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    System.err.println(exc);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(WatchDaemon.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private void handle(WatchKey key) {
+        Path dir = m_keys.get(key);
+        for (WatchEvent<?> ev : key.pollEvents()) {
+            if (dir == null) {
+                continue;
+            }
+            if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+                m_overflows++;
+                Metrics.debug("Watch: events lost, rescan " + dir);
+                // a folder made in it while events were lost has no key yet
+                register_tree(dir);
+                m_dirty.add(dir);
+                continue;
+            }
+            Path child = dir.resolve((Path) ev.context());
+            if (child.startsWith(m_dbRoot)) {
+                continue;
+            }
+            boolean isDir = Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS);
+            if (ev.kind() == StandardWatchEventKinds.ENTRY_CREATE && isDir) {
+                // files made in it before it was registered are found by its walk
+                register_tree(child);
+            } else if (ev.kind() == StandardWatchEventKinds.ENTRY_MODIFY && isDir) {
+                continue;   // the folder's own time, its files have their own events
+            }
+            m_dirty.add(child);
+        }
+        if (!key.reset()) {
+            m_keys.remove(key);     // the folder is gone
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // One batch, see the top of file
+    //--------------------------------------------------------------------------
+    private synchronized void batch(long first) {
+        long start = System.nanoTime();
+        long files = Metrics.GetFiles();
+
+        // a path under a changed folder is covered by the folder's walk,
+        // sorted so a folder comes before what is in it
+        List<Path> paths = new ArrayList<>(m_dirty);
+        m_dirty.clear();
+        Collections.sort(paths);
+        List<Path> roots = new ArrayList<>();
+        Set<String> keys = new HashSet<>();
+        for (Path p : paths) {
+            String key = Manifest.path_key(m_root.relativize(p).toString());
+            if (!is_under(key, keys)) {
+                roots.add(p);
+                keys.add(key);
+            }
+        }
+
+        // the pending records not under this batch's paths, and its paths.
+        // The last snapshot's records under them are dropped from now on,
+        // even if the batch fails part way.
+        m_roots.addAll(keys);
+        int copied = 0;
+        TreeWalker walker = null;
+        try {
+            Manifest pending = PathNameKeeper.does_file_exist(m_pending) ? Manifest.load(m_pending) : null;
+            walker = new TreeWalker(m_root, m_pending, false, m_packs);
+            for (int i = 0; pending != null && i < pending.GetCount(); i++) {
+                if (!is_under(Manifest.path_key(pending.GetPath(i)), keys)) {
+                    walker.copy_record(pending.GetLine(i), pending.GetMeta(i));
+                    copied++;
+                }
+            }
+            for (Path p : roots) {
+                if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                    ParallelWalk.walk_tree(p, walker);
+                } else if (Files.isRegularFile(p, LinkOption.NOFOLLOW_LINKS)) {
+                    walker.visitFile(p, Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(WatchDaemon.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            if (walker != null) {
+                walker.close();     // forces the keys and packs, they stay open
+                m_pendingCount = walker.GetRecords();
+            }
+        }
+
+        m_batches++;
+        long now = System.nanoTime();
+        System.out.println(String.format("Watch: batch %d, %d changed paths, %d files stored, %d pending records kept, %d overflows, %.0f ms, %.1f s after the first change",
+                m_batches, roots.size(), Metrics.GetFiles() - files, copied, m_overflows,
+                (now - start) / 1e6, (now - first) / 1e9));
+
+        if (now - m_snapTime >= m_snapEvery || m_pendingCount >= MAXPENDING || m_roots.size() >= MAXPENDING) {
+            snapshot();
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Merge the pending changes into the last snapshot and save that as the
+    // next one, see the top of file.  Nothing to do if nothing changed.
+    //--------------------------------------------------------------------------
+    private synchronized void snapshot() {
+        if (m_roots.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        long kept = 0;
+        long added = 0;
+        try {
+            Manifest base = Manifest.open(m_base);
+            Manifest pending = PathNameKeeper.does_file_exist(m_pending) ? Manifest.load(m_pending) : null;
+            int na = base.GetCount();
+            int nb = pending == null ? 0 : pending.GetCount();
+            Manifest.Writer out = new Manifest.Writer(PathNameKeeper.get_meta_file_write());
+
+            // both in path order, the base's records under m_roots are skipped
+            int ka = 0;
+            int kb = 0;
+            String pa = null;
+            String pb = null;
+            while (true) {
+                while (pa == null && ka < na) {
+                    String key = Manifest.path_key(base.GetPath(base.GetPathOrder(ka)));
+                    if (is_under(key, m_roots)) {
+                        ka++;
+                    } else {
+                        pa = key;
+                    }
+                }
+                if (pb == null && kb < nb) {
+                    pb = Manifest.path_key(pending.GetPath(pending.GetPathOrder(kb)));
+                }
+                if (pa == null && pb == null) {
+                    break;
+                }
+                if (pa == null || (pb != null && pb.compareTo(pa) < 0)) {
+                    int i = pending.GetPathOrder(kb++);
+                    out.add(pending.GetLine(i), pending.GetMeta(i));
+                    added++;
+                    pb = null;
+                } else {
+                    int i = base.GetPathOrder(ka++);
+                    out.add(base.GetLine(i), base.GetMeta(i));
+                    kept++;
+                    pa = null;
+                }
+            }
+            out.close();
+
+            int n = Snapshots.save(PathNameKeeper.get_meta_file_write());
+            if (m_packs != null) {
+                m_packs.checkpoint();
+            }
+            m_base = Snapshots.get_snap_file(n);
+            m_snapTime = System.nanoTime();
+            m_roots.clear();
+            m_pendingCount = 0;
+            Files.deleteIfExists(Paths.get(m_pending));
+            System.out.println(String.format("Watch: snapshot %d, %d records kept, %d from batches, %.0f ms",
+                    n, kept, added, (System.nanoTime() - start) / 1e6));
+        } catch (IOException ex) {
+            Logger.getLogger(WatchDaemon.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    // the last snapshot, then the pack index and the keystore are closed
+    private synchronized void stop() {
+        snapshot();
+        if (m_packs != null) {
+            try {
+                m_packs.close();
+            } catch (IOException ex) {
+                Logger.getLogger(WatchDaemon.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        Keystore.close_session();
+    }
+
+    // true if key is one of keys or in a folder that is, "" is srcRoot
+    private static boolean is_under(String key, Set<String> keys) {
+        if (keys.contains("")) {
+            return true;
+        }
+        String k = key;
+        while (true) {
+            if (keys.contains(k)) {
+                return true;
+            }
+            int idx = k.lastIndexOf('/');
+            if (idx < 0) {
+                return false;
+            }
+            k = k.substring(0, idx);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package Encrypt1;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArchiveStreamTest {
+
+    private static final int FILES = 20;
+
+    private TestDb m_db;
+    private String m_archive;
+
+    @Before
+    public void setUp() throws Exception {
+        m_db = new TestDb();
+        for (int i = 0; i < FILES; i++) {
+            m_db.put_src(path(i), contents(i));
+        }
+        m_archive = PathNameKeeper.cat_path_s(PathNameKeeper.get_dbRoot(), "test.arc");
+        ArchiveStream.write(m_archive, m_db.GetSrc());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        m_db.close();
+    }
+
+    private static String path(int i) {
+        return "d" + (i % 3) + "/f" + i + ".bin";
+    }
+
+    private static byte[] contents(int i) {
+        return TestDb.random_bytes(i * 5000, i);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        assertEquals(0, ArchiveStream.read(m_archive));
+        for (int i = 0; i < FILES; i++) {
+            assertArrayEquals(contents(i), Files.readAllBytes(TestDb.dest_file(path(i))));
+        }
+    }
+
+    @Test
+    public void tamperedStreamIsCaught() throws IOException {
+        TestDb.flip_byte(m_archive, TestDb.size(m_archive) / 2);
+        long bad;
+        try {
+            bad = ArchiveStream.read(m_archive);
+        } catch (IOException ex) {
+            return;     // a frame header was hit
+        }
+        assertTrue(bad > 0);
+    }
+
+    // offset just past the blob of the file entry with the longest blob,
+    // walking the frames as the top of ArchiveStream has them
+    private long longest_blob_end() throws IOException {
+        long end = 0;
+        long longest = 0;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(m_archive))) {
+            long pos = 16;
+            in.skipBytes(16);
+            while (in.readUnsignedByte() == 'F') {
+                int n = in.readInt();
+                in.skipBytes(n);
+                pos += 1 + 4 + n;
+                long len = 0;
+                while ((n = in.readInt()) > 0) {
+                    in.skipBytes(n);
+                    pos += 4 + n;
+                    len += n;
+                }
+                if (len > longest) {
+                    longest = len;
+                    end = pos;
+                }
+                pos += 4;
+            }
+        }
+        return end;
+    }
+
+    @Test
+    public void failedFileIsCountedAndRemoved() throws IOException {
+        // the last byte of the next to last cipher block is the last
+        // padding byte once decrypted, so the final block will not unpad
+        TestDb.flip_byte(m_archive, longest_blob_end() - 17);
+        assertEquals(1, ArchiveStream.read(m_archive));
+        int missing = 0;
+        for (int i = 0; i < FILES; i++) {
+            Path p = TestDb.dest_file(path(i));
+            if (Files.exists(p)) {
+                assertArrayEquals(contents(i), Files.readAllBytes(p));
+            } else {
+                missing++;
+            }
+        }
+        assertEquals(1, missing);
+    }
+
+    @Test
+    public void truncatedStreamIsCaught() throws IOException {
+        TestDb.truncate(m_archive, TestDb.size(m_archive) / 2);
+        assertTrue(ArchiveStream.read(m_archive) > 0);
+    }
+
+    @Test
+    public void notAnArchiveIsRejected() throws IOException {
+        TestDb.flip_byte(m_archive, 0);
+        try {
+            ArchiveStream.read(m_archive);
+            fail("a stream without the magic was read");
+        } catch (IOException expected) {
+        }
+    }
+}
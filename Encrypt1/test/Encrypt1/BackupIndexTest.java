@@ -0,0 +1,128 @@
+package Encrypt1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BackupIndexTest {
+
+    private static final int COUNT = 3000;
+
+    private TestDb m_db;
+    private String m_index;
+    private BasicFileAttributes m_attrs;
+
+    @Before
+    public void setUp() throws Exception {
+        m_db = new TestDb();
+        m_index = PathNameKeeper.get_index_file();
+        m_attrs = attrs("a.bin");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        m_db.close();
+    }
+
+    private BasicFileAttributes attrs(String name) throws IOException {
+        return Files.readAttributes(m_db.put_src(name, name.getBytes("UTF-8")), BasicFileAttributes.class);
+    }
+
+    // a 40 hex digit SHA-1 that is the same for the same seed
+    private static String sha1(long seed) {
+        return TreeWalker.byteToHex(TestDb.random_bytes(20, seed));
+    }
+
+    private static String name(int i) {
+        return sha1(i) + "_" + sha1(-1 - i);
+    }
+
+    private void save(int from, int to) throws IOException {
+        BackupIndex index = BackupIndex.load(m_index);
+        for (int i = from; i < to; i++) {
+            index.add(name(i), m_attrs);
+        }
+        index.save();
+    }
+
+    // back up src with -incremental, returns the manifest line of a.bin
+    private String encrypt() throws IOException {
+        OptionKeeper.set_incremental(true);
+        TreeWalker walker = new TreeWalker(m_db.GetSrc());
+        try {
+            Files.walkFileTree(m_db.GetSrc(), walker);
+        } finally {
+            walker.close();
+        }
+        Manifest m = Manifest.open(PathNameKeeper.get_meta_file_write());
+        assertEquals(1, m.GetCount());
+        return m.GetLine(0);
+    }
+
+    @Test
+    public void hitWithoutItsKeyIsStoredAgain() throws Exception {
+        String line = encrypt();
+        Files.delete(Paths.get(PathNameKeeper.cat_path_s(PathNameKeeper.get_key_folder(), line)));
+        assertFalse(Keystore.hasKey(line));
+        assertEquals(line, encrypt());
+        assertTrue(Keystore.is_stored(line));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        assertNull(BackupIndex.load(m_index).lookup(sha1(-1), m_attrs));
+
+        save(0, COUNT);
+        BackupIndex index = BackupIndex.load(m_index);
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(name(i), index.lookup(sha1(-1 - i), m_attrs));
+        }
+        assertNull(index.lookup(sha1(-1 - COUNT), m_attrs));
+
+        // a file the next run did not see drops out
+        save(1, COUNT);
+        index = BackupIndex.load(m_index);
+        assertNull(index.lookup(sha1(-1), m_attrs));
+        assertEquals(name(1), index.lookup(sha1(-2), m_attrs));
+    }
+
+    @Test
+    public void otherFileIsNotAHit() throws Exception {
+        BasicFileAttributes other = attrs("b.bin");
+        assumeTrue(m_attrs.fileKey() != null);
+        save(0, 1);
+        assertNull(BackupIndex.load(m_index).lookup(sha1(-1), other));
+    }
+
+    @Test
+    public void tamperedHeaderIsRejected() throws Exception {
+        save(0, 10);
+        TestDb.flip_byte(m_index, 2);
+        try {
+            BackupIndex.load(m_index);
+            fail("a changed index was loaded");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void truncatedIndexIsRejected() throws Exception {
+        save(0, 10);
+        TestDb.truncate(m_index, TestDb.size(m_index) - 1);
+        try {
+            BackupIndex.load(m_index);
+            fail("a truncated index was loaded");
+        } catch (IOException expected) {
+        }
+    }
+}
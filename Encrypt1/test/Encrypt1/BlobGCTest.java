@@ -0,0 +1,135 @@
+package Encrypt1;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlobGCTest {
+
+    private TestDb m_db;
+
+    @Before
+    public void setUp() throws Exception {
+        m_db = new TestDb();
+        // GC lists DAT\ and KEY\, they are only real folders where \ is the separator
+        blob("probe");
+        assumeTrue(Files.exists(Paths.get(PathNameKeeper.get_dat_folder()).resolve("probe")));
+        Files.delete(dat("probe"));
+        Files.delete(key("probe"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        m_db.close();
+    }
+
+    // a blob name that is the same for the same s
+    private static String name(String s) {
+        return TreeWalker.byteToHex(TestDb.random_bytes(20, s.hashCode())) + "_" + TreeWalker.byteToHex(TestDb.random_bytes(20, -s.hashCode()));
+    }
+
+    private static Path dat(String name) {
+        return Paths.get(PathNameKeeper.cat_path_s(PathNameKeeper.get_dat_folder(), name));
+    }
+
+    private static Path key(String name) {
+        return Paths.get(PathNameKeeper.cat_path_s(PathNameKeeper.get_key_folder(), name));
+    }
+
+    // GC only goes by the names, what is in the files does not matter
+    private static void blob(String name) throws IOException {
+        Files.write(dat(name), TestDb.random_bytes(100, name.hashCode()));
+        Files.write(key(name), TestDb.random_bytes(16, name.hashCode()));
+    }
+
+    private static boolean kept(String name) {
+        return Files.exists(dat(name)) && Files.exists(key(name));
+    }
+
+    private static boolean deleted(String name) {
+        return !Files.exists(dat(name)) && !Files.exists(key(name));
+    }
+
+    private static void manifest(String filename, String... lines) throws IOException {
+        Manifest.Writer w = new Manifest.Writer(filename);
+        for (int i = 0; i < lines.length; i++) {
+            w.add(lines[i], new FileMeta("f" + i, 1000L, 100));
+        }
+        w.close();
+    }
+
+    // the manifest as a snapshot, then the current manifest
+    private static void snapshot(String... lines) throws IOException {
+        manifest(PathNameKeeper.get_meta_file_write(), lines);
+        Snapshots.save(PathNameKeeper.get_meta_file_write());
+    }
+
+    @Test
+    public void unreferencedBlobsAreDeleted() throws Exception {
+        blob(name("a"));
+        blob(name("b"));
+        blob(name("c"));
+        Files.write(dat("tmp_1"), new byte[10]);
+        Files.write(dat("notes.txt"), new byte[10]);
+        snapshot(name("b"));
+        manifest(PathNameKeeper.get_meta_file_write(), name("a"));
+
+        BlobGC.run(-1);
+        assertTrue(kept(name("a")));
+        assertTrue(kept(name("b")));
+        assertTrue(deleted(name("c")));
+        assertFalse(Files.exists(dat("tmp_1")));
+        assertTrue(Files.exists(dat("notes.txt")));
+    }
+
+    @Test
+    public void keepDropsTheOldSnapshots() throws Exception {
+        blob(name("a"));
+        blob(name("b"));
+        snapshot(name("b"));
+        snapshot(name("a"));
+
+        BlobGC.run(1);
+        assertArrayEquals(new int[] { 2 }, Snapshots.list());
+        assertTrue(kept(name("a")));
+        assertTrue(deleted(name("b")));
+    }
+
+    @Test
+    public void chunksOfARecipeAreKept() throws Exception {
+        byte[] contents = TestDb.random_bytes(1024 * 1024, 1);
+        String src = m_db.put_src("a.bin", contents).toString();
+        String line = ChunkStore.storeFile(src, new FileMeta("a.bin", 1000L, contents.length), ChunkStore.recipe_extra("a.bin_1000"));
+        blob(name("c"));
+        manifest(PathNameKeeper.get_meta_file_write(), line);
+
+        BlobGC.run(-1);
+        assertTrue(deleted(name("c")));
+        ChunkStore.restoreFile(line.substring(ChunkStore.MANIFEST_PREFIX.length()));
+        assertArrayEquals(contents, Files.readAllBytes(TestDb.dest_file("a.bin")));
+    }
+
+    @Test
+    public void unreadableManifestDeletesNothing() throws Exception {
+        blob(name("a"));
+        blob(name("c"));
+        manifest(PathNameKeeper.get_meta_file_write(), name("a"));
+        TestDb.truncate(PathNameKeeper.get_meta_file_write(), TestDb.size(PathNameKeeper.get_meta_file_write()) - 1);
+        try {
+            BlobGC.run(-1);
+            fail("GC ran without the manifest");
+        } catch (IOException expected) {
+        }
+        assertTrue(kept(name("a")));
+        assertTrue(kept(name("c")));
+    }
+}
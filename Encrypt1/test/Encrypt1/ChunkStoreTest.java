@@ -0,0 +1,160 @@
+package Encrypt1;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChunkStoreTest {
+
+    private static final int SIZE = 3 * 1024 * 1024;
+
+    private TestDb m_db;
+    private byte[] m_contents;
+
+    @Before
+    public void setUp() throws Exception {
+        m_db = new TestDb();
+        m_contents = TestDb.random_bytes(SIZE, 1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        m_db.close();
+    }
+
+    // chunk lengths FastCDC cuts b into
+    private static List<Integer> cuts(byte[] b) {
+        List<Integer> lens = new ArrayList<>();
+        for (int off = 0; off < b.length; ) {
+            int len = FastCDC.cut(b, off, b.length - off);
+            lens.add(len);
+            off += len;
+        }
+        return lens;
+    }
+
+    // the chunks of b, a ByteBuffer equals another with the same contents
+    private static Set<ByteBuffer> chunks(byte[] b) {
+        Set<ByteBuffer> set = new HashSet<>();
+        int off = 0;
+        for (int len : cuts(b)) {
+            set.add(ByteBuffer.wrap(b, off, len));
+            off += len;
+        }
+        return set;
+    }
+
+    private String store(String name, byte[] contents) throws Exception {
+        String src = m_db.put_src(name, contents).toString();
+        return ChunkStore.storeFile(src, new FileMeta(name, 1000L, contents.length), ChunkStore.recipe_extra(name + "_1000"));
+    }
+
+    // the chunk blobs storeFile() writes for b
+    private static List<String> chunk_blobs(byte[] b) throws Exception {
+        List<String> blobs = new ArrayList<>();
+        MessageDigest chunkDigest = MessageDigest.getInstance("SHA-1");
+        int off = 0;
+        for (int len : cuts(b)) {
+            chunkDigest.update(b, off, len);
+            blobs.add(PathNameKeeper.cat_path_s(PathNameKeeper.get_dat_folder(), ChunkStore.chunk_name(chunkDigest.digest())));
+            off += len;
+        }
+        return blobs;
+    }
+
+    private static String recipe_blob(String line) {
+        return PathNameKeeper.cat_path_s(PathNameKeeper.get_dat_folder(), line.substring(ChunkStore.MANIFEST_PREFIX.length()));
+    }
+
+    @Test
+    public void cutsAreWithinBounds() {
+        List<Integer> lens = cuts(m_contents);
+        int total = 0;
+        for (int i = 0; i < lens.size(); i++) {
+            int len = lens.get(i);
+            assertTrue(len <= FastCDC.MAX_SIZE);
+            assertTrue(i == lens.size() - 1 || len >= FastCDC.MIN_SIZE);
+            total += len;
+        }
+        assertEquals(SIZE, total);
+        // cut by content, not every chunk at one of the bounds
+        assertTrue(lens.size() > SIZE / FastCDC.MAX_SIZE && lens.size() < SIZE / FastCDC.MIN_SIZE);
+    }
+
+    @Test
+    public void insertOnlyChangesTheChunksNearIt() {
+        byte[] edited = new byte[SIZE + 10];
+        System.arraycopy(m_contents, 0, edited, 0, SIZE / 2);
+        System.arraycopy(TestDb.random_bytes(10, 2), 0, edited, SIZE / 2, 10);
+        System.arraycopy(m_contents, SIZE / 2, edited, SIZE / 2 + 10, SIZE / 2);
+
+        Set<ByteBuffer> before = chunks(m_contents);
+        Set<ByteBuffer> after = chunks(edited);
+        after.removeAll(before);
+        assertTrue("new chunks " + after.size(), after.size() <= 2);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        String line = store("a.bin", m_contents);
+        assertTrue(ChunkStore.is_chunked(line));
+        FileMeta filemeta = ChunkStore.restoreFile(line.substring(ChunkStore.MANIFEST_PREFIX.length()));
+        assertEquals("a.bin", filemeta.GetPathName());
+        assertEquals(1000L, filemeta.GetTimeStamp());
+        assertArrayEquals(m_contents, Files.readAllBytes(TestDb.dest_file("a.bin")));
+    }
+
+    @Test
+    public void sameDataUnderAnotherNameStoresNoChunks() throws Exception {
+        store("a.bin", m_contents);
+        List<String> blobs = chunk_blobs(m_contents);
+        for (String blob : blobs) {
+            assertTrue(new File(blob).setLastModified(1000L));
+        }
+        String line = store("b.bin", m_contents);
+        // none of the chunks were written again
+        for (String blob : blobs) {
+            assertEquals(1000L, new File(blob).lastModified());
+        }
+        ChunkStore.restoreFile(line.substring(ChunkStore.MANIFEST_PREFIX.length()));
+        assertArrayEquals(m_contents, Files.readAllBytes(TestDb.dest_file("b.bin")));
+    }
+
+    @Test
+    public void tamperedChunkFailsItsHash() throws Exception {
+        String line = store("a.bin", m_contents);
+        String chunk = chunk_blobs(m_contents).get(3);
+        TestDb.flip_byte(chunk, TestDb.size(chunk) / 2);
+        try {
+            ChunkStore.restoreFile(line.substring(ChunkStore.MANIFEST_PREFIX.length()));
+            fail("a changed chunk was restored");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    @Test
+    public void truncatedRecipeFails() throws Exception {
+        String line = store("a.bin", m_contents);
+        String recipe = recipe_blob(line);
+        TestDb.truncate(recipe, TestDb.size(recipe) / 2);
+        try {
+            ChunkStore.restoreFile(line.substring(ChunkStore.MANIFEST_PREFIX.length()));
+            fail("a truncated recipe was restored");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package Encrypt1;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import javax.crypto.SecretKey;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChunkedBlobTest {
+
+    private static final int CHUNK = 4096;
+    private static final int SIZE = 3 * CHUNK + 100;
+
+    private TestDb m_db;
+    private byte[] m_contents;
+    private SecretKey m_key;
+    private String m_blob;
+
+    @Before
+    public void setUp() throws Exception {
+        m_db = new TestDb();
+        OptionKeeper.set_chunksize(Integer.toString(CHUNK));
+        m_contents = TestDb.random_bytes(SIZE, 1);
+        Path src = m_db.put_src("a.bin", m_contents);
+        m_key = EncryptLib.getKey();
+        m_blob = PathNameKeeper.cat_path_s(PathNameKeeper.get_dat_folder(), "blob");
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(Paths.get(m_blob), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ChunkedBlob.encrypt(in, new FileMeta("dir\\a.bin", 1234567L, SIZE), out, m_key, null);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        m_db.close();
+    }
+
+    private ChunkedBlob.Reader open(FileChannel in) throws IOException, GeneralSecurityException {
+        BlobHeader header = BlobHeader.read(in);
+        assertEquals(BlobHeader.CHUNKED, header.GetVersion());
+        return new ChunkedBlob.Reader(in, header, m_key);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        try (FileChannel in = FileChannel.open(Paths.get(m_blob), StandardOpenOption.READ)) {
+            ChunkedBlob.Reader r = open(in);
+            assertEquals("dir\\a.bin", r.GetPathName());
+            assertEquals(1234567L, r.GetTimeStamp());
+            assertEquals(SIZE, r.GetFileSize());
+            assertEquals(4, r.GetChunkCount());
+            assertArrayEquals(Arrays.copyOfRange(m_contents, 2 * CHUNK, 3 * CHUNK), r.readChunk(2));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(SIZE, r.copyTo(Channels.newChannel(out)));
+            assertArrayEquals(m_contents, out.toByteArray());
+        }
+    }
+
+    @Test
+    public void tamperedChunkFailsItsTag() throws Exception {
+        TestDb.flip_byte(m_blob, TestDb.size(m_blob) - 20);
+        try (FileChannel in = FileChannel.open(Paths.get(m_blob), StandardOpenOption.READ)) {
+            ChunkedBlob.Reader r = open(in);
+            // the other chunks still decrypt
+            assertArrayEquals(Arrays.copyOf(m_contents, CHUNK), r.readChunk(0));
+            try {
+                r.readChunk(3);
+                fail("a changed chunk decrypted");
+            } catch (GeneralSecurityException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void tamperedHeaderFailsThePathRecord() throws Exception {
+        TestDb.flip_byte(m_blob, 32);     // the timestamp, part of every record's AAD
+        try (FileChannel in = FileChannel.open(Paths.get(m_blob), StandardOpenOption.READ)) {
+            open(in);
+            fail("a changed header was read");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    @Test
+    public void truncatedBlobFails() throws Exception {
+        TestDb.truncate(m_blob, TestDb.size(m_blob) - 10);
+        try (FileChannel in = FileChannel.open(Paths.get(m_blob), StandardOpenOption.READ)) {
+            ChunkedBlob.Reader r = open(in);
+            r.copyTo(Channels.newChannel(new ByteArrayOutputStream()));
+            fail("a truncated blob was read to the end");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package Encrypt1;
+
+import static org.junit.Assert.assertEquals;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+import org.junit.Test;
+
+public class ContentDigestTest {
+
+    // sizes around the 64 byte legacy buffer, 0 and 64 are plain SHA-1
+    private static final int[] SIZES = { 0, 1, 63, 64, 65, 127, 128, 129, 1000, 4096 + 7 };
+
+    private static byte[] bytes(int n) {
+        byte[] b = new byte[n];
+        new Random(n).nextBytes(b);
+        return b;
+    }
+
+    // the original TreeWalker.hashFileSHA1() loop, which digests the whole
+    // 64 byte buffer even on the last short read
+    private static String legacy_sha1(byte[] contents) throws Exception {
+        InputStream in = new ByteArrayInputStream(contents);
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        byte[] buf = new byte[64];
+        int nRead = in.read(buf);
+        while (nRead > 0) {
+            digest.update(buf);
+            nRead = in.read(buf);
+        }
+        return TreeWalker.byteToHex(digest.digest());
+    }
+
+    private static String plain_sha1(byte[] contents) throws Exception {
+        return TreeWalker.byteToHex(MessageDigest.getInstance("SHA-1").digest(contents));
+    }
+
+    @Test
+    public void matchesTheLegacyLoop() throws Exception {
+        for (int size : SIZES) {
+            byte[] contents = bytes(size);
+            ContentDigest d = new ContentDigest();
+            d.update(contents, 0, contents.length);
+            assertEquals("size " + size, legacy_sha1(contents), d.digest());
+            assertEquals(size, d.count());
+        }
+    }
+
+    @Test
+    public void shortTailIsPaddedWithTheBlockBefore() throws Exception {
+        byte[] contents = bytes(100);
+        byte[] padded = new byte[128];
+        System.arraycopy(contents, 0, padded, 0, 100);
+        System.arraycopy(contents, 36, padded, 100, 28);
+        ContentDigest d = new ContentDigest();
+        d.update(contents, 0, contents.length);
+        assertEquals(plain_sha1(padded), d.digest());
+
+        // shorter than 64 bytes the rest of the buffer is zeroes
+        d = new ContentDigest();
+        d.update(contents, 0, 10);
+        byte[] zeroes = new byte[64];
+        System.arraycopy(contents, 0, zeroes, 0, 10);
+        assertEquals(plain_sha1(zeroes), d.digest());
+    }
+
+    @Test
+    public void anyBufferSizeGivesTheSameResult() throws Exception {
+        byte[] contents = bytes(4096 + 7);
+        String expected = legacy_sha1(contents);
+        for (int step : new int[] { 1, 7, 63, 64, 65, 1000 }) {
+            ContentDigest arrays = new ContentDigest();
+            ContentDigest buffers = new ContentDigest();
+            for (int off = 0; off < contents.length; off += step) {
+                int n = Math.min(step, contents.length - off);
+                arrays.update(contents, off, n);
+                ByteBuffer b = ByteBuffer.wrap(contents, off, n);
+                buffers.update(b);
+                assertEquals(0, b.remaining());
+            }
+            assertEquals("step " + step, expected, arrays.digest());
+            assertEquals("step " + step, expected, buffers.digest());
+        }
+    }
+
+    @Test
+    public void sliceOfALargerBuffer() throws Exception {
+        // update(ByteBuffer) reads from position to limit, not from 0
+        byte[] contents = bytes(200);
+        ByteBuffer b = ByteBuffer.allocate(300);
+        b.position(50);
+        b.put(contents);
+        b.position(50);
+        b.limit(250);
+        ContentDigest d = new ContentDigest();
+        d.update(b);
+        assertEquals(legacy_sha1(contents), d.digest());
+    }
+}
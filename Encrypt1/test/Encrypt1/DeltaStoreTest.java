@@ -0,0 +1,99 @@
+package Encrypt1;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeltaStoreTest {
+
+    private static final int SIZE = 1024 * 1024;
+    private static final String PATH = "big.bin";
+
+    private TestDb m_db;
+    private byte[] m_v2;
+    private String m_base;     // manifest line of the first version, a full blob
+    private String m_delta;    // blob name of the second version, a delta
+
+    @Before
+    public void setUp() throws Exception {
+        m_db = new TestDb();
+        byte[] v1 = TestDb.random_bytes(SIZE, 1);
+        m_base = store(v1, 1000L);
+        assertFalse(DeltaStore.is_delta(m_base));
+
+        // a few bytes changed in the middle
+        m_v2 = v1.clone();
+        System.arraycopy(TestDb.random_bytes(100, 2), 0, m_v2, SIZE / 2, 100);
+        String line = store(m_v2, 2000L);
+        assertTrue(DeltaStore.is_delta(line));
+        m_delta = line.substring(DeltaStore.MANIFEST_PREFIX.length());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        m_db.close();
+    }
+
+    // store contents as PATH with timestamp against m_base, returns its manifest line
+    private String store(byte[] contents, long timestamp) throws Exception {
+        Path src = m_db.put_src(PATH, contents);
+        FileMeta filemeta = new FileMeta(PATH, timestamp, contents.length);
+        String hashThis = PATH + "_" + timestamp + "_" + contents.length;
+        return DeltaStore.storeFile(src.toString(), filemeta, hashThis, m_base);
+    }
+
+    private static String dat(String name) {
+        return PathNameKeeper.cat_path_s(PathNameKeeper.get_dat_folder(), name);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        assertTrue(TestDb.size(dat(m_delta)) < SIZE / 10);
+        FileMeta filemeta = DeltaStore.restoreFile(m_delta);
+        assertEquals(PATH, filemeta.GetPathName());
+        assertEquals(2000L, filemeta.GetTimeStamp());
+        assertEquals(SIZE, filemeta.GetFileSize());
+        assertArrayEquals(m_v2, Files.readAllBytes(TestDb.dest_file(PATH)));
+        assertEquals(m_base, DeltaStore.base_line(EncryptLib.decryptBytes(dat(m_delta), Keystore.loadKey(m_delta), null)));
+    }
+
+    @Test
+    public void tamperedDeltaFails() throws Exception {
+        TestDb.flip_byte(dat(m_delta), TestDb.size(dat(m_delta)) / 2);
+        try {
+            DeltaStore.restoreFile(m_delta);
+            fail("a changed delta was restored");
+        } catch (IOException | GeneralSecurityException expected) {
+        }
+    }
+
+    @Test
+    public void tamperedBaseDoesNotRebuildTheFile() throws Exception {
+        // a block the delta copies, the base is read without its padding check
+        TestDb.flip_byte(dat(m_base), TestDb.size(dat(m_base)) / 4);
+        try {
+            DeltaStore.restoreFile(m_delta);
+            fail("a delta on a changed base was restored");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    @Test
+    public void truncatedDeltaFails() throws Exception {
+        TestDb.truncate(dat(m_delta), TestDb.size(dat(m_delta)) / 2);
+        try {
+            DeltaStore.restoreFile(m_delta);
+            fail("a truncated delta was restored");
+        } catch (IOException | GeneralSecurityException expected) {
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package Encrypt1;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.IOException;
+import javax.crypto.SecretKey;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeystoreTest {
+
+    private TestDb m_db;
+    private String m_filename;
+
+    @Before
+    public void setUp() throws Exception {
+        m_db = new TestDb();
+        OptionKeeper.set_keystore(true);
+        m_filename = PathNameKeeper.get_keystore_file();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        m_db.close();
+    }
+
+    private static String name(int i) {
+        return TreeWalker.hashStringSHA1("contents" + i) + "_" + TreeWalker.hashStringSHA1("extra" + i);
+    }
+
+    // save keys first .. first+count-1 in one session
+    private static SecretKey[] save(int first, int count) throws Exception {
+        SecretKey[] keys = new SecretKey[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = EncryptLib.getKey();
+            Keystore.saveKey(name(first + i), keys[i]);
+        }
+        Keystore.close_session();
+        return keys;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        // the first session is sorted by close(), the small second one is
+        // appended and read back from the tail
+        SecretKey[] sorted = save(0, 1000);
+        SecretKey[] tail = save(1000, 10);
+        for (int i = 0; i < sorted.length; i++) {
+            assertArrayEquals(sorted[i].getEncoded(), Keystore.loadKey(name(i)));
+        }
+        for (int i = 0; i < tail.length; i++) {
+            assertArrayEquals(tail[i].getEncoded(), Keystore.loadKey(name(1000 + i)));
+        }
+        assertTrue(Keystore.hasKey(name(0)));
+        assertFalse(Keystore.hasKey(name(2000)));
+        assertFalse(Keystore.is_stored(name(0)));      // no DAT\ blob
+    }
+
+    @Test
+    public void syncWritesTheBatch() throws Exception {
+        Keystore.saveKey(name(0), EncryptLib.getKey());
+        long empty = TestDb.size(m_filename);
+        for (int i = 1; i < 10; i++) {
+            Keystore.saveKey(name(i), EncryptLib.getKey());
+        }
+        assertEquals(empty, TestDb.size(m_filename));
+        Keystore.sync();
+        // 40 bytes of name and 24 of wrapped key each, before close_session()
+        assertEquals(empty + 10 * 64, TestDb.size(m_filename));
+    }
+
+    @Test
+    public void tamperedKeyDoesNotUnwrap() throws Exception {
+        save(0, 1);
+        TestDb.flip_byte(m_filename, TestDb.size(m_filename) - 5);
+        try {
+            Keystore.loadKey(name(0));
+            fail("a changed key unwrapped");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void wrongPasswordIsRejected() throws Exception {
+        save(0, 1);
+        Encrypt1.GetMasterPw().init("not the password".toCharArray());
+        try {
+            Keystore.loadKey(name(0));
+            fail("the keystore opened with the wrong password");
+        } catch (IOException expected) {
+        } finally {
+            Keystore.close_session();
+            Encrypt1.GetMasterPw().init(TestDb.PASSWORD.toCharArray());
+        }
+    }
+
+    @Test
+    public void truncatedTailRecordIsDropped() throws Exception {
+        SecretKey[] sorted = save(0, 100);
+        save(100, 1);
+        TestDb.truncate(m_filename, TestDb.size(m_filename) - 10);
+        assertArrayEquals(sorted[99].getEncoded(), Keystore.loadKey(name(99)));
+        assertFalse(Keystore.hasKey(name(100)));
+    }
+
+    @Test
+    public void truncatedSortedRecordsAreRejected() throws Exception {
+        save(0, 100);
+        TestDb.truncate(m_filename, TestDb.size(m_filename) - 10);
+        try {
+            Keystore.loadKey(name(0));
+            fail("a keystore shorter than its sorted count opened");
+        } catch (IOException expected) {
+        }
+    }
+}
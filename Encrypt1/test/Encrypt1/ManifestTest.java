@@ -0,0 +1,163 @@
+package Encrypt1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ManifestTest {
+
+    private static final String[] PREFIXES = { "", ChunkStore.MANIFEST_PREFIX, DeltaStore.MANIFEST_PREFIX, MerkleHash.MANIFEST_PREFIX };
+
+    private TestDb m_db;
+    private String m_filename;
+
+    @Before
+    public void setUp() throws Exception {
+        m_db = new TestDb();
+        m_filename = PathNameKeeper.get_meta_file_write();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        m_db.close();
+    }
+
+    // a blob name per i, in a different order than i
+    private static String name(int i) {
+        return String.format("%040X_%040X", (i * 2654435761L) & 0xFFFFFFFFL, i);
+    }
+
+    private static String line(int i) {
+        return PREFIXES[i % PREFIXES.length] + name(i);
+    }
+
+    // write count records, record i has path(i) and a size and time made from i
+    private void write(int count, String[] paths) throws IOException {
+        Manifest.Writer w = new Manifest.Writer(m_filename);
+        for (int i = 0; i < count; i++) {
+            w.add(line(i), new FileMeta(paths[i], 1000000L + i, i));
+        }
+        assertEquals(count, w.GetCount());
+        w.close();
+    }
+
+    // every record reads back and is found by its name and by its path
+    private void check(int count, String[] paths) throws IOException {
+        check(Manifest.open(m_filename), count, paths);
+    }
+
+    private void check(Manifest m, int count, String[] paths) throws IOException {
+        assertEquals(count, m.GetCount());
+        for (int i = 0; i < count; i++) {
+            assertEquals(line(i), m.GetLine(i));
+            assertEquals(paths[i], m.GetPath(i));
+            assertEquals(i, m.GetFileSize(i));
+            assertEquals(1000000L + i, m.GetTimeStamp(i));
+            assertEquals(i, m.find(name(i)));
+            assertEquals(i, m.find_path(paths[i].toUpperCase()));
+        }
+        for (int k = 1; k < count; k++) {
+            String a = Manifest.path_key(m.GetPath(m.GetPathOrder(k - 1)));
+            String b = Manifest.path_key(m.GetPath(m.GetPathOrder(k)));
+            assertTrue(a.compareTo(b) < 0);
+        }
+        assertEquals(-1, m.find(name(count)));
+        assertEquals(-1, m.find_path("not\\there"));
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        String[] paths = new String[2000];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = "Dir" + (i % 7) + "\\Sub\\File" + i + ".txt";
+        }
+        write(paths.length, paths);
+        check(paths.length, paths);
+    }
+
+    @Test
+    public void recordsAcrossSegmentEnds() throws IOException {
+        // 1000 is no multiple of RECSIZE, so records, the order tables and
+        // paths all run over the end of a segment somewhere
+        String[] paths = new String[2000];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = "Dir" + (i % 7) + "\\Sub\\File" + i + ".txt";
+        }
+        write(paths.length, paths);
+        check(Manifest.open(m_filename, 1000), paths.length, paths);
+    }
+
+    @Test
+    public void spilledRunsMerge() throws IOException {
+        // more than two runs of the writer's RUNSIZE records
+        String[] paths = new String[300000];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = "f" + i;
+        }
+        write(paths.length, paths);
+        Manifest m = Manifest.open(m_filename);
+        assertEquals(paths.length, m.GetCount());
+        for (int i = 0; i < paths.length; i++) {
+            assertEquals(i, m.find(name(i)));
+        }
+        for (int i = 0; i < paths.length; i += 997) {
+            assertEquals(paths[i], m.GetPath(i));
+        }
+    }
+
+    @Test
+    public void longPathsSpillRuns() throws IOException {
+        // long paths fill a run by its chars long before its record count
+        char[] pad = new char[30000];
+        Arrays.fill(pad, 'x');
+        String[] paths = new String[600];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = "d" + (paths.length - i) + "\\" + new String(pad);
+        }
+        write(paths.length, paths);
+        check(paths.length, paths);
+    }
+
+    @Test
+    public void tamperedHeaderIsRejected() throws IOException {
+        String[] paths = { "a", "b", "c" };
+        write(paths.length, paths);
+        TestDb.flip_byte(m_filename, 16);     // the record count
+        try {
+            Manifest.open(m_filename);
+            fail("a manifest with a changed count opened");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void otherVersionIsRejected() throws IOException {
+        String[] paths = { "a", "b", "c" };
+        write(paths.length, paths);
+        TestDb.flip_byte(m_filename, 7);
+        assertTrue(Manifest.is_manifest(m_filename));
+        try {
+            Manifest.open(m_filename);
+            fail("a manifest of another version opened");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("not supported"));
+        }
+    }
+
+    @Test
+    public void truncatedManifestIsRejected() throws IOException {
+        String[] paths = { "a", "b", "c" };
+        write(paths.length, paths);
+        TestDb.truncate(m_filename, TestDb.size(m_filename) - 1);
+        try {
+            Manifest.open(m_filename);
+            fail("a truncated manifest opened");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package Encrypt1;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackStoreTest {
+
+    private TestDb m_db;
+    private String m_index;
+    private String m_pack;
+
+    @Before
+    public void setUp() throws Exception {
+        m_db = new TestDb();
+        m_index = PathNameKeeper.cat_path_s(PackStore.get_pack_folder(), "pack.idx");
+        m_pack = PathNameKeeper.cat_path_s(PackStore.get_pack_folder(), "pack_000001.dat");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        m_db.close();
+    }
+
+    private static String name(int i) {
+        return TreeWalker.hashStringSHA1("contents" + i) + "_" + TreeWalker.hashStringSHA1("extra" + i);
+    }
+
+    private static byte[] key(int i) {
+        return TestDb.random_bytes(24, -i);
+    }
+
+    private static byte[] blob(int i) {
+        return TestDb.random_bytes(16 * (i % 50 + 1), i);
+    }
+
+    // put entries first .. first+count-1 and write the index
+    private static void put(int first, int count) throws IOException {
+        PackStore ps = PackStore.open();
+        for (int i = first; i < first + count; i++) {
+            ps.put(name(i), key(i), blob(i));
+        }
+        ps.close();
+    }
+
+    private static void check(PackStore ps, int i) throws IOException {
+        PackStore.Entry e = ps.find(name(i));
+        assertNotNull(e);
+        try (FileChannel in = ps.open_pack(e.GetPack())) {
+            byte[][] key_blob = ps.read(in, e);
+            assertArrayEquals(key(i), key_blob[0]);
+            assertArrayEquals(blob(i), key_blob[1]);
+        }
+    }
+
+    // the index as the first put(0, count) left it, as if the run after it
+    // died before its close()
+    private void crash_after(int count, int more) throws IOException {
+        put(0, count);
+        Files.copy(Paths.get(m_index), Paths.get(m_index + ".old"));
+        put(count, more);
+        Files.move(Paths.get(m_index + ".old"), Paths.get(m_index), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        assertFalse(PackStore.exists());
+        put(0, 200);
+        put(200, 50);       // merged into the index of the first
+        assertTrue(PackStore.exists());
+        PackStore ps = PackStore.open();
+        for (int i = 0; i < 250; i++) {
+            check(ps, i);
+        }
+        assertFalse(ps.contains(name(250)));
+        ps.close();
+    }
+
+    @Test
+    public void checkpointKeepsTheStoreOpen() throws IOException {
+        PackStore ps = PackStore.open();
+        for (int i = 0; i < 20; i++) {
+            ps.put(name(i), key(i), blob(i));
+            if (i == 9) {
+                ps.checkpoint();
+            }
+        }
+        ps.sync();
+
+        // the first 10 from the index, the rest scanned in as after a crash
+        PackStore other = PackStore.open();
+        for (int i = 0; i < 20; i++) {
+            check(other, i);
+        }
+        ps.put(name(20), key(20), blob(20));
+        ps.close();
+        check(PackStore.open(), 20);
+    }
+
+    @Test
+    public void unindexedEntriesAreRecovered() throws IOException {
+        crash_after(20, 5);
+        PackStore ps = PackStore.open();
+        for (int i = 0; i < 25; i++) {
+            check(ps, i);
+        }
+        ps.close();
+    }
+
+    @Test
+    public void truncatedEntryIsDropped() throws IOException {
+        crash_after(20, 5);
+        TestDb.truncate(m_pack, TestDb.size(m_pack) - 10);
+        PackStore ps = PackStore.open();
+        for (int i = 0; i < 24; i++) {
+            check(ps, i);
+        }
+        assertNull(ps.find(name(24)));
+        ps.close();
+    }
+
+    @Test
+    public void tamperedIndexIsRejected() throws IOException {
+        put(0, 20);
+        TestDb.flip_byte(m_index, 8);     // the record count
+        try {
+            PackStore.open();
+            fail("an index with a changed count opened");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void tamperedEntryDoesNotMatchTheIndex() throws IOException {
+        put(0, 20);
+        PackStore ps = PackStore.open();
+        PackStore.Entry e = ps.find(name(7));
+        TestDb.flip_byte(m_pack, e.GetOffset());      // the first byte of its name
+        try (FileChannel in = ps.open_pack(e.GetPack())) {
+            ps.read(in, e);
+            fail("an entry with a changed name was read");
+        } catch (IOException expected) {
+        }
+        ps.close();
+    }
+}
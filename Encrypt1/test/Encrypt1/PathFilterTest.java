@@ -0,0 +1,114 @@
+package Encrypt1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PathFilterTest {
+
+    private static final String[] PATHS = {
+        "Projects\\foo\\a.txt",
+        "Projects\\foo\\sub\\b.tmp",
+        "Projects\\foobar\\c.txt",
+        "Projects\\Foo2\\d.txt",
+        "docs\\readme.md",
+        "docs\\x\\y\\z.md",
+        "a\\b",
+        "a\\c\\b",
+        "a\\c\\d\\b",
+        "Other.txt",
+    };
+
+    private TestDb m_db;
+    private Manifest m_manifest;
+
+    @Before
+    public void setUp() throws Exception {
+        m_db = new TestDb();
+        String filename = PathNameKeeper.get_meta_file_write();
+        Manifest.Writer w = new Manifest.Writer(filename);
+        for (int i = 0; i < PATHS.length; i++) {
+            w.add(String.format("%040X_%040X", i, i), new FileMeta(PATHS[i], 1000L, i));
+        }
+        w.close();
+        m_manifest = Manifest.open(filename);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        m_manifest = null;
+        m_db.close();
+    }
+
+    // the paths the filter selects, sorted, and checks none comes twice
+    private List<String> select(List<String> includes, List<String> excludes) throws IOException {
+        List<String> paths = new ArrayList<>();
+        PathFilter.Selection s = new PathFilter(includes, excludes).select(m_manifest);
+        for (int i = s.next(); i >= 0; i = s.next()) {
+            String path = m_manifest.GetPath(i);
+            assertFalse(path + " twice", paths.contains(path));
+            paths.add(path);
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    private List<String> include(String... patterns) throws IOException {
+        return select(Arrays.asList(patterns), Collections.<String>emptyList());
+    }
+
+    private static List<String> paths(String... paths) {
+        List<String> l = new ArrayList<>(Arrays.asList(paths));
+        Collections.sort(l);
+        return l;
+    }
+
+    @Test
+    public void folderTakesEverythingUnderIt() throws IOException {
+        List<String> foo = paths("Projects\\foo\\a.txt", "Projects\\foo\\sub\\b.tmp");
+        assertEquals(foo, include("Projects\\foo"));
+        // either separator, any case, a trailing separator
+        assertEquals(foo, include("projects/FOO/"));
+        assertEquals(paths("Other.txt"), include("other.TXT"));
+    }
+
+    @Test
+    public void wildcards() throws IOException {
+        assertEquals(paths("docs\\readme.md"), include("docs\\*.md"));
+        assertEquals(paths("docs\\readme.md", "docs\\x\\y\\z.md"), include("docs\\**.md"));
+        assertEquals(paths("Projects\\Foo2\\d.txt"), include("Projects\\foo?"));
+        assertEquals(paths("Projects\\foo\\a.txt", "Projects\\foobar\\c.txt", "Projects\\Foo2\\d.txt"), include("Projects\\*\\*.txt"));
+    }
+
+    @Test
+    public void doubleStarTakesNoFolderToo() throws IOException {
+        assertEquals(paths("a\\b", "a\\c\\b", "a\\c\\d\\b"), include("a\\**\\b"));
+    }
+
+    @Test
+    public void excludesAndOverlappingIncludes() throws IOException {
+        assertEquals(paths("Projects\\foo\\a.txt"),
+                select(Arrays.asList("Projects\\foo"), Arrays.asList("**\\*.tmp")));
+        // each file once even when two includes take it
+        assertEquals(4, include("Projects", "Projects\\foo").size());
+        // no include is everything but the excludes
+        assertEquals(paths("Other.txt", "a\\b", "a\\c\\b", "a\\c\\d\\b", "docs\\readme.md", "docs\\x\\y\\z.md"),
+                select(Collections.<String>emptyList(), Arrays.asList("projects")));
+    }
+
+    @Test
+    public void emptyFilter() throws IOException {
+        PathFilter f = new PathFilter(Collections.<String>emptyList(), Collections.<String>emptyList());
+        assertTrue(f.is_empty());
+        assertEquals(PATHS.length, include().size());
+        assertTrue(include("nothing\\here").isEmpty());
+    }
+}
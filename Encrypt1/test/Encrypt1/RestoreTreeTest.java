@@ -0,0 +1,123 @@
+package Encrypt1;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import javax.crypto.SecretKey;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RestoreTreeTest {
+
+    private static final int SIZE = 1024 * 1024;
+
+    private TestDb m_db;
+    private byte[] m_contents;
+
+    @Before
+    public void setUp() throws Exception {
+        m_db = new TestDb();
+        m_contents = TestDb.random_bytes(SIZE, 1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        m_db.close();
+    }
+
+    // a blob name that is the same for the same s
+    private static String name(String s) {
+        return TreeWalker.byteToHex(TestDb.random_bytes(20, s.hashCode())) + "_" + TreeWalker.byteToHex(TestDb.random_bytes(20, -s.hashCode()));
+    }
+
+    // store contents as the normal blob name
+    private void store(String name, byte[] contents) throws Exception {
+        Path src = m_db.put_src("a.bin", contents);
+        SecretKey aesKey = EncryptLib.getKey();
+        Keystore.saveKey(name, aesKey);
+        EncryptLib.encryptAES(src.toString(), new FileMeta("a.bin", 1000L, contents.length),
+                PathNameKeeper.cat_path_s(PathNameKeeper.get_dat_folder(), name), aesKey);
+    }
+
+    private static byte[] read(String line, long offset, long length) throws Exception {
+        try (SeekableByteChannel ch = RestoreTree.openRange(line, offset, length)) {
+            ByteBuffer b = ByteBuffer.allocate((int) ch.size());
+            while (b.hasRemaining() && ch.read(b) >= 0) {
+            }
+            assertEquals(-1, ch.read(ByteBuffer.allocate(1)));
+            return b.array();
+        }
+    }
+
+    private static byte[] slice(byte[] b, int offset, int length) {
+        return Arrays.copyOfRange(b, offset, Math.min(b.length, offset + length));
+    }
+
+    @Test
+    public void normalAndMerkleBlobs() throws Exception {
+        String name = name("a");
+        store(name, m_contents);
+        assertArrayEquals(slice(m_contents, 12345, 70000), read(name, 12345, 70000));
+        assertArrayEquals(slice(m_contents, 12345, 70000), read(MerkleHash.MANIFEST_PREFIX + name, 12345, 70000));
+        assertArrayEquals(slice(m_contents, SIZE - 10, 100), read(name, SIZE - 10, 100));
+
+        try (SeekableByteChannel ch = RestoreTree.openRange(name, 0, SIZE)) {
+            ByteBuffer b = ByteBuffer.allocate(50);
+            ch.position(SIZE / 2 + 25);
+            ch.read(b);
+            assertArrayEquals(slice(m_contents, SIZE / 2 + 25, 50), b.array());
+        }
+    }
+
+    @Test
+    public void deltaBlobs() throws Exception {
+        String base = DeltaStore.storeFile(m_db.put_src("a.bin", m_contents).toString(),
+                new FileMeta("a.bin", 1000L, SIZE), "a.bin_1000", null);
+        byte[] v2 = m_contents.clone();
+        System.arraycopy(TestDb.random_bytes(100, 2), 0, v2, SIZE / 2, 100);
+        String line = DeltaStore.storeFile(m_db.put_src("a.bin", v2).toString(),
+                new FileMeta("a.bin", 2000L, SIZE), "a.bin_2000", base);
+        assertTrue(DeltaStore.is_delta(line));
+
+        // across the bytes that changed, so both COPY and DATA ops are read
+        assertArrayEquals(slice(v2, SIZE / 2 - 5000, 10000), read(line, SIZE / 2 - 5000, 10000));
+        assertArrayEquals(slice(v2, 0, 100), read(line, 0, 100));
+        assertArrayEquals(slice(v2, SIZE - 10, 100), read(line, SIZE - 10, 100));
+
+        try (SeekableByteChannel ch = RestoreTree.openRange(line, 0, SIZE)) {
+            ByteBuffer b = ByteBuffer.allocate(50);
+            ch.position(SIZE / 2 + 25);
+            ch.read(b);
+            assertArrayEquals(slice(v2, SIZE / 2 + 25, 50), b.array());
+        }
+    }
+
+    @Test
+    public void chunkedFilesAreRefused() throws Exception {
+        try {
+            RestoreTree.openRange(ChunkStore.MANIFEST_PREFIX + name("a"), 0, 100);
+            fail("a -cdc file was opened at random");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void packedBlobsAreRefused() throws Exception {
+        String name = name("a");
+        PackStore ps = PackStore.open();
+        ps.put(name, TestDb.random_bytes(24, 1), TestDb.random_bytes(64, 2));
+        ps.close();
+        try {
+            RestoreTree.openRange(name, 0, 100);
+            fail("a packed blob was opened at random");
+        } catch (IOException expected) {
+        }
+    }
+}
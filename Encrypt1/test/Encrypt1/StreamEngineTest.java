@@ -0,0 +1,117 @@
+package Encrypt1;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import org.junit.After;
+import org.junit.Test;
+
+public class StreamEngineTest {
+
+    private static final int BUFSIZE = 1024;
+
+    // around a block, around the buffer, and several buffers with a short tail
+    private static final int[] SIZES = { 0, 1, 15, 16, 17, 100, BUFSIZE - 1, BUFSIZE, BUFSIZE + 5, 3 * BUFSIZE + 7 };
+
+    private static final String PATH = "dir\\a file.bin";
+
+    @After
+    public void tearDown() {
+        OptionKeeper.set_bufsize(Integer.toString(256 * 1024));
+        OptionKeeper.set_direct(false);
+    }
+
+    private static byte[] bytes(int n) {
+        byte[] b = new byte[n];
+        new Random(n).nextBytes(b);
+        return b;
+    }
+
+    // the original EncryptLib.encryptAES() 16 byte loop with the IV the
+    // new blob was written with, see the note in StreamEngine.encrypt()
+    private static byte[] legacy_encrypt(byte[] contents, FileMeta filemeta, SecretKey aesKey, byte[] iv) throws Exception {
+        Cipher aesCipher = Cipher.getInstance(EncryptLib.AESNAME);
+        aesCipher.init(Cipher.ENCRYPT_MODE, aesKey, new IvParameterSpec(iv));
+        byte[] pathname_b = EncryptLib.GetPathBytes(filemeta.GetPathName());
+
+        ByteArrayOutputStream fos = new ByteArrayOutputStream();
+        fos.write(iv);
+        fos.write(EncryptLib.writeLongToBuffer(filemeta.GetFileSize()));
+        fos.write(EncryptLib.writeLongToBuffer(pathname_b.length));
+        fos.write(EncryptLib.writeLongToBuffer(filemeta.GetTimeStamp()));
+
+        byte[] block = new byte[EncryptLib.BLOCKSIZE];
+        for (int i = 0; i < pathname_b.length; i += EncryptLib.BLOCKSIZE) {
+            System.arraycopy(pathname_b, i, block, 0, EncryptLib.BLOCKSIZE);
+            fos.write(aesCipher.update(block));
+        }
+        InputStream fis = new ByteArrayInputStream(contents);
+        int nRead = fis.read(block);
+        while (nRead > 0) {
+            fos.write(aesCipher.update(block));
+            nRead = fis.read(block);
+        }
+        fos.write(aesCipher.doFinal(block));
+        return fos.toByteArray();
+    }
+
+    private static void check_sizes() throws Exception {
+        SecretKey aesKey = EncryptLib.getKey();
+        for (int size : SIZES) {
+            byte[] contents = bytes(size);
+            FileMeta filemeta = new FileMeta(PATH, 1234567L, size);
+            ContentDigest digest = new ContentDigest();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            StreamEngine.encrypt(Channels.newChannel(new ByteArrayInputStream(contents)), filemeta,
+                    Channels.newChannel(out), aesKey, digest);
+            byte[] blob = out.toByteArray();
+
+            byte[] iv = Arrays.copyOf(blob, EncryptLib.BLOCKSIZE);
+            assertArrayEquals("size " + size, legacy_encrypt(contents, filemeta, aesKey, iv), blob);
+
+            ContentDigest expected = new ContentDigest();
+            expected.update(contents, 0, size);
+            assertEquals("size " + size, expected.digest(), digest.digest());
+
+            StreamEngine.Decryptor d = new StreamEngine.Decryptor(Channels.newChannel(new ByteArrayInputStream(blob)), aesKey);
+            assertEquals(PATH, d.GetPathName());
+            assertEquals(1234567L, d.GetTimeStamp());
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            assertEquals(size, d.copyTo(Channels.newChannel(plain)));
+            assertArrayEquals("size " + size, contents, plain.toByteArray());
+        }
+    }
+
+    @Test
+    public void sameBytesAsTheLegacyLoop() throws Exception {
+        OptionKeeper.set_bufsize(Integer.toString(BUFSIZE));
+        check_sizes();
+    }
+
+    @Test
+    public void sameBytesWithDirectBuffers() throws Exception {
+        OptionKeeper.set_bufsize(Integer.toString(BUFSIZE));
+        OptionKeeper.set_direct(true);
+        check_sizes();
+    }
+
+    @Test
+    public void hashMatchesContentDigest() throws Exception {
+        OptionKeeper.set_bufsize(Integer.toString(BUFSIZE));
+        byte[] contents = bytes(3 * BUFSIZE + 7);
+        ContentDigest digest = new ContentDigest();
+        StreamEngine.hash(Channels.newChannel(new ByteArrayInputStream(contents)), digest);
+        ContentDigest expected = new ContentDigest();
+        expected.update(ByteBuffer.wrap(contents));
+        assertEquals(expected.digest(), digest.digest());
+    }
+}
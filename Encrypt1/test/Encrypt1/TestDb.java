@@ -0,0 +1,118 @@
+//------------------------------------------------------------------------------
+// TestDb:
+//
+// A throw away DB for the format tests.  dbRoot and destRoot go in a new temp
+// folder with DAT\, KEY\, META\ and SNAP\ made, and the master password is
+// set without the prompt.  close() puts the options a test changed back and
+// deletes the folder.
+//------------------------------------------------------------------------------
+
+package Encrypt1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+class TestDb {
+
+    static final String PASSWORD = "pw";
+
+    private final Path m_root;
+    private final Path m_src;
+
+    TestDb() throws Exception {
+        m_root = Files.createTempDirectory("Encrypt1");
+        m_src = Files.createDirectories(m_root.resolve("src"));
+        PathNameKeeper.set_dbRoot(Files.createDirectories(m_root.resolve("db")).toString());
+        PathNameKeeper.set_destRoot(Files.createDirectories(m_root.resolve("dest")).toString());
+        PathNameKeeper.set_srcRoot(m_src.toString());
+        Files.createDirectories(Paths.get(PathNameKeeper.get_dat_folder()));
+        Files.createDirectories(Paths.get(PathNameKeeper.get_key_folder()));
+        Files.createDirectories(Paths.get(PathNameKeeper.get_meta_file_write()).getParent());
+        Files.createDirectories(Paths.get(PathNameKeeper.get_snap_folder()));
+        Encrypt1.GetMasterPw().init(PASSWORD.toCharArray());
+        Keystore.close_session();
+    }
+
+    Path GetSrc() {
+        return m_src;
+    }
+
+    Path GetDest() {
+        return Paths.get(PathNameKeeper.get_destRoot());
+    }
+
+    // where a restore puts path, built the way the restore builds it
+    static Path dest_file(String path) {
+        return Paths.get(PathNameKeeper.cat_path_s(PathNameKeeper.get_destRoot(), path));
+    }
+
+    // write contents to src\name, returns the file
+    Path put_src(String name, byte[] contents) throws IOException {
+        Path p = m_src.resolve(name);
+        Files.createDirectories(p.getParent());
+        Files.write(p, contents);
+        return p;
+    }
+
+    void close() throws IOException {
+        Keystore.close_session();
+        OptionKeeper.set_chunked(false);
+        OptionKeeper.set_chunksize(Integer.toString(1024 * 1024));
+        OptionKeeper.set_keystore(false);
+        OptionKeeper.set_pack(false);
+        OptionKeeper.set_delta(false);
+        OptionKeeper.set_incremental(false);
+        Files.walkFileTree(m_root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                // snapshots are made read only
+                file.toFile().setWritable(true);
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // n bytes that are the same for the same seed
+    static byte[] random_bytes(int n, long seed) {
+        byte[] b = new byte[n];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    static void flip_byte(String filename, long pos) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(filename), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            ch.read(b, pos);
+            b.put(0, (byte) (b.get(0) ^ 0x5A));
+            b.rewind();
+            ch.write(b, pos);
+        }
+    }
+
+    static void truncate(String filename, long size) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(filename), StandardOpenOption.WRITE)) {
+            ch.truncate(size);
+        }
+    }
+
+    static long size(String filename) {
+        return new File(filename).length();
+    }
+}